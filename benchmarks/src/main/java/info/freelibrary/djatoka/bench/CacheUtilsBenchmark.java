@@ -0,0 +1,49 @@
+
+package info.freelibrary.djatoka.bench;
+
+import info.freelibrary.djatoka.util.CacheUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the tile cache file names that every IIIF image request computes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class CacheUtilsBenchmark {
+
+    private String level = "3";
+
+    private String region = "1024,2048,512,512";
+
+    private String scale = "256";
+
+    @Benchmark
+    public String levelTile() {
+        return CacheUtils.getFileName(level, null, null, 0.0f);
+    }
+
+    @Benchmark
+    public String regionTile() {
+        return CacheUtils.getFileName(null, region, scale, 0.0f);
+    }
+
+    @Benchmark
+    public String rotatedRegionTile() {
+        return CacheUtils.getFileName(null, region, scale, 90.0f);
+    }
+}
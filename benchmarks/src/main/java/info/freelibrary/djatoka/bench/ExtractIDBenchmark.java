@@ -0,0 +1,80 @@
+
+package info.freelibrary.djatoka.bench;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.view.IdentifierResolver;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures pulling an identifier out of a request. With an ID cache size of zero every call runs the validation
+ * regexes; with the default size the handful of IDs a viewer session asks for are remembered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class ExtractIDBenchmark {
+
+    private static final String VALIDATIONS = "^(1911/[\\d]+/[a-zA-Z0-9_\\-]+(\\.jp2|\\.JP2)?)$ "
+            + "^http[s]?://(?:scholarship|dspace).rice.edu/bitstream/handle/(1911/[\\d]+/[a-zA-Z0-9_\\-]+"
+            + "(\\.jp2|\\.JP2)?)*$";
+
+    @Param({ "0", "10000" })
+    public int idCacheSize;
+
+    private IdentifierResolver myResolver;
+
+    private String[] myRequests;
+
+    private int myIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        final Properties props = new Properties();
+
+        props.setProperty(Constants.JP2_DATA_DIR, Fixtures.tempDir().getAbsolutePath());
+        props.setProperty(Constants.INGEST_VALIDATIONS, VALIDATIONS);
+        props.setProperty(Constants.INGEST_HOSTS, "http://127.0.0.1:8080/bitstream/handle/{}");
+        props.setProperty(Constants.ID_CACHE_SIZE, Integer.toString(idCacheSize));
+
+        myResolver = new IdentifierResolver();
+        myResolver.setProperties(props);
+
+        // A few open images, some requested by handle path and some by full URL, plus one that's rejected
+        myRequests = new String[16];
+
+        for (int index = 0; index < myRequests.length - 1; index++) {
+            final String path = "1911/" + (70000 + index % 5) + "/page_" + index % 5 + ".jp2";
+
+            if (index % 2 == 0) {
+                myRequests[index] = path.replace("/", "%252F");
+            } else {
+                myRequests[index] = "https://scholarship.rice.edu/bitstream/handle/" + path;
+            }
+        }
+
+        myRequests[myRequests.length - 1] = "not-a-known-id";
+    }
+
+    @Benchmark
+    public String extractID() {
+        myIndex = myIndex + 1 & myRequests.length - 1;
+        return myResolver.extractID(myRequests[myIndex]);
+    }
+}
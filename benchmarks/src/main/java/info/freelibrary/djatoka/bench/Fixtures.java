@@ -0,0 +1,252 @@
+
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.DjatokaEncodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.kdu.KduCompressExe;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the fixtures the benchmarks run against so they don't depend on any images being on disk. Everything is
+ * built from a fixed seed, so runs on different machines see the same bytes.
+ */
+public final class Fixtures {
+
+    private static final long SEED = 20110701L;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a binary PNM image (P6 for colour, P5 for greyscale) like the ones <code>kdu_expand</code> writes.
+     *
+     * @param aWidth The image width
+     * @param aHeight The image height
+     * @param aGrey True for a greyscale (P5) image; false for a colour (P6) image
+     * @return The bytes of the PNM image
+     */
+    public static byte[] pnm(final int aWidth, final int aHeight, final boolean aGrey) {
+        final int channels = aGrey ? 1 : 3;
+        final String header = (aGrey ? "P5" : "P6") + "\n" + aWidth + " " + aHeight + "\n255\n";
+        final byte[] headerBytes = header.getBytes();
+        final byte[] bytes = new byte[headerBytes.length + aWidth * aHeight * channels];
+        final Random random = new Random(SEED);
+        int index = headerBytes.length;
+
+        System.arraycopy(headerBytes, 0, bytes, 0, headerBytes.length);
+
+        // A gradient with some noise compresses roughly like a scanned page would
+        for (int y = 0; y < aHeight; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    bytes[index++] = (byte) ((x + y * (channel + 1)) / 4 + random.nextInt(16));
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Creates an RGB image with the same content as {@link #pnm(int, int, boolean)}.
+     *
+     * @param aWidth The image width
+     * @param aHeight The image height
+     * @return A new image
+     */
+    public static BufferedImage image(final int aWidth, final int aHeight) {
+        final BufferedImage image = new BufferedImage(aWidth, aHeight, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(SEED);
+
+        for (int y = 0; y < aHeight; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                final int r = (x + y) / 4 + random.nextInt(16) & 0xff;
+                final int g = (x + y * 2) / 4 + random.nextInt(16) & 0xff;
+                final int b = (x + y * 3) / 4 + random.nextInt(16) & 0xff;
+
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Creates a JP2 file with a valid box structure and main header (SIZ and COD) followed by filler codestream
+     * bytes. It can't be decoded, but it's everything the header parsers look at.
+     *
+     * @param aWidth The image width
+     * @param aHeight The image height
+     * @param aLevels The number of DWT levels in the COD marker
+     * @param aLayers The number of quality layers in the COD marker
+     * @param aBodySize The number of filler bytes after the main header
+     * @return The bytes of the JP2 file
+     */
+    public static byte[] jp2(final int aWidth, final int aHeight, final int aLevels, final int aLayers,
+            final int aBodySize) {
+        try {
+            final ByteArrayOutputStream codestream = new ByteArrayOutputStream();
+            final DataOutputStream cs = new DataOutputStream(codestream);
+            final ByteArrayOutputStream jp2 = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(jp2);
+            final byte[] body = new byte[aBodySize];
+
+            // SOC, then SIZ with three 8-bit components and 1024x1024 tiles
+            cs.writeShort(0xFF4F);
+            cs.writeShort(0xFF51);
+            cs.writeShort(38 + 3 * 3);
+            cs.writeShort(0);
+            cs.writeInt(aWidth);
+            cs.writeInt(aHeight);
+            cs.writeInt(0);
+            cs.writeInt(0);
+            cs.writeInt(1024);
+            cs.writeInt(1024);
+            cs.writeInt(0);
+            cs.writeInt(0);
+            cs.writeShort(3);
+
+            for (int component = 0; component < 3; component++) {
+                cs.writeByte(7);
+                cs.writeByte(1);
+                cs.writeByte(1);
+            }
+
+            // COD: LRCP, the requested layers and levels, 64x64 code-blocks, 9/7 wavelet
+            cs.writeShort(0xFF52);
+            cs.writeShort(12);
+            cs.writeByte(0);
+            cs.writeByte(0);
+            cs.writeShort(aLayers);
+            cs.writeByte(1);
+            cs.writeByte(aLevels);
+            cs.writeByte(4);
+            cs.writeByte(4);
+            cs.writeByte(0);
+            cs.writeByte(0);
+
+            new Random(SEED).nextBytes(body);
+            cs.write(body);
+            cs.writeShort(0xFFD9);
+            cs.flush();
+
+            // Signature and file type boxes
+            out.writeInt(12);
+            out.writeInt(0x6A502020);
+            out.writeInt(0x0D0A870A);
+            out.writeInt(20);
+            out.writeInt(0x66747970);
+            out.writeInt(0x6A703220);
+            out.writeInt(0);
+            out.writeInt(0x6A703220);
+
+            // JP2 header super box with image header and sRGB colour boxes
+            out.writeInt(8 + 22 + 15);
+            out.writeInt(0x6A703268);
+            out.writeInt(22);
+            out.writeInt(0x69686472);
+            out.writeInt(aHeight);
+            out.writeInt(aWidth);
+            out.writeShort(3);
+            out.writeByte(7);
+            out.writeByte(7);
+            out.writeByte(0);
+            out.writeByte(0);
+            out.writeInt(15);
+            out.writeInt(0x636F6C72);
+            out.writeByte(1);
+            out.writeByte(0);
+            out.writeByte(0);
+            out.writeInt(16);
+
+            // Contiguous codestream box
+            out.writeInt(8 + codestream.size());
+            out.writeInt(0x6A703263);
+            codestream.writeTo(out);
+            out.flush();
+
+            return jp2.toByteArray();
+        } catch (final IOException details) {
+            throw new IllegalStateException(details);
+        }
+    }
+
+    /**
+     * Compresses an image from {@link #image(int, int)} into a real, decodable JP2 file with the bundled Kakadu
+     * compressor. Kakadu is found through the <code>kakadu.home</code> and <code>LD_LIBRARY_PATH</code> system
+     * properties, which default to the binaries in this repository when run from the <code>benchmarks</code>
+     * directory. This has to be called before anything loads the Kakadu wrappers since they read those properties
+     * when they're loaded.
+     *
+     * @param aWidth The image width
+     * @param aHeight The image height
+     * @return A temporary JP2 file that's removed when the JVM exits
+     * @throws IOException If the file can't be written
+     * @throws DjatokaException If the image can't be compressed
+     */
+    public static File kakaduJP2(final int aWidth, final int aHeight) throws IOException, DjatokaException {
+        final File jp2 = File.createTempFile("djatoka-bench-", ".jp2");
+
+        // Kakadu is run from its own directory so relative paths wouldn't resolve
+        setAbsolutePath("kakadu.home", "../bin/Linux-x86-64");
+        setAbsolutePath("LD_LIBRARY_PATH", "../lib/Linux-x86-64");
+
+        jp2.deleteOnExit();
+        new KduCompressExe().compressImage(image(aWidth, aHeight), jp2.getAbsolutePath(), new DjatokaEncodeParam());
+
+        return jp2;
+    }
+
+    private static void setAbsolutePath(final String aProperty, final String aDefault) {
+        final String path = System.getProperty(aProperty, aDefault);
+
+        System.setProperty(aProperty, new File(path).getAbsolutePath());
+    }
+
+    /**
+     * Writes the supplied bytes to a temporary file that's removed when the JVM exits.
+     *
+     * @param aBytes The bytes to write
+     * @param aExt The file extension, like ".jp2"
+     * @return The temporary file
+     * @throws IOException If the file can't be written
+     */
+    public static File tempFile(final byte[] aBytes, final String aExt) throws IOException {
+        final File file = File.createTempFile("djatoka-bench-", aExt);
+        final FileOutputStream out = new FileOutputStream(file);
+
+        file.deleteOnExit();
+
+        try {
+            out.write(aBytes);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Creates a temporary directory that's removed (if empty) when the JVM exits.
+     *
+     * @return The temporary directory
+     * @throws IOException If the directory can't be created
+     */
+    public static File tempDir() throws IOException {
+        final File dir = File.createTempFile("djatoka-bench-", "");
+
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create temporary directory: " + dir);
+        }
+
+        dir.deleteOnExit();
+        return dir;
+    }
+}
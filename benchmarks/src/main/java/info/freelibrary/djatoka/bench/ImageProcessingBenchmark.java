@@ -0,0 +1,56 @@
+
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the scaling and rotation done after a region has been extracted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class ImageProcessingBenchmark {
+
+    @Param({ "512", "2048" })
+    public int size;
+
+    private BufferedImage myImage;
+
+    @Setup
+    public void setup() {
+        myImage = Fixtures.image(size, size);
+    }
+
+    @Benchmark
+    public BufferedImage scaleByFactor() {
+        return ImageProcessingUtils.scale(myImage, 0.5);
+    }
+
+    @Benchmark
+    public BufferedImage scaleToTile() {
+        return ImageProcessingUtils.scale(myImage, 256, 256);
+    }
+
+    @Benchmark
+    public BufferedImage rotate90() {
+        return ImageProcessingUtils.rotate(myImage, 90);
+    }
+}
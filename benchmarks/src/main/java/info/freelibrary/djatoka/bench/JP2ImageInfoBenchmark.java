@@ -0,0 +1,57 @@
+
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.JP2ImageInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading image metadata from JP2 headers. The header scanner skips over the codestream's data, so the time
+ * shouldn't grow with the codestream's size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class JP2ImageInfoBenchmark {
+
+    @Param({ "65536", "4194304" })
+    public int codestreamSize;
+
+    private byte[] myJP2;
+
+    private File myJP2File;
+
+    @Setup
+    public void setup() throws Exception {
+        myJP2 = Fixtures.jp2(6000, 4000, 6, 8, codestreamSize);
+        myJP2File = Fixtures.tempFile(myJP2, ".jp2");
+    }
+
+    @Benchmark
+    public ImageRecord fromStream() throws Exception {
+        return new JP2ImageInfo(new ByteArrayInputStream(myJP2)).getImageRecord();
+    }
+
+    @Benchmark
+    public ImageRecord fromFile() throws Exception {
+        return new JP2ImageInfo(myJP2File).getImageRecord();
+    }
+}
@@ -0,0 +1,50 @@
+
+package info.freelibrary.djatoka.bench;
+
+import info.freelibrary.djatoka.io.PNMImage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing the PNM output of <code>kdu_expand</code> into a <code>BufferedImage</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class PNMImageBenchmark {
+
+    @Param({ "256", "1024" })
+    public int size;
+
+    @Param({ "P6", "P5" })
+    public String type;
+
+    private byte[] myPNM;
+
+    @Setup
+    public void setup() {
+        myPNM = Fixtures.pnm(size, size, "P5".equals(type));
+    }
+
+    @Benchmark
+    public BufferedImage parse() throws Exception {
+        return new PNMImage(new ByteArrayInputStream(myPNM)).getBufferedImage();
+    }
+}
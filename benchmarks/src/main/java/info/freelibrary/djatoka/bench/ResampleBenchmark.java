@@ -0,0 +1,153 @@
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.util.Resampler;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.imgscalr.Scalr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the Lanczos resampler, on all cores and on one, with the <code>AffineTransformOp</code> the render path
+ * used and the imgscalr <code>ULTRA_QUALITY</code> resize the resampled ingest used. The resize is the residual one
+ * left after level reduction: 0.7 of the source, which no level gets to.
+ * <p>
+ * Run {@link #main(String[])} for the quality of each method: how much moiré fine stripes leave after the resize,
+ * where a perfect one would leave flat grey, and how far a smooth wave's resize is from the wave itself.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class ResampleBenchmark {
+
+    private static final double SCALE = 0.7;
+
+    /** The number of pixels at each edge left out of the quality comparison */
+    private static final int EDGE = 3;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    private BufferedImage myImage;
+
+    private int myWidth;
+
+    private int myHeight;
+
+    @Setup
+    public void setup() {
+        myImage = Fixtures.image(size, size);
+        myWidth = (int) Math.ceil(size * SCALE);
+        myHeight = myWidth;
+    }
+
+    @Benchmark
+    public BufferedImage affineTransform() {
+        return affineTransform(myImage);
+    }
+
+    @Benchmark
+    public BufferedImage imgscalrUltraQuality() {
+        return imgscalr(myImage, myWidth);
+    }
+
+    @Benchmark
+    public BufferedImage lanczos() {
+        return Resampler.resize(myImage, myWidth, myHeight);
+    }
+
+    @Benchmark
+    public BufferedImage lanczosOneThread() {
+        return Resampler.resize(myImage, myWidth, myHeight, 1);
+    }
+
+    /**
+     * Prints the quality of each method's resize.
+     *
+     * @param aArgs Nothing
+     */
+    public static void main(final String[] aArgs) {
+        final int size = 1024;
+        final int newSize = (int) Math.ceil(size * SCALE);
+        final BufferedImage stripes = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        final BufferedImage wave = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        final double period = 64;
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                stripes.getRaster().setSample(x, y, 0, x % 2 == 0 ? 0 : 255);
+                wave.getRaster().setSample(x, y, 0, (int) Math.round(waveAt(x, period)));
+            }
+        }
+
+        System.out.println("method            moire (RMS from flat grey)   wave error (RMS)");
+
+        for (final String method : new String[] { "affineTransform", "imgscalrUltraQuality", "lanczos" }) {
+            final BufferedImage resizedStripes = resize(method, stripes, newSize);
+            final BufferedImage resizedWave = resize(method, wave, newSize);
+            final int width = Math.min(resizedWave.getWidth(), newSize);
+            double moire = 0;
+            double mean = 0;
+            double error = 0;
+            int count = 0;
+
+            // The edges are left out; the methods deal with them differently and it's the middle that's compared
+            for (int x = EDGE; x < width - EDGE; x++, count++) {
+                mean += resizedStripes.getRaster().getSample(x, newSize / 2, 0);
+            }
+
+            mean /= count;
+
+            for (int x = EDGE; x < width - EDGE; x++) {
+                final double expected = waveAt((x + 0.5) / SCALE - 0.5, period);
+                final double stripe = resizedStripes.getRaster().getSample(x, newSize / 2, 0) - mean;
+                final double wrong = resizedWave.getRaster().getSample(x, newSize / 2, 0) - expected;
+
+                moire += stripe * stripe;
+                error += wrong * wrong;
+            }
+
+            System.out.println(String.format("%-20s %20.2f %18.2f", method, Math.sqrt(moire / count), Math.sqrt(
+                    error / count)));
+        }
+    }
+
+    private static double waveAt(final double aX, final double aPeriod) {
+        return 127.5 + 100 * Math.sin(2 * Math.PI * aX / aPeriod);
+    }
+
+    private static BufferedImage resize(final String aMethod, final BufferedImage aImage, final int aSize) {
+        if ("affineTransform".equals(aMethod)) {
+            return affineTransform(aImage);
+        } else if ("imgscalrUltraQuality".equals(aMethod)) {
+            return imgscalr(aImage, aSize);
+        } else {
+            return Resampler.resize(aImage, aSize, aSize);
+        }
+    }
+
+    private static BufferedImage affineTransform(final BufferedImage aImage) {
+        return new AffineTransformOp(AffineTransform.getScaleInstance(SCALE, SCALE), null).filter(aImage, null);
+    }
+
+    private static BufferedImage imgscalr(final BufferedImage aImage, final int aSize) {
+        return Scalr.resize(aImage, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.FIT_EXACT, aSize, aSize);
+    }
+}
@@ -0,0 +1,114 @@
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rendering a 4x4 block of 256 pixel tiles one tile at a time with decoding the block once and cutting it
+ * into tiles, the way the prefetcher renders blocks. Scores are per tile and include the JPEG encoding of each tile.
+ * Decoding happens in a <code>kdu_expand</code> process, and the image's header is read with Kakadu's JNI library, so
+ * this needs the bundled Kakadu binaries (see {@link Fixtures#kakaduJP2(int, int)}) and has to be run from the
+ * <code>benchmarks</code> directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dlog4j.configuration=bench-log4j.properties",
+    "-Djava.library.path=../lib/Linux-x86-64" })
+public class SuperTileBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final int BLOCK_SIZE = 4;
+
+    private static final int TILES = BLOCK_SIZE * BLOCK_SIZE;
+
+    /** The scale factor the tiles are rendered at; 1 is the full resolution */
+    @Param({ "1", "4" })
+    public int factor;
+
+    private String myJP2;
+
+    private DjatokaExtractProcessor myProcessor;
+
+    @Setup
+    public void setup() throws IOException, DjatokaException {
+        final int size = TILE_SIZE * BLOCK_SIZE * factor;
+
+        myJP2 = Fixtures.kakaduJP2(size, size).getAbsolutePath();
+        myProcessor = new DjatokaExtractProcessor(new KduExtractExe());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TILES)
+    public long singleTiles() throws DjatokaException {
+        final int span = TILE_SIZE * factor;
+        long bytes = 0;
+
+        for (int row = 0; row < BLOCK_SIZE; row++) {
+            for (int column = 0; column < BLOCK_SIZE; column++) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                myProcessor.extractImage(myJP2, out, getParams(row * span, column * span, span), "image/jpeg");
+                bytes += out.size();
+            }
+        }
+
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TILES)
+    public long superTile() throws DjatokaException {
+        final Rectangle[] tiles = new Rectangle[TILES];
+        final OutputStream[] outputs = new OutputStream[TILES];
+        long bytes = 0;
+
+        for (int index = 0; index < TILES; index++) {
+            tiles[index] = new Rectangle(index % BLOCK_SIZE * TILE_SIZE, index / BLOCK_SIZE * TILE_SIZE, TILE_SIZE,
+                    TILE_SIZE);
+            outputs[index] = new ByteArrayOutputStream();
+        }
+
+        myProcessor.extractTiles(myJP2, getParams(0, 0, TILE_SIZE * BLOCK_SIZE * factor), tiles, outputs,
+                "image/jpeg");
+
+        for (final OutputStream output : outputs) {
+            bytes += ((ByteArrayOutputStream) output).size();
+        }
+
+        return bytes;
+    }
+
+    private DjatokaDecodeParam getParams(final int aTop, final int aLeft, final int aSpan) {
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setRegion(aTop + "," + aLeft + "," + aSpan + "," + aSpan);
+        params.setScalingDimensions(new int[] { aSpan / factor, 0 });
+        return params;
+    }
+}
@@ -0,0 +1,84 @@
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.plugin.ImageWatermark;
+import gov.lanl.adore.djatoka.plugin.TextWatermark;
+import gov.lanl.adore.djatoka.plugin.TransformException;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures stamping a 256 pixel tile with the text and image watermarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dlog4j.configuration=bench-log4j.properties", "-Djava.awt.headless=true" })
+public class WatermarkBenchmark {
+
+    private static final HashMap<String, String> INSTANCE_PROPS = new HashMap<String, String>();
+
+    private BufferedImage myTile;
+
+    private TextWatermark myTextWatermark;
+
+    private ImageWatermark myImageWatermark;
+
+    @Setup
+    public void setup() throws IOException {
+        final BufferedImage overlay = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = overlay.createGraphics();
+        final File overlayFile = File.createTempFile("overlay-", ".png");
+        final Properties props = new Properties();
+
+        graphics.setColor(Color.RED);
+        graphics.fillOval(0, 0, 64, 32);
+        graphics.dispose();
+
+        ImageIO.write(overlay, "png", overlayFile);
+        overlayFile.deleteOnExit();
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_COPYRIGHT, "(c) Fondren Library, Rice University");
+        props.setProperty(TextWatermark.PROP_WATERMARK_ALLOWED, "example.org");
+        props.setProperty(ImageWatermark.PROP_WATERMARK_OVERLAYIMAGE, overlayFile.getAbsolutePath());
+
+        myTextWatermark = new TextWatermark();
+        myTextWatermark.setup(props);
+        myImageWatermark = new ImageWatermark();
+        myImageWatermark.setup(props);
+        myTile = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Benchmark
+    public BufferedImage textWatermark() throws TransformException {
+        myTextWatermark.setInstanceProps(INSTANCE_PROPS);
+        return myTextWatermark.run(myTile);
+    }
+
+    @Benchmark
+    public BufferedImage imageWatermark() throws TransformException {
+        myImageWatermark.setInstanceProps(INSTANCE_PROPS);
+        return myImageWatermark.run(myTile);
+    }
+}
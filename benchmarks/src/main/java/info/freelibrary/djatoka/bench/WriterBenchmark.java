@@ -0,0 +1,63 @@
+
+package info.freelibrary.djatoka.bench;
+
+import gov.lanl.adore.djatoka.io.writer.JPGWriter;
+import gov.lanl.adore.djatoka.io.writer.PNGWriter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding a finished tile with the JPEG and PNG writers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=bench-log4j.properties")
+public class WriterBenchmark {
+
+    @Param({ "256", "1024" })
+    public int size;
+
+    private final JPGWriter myJPGWriter = new JPGWriter();
+
+    private final PNGWriter myPNGWriter = new PNGWriter();
+
+    private final ByteArrayOutputStream myOut = new ByteArrayOutputStream(1024 * 1024);
+
+    private BufferedImage myImage;
+
+    @Setup
+    public void setup() {
+        myImage = Fixtures.image(size, size);
+    }
+
+    @Benchmark
+    public int jpg() throws Exception {
+        myOut.reset();
+        myJPGWriter.write(myImage, myOut);
+        return myOut.size();
+    }
+
+    @Benchmark
+    public int png() throws Exception {
+        myOut.reset();
+        myPNGWriter.write(myImage, myOut);
+        return myOut.size();
+    }
+}
@@ -0,0 +1,68 @@
+
+package info.freelibrary.djatoka.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the image requests out of an access log. Lines in the common or combined log formats (Apache, nginx, Tomcat's
+ * AccessLogValve) are understood, as are lines that are just a request path or URL. Only GET requests for IIIF or
+ * OpenURL resolver paths are kept, with anything before the webapp-relative path removed.
+ */
+public final class AccessLogReader {
+
+    private static final Pattern REQUEST = Pattern.compile("\"GET (\\S+) HTTP/[\\d.]+\"");
+
+    private static final Pattern SERVICE_PATH = Pattern.compile("(/iiif/.*|/resolver\\?.*)");
+
+    private AccessLogReader() {
+    }
+
+    /**
+     * Reads the replayable request paths from an access log.
+     *
+     * @param aLog An access log file
+     * @return The webapp-relative request paths in log order
+     * @throws IOException If the log can't be read
+     */
+    public static List<String> read(final File aLog) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(new FileReader(aLog));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String path = getRequestPath(line);
+
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return paths;
+    }
+
+    /**
+     * Gets the webapp-relative request path from a single log line.
+     *
+     * @param aLine A log line
+     * @return The request path, or null if the line isn't a replayable image request
+     */
+    public static String getRequestPath(final String aLine) {
+        final Matcher request = REQUEST.matcher(aLine);
+        final String target = request.find() ? request.group(1) : aLine.trim();
+        final Matcher path = SERVICE_PATH.matcher(target);
+
+        return path.find() ? path.group(1) : null;
+    }
+}
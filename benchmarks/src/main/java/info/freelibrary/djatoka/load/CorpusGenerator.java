@@ -0,0 +1,213 @@
+
+package info.freelibrary.djatoka.load;
+
+import gov.lanl.adore.djatoka.DjatokaEncodeParam;
+import gov.lanl.adore.djatoka.kdu.KduCompressExe;
+import info.freelibrary.djatoka.util.URLEncode;
+import info.freelibrary.util.PairtreeObject;
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus of JP2 images with the bundled Kakadu compressor. Image sizes and encode settings are
+ * spread across the kinds of material we actually serve (manuscript pages, photographs, maps) so the load harness
+ * sees realistic decode costs. Run it with the same system properties the server uses to find Kakadu:
+ *
+ * <pre>
+ * java -Dkakadu.home=../bin/Linux-x86-64 -DLD_LIBRARY_PATH=../lib/Linux-x86-64 \
+ *     -cp target/benchmarks.jar info.freelibrary.djatoka.load.CorpusGenerator corpus 24 [jp2Dir]
+ * </pre>
+ *
+ * The JP2s and a <code>corpus.csv</code> (id, width, height, preset, bytes) are written to the output directory. If a
+ * JP2 directory is given, each image is also copied into its Pairtree under the ID the resolver will look for.
+ */
+public final class CorpusGenerator {
+
+    /** The kinds of image in the corpus: name, width, height */
+    private static final Object[][] SIZES = { { "page", 4000, 5600 }, { "photo", 3000, 2000 },
+        { "map", 7200, 5400 }, { "thumb", 1200, 900 } };
+
+    /** Encode settings: name, layers, precincts, progression, code-block size, PLT markers */
+    private static final Object[][] PRESETS = { { "default", 8, null, null, null, false },
+        { "precincts", 12, "{256,256},{256,256},{128,128}", "RPCL", "{64,64}", true },
+        { "lossy", 1, null, "LRCP", "{32,32}", false } };
+
+    private static final String ID_PREFIX = "1911/90000/";
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * Generates the corpus.
+     *
+     * @param aArgs An output directory, an optional image count, and an optional JP2 Pairtree directory
+     * @throws Exception If the corpus can't be generated
+     */
+    public static void main(final String[] aArgs) throws Exception {
+        if (aArgs.length < 1) {
+            System.err.println("Usage: CorpusGenerator outputDir [count] [jp2Dir]");
+            System.exit(1);
+        }
+
+        final File outputDir = new File(aArgs[0]);
+        final int count = aArgs.length > 1 ? Integer.parseInt(aArgs[1]) : 24;
+        final PairtreeRoot pairtree = aArgs.length > 2 ? new PairtreeRoot(new File(aArgs[2])) : null;
+        final KduCompressExe compressor = new KduCompressExe();
+        final Random random = new Random(count);
+        final PrintWriter csv;
+
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("Unable to create output directory: " + outputDir);
+        }
+
+        csv = new PrintWriter(new FileWriter(new File(outputDir, "corpus.csv")));
+
+        try {
+            for (int index = 0; index < count; index++) {
+                final Object[] size = SIZES[index % SIZES.length];
+                final Object[] preset = PRESETS[index / SIZES.length % PRESETS.length];
+                final String name = String.format("%s_%s_%04d", size[0], preset[0], index);
+                final String id = ID_PREFIX + name;
+                final File tiff = File.createTempFile("corpus-", ".tif");
+                final File jp2 = new File(outputDir, name + ".jp2");
+                final int width = (Integer) size[1];
+                final int height = (Integer) size[2];
+
+                try {
+                    writeTiff(tiff, width, height, random.nextLong());
+                    compressor.compressImage(tiff.getAbsolutePath(), jp2.getAbsolutePath(), getParams(preset));
+                } finally {
+                    if (!tiff.delete()) {
+                        tiff.deleteOnExit();
+                    }
+                }
+
+                if (pairtree != null) {
+                    // The resolver looks JP2s up by their single-encoded ID
+                    final String ptID = URLEncode.encode(id);
+                    final PairtreeObject dir = pairtree.getObject(ptID);
+
+                    copy(jp2, new File(dir, PairtreeUtils.encodeID(ptID)));
+                }
+
+                csv.println(id + "," + width + "," + height + "," + preset[0] + "," + jp2.length());
+                System.out.println("Generated " + jp2 + " (" + jp2.length() + " bytes)");
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    private static DjatokaEncodeParam getParams(final Object[] aPreset) {
+        final DjatokaEncodeParam params = new DjatokaEncodeParam();
+
+        params.setLayers((Integer) aPreset[1]);
+
+        if (aPreset[2] != null) {
+            params.setPrecincts((String) aPreset[2]);
+        }
+
+        if (aPreset[3] != null) {
+            params.setProgressionOrder((String) aPreset[3]);
+        }
+
+        if (aPreset[4] != null) {
+            params.setCodeBlockSize((String) aPreset[4]);
+        }
+
+        params.setInsertPLT((Boolean) aPreset[5]);
+
+        if (params.getLayers() == 1) {
+            params.setRate("1.0");
+        }
+
+        return params;
+    }
+
+    /**
+     * Writes an uncompressed RGB TIFF one row at a time, so even the large sizes don't need a full raster in memory.
+     */
+    private static void writeTiff(final File aFile, final int aWidth, final int aHeight, final long aSeed)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aFile)));
+        final int entries = 10;
+        final int bitsOffset = 8 + 2 + entries * 12 + 4;
+        final int dataOffset = bitsOffset + 6;
+        final Random random = new Random(aSeed);
+        final byte[] row = new byte[aWidth * 3];
+        final int phase = random.nextInt(256);
+
+        try {
+            // Big-endian header and a single image file directory
+            out.writeShort(0x4D4D);
+            out.writeShort(42);
+            out.writeInt(8);
+            out.writeShort(entries);
+            writeEntry(out, 256, 4, 1, aWidth);
+            writeEntry(out, 257, 4, 1, aHeight);
+            writeEntry(out, 258, 3, 3, bitsOffset);
+            writeEntry(out, 259, 3, 1, 1 << 16);
+            writeEntry(out, 262, 3, 1, 2 << 16);
+            writeEntry(out, 273, 4, 1, dataOffset);
+            writeEntry(out, 277, 3, 1, 3 << 16);
+            writeEntry(out, 278, 4, 1, aHeight);
+            writeEntry(out, 279, 4, 1, aWidth * aHeight * 3);
+            writeEntry(out, 284, 3, 1, 1 << 16);
+            out.writeInt(0);
+            out.writeShort(8);
+            out.writeShort(8);
+            out.writeShort(8);
+
+            // Broad gradients, some banding like text lines, and noise
+            for (int y = 0; y < aHeight; y++) {
+                final int band = y / 48 % 3 == 0 ? 40 : 0;
+
+                for (int x = 0; x < aWidth; x++) {
+                    final int noise = random.nextInt(24);
+
+                    row[x * 3] = (byte) (160 + (x * 60 / aWidth) - band + noise);
+                    row[x * 3 + 1] = (byte) (150 + (y * 60 / aHeight) - band + noise);
+                    row[x * 3 + 2] = (byte) (phase + (x + y) / 32 - band + noise);
+                }
+
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeEntry(final DataOutputStream aOut, final int aTag, final int aType, final int aCount,
+            final int aValue) throws IOException {
+        aOut.writeShort(aTag);
+        aOut.writeShort(aType);
+        aOut.writeInt(aCount);
+        aOut.writeInt(aValue);
+    }
+
+    private static void copy(final File aSource, final File aDest) throws IOException {
+        final FileInputStream in = new FileInputStream(aSource);
+        final FileOutputStream out = new FileOutputStream(aDest);
+        final byte[] buffer = new byte[65536];
+        int count;
+
+        try {
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
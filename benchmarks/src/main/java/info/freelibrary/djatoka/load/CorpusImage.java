@@ -0,0 +1,90 @@
+
+package info.freelibrary.djatoka.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An image from the <code>corpus.csv</code> written by {@link CorpusGenerator}.
+ */
+public class CorpusImage {
+
+    private final String myID;
+
+    private final int myWidth;
+
+    private final int myHeight;
+
+    /**
+     * Creates a corpus image.
+     *
+     * @param aID The image's identifier
+     * @param aWidth The image's width
+     * @param aHeight The image's height
+     */
+    public CorpusImage(final String aID, final int aWidth, final int aHeight) {
+        myID = aID;
+        myWidth = aWidth;
+        myHeight = aHeight;
+    }
+
+    /**
+     * Gets the image's identifier.
+     *
+     * @return The image's identifier
+     */
+    public String getID() {
+        return myID;
+    }
+
+    /**
+     * Gets the image's width.
+     *
+     * @return The image's width
+     */
+    public int getWidth() {
+        return myWidth;
+    }
+
+    /**
+     * Gets the image's height.
+     *
+     * @return The image's height
+     */
+    public int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Reads the images listed in a corpus CSV file.
+     *
+     * @param aFile A corpus CSV file
+     * @return The listed images
+     * @throws IOException If the file can't be read
+     */
+    public static List<CorpusImage> read(final File aFile) throws IOException {
+        final List<CorpusImage> images = new ArrayList<CorpusImage>();
+        final BufferedReader reader = new BufferedReader(new FileReader(aFile));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(",");
+
+                if (parts.length >= 3 && !line.startsWith("#")) {
+                    images.add(new CorpusImage(parts[0], Integer.parseInt(parts[1].trim()), Integer
+                            .parseInt(parts[2].trim())));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return images;
+    }
+}
@@ -0,0 +1,95 @@
+
+package info.freelibrary.djatoka.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects request latencies and outcomes for one kind of request so percentiles can be reported at the end of a run.
+ */
+public class LatencyStats {
+
+    private long[] myLatencies = new long[1024];
+
+    private int myCount;
+
+    private int myErrors;
+
+    private long myBytes;
+
+    /**
+     * Records a completed request.
+     *
+     * @param aNanos The request's latency in nanoseconds
+     * @param aStatus The HTTP status, or -1 if the request failed without one
+     * @param aBytes The number of body bytes read
+     */
+    public synchronized void record(final long aNanos, final int aStatus, final long aBytes) {
+        if (myCount == myLatencies.length) {
+            myLatencies = Arrays.copyOf(myLatencies, myCount * 2);
+        }
+
+        myLatencies[myCount++] = aNanos;
+        myBytes += aBytes;
+
+        if (aStatus < 200 || aStatus >= 400) {
+            myErrors += 1;
+        }
+    }
+
+    /**
+     * Gets the number of recorded requests.
+     *
+     * @return The number of recorded requests
+     */
+    public synchronized int getCount() {
+        return myCount;
+    }
+
+    /**
+     * Gets the number of recorded requests that failed or returned an error status.
+     *
+     * @return The number of failed requests
+     */
+    public synchronized int getErrors() {
+        return myErrors;
+    }
+
+    /**
+     * Gets the number of body bytes read across all recorded requests.
+     *
+     * @return The number of body bytes read
+     */
+    public synchronized long getBytes() {
+        return myBytes;
+    }
+
+    /**
+     * Gets a latency percentile.
+     *
+     * @param aPercentile A percentile between 0 and 100
+     * @return The latency at that percentile in milliseconds
+     */
+    public synchronized double getPercentile(final double aPercentile) {
+        if (myCount == 0) {
+            return 0;
+        }
+
+        final long[] sorted = Arrays.copyOf(myLatencies, myCount);
+        final int index = (int) Math.ceil(aPercentile / 100 * myCount) - 1;
+
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, Math.min(myCount - 1, index))] / 1000000d;
+    }
+
+    /**
+     * Gets a one-line summary of the recorded requests.
+     *
+     * @param aName The name of this kind of request
+     * @return A summary line
+     */
+    public String summarize(final String aName) {
+        return String.format("%-8s %8d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %10.1f", aName, getCount(), getErrors(),
+                getPercentile(50), getPercentile(90), getPercentile(95), getPercentile(99), getPercentile(100),
+                getBytes() / 1048576d);
+    }
+}
@@ -0,0 +1,271 @@
+
+package info.freelibrary.djatoka.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a running server with recorded or synthesized viewer traffic and reports latency percentiles, throughput,
+ * and cache hit ratios. Hit ratios come from the difference in the server's <code>/metrics</code> counters before and
+ * after the run, so they're only meaningful when nothing else is using the server.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar info.freelibrary.djatoka.load.LoadHarness \
+ *     --server http://localhost:8080/jp2 (--log access.log | --corpus corpus/corpus.csv) \
+ *     [--concurrency 16] [--sessions 200] [--openurl] [--seed 1]
+ * </pre>
+ *
+ * With <code>--log</code> the logged requests are replayed in order, spread over the worker threads. With
+ * <code>--corpus</code> each worker repeatedly picks an image and plays a synthesized viewer session against it
+ * until the requested number of sessions has been played.
+ */
+public final class LoadHarness {
+
+    private static final String[] CACHES = { "image_cache", "tile_cache" };
+
+    private final String myServer;
+
+    private final int myConcurrency;
+
+    private final Map<String, LatencyStats> myStats = new LinkedHashMap<String, LatencyStats>();
+
+    private LoadHarness(final String aServer, final int aConcurrency) {
+        myServer = aServer.endsWith("/") ? aServer.substring(0, aServer.length() - 1) : aServer;
+        myConcurrency = aConcurrency;
+        myStats.put("info", new LatencyStats());
+        myStats.put("tile", new LatencyStats());
+        myStats.put("all", new LatencyStats());
+    }
+
+    /**
+     * Runs the load harness.
+     *
+     * @param aArgs The command line options
+     * @throws Exception If the run can't be completed
+     */
+    public static void main(final String[] aArgs) throws Exception {
+        final Map<String, String> options = parseOptions(aArgs);
+        final String server = options.get("server");
+
+        if (server == null || options.containsKey("log") == options.containsKey("corpus")) {
+            System.err.println("Usage: LoadHarness --server URL (--log FILE | --corpus FILE) [--concurrency N] "
+                    + "[--sessions N] [--openurl] [--seed N]");
+            System.exit(1);
+        }
+
+        final int concurrency = Integer.parseInt(getOption(options, "concurrency", "16"));
+        final LoadHarness harness = new LoadHarness(server, concurrency);
+        final Map<String, Double> before = harness.readMetrics();
+        final long start = System.nanoTime();
+
+        if (options.containsKey("log")) {
+            harness.replay(AccessLogReader.read(new File(options.get("log"))));
+        } else {
+            final List<CorpusImage> corpus = CorpusImage.read(new File(options.get("corpus")));
+            final int sessions = Integer.parseInt(getOption(options, "sessions", "200"));
+            final long seed = Long.parseLong(getOption(options, "seed", "1"));
+
+            harness.simulate(corpus, sessions, options.containsKey("openurl"), seed);
+        }
+
+        harness.report(System.nanoTime() - start, before, harness.readMetrics());
+    }
+
+    private void replay(final List<String> aPaths) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(myConcurrency);
+
+        System.out.println("Replaying " + aPaths.size() + " requests with " + myConcurrency + " workers");
+
+        for (int worker = 0; worker < myConcurrency; worker++) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    int index;
+
+                    while ((index = next.getAndIncrement()) < aPaths.size()) {
+                        request(aPaths.get(index));
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void simulate(final List<CorpusImage> aCorpus, final int aSessions, final boolean aOpenURL,
+            final long aSeed) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(aSessions);
+        final ExecutorService executor = Executors.newFixedThreadPool(myConcurrency);
+        final SessionSynthesizer synthesizer = new SessionSynthesizer(1280, 800, aOpenURL);
+
+        System.out.println("Playing " + aSessions + " viewer sessions over " + aCorpus.size() + " images with " +
+                myConcurrency + " workers");
+
+        for (int worker = 0; worker < myConcurrency; worker++) {
+            final Random random = new Random(aSeed + worker);
+
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        // A few images are much more popular than the rest
+                        final int index = (int) (Math.pow(random.nextDouble(), 2) * aCorpus.size());
+
+                        for (final String path : synthesizer.createSession(aCorpus.get(index), random)) {
+                            request(path);
+                        }
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void request(final String aPath) {
+        final boolean isInfo = aPath.contains("info.json") || aPath.contains("getMetadata");
+        final long start = System.nanoTime();
+        int status = -1;
+        long bytes = 0;
+
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(myServer + aPath).openConnection();
+
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(120000);
+            status = connection.getResponseCode();
+
+            final InputStream stream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+            if (stream != null) {
+                final byte[] buffer = new byte[16384];
+                int count;
+
+                try {
+                    while ((count = stream.read(buffer)) != -1) {
+                        bytes += count;
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        } catch (final IOException details) {
+            System.err.println("Request failed: " + aPath + " (" + details.getMessage() + ")");
+        }
+
+        final long latency = System.nanoTime() - start;
+
+        myStats.get(isInfo ? "info" : "tile").record(latency, status, bytes);
+        myStats.get("all").record(latency, status, bytes);
+    }
+
+    /**
+     * Reads the server's counters from its metrics endpoint; returns an empty map if the endpoint isn't there.
+     */
+    private Map<String, Double> readMetrics() {
+        final Map<String, Double> metrics = new HashMap<String, Double>();
+
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(myServer + "/metrics").openConnection();
+            final BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    final int space = line.lastIndexOf(' ');
+
+                    if (!line.startsWith("#") && space > 0) {
+                        metrics.put(line.substring(0, space), Double.valueOf(line.substring(space + 1)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final Exception details) {
+            System.err.println("Unable to read server metrics: " + details.getMessage());
+        }
+
+        return metrics;
+    }
+
+    private void report(final long aElapsed, final Map<String, Double> aBefore, final Map<String, Double> aAfter) {
+        final double seconds = aElapsed / 1000000000d;
+        final LatencyStats all = myStats.get("all");
+
+        System.out.println();
+        System.out.println(String.format("%-8s %8s %7s %9s %9s %9s %9s %9s %10s", "type", "requests", "errors",
+                "p50 ms", "p90 ms", "p95 ms", "p99 ms", "max ms", "MB"));
+
+        for (final Map.Entry<String, LatencyStats> entry : myStats.entrySet()) {
+            System.out.println(entry.getValue().summarize(entry.getKey()));
+        }
+
+        System.out.println();
+        System.out.println(String.format("Elapsed: %.1f s; throughput: %.1f requests/s, %.1f MB/s", seconds, all
+                .getCount() / seconds, all.getBytes() / 1048576d / seconds));
+
+        for (final String cache : CACHES) {
+            final double hits = getDelta(aBefore, aAfter, "djatoka_" + cache + "_hits_total");
+            final double misses = getDelta(aBefore, aAfter, "djatoka_" + cache + "_misses_total");
+
+            if (hits + misses > 0) {
+                System.out.println(String.format("%s hit ratio: %.1f%% (%.0f hits, %.0f misses)", cache, hits * 100 /
+                        (hits + misses), hits, misses));
+            } else {
+                System.out.println(cache + " hit ratio: n/a");
+            }
+        }
+    }
+
+    private static double getDelta(final Map<String, Double> aBefore, final Map<String, Double> aAfter,
+            final String aName) {
+        final Double before = aBefore.get(aName);
+        final Double after = aAfter.get(aName);
+
+        return after == null ? 0 : after - (before == null ? 0 : before);
+    }
+
+    private static Map<String, String> parseOptions(final String[] aArgs) {
+        final Map<String, String> options = new HashMap<String, String>();
+
+        for (int index = 0; index < aArgs.length; index++) {
+            if (aArgs[index].startsWith("--")) {
+                final String name = aArgs[index].substring(2);
+
+                if (index + 1 < aArgs.length && !aArgs[index + 1].startsWith("--")) {
+                    options.put(name, aArgs[++index]);
+                } else {
+                    options.put(name, "true");
+                }
+            }
+        }
+
+        return Collections.unmodifiableMap(options);
+    }
+
+    private static String getOption(final Map<String, String> aOptions, final String aName, final String aDefault) {
+        return aOptions.containsKey(aName) ? aOptions.get(aName) : aDefault;
+    }
+}
@@ -0,0 +1,149 @@
+
+package info.freelibrary.djatoka.load;
+
+import info.freelibrary.djatoka.util.URLEncode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthesizes the requests a deep-zoom viewer like OpenSeadragon makes while someone looks at an image: the image
+ * information, the tiles that fill the viewport when the image is fit to the screen, then tiles for a few zooms
+ * toward a point of interest and a few pans at the deepest zoom. Tiles the viewer already has aren't asked for
+ * again, just like a browser with a warm cache.
+ */
+public class SessionSynthesizer {
+
+    /** The tile size the server advertises in its image information */
+    public static final int TILE_SIZE = 256;
+
+    private static final String IIIF_TILE = "/iiif/%s/%d,%d,%d,%d/%d,/0/native.jpg";
+
+    private static final String IIIF_INFO = "/iiif/%s/info.json";
+
+    private static final String OPENURL_TILE = "/resolver?url_ver=Z39.88-2004&rft_id=%s"
+            + "&svc_id=info:lanl-repo/svc/getRegion&svc_val_fmt=info:ofi/fmt:kev:mtx:jpeg2000"
+            + "&svc.format=image/jpeg&svc.level=%d&svc.region=%d,%d,%d,%d";
+
+    private static final String OPENURL_INFO = "/resolver?url_ver=Z39.88-2004&rft_id=%s"
+            + "&svc_id=info:lanl-repo/svc/getMetadata";
+
+    private final int myViewportWidth;
+
+    private final int myViewportHeight;
+
+    private final boolean isOpenURL;
+
+    /**
+     * Creates a synthesizer for a viewer with the supplied viewport size.
+     *
+     * @param aViewportWidth The viewer's width in pixels
+     * @param aViewportHeight The viewer's height in pixels
+     * @param aOpenURL True to make djatoka OpenURL requests; false to make IIIF requests
+     */
+    public SessionSynthesizer(final int aViewportWidth, final int aViewportHeight, final boolean aOpenURL) {
+        myViewportWidth = aViewportWidth;
+        myViewportHeight = aViewportHeight;
+        isOpenURL = aOpenURL;
+    }
+
+    /**
+     * Creates the request paths, relative to the webapp, for one viewing session of the supplied image.
+     *
+     * @param aImage The image being viewed
+     * @param aRandom The source of the viewer's choices
+     * @return The request paths in the order the viewer would make them
+     */
+    public List<String> createSession(final CorpusImage aImage, final Random aRandom) {
+        final Set<String> requests = new LinkedHashSet<String>();
+        final int maxLevel = getMaxLevel(aImage);
+        final int fitLevel = getFitLevel(aImage, maxLevel);
+        final int zooms = 1 + aRandom.nextInt(Math.max(1, maxLevel - fitLevel));
+        final int pans = aRandom.nextInt(5);
+        double focusX = aRandom.nextDouble() * aImage.getWidth();
+        double focusY = aRandom.nextDouble() * aImage.getHeight();
+        int level = fitLevel;
+
+        requests.add(String.format(isOpenURL ? OPENURL_INFO : IIIF_INFO, getID(aImage)));
+        addViewport(requests, aImage, maxLevel, level, aImage.getWidth() / 2d, aImage.getHeight() / 2d);
+
+        for (int zoom = 0; zoom < zooms && level < maxLevel; zoom++) {
+            addViewport(requests, aImage, maxLevel, ++level, focusX, focusY);
+        }
+
+        for (int pan = 0; pan < pans; pan++) {
+            final int scale = 1 << maxLevel - level;
+
+            focusX += (aRandom.nextDouble() - 0.5) * myViewportWidth * scale;
+            focusY += (aRandom.nextDouble() - 0.5) * myViewportHeight * scale;
+            focusX = Math.max(0, Math.min(aImage.getWidth(), focusX));
+            focusY = Math.max(0, Math.min(aImage.getHeight(), focusY));
+
+            addViewport(requests, aImage, maxLevel, level, focusX, focusY);
+        }
+
+        return new ArrayList<String>(requests);
+    }
+
+    /**
+     * Gets the deepest level, where one image pixel is one screen pixel; level 0 fits in one tile.
+     */
+    private static int getMaxLevel(final CorpusImage aImage) {
+        int level = 0;
+
+        while (Math.max(aImage.getWidth(), aImage.getHeight()) > TILE_SIZE << level) {
+            level += 1;
+        }
+
+        return level;
+    }
+
+    private int getFitLevel(final CorpusImage aImage, final int aMaxLevel) {
+        int level = 0;
+
+        while (level < aMaxLevel && aImage.getWidth() >> aMaxLevel - level - 1 <= myViewportWidth &&
+                aImage.getHeight() >> aMaxLevel - level - 1 <= myViewportHeight) {
+            level += 1;
+        }
+
+        return level;
+    }
+
+    private void addViewport(final Set<String> aRequests, final CorpusImage aImage, final int aMaxLevel,
+            final int aLevel, final double aCenterX, final double aCenterY) {
+        final int scale = 1 << aMaxLevel - aLevel;
+        final int span = TILE_SIZE * scale;
+        final double halfWidth = myViewportWidth * scale / 2d;
+        final double halfHeight = myViewportHeight * scale / 2d;
+        final int firstColumn = (int) Math.max(0, (aCenterX - halfWidth) / span);
+        final int lastColumn = (int) Math.min((aImage.getWidth() - 1) / span, (aCenterX + halfWidth) / span);
+        final int firstRow = (int) Math.max(0, (aCenterY - halfHeight) / span);
+        final int lastRow = (int) Math.min((aImage.getHeight() - 1) / span, (aCenterY + halfHeight) / span);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final int x = column * span;
+                final int y = row * span;
+                final int width = Math.min(span, aImage.getWidth() - x);
+                final int height = Math.min(span, aImage.getHeight() - y);
+
+                if (isOpenURL) {
+                    // djatoka regions are top, left at full resolution and height, width at the requested level
+                    aRequests.add(String.format(OPENURL_TILE, URLEncode.encode(aImage.getID()), aLevel, y, x,
+                            (height + scale - 1) / scale, (width + scale - 1) / scale));
+                } else {
+                    aRequests.add(String.format(IIIF_TILE, getID(aImage), x, y, width, height, (width + scale - 1) /
+                            scale));
+                }
+            }
+        }
+    }
+
+    private String getID(final CorpusImage aImage) {
+        return isOpenURL ? URLEncode.encode(aImage.getID()) : URLEncode.pathSafetyEncode(URLEncode.encode(aImage
+                .getID()));
+    }
+}
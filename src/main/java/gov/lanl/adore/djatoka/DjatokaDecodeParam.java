@@ -25,6 +25,8 @@ package gov.lanl.adore.djatoka;
 
 import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
 
+import java.util.Map;
+
 /**
  * Decode Parameters for djatoka extraction. Defines extraction parameters (i.e. region, rotate, level, transform
  * plug-in) to be performed during extraction of JP2.
@@ -33,6 +35,12 @@ import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
  */
 public class DjatokaDecodeParam implements DjatokaConstants {
 
+    /** Quality of an extracted image converted to 8-bit greyscale: "grey" */
+    public static final String QUALITY_GREY = "grey";
+
+    /** Quality of an extracted image converted to 1-bit black and white: "bitonal" */
+    public static final String QUALITY_BITONAL = "bitonal";
+
     private static final int DEFAULT_LEVEL_REDUCE = 0;
 
     private static final String DEFAULT_EXTRACTION_REGION = null;
@@ -53,6 +61,10 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 
     private ITransformPlugIn transform;
 
+    private Map<String, String> transformProps;
+
+    private String quality = null;
+
     /**
      * Creates a new configuration object.
      */
@@ -152,6 +164,25 @@ public class DjatokaDecodeParam implements DjatokaConstants {
         this.transform = transform;
     }
 
+    /**
+     * Returns the instance properties the transformation plug-in is applied with, if it's cacheable.
+     * 
+     * @return image transform instance properties, or null if the plug-in's own are used
+     */
+    public Map<String, String> getTransformProps() {
+        return transformProps;
+    }
+
+    /**
+     * Sets the instance properties a cacheable transformation plug-in is applied with, so requests that share the
+     * plug-in don't need to set their own on it.
+     * 
+     * @param transformProps image transform instance properties
+     */
+    public void setTransformProps(Map<String, String> transformProps) {
+        this.transformProps = transformProps;
+    }
+
     /**
      * Set the compositing layer.
      * 
@@ -209,6 +240,29 @@ public class DjatokaDecodeParam implements DjatokaConstants {
         this.scalingDims = scalingDims;
     }
 
+    /**
+     * Gets the quality the extracted image is to be converted to.
+     * 
+     * @return {@link #QUALITY_GREY}, {@link #QUALITY_BITONAL}, or null if the image keeps its own colors
+     */
+    public String getQuality() {
+        return quality;
+    }
+
+    /**
+     * Sets the quality the extracted image is to be converted to. Values other than {@link #QUALITY_GREY} and
+     * {@link #QUALITY_BITONAL} leave the image's colors as they are.
+     * 
+     * @param quality the quality the extracted image is to be converted to
+     */
+    public void setQuality(String quality) {
+        if (QUALITY_GREY.equals(quality) || QUALITY_BITONAL.equals(quality)) {
+            this.quality = quality;
+        } else {
+            this.quality = null;
+        }
+    }
+
     /**
      * Returns the string representation of the configuration.
      */
@@ -227,6 +281,9 @@ public class DjatokaDecodeParam implements DjatokaConstants {
         } else if (scalingDims.length == 2) {
             sb.append("\"scalingDims\": \"" + scalingDims[0] + "," + scalingDims[1] + "\", ");
         }
+        if (quality != null) {
+            sb.append("\"quality\": \"" + quality + "\", ");
+        }
         sb.append("\"compLayer\": \"" + compLayer + "\" ");
         sb.append("}");
         return sb.toString();
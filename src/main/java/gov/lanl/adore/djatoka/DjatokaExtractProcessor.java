@@ -26,9 +26,14 @@ package gov.lanl.adore.djatoka;
 import gov.lanl.adore.djatoka.io.FormatFactory;
 import gov.lanl.adore.djatoka.io.FormatWriterParams;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.plugin.ICacheableTransformPlugIn;
+import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import info.freelibrary.djatoka.util.Metrics;
+import info.freelibrary.djatoka.util.RasterPool;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -44,7 +49,8 @@ import org.slf4j.LoggerFactory;
 /**
  * Extraction Processor - Intermediate processor between DjatokaExtract and IExtract implementation. Works with the
  * format factory to convert the extracted region to desired output directory. Handles I/O and post extraction
- * transform.
+ * transform. Each extraction holds a {@link RasterPool} lease until its output is written, so the arrays its images
+ * are kept in are reused by later extractions.
  * 
  * @author Ryan Chute
  */
@@ -56,6 +62,14 @@ public class DjatokaExtractProcessor {
 
     private static FormatFactory fmtFactory = new FormatFactory();
 
+    private static final Metrics.Timer EXTRACT_TIMER = Metrics.timer("extract");
+
+    private static final Metrics.Timer SCALE_TIMER = Metrics.timer("scale");
+
+    private static final Metrics.Timer TRANSFORM_TIMER = Metrics.timer("transform");
+
+    private static final Metrics.Timer ENCODE_TIMER = Metrics.timer("encode");
+
     private IExtract extractImpl;
 
     /**
@@ -166,33 +180,33 @@ public class DjatokaExtractProcessor {
             }
         }
 
-        BufferedImage bi = extractImpl.process(input, params);
-        if (bi != null) {
-            if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
-                bi = applyScaling(bi, params);
-            }
-
-            if (params.getTransform() != null) {
-                bi = params.getTransform().run(bi);
-            }
-
-            try {
-                BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(new File(dest)));
-                w.write(bi, os);
-                os.close();
-            } catch (FileNotFoundException e) {
-                if (LOGGER.isErrorEnabled()) {
-                    LOGGER.error("Requested file was not found: " + dest);
+        final RasterPool.Lease lease = RasterPool.getInstance().open();
+
+        try {
+            BufferedImage bi = extract(input, params);
+            if (bi != null) {
+                bi = postProcess(bi, params);
+
+                try {
+                    BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(new File(dest)));
+                    write(bi, w, os);
+                    os.close();
+                } catch (FileNotFoundException e) {
+                    if (LOGGER.isErrorEnabled()) {
+                        LOGGER.error("Requested file was not found: " + dest);
+                    }
+
+                    throw new DjatokaException(e.getMessage(), e);
+                } catch (IOException e) {
+                    if (LOGGER.isErrorEnabled()) {
+                        LOGGER.error("Error attempting to close: " + dest);
+                    }
+
+                    throw new DjatokaException(e.getMessage(), e);
                 }
-
-                throw new DjatokaException(e.getMessage(), e);
-            } catch (IOException e) {
-                if (LOGGER.isErrorEnabled()) {
-                    LOGGER.error("Error attempting to close: " + dest);
-                }
-
-                throw new DjatokaException(e.getMessage(), e);
             }
+        } finally {
+            lease.close();
         }
 
         if (in != null) {
@@ -231,18 +245,16 @@ public class DjatokaExtractProcessor {
             }
         }
 
-        BufferedImage bi = extractImpl.process(input, params);
+        final RasterPool.Lease lease = RasterPool.getInstance().open();
 
-        if (bi != null) {
-            if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
-                bi = applyScaling(bi, params);
-            }
+        try {
+            BufferedImage bi = extract(input, params);
 
-            if (params.getTransform() != null) {
-                bi = params.getTransform().run(bi);
+            if (bi != null) {
+                write(postProcess(bi, params), w, os);
             }
-
-            w.write(bi, os);
+        } finally {
+            lease.close();
         }
 
         if (in != null) {
@@ -263,15 +275,124 @@ public class DjatokaExtractProcessor {
      */
     public void extractImage(InputStream input, OutputStream os, DjatokaDecodeParam params, IWriter w)
             throws DjatokaException {
-        BufferedImage bi = extractImpl.process(input, params);
-        if (bi != null) {
-            if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
+        final RasterPool.Lease lease = RasterPool.getInstance().open();
+        final long start = System.nanoTime();
+        BufferedImage bi;
+
+        try {
+            try {
+                bi = extractImpl.process(input, params);
+            } finally {
+                EXTRACT_TIMER.stop(start);
+            }
+
+            if (bi != null) {
+                write(postProcess(bi, params), w, os);
+            }
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Extract a region once and write several tiles cut from it. Neighbouring tiles share the JPEG 2000 code-blocks
+     * and precincts along their edges, so decoding them together is cheaper than decoding each one on its own.
+     * 
+     * @param input absolute file path for input file.
+     * @param params DjatokaDecodeParam instance containing the region covering all the tiles and its scaling.
+     * @param tiles the tiles' bounds within the scaled region; bounds outside the region are clipped.
+     * @param outputs streams the tiles are written to, in the same order as their bounds; a null stream skips a tile.
+     * @param fmtId mimetype identifier of output file format (e.g. "image/jpeg")
+     * @throws DjatokaException
+     */
+    public void extractTiles(String input, DjatokaDecodeParam params, Rectangle[] tiles, OutputStream[] outputs,
+            String fmtId) throws DjatokaException {
+        final RasterPool.Lease lease = RasterPool.getInstance().open();
+
+        try {
+            BufferedImage bi = extract(input, params);
+
+            if (bi != null) {
+                final IWriter w = fmtFactory.getWriter(fmtId);
+
+                bi = postProcess(bi, params);
+
+                final Rectangle bounds = new Rectangle(0, 0, bi.getWidth(), bi.getHeight());
+
+                for (int index = 0; index < tiles.length; index++) {
+                    final Rectangle tile = tiles[index].intersection(bounds);
+
+                    if (outputs[index] != null && !tile.isEmpty()) {
+                        write(bi.getSubimage(tile.x, tile.y, tile.width, tile.height), w, outputs[index]);
+                    }
+                }
+            }
+        } finally {
+            lease.close();
+        }
+    }
+
+    private BufferedImage extract(String input, DjatokaDecodeParam params) throws DjatokaException {
+        final long start = System.nanoTime();
+
+        try {
+            return extractImpl.process(input, params);
+        } finally {
+            EXTRACT_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * Applies any requested scaling, quality and transform to the extracted image, timing each stage. The quality is
+     * applied before the transform, so a watermark is drawn in the colors it was configured with.
+     * 
+     * @param bi the extracted image
+     * @param params DjatokaDecodeParam containing the scaling and transform settings
+     * @return the scaled and transformed image
+     * @throws DjatokaException
+     */
+    private static BufferedImage postProcess(BufferedImage bi, DjatokaDecodeParam params) throws DjatokaException {
+        if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
+            final long start = System.nanoTime();
+
+            try {
                 bi = applyScaling(bi, params);
+            } finally {
+                SCALE_TIMER.stop(start);
             }
-            if (params.getTransform() != null) {
-                bi = params.getTransform().run(bi);
+        }
+
+        if (DjatokaDecodeParam.QUALITY_GREY.equals(params.getQuality())) {
+            bi = ImageProcessingUtils.toGrey(bi);
+        } else if (DjatokaDecodeParam.QUALITY_BITONAL.equals(params.getQuality())) {
+            bi = ImageProcessingUtils.toBitonal(bi);
+        }
+
+        if (params.getTransform() != null) {
+            final ITransformPlugIn transform = params.getTransform();
+            final long start = System.nanoTime();
+
+            try {
+                if (transform instanceof ICacheableTransformPlugIn && params.getTransformProps() != null) {
+                    bi = ((ICacheableTransformPlugIn) transform).run(bi, params.getTransformProps());
+                } else {
+                    bi = transform.run(bi);
+                }
+            } finally {
+                TRANSFORM_TIMER.stop(start);
             }
+        }
+
+        return bi;
+    }
+
+    private static void write(BufferedImage bi, IWriter w, OutputStream os) throws DjatokaException {
+        final long start = System.nanoTime();
+
+        try {
             w.write(bi, os);
+        } finally {
+            ENCODE_TIMER.stop(start);
         }
     }
 
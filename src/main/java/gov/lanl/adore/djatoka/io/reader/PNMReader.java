@@ -31,6 +31,7 @@ import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IReader;
 
 import info.freelibrary.djatoka.io.PNMImage;
+import info.freelibrary.djatoka.util.Metrics;
 
 /**
  * Returns BufferedImage give a PNM image InputStream or file path.
@@ -40,6 +41,8 @@ import info.freelibrary.djatoka.io.PNMImage;
  */
 public class PNMReader implements IReader {
 
+    private static final Metrics.Timer PARSE_TIMER = Metrics.timer("pnm_parse");
+
     /**
      * Returns a BufferedImage instance for provided image file path.
      * 
@@ -65,10 +68,14 @@ public class PNMReader implements IReader {
      */
     @Override
     public BufferedImage open(final InputStream aInputStream) throws FormatIOException {
+        final long start = System.nanoTime();
+
         try {
             return new PNMImage(aInputStream).getBufferedImage();
         } catch (final IOException details) {
             throw new FormatIOException(details);
+        } finally {
+            PARSE_TIMER.stop(start);
         }
     }
 
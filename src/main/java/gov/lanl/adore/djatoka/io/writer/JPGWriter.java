@@ -36,6 +36,7 @@ import javax.imageio.ImageWriter;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
 /**
  * JPG File Writer. Uses ImageIO to write BufferedImage as JPG
@@ -67,8 +68,12 @@ public class JPGWriter implements IWriter {
             iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
             iwp.setCompressionQuality((float) (q / 100.0));
 
+            // JPEG has no 1-bit mode, and black and white images would otherwise be written in color
+            final BufferedImage image = aImage.getType() == BufferedImage.TYPE_BYTE_BINARY ? ImageProcessingUtils
+                    .toGrey(aImage) : aImage;
+
             jpgWriter.setOutput(ImageIO.createImageOutputStream(aOutStream));
-            jpgWriter.write(null, new IIOImage(aImage, null, null), iwp);
+            jpgWriter.write(null, new IIOImage(image, null, null), iwp);
             jpgWriter.dispose();
         } catch (final IOException details) {
             throw new FormatIOException(details);
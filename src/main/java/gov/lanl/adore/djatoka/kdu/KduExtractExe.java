@@ -44,12 +44,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.martiansoftware.jsap.CommandLineTokenizer;
 
+import info.freelibrary.djatoka.util.Metrics;
+
 import kdu_jni.Jp2_family_src;
 import kdu_jni.Jpx_source;
 import kdu_jni.KduException;
@@ -79,6 +82,16 @@ public class KduExtractExe implements IExtract {
 
     private final static BufferedImage OOB = getOutOfBoundsImage();
 
+    private static final Metrics.Timer EXPAND_TIMER = Metrics.timer("kdu_expand");
+
+    private static final Metrics.Timer METADATA_TIMER = Metrics.timer("metadata");
+
+    private static final Metrics.Counter EXPAND_LAUNCHES = Metrics.counter("kdu_expand_launches");
+
+    private static final Metrics.Counter EXPAND_FAILURES = Metrics.counter("kdu_expand_failures");
+
+    private static final AtomicInteger EXPAND_RUNNING = new AtomicInteger();
+
     /** Name of extraction executable */
     public static final String KDU_EXPAND_EXE = "kdu_expand";
 
@@ -101,6 +114,14 @@ public class KduExtractExe implements IExtract {
         }
 
         LOGGER.debug("envParams: " + ((envParams != null) ? envParams[0] + " | " : "") + exe);
+
+        Metrics.gauge("kdu_expand_running", new Metrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return EXPAND_RUNNING.get();
+            }
+        });
     }
 
     /**
@@ -181,7 +202,12 @@ public class KduExtractExe implements IExtract {
         try {
             String command = getKduExtractCommand(input, output, dims, params);
             String[] cmdParts = CommandLineTokenizer.tokenize(command);
+            final long start = System.nanoTime();
             Process process = Runtime.getRuntime().exec(cmdParts, envParams, new File(env));
+
+            EXPAND_LAUNCHES.increment();
+            EXPAND_RUNNING.incrementAndGet();
+
             ByteArrayOutputStream stdout = new ByteArrayOutputStream();
             ByteArrayOutputStream stderr = new ByteArrayOutputStream();
             ExecuteStreamHandler streamHandler = new PumpStreamHandler(stdout, stderr, is);
@@ -212,11 +238,15 @@ public class KduExtractExe implements IExtract {
                 process.destroy();
                 throw t;
             } finally {
+                EXPAND_RUNNING.decrementAndGet();
+                EXPAND_TIMER.stop(start);
+
                 if (process != null) {
                     closeStreams(process);
                 }
             }
         } catch (Exception e) {
+            EXPAND_FAILURES.increment();
             LOGGER.error(e.getMessage(), e);
             throw new DjatokaException(e.getMessage(), e);
         }
@@ -255,8 +285,12 @@ public class KduExtractExe implements IExtract {
             ArrayList<Double> dims = getRegionMetadata(input, params);
             String command = getKduExtractCommand(input, output, dims, params);
             String[] cmdParts = CommandLineTokenizer.tokenize(command);
+            final long start = System.nanoTime();
             final Process process = rt.exec(cmdParts, envParams, new File(env));
 
+            EXPAND_LAUNCHES.increment();
+            EXPAND_RUNNING.incrementAndGet();
+
             if (output != null) {
                 try {
                     if (output.equals(STDOUT)) {
@@ -289,6 +323,8 @@ public class KduExtractExe implements IExtract {
                 } catch (Exception e) {
                     String error = null;
 
+                    EXPAND_FAILURES.increment();
+
                     try {
                         error = new String(IOUtils.getByteArray(process.getErrorStream()));
                     } catch (Exception e1) {
@@ -303,6 +339,9 @@ public class KduExtractExe implements IExtract {
                         throw new DjatokaException(e.getMessage(), e);
                     }
                 } finally {
+                    EXPAND_RUNNING.decrementAndGet();
+                    EXPAND_TIMER.stop(start);
+
                     if (process != null) {
                         closeStreams(process);
                     }
@@ -383,6 +422,16 @@ public class KduExtractExe implements IExtract {
      * @throws DjatokaException
      */
     public final ImageRecord getMetadata(ImageRecord r) throws DjatokaException {
+        final long start = System.nanoTime();
+
+        try {
+            return readMetadata(r);
+        } finally {
+            METADATA_TIMER.stop(start);
+        }
+    }
+
+    private ImageRecord readMetadata(ImageRecord r) throws DjatokaException {
         if (r == null) {
             throw new DjatokaException("ImageRecord is null");
         }
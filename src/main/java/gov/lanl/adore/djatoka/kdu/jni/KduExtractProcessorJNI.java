@@ -27,6 +27,7 @@ import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import info.freelibrary.djatoka.util.RasterPool;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -190,6 +191,9 @@ public class KduExtractProcessorJNI {
         Jpx_source wrapped_src = new Jpx_source(); // Dispose in the middle
         Kdu_region_compositor compositor = null; // Must be disposed first
         BufferedImage image = null;
+        final RasterPool pool = RasterPool.getInstance();
+        int[] imgBuffer = null;
+        int[] kduBuffer = null;
 
         try {
             family_src.Open(sourceFile);
@@ -258,10 +262,9 @@ public class KduExtractProcessorJNI {
             Kdu_coords viewSize = viewDims.Access_size();
             compositor.Set_buffer_surface(viewDims);
 
-            int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
+            imgBuffer = pool.getInts(viewSize.Get_x() * viewSize.Get_y());
             Kdu_compositor_buf compositorBuffer = compositor.Get_composition_buffer(viewDims);
             int regionBufferSize = 0;
-            int[] kduBuffer = null;
             Kdu_dims newRegion = new Kdu_dims();
             while (compositor.Process(100000, newRegion)) {
                 Kdu_coords newOffset = newRegion.Access_pos();
@@ -274,7 +277,8 @@ public class KduExtractProcessorJNI {
                 }
                 if (newPixels > regionBufferSize) {
                     regionBufferSize = newPixels;
-                    kduBuffer = new int[regionBufferSize];
+                    pool.release(kduBuffer);
+                    kduBuffer = pool.getInts(regionBufferSize);
                 }
 
                 compositorBuffer.Get_region(newRegion, kduBuffer);
@@ -287,10 +291,15 @@ public class KduExtractProcessorJNI {
                     }
                 }
             }
-            if (params.getRotationDegree() == 90 || params.getRotationDegree() == 270) {
-                image = new BufferedImage(imageSize.Get_y(), imageSize.Get_x(), BufferedImage.TYPE_INT_RGB);
+            final boolean rotated = params.getRotationDegree() == 90 || params.getRotationDegree() == 270;
+            final int imageWidth = rotated ? imageSize.Get_y() : imageSize.Get_x();
+            final int imageHeight = rotated ? imageSize.Get_x() : imageSize.Get_y();
+
+            // A pooled image isn't cleared, so it's only used when the composition covers all of it
+            if (imageWidth == viewSize.Get_x() && imageHeight == viewSize.Get_y()) {
+                image = pool.createImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
             } else {
-                image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
+                image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
             }
             image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer, 0, viewSize.Get_x());
 
@@ -310,6 +319,9 @@ public class KduExtractProcessorJNI {
         } catch (Exception e) {
             e.printStackTrace();
             throw new DjatokaException(e.getMessage(), e);
+        } finally {
+            pool.release(imgBuffer);
+            pool.release(kduBuffer);
         }
     }
 
@@ -383,6 +395,10 @@ public class KduExtractProcessorJNI {
             throw new DjatokaException(e.getMessage(), e);
         }
 
+        final RasterPool pool = RasterPool.getInstance();
+        int[] region_buf = null;
+        int[] imgBuffer = null;
+
         try {
             Jp2_source inputSource = new Jp2_source();
             Kdu_compressed_source input = null;
@@ -443,7 +459,7 @@ public class KduExtractProcessorJNI {
             view_dims.Access_size().Set_y(imageSize.Get_y());
 
             int region_buf_size = imageSize.Get_x() * imageSize.Get_y();
-            int[] region_buf = new int[region_buf_size];
+            region_buf = pool.getInts(region_buf_size);
             Kdu_region_decompressor decompressor = new Kdu_region_decompressor();
             decompressor.Start(codestream, channels, -1, params.getLevelReductionFactor(), 16384, image_dims,
                     ref_expansion, new Kdu_coords(1, 1), false, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
@@ -453,7 +469,7 @@ public class KduExtractProcessorJNI {
             Kdu_coords viewSize = view_dims.Access_size();
             incomplete_region.Assign(image_dims);
 
-            int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
+            imgBuffer = pool.getInts(viewSize.Get_x() * viewSize.Get_y());
             int[] kduBuffer = null;
             while (decompressor.Process(region_buf, image_dims.Access_pos(), 0, 0, region_buf_size,
                     incomplete_region, new_region)) {
@@ -472,7 +488,8 @@ public class KduExtractProcessorJNI {
                 }
             }
 
-            BufferedImage image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
+            // The view is the whole image, so the pooled image is drawn over in full
+            BufferedImage image = pool.createImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
             image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer, 0, viewSize.Get_x());
 
             if (params.getRotationDegree() > 0) {
@@ -495,6 +512,9 @@ public class KduExtractProcessorJNI {
         } catch (Exception e) {
             e.printStackTrace();
             throw new DjatokaException(e.getMessage(), e);
+        } finally {
+            pool.release(region_buf);
+            pool.release(imgBuffer);
         }
     }
 
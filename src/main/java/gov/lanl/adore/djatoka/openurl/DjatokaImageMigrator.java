@@ -44,9 +44,16 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Utility class used to harvest URIs and compress files into JP2.
@@ -58,7 +65,14 @@ public class DjatokaImageMigrator implements FormatConstants, IReferentMigrator
 
     private static Logger LOGGER = LoggerFactory.getLogger(DjatokaImageMigrator.class);
 
-    private final List<String> processing = java.util.Collections.synchronizedList(new LinkedList<String>());
+    /** Default number of seconds a request will wait on another request's fetch of the same remote image */
+    public static final long DEFAULT_FETCH_TIMEOUT = 300;
+
+    /** Fetches currently in progress, shared with any requests for the same referent that arrive meanwhile */
+    private final ConcurrentHashMap<String, FutureTask<File>> myFetches =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+
+    private long myFetchTimeout = DEFAULT_FETCH_TIMEOUT;
 
     private HashMap<String, String> formatMap;
 
@@ -117,7 +131,27 @@ public class DjatokaImageMigrator implements FormatConstants, IReferentMigrator
     }
 
     /**
-     * Returns a delete on exit File object for a provide URI
+     * Sets the number of seconds a request will wait for a fetch of the same remote image that's already underway.
+     * 
+     * @param aTimeout The number of seconds to wait before giving up on an in-progress fetch
+     */
+    public void setFetchTimeout(final long aTimeout) {
+        myFetchTimeout = aTimeout;
+    }
+
+    /**
+     * Gets the number of seconds a request will wait for a fetch of the same remote image that's already underway.
+     * 
+     * @return The number of seconds to wait before giving up on an in-progress fetch
+     */
+    public long getFetchTimeout() {
+        return myFetchTimeout;
+    }
+
+    /**
+     * Returns a delete on exit File object for a provide URI. If the referent is already being fetched by another
+     * request, this waits (up to the configured fetch timeout) for that fetch to finish and returns its result instead
+     * of starting a second one.
      * 
      * @param aReferent the identifier for the remote file
      * @param aURI the URI of an image to be downloaded and compressed as JP2
@@ -126,10 +160,56 @@ public class DjatokaImageMigrator implements FormatConstants, IReferentMigrator
      */
     @Override
     public File convert(final String aReferent, final URI aURI) throws DjatokaException {
-        File file = null;
+        final FutureTask<File> fetch = new FutureTask<File>(new Callable<File>() {
 
-        // Add the request to the list of in-process requests
-        processing.add(aReferent);
+            @Override
+            public File call() throws DjatokaException {
+                return fetch(aReferent, aURI);
+            }
+        });
+        final FutureTask<File> inProgress = myFetches.putIfAbsent(aReferent, fetch);
+
+        if (inProgress != null) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Waiting on in-progress fetch of {}", aReferent);
+            }
+
+            return getFetchResult(aReferent, inProgress, myFetchTimeout);
+        }
+
+        try {
+            // The first requester does the work on its own thread; everyone else waits on its result
+            fetch.run();
+        } finally {
+            myFetches.remove(aReferent, fetch);
+        }
+
+        return getFetchResult(aReferent, fetch, 0);
+    }
+
+    private File getFetchResult(final String aReferent, final FutureTask<File> aFetch, final long aTimeout)
+            throws DjatokaException {
+        try {
+            return aTimeout > 0 ? aFetch.get(aTimeout, TimeUnit.SECONDS) : aFetch.get();
+        } catch (final TimeoutException details) {
+            throw new DjatokaException("Timed out after " + aTimeout + " seconds waiting for " + aReferent +
+                    " to be fetched", details);
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new DjatokaException("Interrupted while waiting for " + aReferent + " to be fetched", details);
+        } catch (final ExecutionException details) {
+            final Throwable cause = details.getCause();
+
+            if (cause instanceof DjatokaException) {
+                throw (DjatokaException) cause;
+            }
+
+            throw new DjatokaException(cause.getMessage(), cause);
+        }
+    }
+
+    private File fetch(final String aReferent, final URI aURI) throws DjatokaException {
+        File file = null;
 
         try {
             // If the referent is not the URL, we've been able to parse an ID
@@ -237,10 +317,6 @@ public class DjatokaImageMigrator implements FormatConstants, IReferentMigrator
             return file;
         } catch (final Exception details) {
             throw new DjatokaException(details.getMessage(), details);
-        } finally {
-            if (processing.contains(aReferent)) {
-                processing.remove(aReferent);
-            }
         }
     }
 
@@ -289,7 +365,7 @@ public class DjatokaImageMigrator implements FormatConstants, IReferentMigrator
      */
     @Override
     public List<String> getProcessingList() {
-        return processing;
+        return Collections.unmodifiableList(new ArrayList<String>(myFetches.keySet()));
     }
 
     /**
@@ -0,0 +1,132 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how much memory the renders that are running can use between them. Before it decodes, a render reserves an
+ * estimate of the memory it needs; if there isn't enough left it waits, first-come first-served, for a limited time
+ * for running renders to give theirs back. A render that needs more than the whole budget is turned away straight
+ * off, since it could never fit.
+ */
+public class MemoryBudget {
+
+    /** The budget is kept in kilobytes, so a budget as big as any heap fits in a semaphore's permits */
+    private static final int KILOBYTE = 1024;
+
+    private final Semaphore myPermits;
+
+    private final int myCapacity;
+
+    private final int myCopies;
+
+    private final long myWaitMillis;
+
+    /**
+     * Creates a memory budget.
+     *
+     * @param aCapacity The number of bytes renders can use between them; zero or less means no limit
+     * @param aCopies The number of copies of its pixels a render is expected to hold at once
+     * @param aWaitMillis How long, in milliseconds, a render can wait for memory before it's turned away
+     */
+    public MemoryBudget(final long aCapacity, final int aCopies, final long aWaitMillis) {
+        myCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(0, aCapacity / KILOBYTE));
+        myCopies = Math.max(1, aCopies);
+        myWaitMillis = Math.max(0, aWaitMillis);
+        myPermits = myCapacity > 0 ? new Semaphore(myCapacity, true) : null;
+    }
+
+    /**
+     * Estimates the memory a render of the supplied number of pixels needs. Single component images are decoded one
+     * byte to a pixel; others are decoded into packed integer pixels.
+     *
+     * @param aPixels The number of pixels decoded, or output if that's more
+     * @param aComponents The number of components in the image, or zero if it isn't known
+     * @return The estimated number of bytes the render needs
+     */
+    public long estimate(final long aPixels, final int aComponents) {
+        return aPixels * (aComponents == 1 ? 1 : 4) * myCopies;
+    }
+
+    /**
+     * Reserves memory for a render, waiting for running renders to give some back if there isn't enough. A render
+     * that reserves memory must {@link #release(long)} it when it's done.
+     *
+     * @param aBytes The number of bytes to reserve
+     * @throws RenderTooLargeException If the render needs more than the whole budget
+     * @throws RenderRejectedException If the wait runs out
+     */
+    public void reserve(final long aBytes) throws RenderRejectedException {
+        if (myPermits == null || aBytes <= 0) {
+            return;
+        }
+
+        final long permits = toPermits(aBytes);
+
+        if (permits > myCapacity) {
+            throw new RenderTooLargeException("Render needs " + aBytes + " bytes, more than the " + (long) myCapacity *
+                    KILOBYTE + " byte render memory budget");
+        }
+
+        try {
+            if (!myPermits.tryAcquire((int) permits, myWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new RenderRejectedException("Timed out after " + myWaitMillis + " ms waiting for " + aBytes +
+                        " bytes of render memory");
+            }
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new RenderRejectedException("Interrupted while waiting for render memory");
+        }
+    }
+
+    /**
+     * Reserves memory for a render only if it's free now. This is for work, like prefetching, that should never wait.
+     * A render that reserves memory must {@link #release(long)} it when it's done.
+     *
+     * @param aBytes The number of bytes to reserve
+     * @return True if the memory was reserved; else, false
+     */
+    public boolean tryReserve(final long aBytes) {
+        if (myPermits == null || aBytes <= 0) {
+            return true;
+        }
+
+        final long permits = toPermits(aBytes);
+
+        return permits <= myCapacity && myPermits.tryAcquire((int) permits);
+    }
+
+    /**
+     * Gives back memory a render reserved.
+     *
+     * @param aBytes The number of bytes that were reserved
+     */
+    public void release(final long aBytes) {
+        if (myPermits != null && aBytes > 0) {
+            myPermits.release((int) toPermits(aBytes));
+        }
+    }
+
+    /**
+     * Gets the number of bytes reserved by renders that are running.
+     *
+     * @return The number of bytes reserved, or zero if the budget doesn't have a limit
+     */
+    public long getReserved() {
+        return myPermits == null ? 0L : (long) (myCapacity - myPermits.availablePermits()) * KILOBYTE;
+    }
+
+    /**
+     * Gets the number of renders waiting for memory.
+     *
+     * @return The number of renders waiting for memory
+     */
+    public int getWaiting() {
+        return myPermits == null ? 0 : myPermits.getQueueLength();
+    }
+
+    private static long toPermits(final long aBytes) {
+        return (aBytes + KILOBYTE - 1) / KILOBYTE;
+    }
+}
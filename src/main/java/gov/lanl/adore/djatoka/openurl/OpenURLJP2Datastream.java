@@ -109,11 +109,17 @@ public class OpenURLJP2Datastream implements Service, FormatConstants {
 
         String responseFormat = "application/jp2";;
         int status = HttpServletResponse.SC_OK;
+        HashMap<String, String> header_map = new HashMap<String, String>();
         byte[] b = null;
+        header_map.put("Date", HttpDate.getHttpDate());
         try {
             ImageRecord r = ReferentManager.getImageRecord(contextObject.getReferent());
             if (r != null && r.getImageFile() != null) {
-                b = IOUtils.getBytesFromFile(new File(r.getImageFile()));
+                // Files are streamed from disk by the servlet, which also answers range requests
+                File file = new File(r.getImageFile());
+                if (file.isFile()) {
+                    return new OpenURLResponse(status, responseFormat, file, header_map);
+                }
             } else if (r != null && r.getObject() != null) {
                 if (r.getObject() instanceof byte[]) {
                     b = (byte[]) r.getObject();
@@ -129,9 +135,10 @@ public class OpenURLJP2Datastream implements Service, FormatConstants {
             responseFormat = "text/plain";
             status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
         }
-        HashMap<String, String> header_map = new HashMap<String, String>();
+        if (b == null) {
+            b = new byte[0];
+        }
         header_map.put("Content-Length", Integer.toString(b.length));
-        header_map.put("Date", HttpDate.getHttpDate());
         return new OpenURLResponse(status, responseFormat, b, header_map);
     }
 }
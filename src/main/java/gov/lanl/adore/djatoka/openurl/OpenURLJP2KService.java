@@ -26,11 +26,17 @@ import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
 import gov.lanl.adore.djatoka.io.FormatConstants;
 import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.plugin.ICacheableTransformPlugIn;
 import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
 import gov.lanl.adore.djatoka.util.IOUtils;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
 import gov.lanl.util.HttpDate;
 import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.CanonicalRequest;
+import info.freelibrary.djatoka.util.Metrics;
+import info.freelibrary.djatoka.util.RenderExecutor;
+import info.freelibrary.djatoka.util.RenderLane;
 import info.freelibrary.djatoka.view.IdentifierResolver;
 import info.openurl.oom.*;
 import info.openurl.oom.config.ClassConfig;
@@ -44,9 +50,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletResponse;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -82,12 +92,44 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 
     private static final String PROP_KEY_CACHE_MAX_PIXELS = "OpenURLJP2KService.cacheImageMaxPixels";
 
+    private static final String PROPS_KEY_MAX_RENDERS = "OpenURLJP2KService.maxRenders";
+
+    private static final String PROPS_KEY_MAX_QUEUED_RENDERS = "OpenURLJP2KService.maxQueuedRenders";
+
+    private static final String PROPS_KEY_MAX_BULK_RENDERS = "OpenURLJP2KService.maxBulkRenders";
+
+    private static final String PROPS_KEY_MAX_QUEUED_BULK_RENDERS = "OpenURLJP2KService.maxQueuedBulkRenders";
+
+    private static final String PROPS_KEY_RENDER_QUEUE_TIMEOUT = "OpenURLJP2KService.renderQueueTimeout";
+
+    private static final String PROPS_KEY_RETRY_AFTER = "OpenURLJP2KService.retryAfter";
+
+    private static final String PROPS_KEY_RENDER_MEMORY = "OpenURLJP2KService.renderMemory";
+
+    private static final String PROPS_KEY_RENDER_MEMORY_COPIES = "OpenURLJP2KService.renderMemoryCopies";
+
     private static final String SVC_ID = "info:lanl-repo/svc/getRegion";
 
     private static final String DEFAULT_CACHE_SIZE = "1000";
 
     private static final int DEFAULT_CACHE_MAXPIXELS = 100000;
 
+    private static final String DEFAULT_MAX_RENDERS = Integer.toString(Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final String DEFAULT_MAX_QUEUED_RENDERS = "64";
+
+    private static final String DEFAULT_MAX_BULK_RENDERS = "2";
+
+    private static final String DEFAULT_MAX_QUEUED_BULK_RENDERS = "4";
+
+    private static final String DEFAULT_RENDER_QUEUE_TIMEOUT = "5000";
+
+    private static final String DEFAULT_RETRY_AFTER = "5";
+
+    private static final String DEFAULT_RENDER_MEMORY = "50%";
+
+    private static final String DEFAULT_RENDER_MEMORY_COPIES = "3";
+
     private static String implClass = null;
 
     private static Properties props = new Properties();
@@ -110,6 +152,25 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 
     private static Set<Double> scaleCacheExceptions;
 
+    private static final Map<RenderLane, RenderGate> RENDER_GATES =
+            new EnumMap<RenderLane, RenderGate>(RenderLane.class);
+
+    private static String retryAfter = DEFAULT_RETRY_AFTER;
+
+    private static MemoryBudget memoryBudget = new MemoryBudget(0L, 1, 0L);
+
+    private static final Metrics.Timer SERVICE_TIMER = Metrics.timer("openurl_service");
+
+    private static final Metrics.Timer CACHE_READ_TIMER = Metrics.timer("tile_cache_read");
+
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("tile_cache_hits");
+
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter("tile_cache_misses");
+
+    private static final Metrics.Counter RENDERS_REJECTED = Metrics.counter("renders_rejected");
+
+    private static final Metrics.Counter RENDERS_TOO_LARGE = Metrics.counter("renders_too_large");
+
     /**
      * Construct an info:lanl-repo/svc/getRegion web service class. Initializes Referent Resolver instance using
      * OpenURLJP2KService.referentResolverImpl property.
@@ -135,6 +196,14 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                     final int cacheSize =
                             Integer.parseInt(props.getProperty(PROPS_KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
                     tileCache = new TileCacheManager<String, String>(cacheSize);
+
+                    Metrics.gauge("tile_cache_size", new Metrics.Gauge() {
+
+                        @Override
+                        public long getValue() {
+                            return tileCache.size();
+                        }
+                    });
                 }
                 if (props.getProperty(PROPS_KEY_TRANSFORM) != null) {
                     transformCheck = true;
@@ -164,6 +233,58 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 } else {
                     scaleCacheExceptions = new HashSet<Double>();
                 }
+                final long renderQueueTimeout =
+                        Long.parseLong(props.getProperty(PROPS_KEY_RENDER_QUEUE_TIMEOUT, DEFAULT_RENDER_QUEUE_TIMEOUT));
+
+                // Each lane gets its own decoders so exports never hold up viewer tiles
+                RENDER_GATES.put(RenderLane.INTERACTIVE, new RenderGate(Integer.parseInt(props.getProperty(
+                        PROPS_KEY_MAX_RENDERS, DEFAULT_MAX_RENDERS)), Integer.parseInt(props.getProperty(
+                        PROPS_KEY_MAX_QUEUED_RENDERS, DEFAULT_MAX_QUEUED_RENDERS)), renderQueueTimeout));
+                RENDER_GATES.put(RenderLane.BULK, new RenderGate(Integer.parseInt(props.getProperty(
+                        PROPS_KEY_MAX_BULK_RENDERS, DEFAULT_MAX_BULK_RENDERS)), Integer.parseInt(props.getProperty(
+                        PROPS_KEY_MAX_QUEUED_BULK_RENDERS, DEFAULT_MAX_QUEUED_BULK_RENDERS)), renderQueueTimeout));
+                retryAfter = props.getProperty(PROPS_KEY_RETRY_AFTER, DEFAULT_RETRY_AFTER);
+
+                // Decoders are limited by the memory their renders need as well as by how many of them there are
+                memoryBudget = new MemoryBudget(getRenderMemory(props.getProperty(PROPS_KEY_RENDER_MEMORY,
+                        DEFAULT_RENDER_MEMORY)), Integer.parseInt(props.getProperty(PROPS_KEY_RENDER_MEMORY_COPIES,
+                        DEFAULT_RENDER_MEMORY_COPIES)), renderQueueTimeout);
+
+                Metrics.gauge("render_memory_reserved", new Metrics.Gauge() {
+
+                    @Override
+                    public long getValue() {
+                        return memoryBudget.getReserved();
+                    }
+                });
+                Metrics.gauge("render_memory_waiting", new Metrics.Gauge() {
+
+                    @Override
+                    public long getValue() {
+                        return memoryBudget.getWaiting();
+                    }
+                });
+
+                for (final Map.Entry<RenderLane, RenderGate> entry : RENDER_GATES.entrySet()) {
+                    final String lane = entry.getKey().name().toLowerCase(Locale.US);
+                    final RenderGate gate = entry.getValue();
+
+                    Metrics.gauge("renders_" + lane + "_active", new Metrics.Gauge() {
+
+                        @Override
+                        public long getValue() {
+                            return gate.getActive();
+                        }
+                    });
+                    Metrics.gauge("renders_" + lane + "_waiting", new Metrics.Gauge() {
+
+                        @Override
+                        public long getValue() {
+                            return gate.getWaiting();
+                        }
+                    });
+                }
+
                 extractor = new DjatokaExtractProcessor(new KduExtractExe());
                 init = true;
             }
@@ -186,6 +307,15 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         return new URI(SVC_ID);
     }
 
+    /**
+     * Checks whether the service has been set up and can render images.
+     * 
+     * @return True if the service can render images; else, false
+     */
+    public static boolean isReady() {
+        return init;
+    }
+
     /**
      * Removes a tile from the tile cache.
      * 
@@ -196,6 +326,82 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         return tileCache.remove(aCacheID) != null;
     }
 
+    /**
+     * Renders a region and writes JPEG tiles cut from it into the supplied files, but only if the interactive decoders
+     * are idle. This is for prefetching tiles that haven't been asked for yet, so it never waits for a decoder. Tiles
+     * aren't prefetched when a transform plug-in is configured since what it does can depend on who's asking.
+     *
+     * @param aImage The image to render from
+     * @param aRegion The region to render in djatoka's <code>y,x,h,w</code> form
+     * @param aScale The scale to render at in the form the <code>svc.scale</code> parameter takes
+     * @param aTiles The tiles' bounds within the scaled region
+     * @param aFiles The files to write the tiles into, in the same order as their bounds; they're only created once
+     *        the render has succeeded and a null file skips its tile
+     * @return True if the tiles were rendered; false if the decoders were too busy
+     * @throws DjatokaException If the region couldn't be rendered
+     * @throws IOException If a rendered tile couldn't be written
+     */
+    public static boolean prefetch(final ImageRecord aImage, final String aRegion, final String aScale,
+            final Rectangle[] aTiles, final File[] aFiles) throws DjatokaException, IOException {
+        final RenderGate gate = RENDER_GATES.get(RenderLane.INTERACTIVE);
+
+        if (!init || transformCheck || gate == null || !gate.tryEnterIfIdle()) {
+            return false;
+        }
+
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setRegion(aRegion);
+        setScale(params, aScale);
+
+        final long memory = getRenderMemory(aImage, params);
+
+        if (!memoryBudget.tryReserve(memory)) {
+            gate.exit();
+            return false;
+        }
+
+        final File[] tmpFiles = new File[aFiles.length];
+        final OutputStream[] outputs = new OutputStream[aFiles.length];
+
+        try {
+            for (int index = 0; index < aFiles.length; index++) {
+                if (aFiles[index] != null) {
+                    tmpFiles[index] = File.createTempFile("prefetch-", ".jpg", aFiles[index].getParentFile());
+                    outputs[index] = new BufferedOutputStream(new FileOutputStream(tmpFiles[index]));
+                }
+            }
+
+            extractor.extractTiles(aImage.getImageFile(), params, aTiles, outputs, "image/jpeg");
+
+            for (int index = 0; index < aFiles.length; index++) {
+                if (outputs[index] != null) {
+                    outputs[index].close();
+                    outputs[index] = null;
+
+                    // Renaming makes sure a request never sees a partly written tile
+                    if (tmpFiles[index].length() > 0 && !tmpFiles[index].renameTo(aFiles[index])) {
+                        throw new IOException("Unable to move prefetched tile to " + aFiles[index]);
+                    }
+                }
+            }
+        } finally {
+            memoryBudget.release(memory);
+            gate.exit();
+
+            for (int index = 0; index < aFiles.length; index++) {
+                info.freelibrary.util.IOUtils.closeQuietly(outputs[index]);
+
+                if (tmpFiles[index] != null && tmpFiles[index].exists() && !tmpFiles[index].delete() &&
+                        LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("File not deleted: {}", tmpFiles[index]);
+                }
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Returns the OpenURLResponse consisting of an image bitstream to be rendered on the client. Having obtained a
      * result, this method is then responsible for transforming it into an OpenURLResponse that acts as a proxy for
@@ -204,6 +410,16 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     @Override
     public OpenURLResponse resolve(final ServiceType serviceType, final ContextObject contextObject,
             final OpenURLRequest openURLRequest, final OpenURLRequestProcessor processor) {
+        final long start = System.nanoTime();
+
+        try {
+            return resolve(contextObject);
+        } finally {
+            SERVICE_TIMER.stop(start);
+        }
+    }
+
+    private OpenURLResponse resolve(final ContextObject contextObject) {
         String djatokaCacheFile = null;
         String responseFormat = null;
         String format = "image/jpeg";
@@ -229,18 +445,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
             params.setRotationDegree(Integer.parseInt(kev.get("rotate")));
         }
         if (kev.containsKey("scale")) {
-            final String[] v = kev.get("scale").split(",");
-            if (v.length == 1) {
-                if (v[0].contains(".")) {
-                    params.setScalingFactor(Double.parseDouble(v[0]));
-                } else {
-                    final int[] dims = new int[] { -1, Integer.parseInt(v[0]) };
-                    params.setScalingDimensions(dims);
-                }
-            } else if (v.length == 2) {
-                final int[] dims = new int[] { Integer.parseInt(v[0]), Integer.parseInt(v[1]) };
-                params.setScalingDimensions(dims);
-            }
+            setScale(params, kev.get("scale"));
+        }
+        if (kev.containsKey("quality")) {
+            params.setQuality(kev.get("quality"));
         }
         if (kev.containsKey("clayer") && kev.get("clayer") != null) {
             final int clayer = Integer.parseInt(kev.get("clayer"));
@@ -250,6 +458,7 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         }
         responseFormat = format;
 
+        final RenderGate renderGate = RENDER_GATES.get(RenderExecutor.getLane(kev.get("region"), kev.get("scale")));
         byte[] bytes = null;
 
         if (params.getRegion() != null && params.getRegion().contains("-")) {
@@ -295,7 +504,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                             instProps.put(PROPS_REFERRING_ENTITY, contextObject.getReferringEntities()[0]
                                     .getDescriptors()[0].toString());
                         }
-                        if (instProps.size() > 0) {
+                        // A cacheable plug-in is shared, so it's handed this request's properties instead
+                        if (transform instanceof ICacheableTransformPlugIn) {
+                            params.setTransformProps(instProps);
+                        } else {
                             transform.setInstanceProps(instProps);
                         }
                         params.setTransform(transform);
@@ -306,11 +518,23 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                         }
 
                         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        extractor.extractImage(r.getImageFile(), baos, params, format);
+                        final long memory = getRenderMemory(r, params);
+
+                        enter(renderGate, memory);
+
+                        try {
+                            extractor.extractImage(r.getImageFile(), baos, params, format);
+                        } finally {
+                            exit(renderGate, memory);
+                        }
+
                         bytes = baos.toByteArray();
                         baos.close();
                     } else {
                         final String ext = getExtension(format);
+
+                        canonicalize(r, params);
+
                         final String hash = getTileHash(r, params);
                         String file = tileCache.get(hash + ext);
                         File f;
@@ -318,30 +542,41 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                         id = r.getIdentifier();
 
                         if (file == null || !(f = new File(file)).exists() && f.length() > 0) {
-                            if (cacheDir != null) {
-                                final File cacheDirFile = new File(cacheDir);
+                            CACHE_MISSES.increment();
+
+                            final long memory = getRenderMemory(r, params);
+
+                            // Turn the request away before we create a temp file for it if we're too busy
+                            enter(renderGate, memory);
 
-                                // If our cache dir doesn't exist, create it
-                                if (!cacheDirFile.exists()) {
-                                    if (!cacheDirFile.mkdirs() && LOGGER.isWarnEnabled()) {
-                                        LOGGER.warn("Dirs not created: {}", cacheDirFile);
+                            try {
+                                if (cacheDir != null) {
+                                    final File cacheDirFile = new File(cacheDir);
+
+                                    // If our cache dir doesn't exist, create it
+                                    if (!cacheDirFile.exists()) {
+                                        if (!cacheDirFile.mkdirs() && LOGGER.isWarnEnabled()) {
+                                            LOGGER.warn("Dirs not created: {}", cacheDirFile);
+                                        }
                                     }
-                                }
 
-                                f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext, cacheDirFile);
-                            } else {
-                                f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext);
-                            }
+                                    f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext, cacheDirFile);
+                                } else {
+                                    f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext);
+                                }
 
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Temp file created: {}", f);
-                            }
+                                if (LOGGER.isDebugEnabled()) {
+                                    LOGGER.debug("Temp file created: {}", f);
+                                }
 
-                            f.deleteOnExit();
-                            file = f.getAbsolutePath();
-                            djatokaCacheFile = file;
+                                f.deleteOnExit();
+                                file = f.getAbsolutePath();
+                                djatokaCacheFile = file;
 
-                            extractor.extractImage(r.getImageFile(), file, params, format);
+                                extractor.extractImage(r.getImageFile(), file, params, format);
+                            } finally {
+                                exit(renderGate, memory);
+                            }
 
                             if (tileCache.get(hash + ext) == null) {
                                 tileCache.put(hash + ext, file);
@@ -364,7 +599,11 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                                 }
                             }
                         } else {
+                            final long readStart = System.nanoTime();
+
+                            CACHE_HITS.increment();
                             bytes = IOUtils.getBytesFromFile(new File(file));
+                            CACHE_READ_TIMER.stop(readStart);
 
                             if (LOGGER.isDebugEnabled()) {
                                 LOGGER.debug("tileCache: {} {}", file, bytes.length);
@@ -381,6 +620,26 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 bytes = e.getMessage().getBytes();
                 responseFormat = "text/plain";
                 status = HttpServletResponse.SC_NOT_FOUND;
+            } catch (final RenderTooLargeException e) {
+                RENDERS_TOO_LARGE.increment();
+
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Render turned away: {}", e.getMessage());
+                }
+
+                bytes = e.getMessage().getBytes();
+                responseFormat = "text/plain";
+                status = HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+            } catch (final RenderRejectedException e) {
+                RENDERS_REJECTED.increment();
+
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Render turned away: {}", e.getMessage());
+                }
+
+                bytes = e.getMessage().getBytes();
+                responseFormat = "text/plain";
+                status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
             } catch (final DjatokaException e) {
                 LOGGER.error(e.getMessage(), e);
                 bytes = e.getMessage().getBytes();
@@ -408,6 +667,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         header_map.put("Content-Length", bytes.length + "");
         header_map.put("Date", HttpDate.getHttpDate());
 
+        if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            header_map.put("Retry-After", retryAfter);
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Getting OpenURLResponse...");
         }
@@ -445,7 +708,9 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 hash = null;
             }
 
-            final String f = CacheUtils.getFileName(level, region, scale, rotation);
+            // Named just as the image servlet names it, so it can find this file and move it to its own cache
+            final String f = CacheUtils.getFileName(level, region, scale, rotation, params.getQuality(),
+                    getTransformVersion(params));
             id = id + "_" + f;
 
             if (LOGGER.isDebugEnabled()) {
@@ -471,11 +736,127 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         return response;
     }
 
+    /**
+     * Enters a render gate and reserves the memory the render needs, waiting for either if there isn't room. A render
+     * that enters must {@link #exit(RenderGate, long)} when it's done.
+     */
+    private static void enter(final RenderGate aGate, final long aMemory) throws RenderRejectedException {
+        aGate.enter();
+
+        try {
+            memoryBudget.reserve(aMemory);
+        } catch (final RenderRejectedException details) {
+            aGate.exit();
+            throw details;
+        }
+    }
+
+    private static void exit(final RenderGate aGate, final long aMemory) {
+        memoryBudget.release(aMemory);
+        aGate.exit();
+    }
+
+    /**
+     * Estimates the memory a render needs from the size of the region it decodes, mirroring how the extractor picks a
+     * resolution level, or the size of its output if that's bigger. Images that can't be sized get no estimate, and
+     * are only limited by the number of renders.
+     */
+    private static long getRenderMemory(final ImageRecord aRecord, final DjatokaDecodeParam aParams) {
+        final int[] size = aRecord.getImageFile() == null ? null : CanonicalRequest.getImageSize(new File(aRecord
+                .getImageFile()));
+
+        if (size == null) {
+            return 0L;
+        }
+
+        final int levels = ImageProcessingUtils.getLevelCount(size[0], size[1]);
+        final int[] dims = aParams.getScalingDimensions();
+        int reduce = 0;
+
+        if (aParams.getLevel() >= 0) {
+            reduce = levels - aParams.getLevel();
+        } else if (aParams.getRegion() == null && dims != null && dims.length == 2) {
+            reduce = levels - ImageProcessingUtils.getScalingLevel(size[0], size[1], dims[0], dims[1]);
+        }
+
+        reduce = Math.max(0, Math.min(reduce, 30));
+
+        final int width = Math.max(1, (size[0] + (1 << reduce) - 1) >> reduce);
+        final int height = Math.max(1, (size[1] + (1 << reduce) - 1) >> reduce);
+        final CanonicalRequest request = CanonicalRequest.fromDjatoka(aParams.getRegion(), aParams
+                .getScalingFactor(), dims, 0, width, height);
+        long pixels = (long) width * height;
+
+        if (request != null) {
+            final int[] region = request.getRegionSize();
+            final int[] output = request.getOutputSize();
+
+            pixels = Math.max((long) region[0] * region[1], (long) output[0] * output[1]);
+        }
+
+        return memoryBudget.estimate(pixels, aRecord.getNumChannels());
+    }
+
+    /**
+     * Gets the number of bytes renders can use between them, from a number of megabytes or a percentage of the heap.
+     */
+    private static long getRenderMemory(final String aMemory) {
+        final String memory = aMemory.trim();
+
+        if (memory.endsWith("%")) {
+            final double percent = Double.parseDouble(memory.substring(0, memory.length() - 1));
+
+            return (long) (Runtime.getRuntime().maxMemory() * percent / 100);
+        }
+
+        return Long.parseLong(memory) * 1024 * 1024;
+    }
+
+    private static void setScale(final DjatokaDecodeParam aParams, final String aScale) {
+        final String[] v = aScale.split(",");
+
+        if (v.length == 1) {
+            if (v[0].contains(".")) {
+                aParams.setScalingFactor(Double.parseDouble(v[0]));
+            } else {
+                final int[] dims = new int[] { -1, Integer.parseInt(v[0]) };
+                aParams.setScalingDimensions(dims);
+            }
+        } else if (v.length == 2) {
+            final int[] dims = new int[] { Integer.parseInt(v[0]), Integer.parseInt(v[1]) };
+            aParams.setScalingDimensions(dims);
+        }
+    }
+
+    /**
+     * Puts a request's region, scale and rotation in the canonical form the image's dimensions give them, so the same
+     * pixels are cached under the same hash however they were asked for. Requests for a particular level, and ones
+     * that can't be resolved, are left as they are.
+     */
+    private static void canonicalize(final ImageRecord aRecord, final DjatokaDecodeParam aParams) {
+        if (aParams.getLevel() != -1 || aRecord.getImageFile() == null) {
+            return;
+        }
+
+        final int[] size = CanonicalRequest.getImageSize(new File(aRecord.getImageFile()));
+        final CanonicalRequest canonical = size == null ? null : CanonicalRequest.fromDjatoka(aParams.getRegion(),
+                aParams.getScalingFactor(), aParams.getScalingDimensions(), aParams.getRotationDegree(), size[0],
+                size[1]);
+
+        if (canonical != null) {
+            aParams.setRegion(canonical.getRegion().isEmpty() ? null : canonical.getRegion());
+            aParams.setScalingFactor(1.0);
+            aParams.setScalingDimensions(canonical.getScalingDimensions());
+            aParams.setRotationDegree(canonical.getRotation());
+        }
+    }
+
     private boolean isCacheable(final DjatokaDecodeParam params) {
         final double scale = params.getScalingFactor();
         boolean exception;
 
-        if (transformCheck && params.getTransform().isTransformable()) {
+        // Transformed output can be cached if the plug-in says what identifies it
+        if (transformCheck && isTransformed(params) && getTransformKey(params) == null) {
             return false;
         }
 
@@ -492,6 +873,85 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         return true;
     }
 
+    /**
+     * Gets the key of the transform that's applied to a request's output; returns null if there isn't one, or if what
+     * it does can't be cached.
+     */
+    private static String getTransformKey(final DjatokaDecodeParam aParams) {
+        final ITransformPlugIn plugIn = aParams.getTransform();
+
+        if (plugIn instanceof ICacheableTransformPlugIn && isTransformed(aParams)) {
+            return ((ICacheableTransformPlugIn) plugIn).getCacheKey();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether a request's output is transformed, using the request's own instance properties if its plug-in
+     * takes them.
+     */
+    private static boolean isTransformed(final DjatokaDecodeParam aParams) {
+        final ITransformPlugIn plugIn = aParams.getTransform();
+
+        if (plugIn instanceof ICacheableTransformPlugIn && aParams.getTransformProps() != null) {
+            return ((ICacheableTransformPlugIn) plugIn).isTransformable(aParams.getTransformProps());
+        }
+
+        return plugIn != null && plugIn.isTransformable();
+    }
+
+    /**
+     * Gets a short version of the transform that would be applied to a request from the supplied referrer and
+     * requester, for caches of rendered images that outlive the service. It changes when the plug-in or its
+     * configuration does, and watermarked and unwatermarked renders of the same region never share it.
+     *
+     * @param aReferrer The request's referrer, or null if it doesn't have one
+     * @param aRequester The address of the request's client
+     * @return The version of the transform that would be applied, or null if one wouldn't be
+     */
+    public static String getTransformVersion(final String aReferrer, final String aRequester) {
+        if (!transformCheck || transform == null) {
+            return null;
+        }
+
+        return getTransformVersion(transform, aReferrer, aRequester);
+    }
+
+    /**
+     * Gets a short version of the transform a plug-in would apply to a request from the supplied referrer and
+     * requester.
+     */
+    static String getTransformVersion(final ITransformPlugIn aPlugIn, final String aReferrer,
+            final String aRequester) {
+        final HashMap<String, String> instProps = new HashMap<String, String>();
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        if (aRequester != null) {
+            instProps.put(PROPS_REQUESTER, aRequester);
+        }
+
+        if (aReferrer != null) {
+            instProps.put(PROPS_REFERRING_ENTITY, aReferrer);
+        }
+
+        // Passed just as a resolve passes them, so both decide the same way whether the transform applies; only a
+        // cacheable plug-in has a version, so the shared plug-in itself is never touched
+        params.setTransform(aPlugIn);
+        params.setTransformProps(instProps);
+        return getTransformVersion(params);
+    }
+
+    /**
+     * Gets a short version of the transform that's applied to a request's output, from the same key its tile hash
+     * uses; returns null if there isn't one.
+     */
+    private static String getTransformVersion(final DjatokaDecodeParam aParams) {
+        final String key = aParams.getTransform() == null ? null : getTransformKey(aParams);
+
+        return key == null ? null : Integer.toHexString(key.hashCode());
+    }
+
     private static final String getTileHash(final ImageRecord r, final DjatokaDecodeParam params) throws Exception {
         return getTileHash(r.getIdentifier(), params);
     }
@@ -510,9 +970,12 @@ public class OpenURLJP2KService implements Service, FormatConstants {
             scale = scalingDims[0] + "," + scalingDims[1];
         }
         final int clayer = params.getCompositingLayer();
+        final String quality = params.getQuality();
+        final String transformKey = getTransformKey(params);
         final String rft_id =
                 id + "|" + level + "|" + region + "|" + rotateDegree + "|" + scalingFactor + "|" + scale + "|" +
-                        clayer;
+                        clayer + (quality == null ? "" : "|" + quality) +
+                        (transformKey == null ? "" : "|" + transformKey);
         final MessageDigest complete = MessageDigest.getInstance("SHA1");
         return new String(complete.digest(rft_id.getBytes()));
     }
@@ -572,6 +1035,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                                 ((String[]) kev.getFieldMap().get("svc.clayer"))[0] != "") {
                             map.put("clayer", ((String[]) kev.getFieldMap().get("svc.clayer"))[0]);
                         }
+                        if (kev.getFieldMap().containsKey("svc.quality") &&
+                                ((String[]) kev.getFieldMap().get("svc.quality"))[0] != "") {
+                            map.put("quality", ((String[]) kev.getFieldMap().get("svc.quality"))[0]);
+                        }
                     }
                 }
             }
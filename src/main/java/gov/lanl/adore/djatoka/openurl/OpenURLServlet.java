@@ -11,10 +11,16 @@
 
 package gov.lanl.adore.djatoka.openurl;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.SocketException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -31,6 +37,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gov.lanl.util.AccessManager;
+import info.freelibrary.djatoka.util.ByteRange;
+import info.freelibrary.djatoka.util.RenderExecutor;
+import info.freelibrary.djatoka.util.RenderLane;
 import info.openurl.oom.ContextObject;
 import info.openurl.oom.OpenURLRequest;
 import info.openurl.oom.OpenURLRequestProcessor;
@@ -54,6 +63,8 @@ public class OpenURLServlet extends HttpServlet {
      */
     private static final long serialVersionUID = 1L;
 
+    private static final String GET_REGION = "info:lanl-repo/svc/getRegion";
+
     private OpenURLConfig openURLConfig;
 
     private OpenURLRequestProcessor processor;
@@ -62,6 +73,26 @@ public class OpenURLServlet extends HttpServlet {
 
     private AccessManager am;
 
+    /**
+     * The name of a request attribute holding a {@link RenderListener} to hand the result of the request to.
+     */
+    public static final String RENDER_LISTENER = OpenURLServlet.class.getName() + ".renderListener";
+
+    /**
+     * Is handed the result of an OpenURL request once it's been sent, for a caller that forwards requests to this
+     * servlet and wants what the service would otherwise put in the session. It's called on the thread that resolved
+     * the request, which may not be the request's own, so it mustn't use the request.
+     */
+    public interface RenderListener {
+
+        /**
+         * Handles the result of an OpenURL request.
+         *
+         * @param aResult The result of the request, or null if it couldn't be resolved
+         */
+        void rendered(OpenURLResponse aResult);
+    }
+
     /**
      * Initializes the servlet.
      * 
@@ -95,10 +126,39 @@ public class OpenURLServlet extends HttpServlet {
 
     /**
      * Extends HttpServlet Request to build OpenURL Request and Context Objects. The req.getHeader("referer") is used to
-     * add an OpenURL ReferringEntities and req.getRemoteAddr() is used to add a Requester.
+     * add an OpenURL ReferringEntities and req.getRemoteAddr() is used to add a Requester. Region requests may need
+     * a render so, when the container allows it, they're resolved asynchronously on the render executor; everything
+     * the render needs from the request is copied out of it first, since the request may be answered, and recycled,
+     * before the render gets to run.
      */
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException {
+        final Resolution resolution = prepare(req, resp);
+
+        if (resolution == null) {
+            return;
+        }
+
+        if (req.isAsyncSupported() && !req.isAsyncStarted() && GET_REGION.equals(req.getParameter("svc_id"))) {
+            final RenderLane lane = RenderExecutor.getLane(req.getParameter("svc.region"), req.getParameter("svc.scale"));
+
+            RenderExecutor.execute(req.startAsync(), lane, new RenderExecutor.Task() {
+
+                @Override
+                public void run(final HttpServletResponse aResponse) throws Exception {
+                    respond(resolution, aResponse);
+                }
+            });
+        } else {
+            respond(resolution, resp);
+        }
+    }
+
+    /**
+     * Builds the OpenURL request, and copies out what its response needs, from the servlet request. Returns null if
+     * the request has already been answered because it's invalid or not allowed.
+     */
+    private Resolution prepare(final HttpServletRequest req, final HttpServletResponse resp) {
         try {
             // Try each Transport until someone takes responsibility
             OpenURLRequest openURLRequest = null;
@@ -109,7 +169,7 @@ public class OpenURLServlet extends HttpServlet {
 
             if (openURLRequest == null) {
                 resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Request");
-                return;
+                return null;
             }
 
             // 2009-05-06: rchute Add AccessManager Support
@@ -127,7 +187,7 @@ public class OpenURLServlet extends HttpServlet {
                         if (!am.checkAccess(new URL(url).getHost())) {
                             final int status = HttpServletResponse.SC_FORBIDDEN;
                             resp.sendError(status);
-                            return;
+                            return null;
                         }
                     }
                 } catch (final Exception e) {
@@ -146,8 +206,38 @@ public class OpenURLServlet extends HttpServlet {
             final ContextObject[] coa = openURLRequest.getContextObjects();
             coa[0].getRequesters()[0].addDescriptor(req.getRemoteAddr());
 
+            final RenderListener listener = (RenderListener) req.getAttribute(RENDER_LISTENER);
+
+            // A listener is handed what would have gone in the session, so there's no need for one
+            return new Resolution(openURLRequest, req.getParameter("rft_id"), req.getHeader("Range"),
+                    listener == null ? req.getSession(true) : null, listener);
+        } catch (final SocketException e) {
+            LOGGER.error(e.getMessage(), e);
+        } catch (final Throwable e) {
+            LOGGER.debug(e.getMessage(), e);
+
+            // throw new ServletException(e.getMessage(), e);
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves a prepared OpenURL request and writes its result to the supplied response. The servlet request isn't
+     * used since this may run after it's been answered.
+     */
+    private void respond(final Resolution aResolution, final HttpServletResponse resp) {
+        OpenURLResponse result = null;
+
+        try {
             // Process the ContextObjects
-            final OpenURLResponse result = processor.resolve(openURLRequest);
+            result = processor.resolve(aResolution.myRequest);
+
+            // An asynchronous render that took too long has had its request answered already
+            if (!RenderExecutor.claim(resp)) {
+                return;
+            }
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("OpenURLRequestProcessor resolving to a result");
@@ -178,8 +268,8 @@ public class OpenURLServlet extends HttpServlet {
 
                 final Map<?, ?> sessionMap = result.getSessionMap();
 
-                if (sessionMap != null) {
-                    final HttpSession session = req.getSession(true);
+                if (sessionMap != null && aResolution.mySession != null) {
+                    final HttpSession session = aResolution.mySession;
                     final Iterator<?> iter = sessionMap.entrySet().iterator();
 
                     while (iter.hasNext()) {
@@ -220,7 +310,7 @@ public class OpenURLServlet extends HttpServlet {
 
                     break;
                 case HttpServletResponse.SC_NOT_FOUND:
-                    final String id = req.getParameter("rft_id");
+                    final String id = aResolution.myID;
                     resp.sendError(status, id != null ? id + " not found" : "");
 
                     if (LOGGER.isDebugEnabled()) {
@@ -229,11 +319,16 @@ public class OpenURLServlet extends HttpServlet {
 
                     break;
                 default:
-                    final OutputStream out = resp.getOutputStream();
-
                     resp.setStatus(status);
                     resp.setContentType(result.getContentType());
 
+                    if (result.getFile() != null && status == HttpServletResponse.SC_OK) {
+                        sendFile(aResolution.myRange, resp, result.getFile());
+                        break;
+                    }
+
+                    final OutputStream out = resp.getOutputStream();
+
                     final InputStream is = result.getInputStream();
                     final byte[] bytes = new byte[1024];
                     int len;
@@ -252,6 +347,87 @@ public class OpenURLServlet extends HttpServlet {
 
             // throw new ServletException(e.getMessage(), e);
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            // Even a result that came too late to be sent is worth keeping
+            if (aResolution.myListener != null) {
+                aResolution.myListener.rendered(result);
+            }
+        }
+    }
+
+    /**
+     * Sends a file, or the byte range of it that was requested, straight from disk so it's never held in memory.
+     */
+    private static void sendFile(final String aRange, final HttpServletResponse resp, final File file)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteRange range = ByteRange.parse(aRange, channel.size());
+            long position = 0;
+            long remaining = channel.size();
+
+            resp.setHeader("Accept-Ranges", "bytes");
+
+            if (range != null) {
+                resp.setHeader("Content-Range", range.getContentRange());
+
+                if (!range.isSatisfiable()) {
+                    resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    resp.setHeader("Content-Length", "0");
+                    return;
+                }
+
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                position = range.getStart();
+                remaining = range.getLength();
+            }
+
+            resp.setHeader("Content-Length", Long.toString(remaining));
+
+            final OutputStream out = resp.getOutputStream();
+            final WritableByteChannel target = Channels.newChannel(out);
+
+            while (remaining > 0) {
+                final long sent = channel.transferTo(position, remaining, target);
+
+                if (sent <= 0) {
+                    throw new IOException("Unable to send all of " + file);
+                }
+
+                position += sent;
+                remaining -= sent;
+            }
+
+            out.close();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * An OpenURL request and what's needed from its servlet request to answer it.
+     */
+    private static final class Resolution {
+
+        private final OpenURLRequest myRequest;
+
+        private final String myID;
+
+        private final String myRange;
+
+        private final HttpSession mySession;
+
+        private final RenderListener myListener;
+
+        private Resolution(final OpenURLRequest aRequest, final String aID, final String aRange,
+                final HttpSession aSession, final RenderListener aListener) {
+            myRequest = aRequest;
+            myID = aID;
+            myRange = aRange;
+            mySession = aSession;
+            myListener = aListener;
         }
     }
 
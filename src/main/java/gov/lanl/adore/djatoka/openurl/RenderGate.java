@@ -0,0 +1,112 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many uncached renders run at once. Requests beyond the limit wait in a bounded, first-come first-served
+ * queue for a limited time; once the queue is full, or the wait runs out, the request is turned away so the caller
+ * can answer with a quick <code>503</code> instead of starting yet another decoder.
+ */
+public class RenderGate {
+
+    private final Semaphore myPermits;
+
+    private final int myMaxActive;
+
+    private final int myMaxWaiting;
+
+    private final long myWaitMillis;
+
+    private final AtomicInteger myWaiting = new AtomicInteger();
+
+    /**
+     * Creates a render gate.
+     *
+     * @param aMaxActive The maximum number of renders that can run at once; zero or less means no limit
+     * @param aMaxWaiting The maximum number of renders that can wait for one that's running to finish
+     * @param aWaitMillis How long, in milliseconds, a render can wait before it's turned away
+     */
+    public RenderGate(final int aMaxActive, final int aMaxWaiting, final long aWaitMillis) {
+        myMaxActive = aMaxActive;
+        myMaxWaiting = Math.max(0, aMaxWaiting);
+        myWaitMillis = Math.max(0, aWaitMillis);
+        myPermits = aMaxActive > 0 ? new Semaphore(aMaxActive, true) : null;
+    }
+
+    /**
+     * Enters the gate, waiting for a running render to finish if the gate is full. A render that enters the gate must
+     * {@link #exit()} it when it's done.
+     *
+     * @throws RenderRejectedException If the queue is full or the wait runs out
+     */
+    public void enter() throws RenderRejectedException {
+        if (myPermits == null || myPermits.tryAcquire()) {
+            return;
+        }
+
+        if (myWaiting.incrementAndGet() > myMaxWaiting) {
+            myWaiting.decrementAndGet();
+            throw new RenderRejectedException("Too many renders waiting (" + myMaxWaiting + ")");
+        }
+
+        try {
+            if (!myPermits.tryAcquire(myWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new RenderRejectedException("Timed out after " + myWaitMillis + " ms waiting to render");
+            }
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new RenderRejectedException("Interrupted while waiting to render");
+        } finally {
+            myWaiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Enters the gate only if it's idle: nothing is waiting and at least half of the renders it allows could still
+     * start. This is for work, like prefetching, that should never take capacity a real request might want. A render
+     * that enters the gate must {@link #exit()} it when it's done.
+     *
+     * @return True if the gate was entered; else, false
+     */
+    public boolean tryEnterIfIdle() {
+        if (myPermits == null) {
+            return true;
+        }
+
+        if (myWaiting.get() > 0 || myPermits.availablePermits() * 2 < myMaxActive) {
+            return false;
+        }
+
+        return myPermits.tryAcquire();
+    }
+
+    /**
+     * Exits the gate, letting the next waiting render in.
+     */
+    public void exit() {
+        if (myPermits != null) {
+            myPermits.release();
+        }
+    }
+
+    /**
+     * Gets the number of renders currently running.
+     *
+     * @return The number of renders currently running, or zero if the gate doesn't have a limit
+     */
+    public int getActive() {
+        return myPermits == null ? 0 : myMaxActive - myPermits.availablePermits();
+    }
+
+    /**
+     * Gets the number of renders waiting to run.
+     *
+     * @return The number of renders waiting to run
+     */
+    public int getWaiting() {
+        return myWaiting.get();
+    }
+}
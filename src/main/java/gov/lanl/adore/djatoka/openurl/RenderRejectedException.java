@@ -0,0 +1,21 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.adore.djatoka.DjatokaException;
+
+/**
+ * Thrown when a render is turned away because too many are already running or waiting to run.
+ */
+public class RenderRejectedException extends DjatokaException {
+
+    private static final long serialVersionUID = -3516848214437015482L;
+
+    /**
+     * Creates a render rejected exception using the supplied message.
+     *
+     * @param aMessage The exception message
+     */
+    public RenderRejectedException(final String aMessage) {
+        super(aMessage);
+    }
+}
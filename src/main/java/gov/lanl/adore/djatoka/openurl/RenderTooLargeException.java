@@ -0,0 +1,20 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+/**
+ * Thrown when a render is turned away because it needs more memory than renders are allowed to use between them.
+ * Unlike other rejected renders, trying again later won't help.
+ */
+public class RenderTooLargeException extends RenderRejectedException {
+
+    private static final long serialVersionUID = 6207355410861532378L;
+
+    /**
+     * Creates a render too large exception using the supplied message.
+     *
+     * @param aMessage The exception message
+     */
+    public RenderTooLargeException(final String aMessage) {
+        super(aMessage);
+    }
+}
@@ -0,0 +1,41 @@
+
+package gov.lanl.adore.djatoka.plugin;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+/**
+ * A transform plug-in whose output can be cached. For a given image region, a transform that's applied (that is,
+ * {@link #isTransformable(Map)} returns true) must always produce the same image while its cache key stays the same;
+ * the key changes whenever the plug-in's configuration does, so output made with an older configuration is never
+ * served. One instance is shared by every request, so each request's instance properties are passed in rather than
+ * set on it.
+ */
+public interface ICacheableTransformPlugIn extends ITransformPlugIn {
+
+    /**
+     * Performs the transformation based on the global properties and the supplied instance properties.
+     *
+     * @param aImage The extracted region to be transformed
+     * @param aProps The request's image transform instance properties
+     * @return The resulting image, or the same image if no changes are made
+     * @throws TransformException If the transformation fails
+     */
+    public BufferedImage run(BufferedImage aImage, Map<String, String> aProps) throws TransformException;
+
+    /**
+     * Returns whether an image would be transformed, based on the global properties and the supplied instance
+     * properties.
+     *
+     * @param aProps The request's image transform instance properties
+     * @return True if the image would be transformed
+     */
+    public boolean isTransformable(Map<String, String> aProps);
+
+    /**
+     * Returns a key that identifies the plug-in and the version of its configuration.
+     *
+     * @return A key for the plug-in's output, or null if its output shouldn't be cached
+     */
+    public String getCacheKey();
+}
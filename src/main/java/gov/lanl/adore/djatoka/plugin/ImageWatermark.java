@@ -23,14 +23,11 @@
 
 package gov.lanl.adore.djatoka.plugin;
 
-import java.awt.AlphaComposite;
-import java.awt.Font;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.imageio.ImageIO;
@@ -52,33 +49,28 @@ public class ImageWatermark extends TextWatermark {
     /** Default Image Opacity: 0.25f */
     public static final float DEFAULT_IMAGEOPACITY = 0.25f;
 
-    private BufferedImage overlayImage = null;
-
     private float imageOpacity = DEFAULT_IMAGEOPACITY;
 
+    private String imageVersion = null;
+
+    private Overlay imageOverlay = null;
+
     /**
-     * Performs the transformation based on the provided global and instance properties.
+     * Performs the transformation based on the global properties and the supplied instance properties.
      * 
      * @param bi the extracted region BufferedImage to be transformed
+     * @param props image transform instance properties
      * @return the resulting BufferedImage or the same bi if no changes are made
      * @throws TransformException
      */
-    public BufferedImage run(BufferedImage bi) throws TransformException {
-        if (!isTransformable()) {
+    public BufferedImage run(BufferedImage bi, Map<String, String> props) throws TransformException {
+        if (!isTransformable(props)) {
             return bi;
         }
-        Graphics2D graphics = bi.createGraphics();
-        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, imageOpacity));
-        graphics.drawImage(overlayImage, bi.getWidth() - overlayImage.getWidth(), bi.getHeight() -
-                overlayImage.getHeight(), null);
-        if (msg != null) {
-            graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, fontOpacity));
-            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            graphics.setColor(color);
-            graphics.setFont(new Font(fontName, Font.PLAIN, fontSize));
-            graphics.drawString(msg, 10, bi.getHeight() - 10);
+        imageOverlay.stamp(bi, bi.getWidth() - imageOverlay.getWidth(), bi.getHeight() - imageOverlay.getHeight());
+        if (textOverlay != null) {
+            textOverlay.stamp(bi, 10, bi.getHeight() - 10);
         }
-        graphics.dispose();
         return bi;
     }
 
@@ -101,8 +93,11 @@ public class ImageWatermark extends TextWatermark {
             imagePath = (String) props.get(PROP_WATERMARK_OVERLAYIMAGE);
         }
         if (imagePath != null) {
+            final File imageFile = new File(imagePath);
+            imageVersion = imagePath + "|" + imageFile.lastModified() + "|" + imageFile.length();
             try {
-                overlayImage = ImageIO.read(new File(imagePath));
+                final BufferedImage overlayImage = ImageIO.read(imageFile);
+                imageOverlay = overlayImage == null ? null : Overlay.fromImage(overlayImage, imageOpacity);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -110,23 +105,21 @@ public class ImageWatermark extends TextWatermark {
     }
 
     /**
-     * Returns boolean indicator whether or not an image is transformable based on the global and instance properties.
-     * This is very helpful for cache logic.
+     * Returns boolean indicator whether or not an image is transformable based on the global properties and the
+     * supplied instance properties.
      * 
+     * @param props image transform instance properties
      * @return true if transformable
      */
-    public boolean isTransformable() {
-        if (!super.isTransformable()) {
-            return false;
-        }
-        if (overlayImage == null) {
+    public boolean isTransformable(Map<String, String> props) {
+        if (!super.isTransformable(props)) {
             return false;
         }
-        if (addProps == null) {
+        if (imageOverlay == null) {
             return false;
         }
-        if (allowedReferringEntity == null || addProps.containsKey(PROPS_REFERRING_ENTITY) &&
-                addProps.get(PROPS_REFERRING_ENTITY).contains(allowedReferringEntity)) {
+        if (allowedReferringEntity == null || props.containsKey(PROPS_REFERRING_ENTITY) &&
+                props.get(PROPS_REFERRING_ENTITY).contains(allowedReferringEntity)) {
             return false;
         }
         return true;
@@ -140,4 +133,13 @@ public class ImageWatermark extends TextWatermark {
     public void setInstanceProps(HashMap<String, String> addProps) {
         super.addProps = addProps;
     }
+
+    /**
+     * Returns a key that identifies the watermark and the version of its configuration, including the overlay image.
+     * 
+     * @return A key for the watermarked output
+     */
+    public String getCacheKey() {
+        return super.getCacheKey() + "|" + imageVersion + "|" + imageOpacity;
+    }
 }
@@ -0,0 +1,210 @@
+
+package gov.lanl.adore.djatoka.plugin;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A watermark rendered once, as alpha-premultiplied pixels with its opacity applied, and then blended onto each image
+ * it's stamped on. Images with byte BGR or integer RGB pixels are blended directly; others are drawn on with Java2D.
+ */
+final class Overlay {
+
+    private final BufferedImage myImage;
+
+    private final int[] myPixels;
+
+    private final int myWidth;
+
+    private final int myHeight;
+
+    private final int myX;
+
+    private final int myY;
+
+    private Overlay(final BufferedImage aImage, final int aX, final int aY) {
+        myImage = aImage;
+        myWidth = aImage.getWidth();
+        myHeight = aImage.getHeight();
+        myPixels = aImage.getRGB(0, 0, myWidth, myHeight, null, 0, myWidth);
+        myX = aX;
+        myY = aY;
+
+        // Pixels are kept premultiplied, so blending them is a multiply and an add per band
+        for (int index = 0; index < myPixels.length; index++) {
+            final int pixel = myPixels[index];
+            final int alpha = pixel >>> 24;
+
+            myPixels[index] = alpha << 24 | (pixel >> 16 & 0xff) * alpha / 255 << 16 |
+                    (pixel >> 8 & 0xff) * alpha / 255 << 8 | (pixel & 0xff) * alpha / 255;
+        }
+    }
+
+    /**
+     * Renders a line of text, with its baseline origin where an overlay is stamped.
+     *
+     * @param aText The text
+     * @param aFont The font it's in
+     * @param aColor The color it's in
+     * @param aOpacity The opacity of the text
+     * @return The overlay, or null if there's no text to show
+     */
+    static Overlay fromText(final String aText, final Font aFont, final Color aColor, final float aOpacity) {
+        if (aText == null || aText.length() == 0) {
+            return null;
+        }
+
+        final FontRenderContext context = new FontRenderContext(null, true, true);
+        final Rectangle bounds = aFont.createGlyphVector(context, aText).getPixelBounds(context, 0, 0);
+
+        // A pixel of room on each side, for antialiasing that strays outside the glyphs' bounds
+        bounds.grow(1, 1);
+
+        final BufferedImage image = new BufferedImage(Math.max(1, bounds.width), Math.max(1, bounds.height),
+                BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, aOpacity));
+        graphics.setColor(aColor);
+        graphics.setFont(aFont);
+        graphics.drawString(aText, -bounds.x, -bounds.y);
+        graphics.dispose();
+
+        return new Overlay(image, bounds.x, bounds.y);
+    }
+
+    /**
+     * Prepares an image, with its top left corner where an overlay is stamped.
+     *
+     * @param aImage The image
+     * @param aOpacity The opacity of the image
+     * @return The overlay
+     */
+    static Overlay fromImage(final BufferedImage aImage, final float aOpacity) {
+        final BufferedImage image = new BufferedImage(aImage.getWidth(), aImage.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+
+        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, aOpacity));
+        graphics.drawImage(aImage, 0, 0, null);
+        graphics.dispose();
+
+        return new Overlay(image, 0, 0);
+    }
+
+    /**
+     * Gets the width of the overlay.
+     *
+     * @return The width of the overlay
+     */
+    int getWidth() {
+        return myWidth;
+    }
+
+    /**
+     * Gets the height of the overlay.
+     *
+     * @return The height of the overlay
+     */
+    int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Stamps the overlay on an image, clipped to the image's bounds.
+     *
+     * @param aImage The image to stamp
+     * @param aX Where to stamp the overlay across the image
+     * @param aY Where to stamp the overlay down the image
+     */
+    void stamp(final BufferedImage aImage, final int aX, final int aY) {
+        final int left = Math.max(0, aX + myX);
+        final int top = Math.max(0, aY + myY);
+        final int right = Math.min(aImage.getWidth(), aX + myX + myWidth);
+        final int bottom = Math.min(aImage.getHeight(), aY + myY + myHeight);
+        final int type = aImage.getType();
+
+        if (right <= left || bottom <= top) {
+            return;
+        }
+
+        if (type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_INT_RGB) {
+            final Graphics2D graphics = aImage.createGraphics();
+
+            graphics.drawImage(myImage, aX + myX, aY + myY, null);
+            graphics.dispose();
+            return;
+        }
+
+        final WritableRaster raster = aImage.getRaster();
+        final int translateX = raster.getSampleModelTranslateX();
+        final int translateY = raster.getSampleModelTranslateY();
+
+        // Blending in the image's own pixel array leaves it unmanaged by Java2D, which a served image never needs
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            final ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            final int[] offsets = model.getBandOffsets();
+            final int red = offsets[0];
+            final int green = offsets[1];
+            final int blue = offsets[2];
+
+            for (int y = top; y < bottom; y++) {
+                int source = (y - aY - myY) * myWidth + left - aX - myX;
+                int target = (y - translateY) * model.getScanlineStride() + (left - translateX) * 3;
+
+                for (int x = left; x < right; x++, source++, target += 3) {
+                    final int pixel = myPixels[source];
+                    final int remainder = 255 - (pixel >>> 24);
+
+                    if (pixel != 0) {
+                        data[target + red] = (byte) blend(pixel >> 16 & 0xff, data[target + red] & 0xff, remainder);
+                        data[target + green] = (byte) blend(pixel >> 8 & 0xff, data[target + green] & 0xff, remainder);
+                        data[target + blue] = (byte) blend(pixel & 0xff, data[target + blue] & 0xff, remainder);
+                    }
+                }
+            }
+        } else {
+            final SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+
+            for (int y = top; y < bottom; y++) {
+                int source = (y - aY - myY) * myWidth + left - aX - myX;
+                int target = model.getOffset(left - translateX, y - translateY);
+
+                for (int x = left; x < right; x++, source++, target++) {
+                    final int pixel = myPixels[source];
+                    final int remainder = 255 - (pixel >>> 24);
+                    final int rgb = data[target];
+
+                    if (pixel != 0) {
+                        data[target] = blend(pixel >> 16 & 0xff, rgb >> 16 & 0xff, remainder) << 16 |
+                                blend(pixel >> 8 & 0xff, rgb >> 8 & 0xff, remainder) << 8 |
+                                blend(pixel & 0xff, rgb & 0xff, remainder);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends a premultiplied overlay sample over an image sample, given how much of the image shows through.
+     */
+    private static int blend(final int aOverlay, final int aImage, final int aRemainder) {
+        final int product = aImage * aRemainder + 128;
+
+        return aOverlay + (product + (product >> 8) >> 8);
+    }
+}
@@ -23,21 +23,21 @@
 
 package gov.lanl.adore.djatoka.plugin;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
- * Applies a Textual Visual Watermark on the image
+ * Applies a Textual Visual Watermark on the image. The text is rendered once, when the watermark is set up, and then
+ * blended onto each image. Requests that are handled at the same time should pass their own instance properties to
+ * {@link #run(BufferedImage, Map)} and {@link #isTransformable(Map)}, rather than setting them on the shared plug-in.
  * 
  * @author Ryan Chute
  */
-public class TextWatermark implements ITransformPlugIn {
+public class TextWatermark implements ICacheableTransformPlugIn {
 
     /** Requester Instance Property: "requester" */
     public static final String PROPS_REQUESTER = "requester";
@@ -86,6 +86,9 @@ public class TextWatermark implements ITransformPlugIn {
 
     protected HashMap<String, String> addProps;
 
+    /** The rendered text, or null if there isn't any */
+    Overlay textOverlay = null;
+
     /**
      * Performs the transformation based on the provided global and instance properties.
      * 
@@ -94,15 +97,24 @@ public class TextWatermark implements ITransformPlugIn {
      * @throws TransformException
      */
     public BufferedImage run(BufferedImage bi) throws TransformException {
-        if (!isTransformable()) {
+        return run(bi, addProps);
+    }
+
+    /**
+     * Performs the transformation based on the global properties and the supplied instance properties.
+     * 
+     * @param bi the extracted region BufferedImage to be transformed
+     * @param props image transform instance properties
+     * @return the resulting BufferedImage or the same bi if no changes are made
+     * @throws TransformException
+     */
+    public BufferedImage run(BufferedImage bi, Map<String, String> props) throws TransformException {
+        if (!isTransformable(props)) {
             return bi;
         }
-        Graphics2D graphics = bi.createGraphics();
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, fontOpacity));
-        graphics.setColor(color);
-        graphics.setFont(new Font(fontName, Font.PLAIN, fontSize));
-        graphics.drawString(msg, 10, bi.getHeight() - 10);
+        if (textOverlay != null) {
+            textOverlay.stamp(bi, 10, bi.getHeight() - 10);
+        }
         return bi;
     }
 
@@ -135,6 +147,7 @@ public class TextWatermark implements ITransformPlugIn {
                 color = new Color(Integer.parseInt(c[0]), Integer.parseInt(c[1]), Integer.parseInt(c[2]), 150);
             }
         }
+        textOverlay = Overlay.fromText(msg, new Font(fontName, Font.PLAIN, fontSize), color, fontOpacity);
 
     }
 
@@ -147,6 +160,17 @@ public class TextWatermark implements ITransformPlugIn {
         this.addProps = addProps;
     }
 
+    /**
+     * Returns a key that identifies the watermark and the version of its configuration. What's allowed to see the
+     * image without a watermark isn't part of it, since that only decides whether the watermark is applied.
+     * 
+     * @return A key for the watermarked output
+     */
+    public String getCacheKey() {
+        return getClass().getName() + "|" + msg + "|" + fontName + "|" + fontSize + "|" +
+                Integer.toHexString(color.getRGB()) + "|" + fontOpacity;
+    }
+
     /**
      * Returns boolean indicator whether or not an image is transformable based on the global and instance properties.
      * This is very helpful for cache logic.
@@ -154,14 +178,25 @@ public class TextWatermark implements ITransformPlugIn {
      * @return true if transformable
      */
     public boolean isTransformable() {
-        if (addProps == null) {
+        return isTransformable(addProps);
+    }
+
+    /**
+     * Returns boolean indicator whether or not an image is transformable based on the global properties and the
+     * supplied instance properties.
+     * 
+     * @param props image transform instance properties
+     * @return true if transformable
+     */
+    public boolean isTransformable(Map<String, String> props) {
+        if (props == null) {
             return false;
         }
         if (msg == null) {
             return false;
         }
-        if (allowedReferringEntity == null || addProps.containsKey(PROPS_REFERRING_ENTITY) &&
-                addProps.get(PROPS_REFERRING_ENTITY).contains(allowedReferringEntity)) {
+        if (allowedReferringEntity == null || props.containsKey(PROPS_REFERRING_ENTITY) &&
+                props.get(PROPS_REFERRING_ENTITY).contains(allowedReferringEntity)) {
             return false;
         }
         return true;
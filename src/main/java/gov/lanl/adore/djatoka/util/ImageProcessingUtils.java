@@ -22,15 +22,16 @@
 package gov.lanl.adore.djatoka.util;
 
 import gov.lanl.adore.djatoka.io.FormatConstants;
+import info.freelibrary.djatoka.util.RasterPool;
 
 import ij.io.FileInfo;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
@@ -55,8 +56,12 @@ public class ImageProcessingUtils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ImageProcessingUtils.class);
 
+    /** Greyscale values at or above this are white in a bitonal image */
+    private static final int BITONAL_THRESHOLD = 128;
+
     /**
-     * Perform a rotation of the provided BufferedImage using degrees of 90, 180, or 270.
+     * Perform a rotation of the provided BufferedImage using degrees of 90, 180, or 270. Samples are moved as they
+     * are, so the rotated image has the same type, and the same number of bands, as the one provided.
      * 
      * @param bi BufferedImage to be rotated
      * @param degree
@@ -65,44 +70,131 @@ public class ImageProcessingUtils {
     public static BufferedImage rotate(BufferedImage bi, int degree) {
         int width = bi.getWidth();
         int height = bi.getHeight();
-
+        int type = bi.getType();
+        ColorModel cm = bi.getColorModel();
         BufferedImage biFlip;
-        if (degree == 90 || degree == 270) {
-            biFlip = new BufferedImage(height, width, bi.getType());
+
+        if (degree != 90 && degree != 180 && degree != 270) {
+            return bi;
+        }
+
+        // Every pixel is written, so the standard types can use a pooled array; others keep their own color model
+        if (type == BufferedImage.TYPE_CUSTOM || cm instanceof IndexColorModel) {
+            biFlip = new BufferedImage(cm, degree == 180 ? cm.createCompatibleWritableRaster(width, height) : cm
+                    .createCompatibleWritableRaster(height, width), cm.isAlphaPremultiplied(), null);
         } else if (degree == 180) {
-            biFlip = new BufferedImage(width, height, bi.getType());
+            biFlip = RasterPool.getInstance().createImage(width, height, type);
         } else {
-            return bi;
+            biFlip = RasterPool.getInstance().createImage(height, width, type);
         }
 
-        if (degree == 90) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(height - j - 1, i, bi.getRGB(i, j));
+        WritableRaster raster = biFlip.getRaster();
+
+        WritableRaster source = bi.getRaster();
+        int bands = source.getNumBands();
+        int[] row = new int[width * bands];
+
+        for (int j = 0; j < height; j++) {
+            source.getPixels(0, j, width, 1, row);
+
+            if (degree == 90) {
+                raster.setPixels(height - j - 1, 0, 1, width, row);
+            } else {
+                reverse(row, bands);
+
+                if (degree == 180) {
+                    raster.setPixels(0, height - j - 1, width, 1, row);
+                } else {
+                    raster.setPixels(j, 0, 1, width, row);
                 }
             }
         }
 
-        if (degree == 180) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(width - i - 1, height - j - 1, bi.getRGB(i, j));
-                }
+        bi.flush();
+        bi = null;
+
+        return biFlip;
+    }
+
+    /**
+     * Converts the provided BufferedImage to 8-bit greyscale, weighting its colors by how bright they look. An image
+     * that's already 8-bit greyscale is returned as it is.
+     * 
+     * @param bi BufferedImage to be converted
+     * @return greyscale instance of provided BufferedImage
+     */
+    public static BufferedImage toGrey(BufferedImage bi) {
+        if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return bi;
+        }
+
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        BufferedImage grey = RasterPool.getInstance().createImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = grey.getRaster();
+        int[] rgb = new int[width];
+        byte[] row = new byte[width];
+
+        for (int y = 0; y < height; y++) {
+            bi.getRGB(0, y, width, 1, rgb, 0, width);
+
+            for (int x = 0; x < width; x++) {
+                int pixel = rgb[x];
+                int luma = (pixel >> 16 & 0xff) * 77 + (pixel >> 8 & 0xff) * 150 + (pixel & 0xff) * 29;
+                row[x] = (byte) (luma + 128 >> 8);
             }
+
+            raster.setDataElements(0, y, width, 1, row);
+        }
+
+        return grey;
+    }
+
+    /**
+     * Converts the provided BufferedImage to a 1-bit black and white image. Its greyscale values are split at a fixed
+     * midpoint, rather than one picked from each image, so that neighbouring tiles of the same image match. An image
+     * that's already black and white is returned as it is.
+     * 
+     * @param bi BufferedImage to be converted
+     * @return bitonal instance of provided BufferedImage
+     */
+    public static BufferedImage toBitonal(BufferedImage bi) {
+        if (bi.getType() == BufferedImage.TYPE_BYTE_BINARY && bi.getColorModel().getPixelSize() == 1) {
+            return bi;
         }
 
-        if (degree == 270) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(j, width - i - 1, bi.getRGB(i, j));
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        WritableRaster grey = toGrey(bi).getRaster();
+        BufferedImage bitonal = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] data = ((DataBufferByte) bitonal.getRaster().getDataBuffer()).getData();
+        int stride = (width + 7) / 8;
+        byte[] row = new byte[width];
+
+        for (int y = 0; y < height; y++) {
+            grey.getDataElements(0, y, width, 1, row);
+
+            for (int x = 0; x < width; x++) {
+                if ((row[x] & 0xff) >= BITONAL_THRESHOLD) {
+                    data[y * stride + (x >> 3)] |= 0x80 >> (x & 7);
                 }
             }
         }
 
-        bi.flush();
-        bi = null;
+        return bitonal;
+    }
 
-        return biFlip;
+    /**
+     * Reverses the order of the pixels in a row of samples, keeping each pixel's bands in their order.
+     */
+    private static void reverse(int[] row, int bands) {
+        for (int left = 0, right = row.length - bands; left < right; left += bands, right -= bands) {
+            for (int band = 0; band < bands; band++) {
+                int sample = row[left + band];
+                row[left + band] = row[right + band];
+                row[right + band] = sample;
+            }
+        }
     }
 
     /**
@@ -149,15 +241,17 @@ public class ImageProcessingUtils {
 
     /**
      * Scale provided BufferedImage by the provided factor. A scaling factor value should be greater than 0 and less
-     * than 2. Note that scaling will impact performance and image quality.
+     * than 2. The image is resampled with a Lanczos filter, on several threads if it's large (see {@link Resampler}).
      * 
      * @param bi BufferedImage to be scaled.
      * @param scale positive scaling factor
      * @return scaled instance of provided BufferedImage
      */
     public static BufferedImage scale(BufferedImage bi, double scale) {
-        AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale), null);
-        return op.filter(bi, null);
+        // Sized the way an AffineTransformOp would size it, so tiles keep the dimensions they've always had
+        int w = Math.max(1, (int) Math.ceil(bi.getWidth() * scale));
+        int h = Math.max(1, (int) Math.ceil(bi.getHeight() * scale));
+        return Resampler.resize(bi, w, h);
     }
 
     /**
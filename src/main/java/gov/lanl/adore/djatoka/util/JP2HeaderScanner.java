@@ -0,0 +1,682 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the header of a JPEG 2000 file without reading its image data. The scanner jumps from box header to box
+ * header, reading only the JP2 header boxes, any XML boxes, the codestream's main header, and the header of its first
+ * tile-part; everything else is skipped, which, for a file, is a seek. That's enough to plan a region decode: the
+ * image and tile geometry from SIZ, the coding style and precincts from COD, and whether the codestream has the TLM
+ * and PLT markers that let a decoder find tiles and packets without reading what's in front of them.
+ */
+public class JP2HeaderScanner implements JP2Markers {
+
+    /** The precinct size exponent used when COD doesn't define precincts */
+    private static final int DEFAULT_PRECINCT_EXPONENT = 15;
+
+    private static final int MARKER_SOC_BOX = 0xFF4FFF51; // A raw codestream's SOC and SIZ
+
+    private static final int MAX_XML_LENGTH = 16 * 1024 * 1024;
+
+    private final RandomAccessFile myFile;
+
+    private final InputStream myStream;
+
+    private final boolean myXmlRead;
+
+    private final byte[] myBuffer = new byte[16];
+
+    private long myPosition;
+
+    private int myWidth;
+
+    private int myHeight;
+
+    private int myComponents;
+
+    private int myBitDepth;
+
+    private int myImageOffsetX;
+
+    private int myImageOffsetY;
+
+    private int myTileWidth;
+
+    private int myTileHeight;
+
+    private int myTileOffsetX;
+
+    private int myTileOffsetY;
+
+    private int myProgressionOrder;
+
+    private int myQualityLayers;
+
+    private int myComponentTransform;
+
+    private int myDWTLevels;
+
+    private int myCodeBlockWidth;
+
+    private int myCodeBlockHeight;
+
+    private int myCodeBlockStyle;
+
+    private int myWavelet;
+
+    private int[] myPrecinctExponents;
+
+    private boolean hasTLM;
+
+    private boolean hasPLM;
+
+    private boolean hasPLT;
+
+    private long myCodestreamOffset = -1;
+
+    private long myCodestreamLength = -1;
+
+    private int myCompositingLayers;
+
+    private final List<long[]> myXmlBoxes = new ArrayList<long[]>();
+
+    private final List<String> myXmlDocs = new ArrayList<String>();
+
+    /**
+     * Scans the header of a JPEG 2000 file.
+     *
+     * @param aFile A JP2 file or a raw JPEG 2000 codestream
+     * @param aXmlRead Whether the contents of XML boxes should be read too
+     * @throws IOException If the file can't be read or isn't JPEG 2000
+     */
+    public JP2HeaderScanner(final File aFile, final boolean aXmlRead) throws IOException {
+        myFile = new RandomAccessFile(aFile, "r");
+        myStream = null;
+        myXmlRead = aXmlRead;
+
+        try {
+            scan(myFile.length());
+        } finally {
+            myFile.close();
+        }
+    }
+
+    /**
+     * Scans the header of a JPEG 2000 stream. What's skipped is skipped with {@link InputStream#skip(long)}. The
+     * stream isn't closed.
+     *
+     * @param aStream A JP2 or raw JPEG 2000 codestream stream
+     * @param aXmlRead Whether the contents of XML boxes should be read too
+     * @throws IOException If the stream can't be read or isn't JPEG 2000
+     */
+    public JP2HeaderScanner(final InputStream aStream, final boolean aXmlRead) throws IOException {
+        myFile = null;
+        myStream = aStream;
+        myXmlRead = aXmlRead;
+        scan(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gets the image's width, from the JP2 header if it has one or else from SIZ.
+     *
+     * @return The image's width
+     */
+    public int getWidth() {
+        return myWidth;
+    }
+
+    /**
+     * Gets the image's height, from the JP2 header if it has one or else from SIZ.
+     *
+     * @return The image's height
+     */
+    public int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Gets the number of components in the image.
+     *
+     * @return The number of components in the image
+     */
+    public int getComponents() {
+        return myComponents;
+    }
+
+    /**
+     * Gets the bit depth of the image's first component.
+     *
+     * @return The bit depth of the image's first component
+     */
+    public int getBitDepth() {
+        return myBitDepth;
+    }
+
+    /**
+     * Gets the horizontal offset of the image on the reference grid (SIZ's <code>XOsiz</code>).
+     *
+     * @return The horizontal offset of the image
+     */
+    public int getImageOffsetX() {
+        return myImageOffsetX;
+    }
+
+    /**
+     * Gets the vertical offset of the image on the reference grid (SIZ's <code>YOsiz</code>).
+     *
+     * @return The vertical offset of the image
+     */
+    public int getImageOffsetY() {
+        return myImageOffsetY;
+    }
+
+    /**
+     * Gets the width of the codestream's tiles.
+     *
+     * @return The width of the codestream's tiles
+     */
+    public int getTileWidth() {
+        return myTileWidth;
+    }
+
+    /**
+     * Gets the height of the codestream's tiles.
+     *
+     * @return The height of the codestream's tiles
+     */
+    public int getTileHeight() {
+        return myTileHeight;
+    }
+
+    /**
+     * Gets the horizontal offset of the first tile on the reference grid (SIZ's <code>XTOsiz</code>).
+     *
+     * @return The horizontal offset of the first tile
+     */
+    public int getTileOffsetX() {
+        return myTileOffsetX;
+    }
+
+    /**
+     * Gets the vertical offset of the first tile on the reference grid (SIZ's <code>YTOsiz</code>).
+     *
+     * @return The vertical offset of the first tile
+     */
+    public int getTileOffsetY() {
+        return myTileOffsetY;
+    }
+
+    /**
+     * Gets the number of columns of tiles in the codestream.
+     *
+     * @return The number of columns of tiles
+     */
+    public int getTileColumns() {
+        return myTileWidth <= 0 ? 0 : (int) ((myImageOffsetX + (long) myWidth - myTileOffsetX + myTileWidth - 1) /
+                myTileWidth);
+    }
+
+    /**
+     * Gets the number of rows of tiles in the codestream.
+     *
+     * @return The number of rows of tiles
+     */
+    public int getTileRows() {
+        return myTileHeight <= 0 ? 0 : (int) ((myImageOffsetY + (long) myHeight - myTileOffsetY + myTileHeight -
+                1) / myTileHeight);
+    }
+
+    /**
+     * Gets the codestream's progression order (0 is LRCP, 1 RLCP, 2 RPCL, 3 PCRL, and 4 CPRL).
+     *
+     * @return The codestream's progression order
+     */
+    public int getProgressionOrder() {
+        return myProgressionOrder;
+    }
+
+    /**
+     * Gets the number of quality layers in the codestream.
+     *
+     * @return The number of quality layers
+     */
+    public int getQualityLayers() {
+        return myQualityLayers;
+    }
+
+    /**
+     * Gets whether a multiple component transform is used (1) or not (0).
+     *
+     * @return The multiple component transform setting
+     */
+    public int getComponentTransform() {
+        return myComponentTransform;
+    }
+
+    /**
+     * Gets the number of wavelet decomposition levels.
+     *
+     * @return The number of wavelet decomposition levels
+     */
+    public int getDWTLevels() {
+        return myDWTLevels;
+    }
+
+    /**
+     * Gets the width of the codestream's code-blocks.
+     *
+     * @return The width of the code-blocks
+     */
+    public int getCodeBlockWidth() {
+        return myCodeBlockWidth;
+    }
+
+    /**
+     * Gets the height of the codestream's code-blocks.
+     *
+     * @return The height of the code-blocks
+     */
+    public int getCodeBlockHeight() {
+        return myCodeBlockHeight;
+    }
+
+    /**
+     * Gets the code-block style flags from COD.
+     *
+     * @return The code-block style flags
+     */
+    public int getCodeBlockStyle() {
+        return myCodeBlockStyle;
+    }
+
+    /**
+     * Gets the wavelet transform used (0 for the irreversible 9-7, 1 for the reversible 5-3).
+     *
+     * @return The wavelet transform used
+     */
+    public int getWavelet() {
+        return myWavelet;
+    }
+
+    /**
+     * Gets the precinct width at a resolution level.
+     *
+     * @param aResolution A resolution level, from 0 (the smallest) to the number of decomposition levels
+     * @return The precinct width at the resolution level
+     */
+    public int getPrecinctWidth(final int aResolution) {
+        return 1 << getPrecinctExponent(aResolution, 0);
+    }
+
+    /**
+     * Gets the precinct height at a resolution level.
+     *
+     * @param aResolution A resolution level, from 0 (the smallest) to the number of decomposition levels
+     * @return The precinct height at the resolution level
+     */
+    public int getPrecinctHeight(final int aResolution) {
+        return 1 << getPrecinctExponent(aResolution, 4);
+    }
+
+    /**
+     * Checks whether the codestream's main header has tile-part lengths (TLM).
+     *
+     * @return True if the codestream has tile-part lengths; else, false
+     */
+    public boolean hasTLM() {
+        return hasTLM;
+    }
+
+    /**
+     * Checks whether the codestream's main header has packet lengths (PLM).
+     *
+     * @return True if the main header has packet lengths; else, false
+     */
+    public boolean hasPLM() {
+        return hasPLM;
+    }
+
+    /**
+     * Checks whether the codestream's tile-parts have packet lengths (PLT). Only the first tile-part's header is
+     * looked at.
+     *
+     * @return True if the first tile-part has packet lengths; else, false
+     */
+    public boolean hasPLT() {
+        return hasPLT;
+    }
+
+    /**
+     * Gets the offset of the first codestream in the file.
+     *
+     * @return The offset of the first codestream's SOC marker
+     */
+    public long getCodestreamOffset() {
+        return myCodestreamOffset;
+    }
+
+    /**
+     * Gets the length of the first codestream, if its box says.
+     *
+     * @return The length of the first codestream, or -1 if it runs to the end of the file
+     */
+    public long getCodestreamLength() {
+        return myCodestreamLength;
+    }
+
+    /**
+     * Gets the number of compositing layers in the file; a JP2 file has one.
+     *
+     * @return The number of compositing layers in the file
+     */
+    public int getCompositingLayerCount() {
+        return Math.max(1, myCompositingLayers);
+    }
+
+    /**
+     * Gets where the XML boxes in the file are.
+     *
+     * @return The offset and length of the contents of each XML box in the file
+     */
+    public List<long[]> getXmlBoxes() {
+        return Collections.unmodifiableList(myXmlBoxes);
+    }
+
+    /**
+     * Gets the contents of the XML boxes in the file, if the scanner was asked to read them.
+     *
+     * @return The contents of the XML boxes in the file
+     */
+    public List<String> getXmlDocs() {
+        return Collections.unmodifiableList(myXmlDocs);
+    }
+
+    private int getPrecinctExponent(final int aResolution, final int aShift) {
+        if (myPrecinctExponents == null || aResolution < 0 || aResolution >= myPrecinctExponents.length) {
+            return DEFAULT_PRECINCT_EXPONENT;
+        }
+
+        return (myPrecinctExponents[aResolution] >> aShift) & 0x0F;
+    }
+
+    private void scan(final long aLength) throws IOException {
+        final int first = readInt();
+
+        if (first == MARKER_SOC_BOX) {
+            myCodestreamOffset = 0;
+            readMainHeader(aLength, true);
+            return;
+        }
+
+        if (first != MARKER_JP_LEN || readInt() != MARKER_JP || readInt() != MARKER_JP_SIG) {
+            throw new IOException("Invalid Jpeg2000 file");
+        }
+
+        scanBoxes(myPosition, aLength, true);
+
+        if (myCodestreamOffset == -1) {
+            throw new IOException("No codestream found");
+        }
+    }
+
+    /**
+     * Walks the boxes between two offsets, going into the JP2 header super box.
+     */
+    private void scanBoxes(final long aStart, final long aEnd, final boolean aTopLevel) throws IOException {
+        long position = aStart;
+
+        while (position < aEnd) {
+            seek(position);
+
+            final long length;
+            final int type;
+            int headerLength = 8;
+
+            try {
+                length = readInt() & 0xFFFFFFFFL;
+                type = readInt();
+            } catch (final EOFException details) {
+                if (aTopLevel) {
+                    return;
+                }
+
+                throw details;
+            }
+
+            long boxLength = length;
+
+            if (length == 1) {
+                boxLength = readLong();
+                headerLength = 16;
+            }
+
+            // A zero length means the box runs to the end of the file
+            final long end = length == 0 ? aEnd : position + boxLength;
+
+            if (length != 0 && boxLength < headerLength) {
+                throw new IOException("Invalid box size");
+            }
+
+            if (type == MARKER_JP2H) {
+                scanBoxes(position + headerLength, end, false);
+            } else if (type == MARKER_IHDR) {
+                readIHDR();
+            } else if (type == MARKER_XML_BOX) {
+                readXML(position + headerLength, end - position - headerLength);
+            } else if (type == MARKER_JPLH) {
+                myCompositingLayers++;
+            } else if (type == MARKER_JP2C && myCodestreamOffset == -1) {
+                myCodestreamOffset = position + headerLength;
+                myCodestreamLength = length == 0 ? -1 : end - myCodestreamOffset;
+
+                if (readShort() != MARKER_SOC) {
+                    throw new IOException("Codestream doesn't start with SOC");
+                }
+
+                readMainHeader(end, false);
+            }
+
+            if (length == 0) {
+                return;
+            }
+
+            position = end;
+        }
+    }
+
+    private void readIHDR() throws IOException {
+        myHeight = readInt();
+        myWidth = readInt();
+        myComponents = readShort();
+
+        final int bitDepth = readByte();
+
+        myBitDepth = bitDepth == 7 ? bitDepth + 1 : bitDepth;
+    }
+
+    private void readXML(final long aOffset, final long aLength) throws IOException {
+        myXmlBoxes.add(new long[] { aOffset, aLength });
+
+        if (myXmlRead && aLength > 0 && aLength <= MAX_XML_LENGTH) {
+            final byte[] xml = new byte[(int) aLength];
+
+            readFully(xml, xml.length);
+            myXmlDocs.add(new String(xml, "UTF-8"));
+        }
+    }
+
+    /**
+     * Reads the codestream's main header, and then the header of its first tile-part, from just after SOC.
+     */
+    private void readMainHeader(final long aEnd, final boolean aSIZRead) throws IOException {
+        int marker = aSIZRead ? MARKER_SIZ : readShort();
+        boolean inMainHeader = true;
+
+        while (myPosition + 2 <= aEnd) {
+            if (marker == MARKER_SOD || marker == MARKER_EOD || (marker & 0xFF00) != 0xFF00) {
+                return;
+            }
+
+            final int length = readShort();
+            final long next = myPosition + length - 2;
+
+            if (length < 2 || next > aEnd) {
+                return;
+            }
+
+            if (marker == MARKER_SIZ) {
+                readSIZ();
+            } else if (marker == MARKER_COD && inMainHeader) {
+                readCOD();
+            } else if (marker == MARKER_TLM) {
+                hasTLM = true;
+            } else if (marker == MARKER_PLM) {
+                hasPLM = true;
+            } else if (marker == MARKER_PLT) {
+                hasPLT = true;
+            } else if (marker == MARKER_SOT) {
+                inMainHeader = false;
+            }
+
+            seek(next);
+
+            if (myPosition + 2 > aEnd) {
+                return;
+            }
+
+            marker = readShort();
+        }
+    }
+
+    private void readSIZ() throws IOException {
+        readShort(); // Rsiz
+
+        final int width = readInt();
+        final int height = readInt();
+
+        myImageOffsetX = readInt();
+        myImageOffsetY = readInt();
+        myTileWidth = readInt();
+        myTileHeight = readInt();
+        myTileOffsetX = readInt();
+        myTileOffsetY = readInt();
+
+        final int components = readShort();
+        final int precision = (readByte() & 0x7F) + 1;
+
+        // The JP2 header's image header box wins if there is one
+        if (myWidth == 0 || myHeight == 0) {
+            myWidth = width - myImageOffsetX;
+            myHeight = height - myImageOffsetY;
+        }
+
+        if (myComponents == 0) {
+            myComponents = components;
+        }
+
+        if (myBitDepth == 0) {
+            myBitDepth = precision;
+        }
+    }
+
+    private void readCOD() throws IOException {
+        final int scod = readByte();
+
+        myProgressionOrder = readByte();
+        myQualityLayers = readShort();
+        myComponentTransform = readByte();
+        myDWTLevels = readByte();
+        myCodeBlockWidth = 1 << (readByte() + 2);
+        myCodeBlockHeight = 1 << (readByte() + 2);
+        myCodeBlockStyle = readByte();
+        myWavelet = readByte();
+
+        // User defined precincts are given for each resolution level, from the smallest
+        if ((scod & 0x01) != 0) {
+            myPrecinctExponents = new int[myDWTLevels + 1];
+
+            for (int index = 0; index < myPrecinctExponents.length; index++) {
+                myPrecinctExponents[index] = readByte();
+            }
+        }
+    }
+
+    private void seek(final long aPosition) throws IOException {
+        if (aPosition == myPosition) {
+            return;
+        }
+
+        if (myFile != null) {
+            myFile.seek(aPosition);
+        } else {
+            long remaining = aPosition - myPosition;
+
+            if (remaining < 0) {
+                throw new IOException("Can't seek backwards in a stream");
+            }
+
+            while (remaining > 0) {
+                final long skipped = myStream.skip(remaining);
+
+                if (skipped <= 0) {
+                    // Some streams won't skip past what's buffered; a read tells us whether we're at the end
+                    if (myStream.read() == -1) {
+                        throw new EOFException();
+                    }
+
+                    remaining--;
+                } else {
+                    remaining -= skipped;
+                }
+            }
+        }
+
+        myPosition = aPosition;
+    }
+
+    private void readFully(final byte[] aBytes, final int aLength) throws IOException {
+        int read = 0;
+
+        while (read < aLength) {
+            final int count =
+                    myFile != null ? myFile.read(aBytes, read, aLength - read) : myStream.read(aBytes, read, aLength -
+                            read);
+
+            if (count == -1) {
+                throw new EOFException();
+            }
+
+            read += count;
+        }
+
+        myPosition += aLength;
+    }
+
+    private int readByte() throws IOException {
+        readFully(myBuffer, 1);
+        return myBuffer[0] & 0xFF;
+    }
+
+    private int readShort() throws IOException {
+        readFully(myBuffer, 2);
+        return (myBuffer[0] & 0xFF) << 8 | myBuffer[1] & 0xFF;
+    }
+
+    private int readInt() throws IOException {
+        readFully(myBuffer, 4);
+        return (myBuffer[0] & 0xFF) << 24 | (myBuffer[1] & 0xFF) << 16 | (myBuffer[2] & 0xFF) << 8 | myBuffer[3] &
+                0xFF;
+    }
+
+    private long readLong() throws IOException {
+        return (readInt() & 0xFFFFFFFFL) << 32 | readInt() & 0xFFFFFFFFL;
+    }
+}
@@ -75,6 +75,8 @@ public interface JP2Markers {
 
     public static final int MARKER_XML = 2020437002; // 0x786D6C0A - 'xml\040'
 
+    public static final int MARKER_XML_BOX = 2020437024; // 0x786D6C20 - 'xml\040'
+
     // Delimiting marker segments
     public static final int MARKER_SOC = 65359; // 0xFF4F - Start of codestream
 
@@ -92,4 +94,11 @@ public interface JP2Markers {
 
     public static final int MARKER_COC = 65363; // 0xFF53 - Coding style
                                                 // component
+
+    // Pointer marker segments
+    public static final int MARKER_TLM = 65365; // 0xFF55 - Tile-part lengths
+
+    public static final int MARKER_PLM = 65367; // 0xFF57 - Packet length, main header
+
+    public static final int MARKER_PLT = 65368; // 0xFF58 - Packet length, tile-part header
 }
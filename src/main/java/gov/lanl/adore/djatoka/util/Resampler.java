@@ -0,0 +1,478 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import info.freelibrary.djatoka.util.RasterPool;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resizes images with a separable Lanczos (three lobe) filter, working on the samples of the image's raster rather
+ * than through Java2D. An image is resized across, then down; each pass is split into bands of rows that are filtered
+ * on a shared pool of one thread per core, so a large resize uses the whole machine while small ones (most tiles) are
+ * done on the calling thread.
+ * <p>
+ * Byte and integer RGB, BGR and grayscale images keep their type; other greyscale and black and white images are
+ * converted to byte grayscale, and the rest to byte BGR (or ABGR, if they have alpha), first. The passes' working
+ * arrays, and the resized image's pixels, are taken from the {@link RasterPool}.
+ * </p>
+ */
+public final class Resampler {
+
+    /** The number of lobes of the Lanczos filter */
+    private static final int LOBES = 3;
+
+    /** The number of output samples below which a pass isn't split across threads */
+    private static final int MIN_PARALLEL_SAMPLES = 1 << 18;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    private Resampler() {
+    }
+
+    /**
+     * Resizes an image.
+     *
+     * @param aImage The image to resize
+     * @param aWidth The width of the resized image
+     * @param aHeight The height of the resized image
+     * @return The resized image
+     */
+    public static BufferedImage resize(final BufferedImage aImage, final int aWidth, final int aHeight) {
+        return resize(aImage, aWidth, aHeight, THREADS);
+    }
+
+    /**
+     * Resizes an image, using no more than the supplied number of threads.
+     *
+     * @param aImage The image to resize
+     * @param aWidth The width of the resized image
+     * @param aHeight The height of the resized image
+     * @param aThreads The most threads to use; one does the resize on the calling thread
+     * @return The resized image
+     */
+    public static BufferedImage resize(final BufferedImage aImage, final int aWidth, final int aHeight,
+            final int aThreads) {
+        if (aWidth <= 0 || aHeight <= 0) {
+            throw new IllegalArgumentException("Resized image must be at least one pixel: " + aWidth + "x" + aHeight);
+        }
+
+        if (aImage.getWidth() == aWidth && aImage.getHeight() == aHeight) {
+            return aImage;
+        }
+
+        final BufferedImage image = toSupportedType(aImage);
+        final int type = image.getType();
+        final int bands = getBands(type);
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final RasterPool pool = RasterPool.getInstance();
+        final byte[] source = getSamples(image, bands, pool);
+        final byte[] across;
+        final byte[] down;
+
+        // Filter in the direction that shrinks the image most first, so the second pass has less to do
+        if ((double) aWidth / width <= (double) aHeight / height) {
+            across = width == aWidth ? source : filterAcross(source, width, height, bands, aWidth, aThreads);
+            down = height == aHeight ? across : filterDown(across, aWidth, height, bands, aHeight, aThreads);
+        } else {
+            across = height == aHeight ? source : filterDown(source, width, height, bands, aHeight, aThreads);
+            down = width == aWidth ? across : filterAcross(across, width, aHeight, bands, aWidth, aThreads);
+        }
+
+        final BufferedImage resized = toImage(down, aWidth, aHeight, bands, type, pool);
+
+        // Pooled arrays are longer than asked for, so they're released by identity rather than compared by length
+        pool.release(source);
+
+        if (across != source) {
+            pool.release(across);
+        }
+
+        if (down != across) {
+            pool.release(down);
+        }
+
+        return resized;
+    }
+
+    /**
+     * Resizes each row of an image.
+     */
+    private static byte[] filterAcross(final byte[] aSource, final int aWidth, final int aHeight, final int aBands,
+            final int aNewWidth, final int aThreads) {
+        final Contributions contributions = new Contributions(aWidth, aNewWidth);
+        final byte[] target = RasterPool.getInstance().getBytes(aNewWidth * aHeight * aBands);
+
+        run(aHeight, aNewWidth * aHeight * aBands, aThreads, new Band() {
+
+            @Override
+            public void filter(final int aFirstRow, final int aEndRow) {
+                final float[] weights = contributions.myWeights;
+                final float[] sums = new float[aBands];
+
+                for (int y = aFirstRow; y < aEndRow; y++) {
+                    final int sourceRow = y * aWidth * aBands;
+                    int index = y * aNewWidth * aBands;
+
+                    for (int x = 0; x < aNewWidth; x++) {
+                        final int count = contributions.myCounts[x];
+                        int offset = sourceRow + contributions.myFirsts[x] * aBands;
+                        int weight = x * contributions.myStride;
+
+                        // The common cases get loops of their own, which run a good deal faster than the general one
+                        if (aBands == 3) {
+                            float sum0 = 0f, sum1 = 0f, sum2 = 0f;
+
+                            for (int end = weight + count; weight < end; weight++) {
+                                final float w = weights[weight];
+
+                                sum0 += w * (aSource[offset++] & 0xff);
+                                sum1 += w * (aSource[offset++] & 0xff);
+                                sum2 += w * (aSource[offset++] & 0xff);
+                            }
+
+                            target[index++] = clamp(sum0);
+                            target[index++] = clamp(sum1);
+                            target[index++] = clamp(sum2);
+                        } else if (aBands == 1) {
+                            float sum = 0f;
+
+                            for (int end = weight + count; weight < end; weight++) {
+                                sum += weights[weight] * (aSource[offset++] & 0xff);
+                            }
+
+                            target[index++] = clamp(sum);
+                        } else {
+                            Arrays.fill(sums, 0f);
+
+                            for (int end = weight + count; weight < end; weight++) {
+                                final float w = weights[weight];
+
+                                for (int band = 0; band < aBands; band++) {
+                                    sums[band] += w * (aSource[offset++] & 0xff);
+                                }
+                            }
+
+                            for (int band = 0; band < aBands; band++) {
+                                target[index++] = clamp(sums[band]);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        return target;
+    }
+
+    /**
+     * Resizes each column of an image, a row at a time so the source is read in order.
+     */
+    private static byte[] filterDown(final byte[] aSource, final int aWidth, final int aHeight, final int aBands,
+            final int aNewHeight, final int aThreads) {
+        final Contributions contributions = new Contributions(aHeight, aNewHeight);
+        final int rowLength = aWidth * aBands;
+        final byte[] target = RasterPool.getInstance().getBytes(rowLength * aNewHeight);
+
+        run(aNewHeight, rowLength * aNewHeight, aThreads, new Band() {
+
+            @Override
+            public void filter(final int aFirstRow, final int aEndRow) {
+                final float[] sums = new float[rowLength];
+
+                for (int y = aFirstRow; y < aEndRow; y++) {
+                    final int first = contributions.myFirsts[y];
+                    final int count = contributions.myCounts[y];
+                    final int targetRow = y * rowLength;
+
+                    Arrays.fill(sums, 0f);
+
+                    for (int row = 0; row < count; row++) {
+                        final float w = contributions.myWeights[y * contributions.myStride + row];
+                        final int sourceRow = (first + row) * rowLength;
+
+                        for (int index = 0; index < rowLength; index++) {
+                            sums[index] += w * (aSource[sourceRow + index] & 0xff);
+                        }
+                    }
+
+                    for (int index = 0; index < rowLength; index++) {
+                        target[targetRow + index] = clamp(sums[index]);
+                    }
+                }
+            }
+        });
+
+        return target;
+    }
+
+    /**
+     * Filters the rows of a pass, in bands on the shared pool if there's enough to do and on this thread if not.
+     */
+    private static void run(final int aRows, final long aSamples, final int aThreads, final Band aBand) {
+        final int threads = Math.min(aThreads, aRows);
+
+        if (threads <= 1 || aSamples < MIN_PARALLEL_SAMPLES) {
+            aBand.filter(0, aRows);
+            return;
+        }
+
+        final List<Callable<Void>> bands = new ArrayList<Callable<Void>>(threads);
+        final int rowsPerBand = (aRows + threads - 1) / threads;
+
+        for (int first = 0; first < aRows; first += rowsPerBand) {
+            final int firstRow = first;
+            final int endRow = Math.min(aRows, first + rowsPerBand);
+
+            bands.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    aBand.filter(firstRow, endRow);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (final Future<Void> future : getExecutor().invokeAll(bands)) {
+                future.get();
+            }
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resizing an image", details);
+        } catch (final ExecutionException details) {
+            final Throwable cause = details.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Stops the threads that large resizes are split across, letting resizes that are running finish; a resize after
+     * this starts them again. It's called when the web application stops, so its threads don't outlive it.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+
+                private final AtomicInteger myCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable aRunnable) {
+                    final Thread thread = new Thread(aRunnable, "resampler-" + myCount.incrementAndGet());
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    private static byte clamp(final float aValue) {
+        final int value = (int) (aValue + 0.5f);
+
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+
+    private static double lanczos(final double aX) {
+        if (aX == 0d) {
+            return 1d;
+        }
+
+        if (aX <= -LOBES || aX >= LOBES) {
+            return 0d;
+        }
+
+        final double x = Math.PI * aX;
+
+        return LOBES * Math.sin(x) * Math.sin(x / LOBES) / (x * x);
+    }
+
+    private static BufferedImage toSupportedType(final BufferedImage aImage) {
+        if (getBands(aImage.getType()) != 0) {
+            return aImage;
+        }
+
+        final boolean alpha = aImage.getColorModel().hasAlpha();
+        final boolean grey = !alpha && (aImage.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY ||
+                aImage.getType() == BufferedImage.TYPE_BYTE_BINARY && aImage.getColorModel().getPixelSize() == 1);
+        final int type;
+
+        // Black and white, and deeper greyscale, images are resampled as 8-bit greyscale rather than as color
+        if (grey) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else {
+            type = alpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+        }
+
+        final BufferedImage image = new BufferedImage(aImage.getWidth(), aImage.getHeight(), type);
+        final Graphics2D graphics = image.createGraphics();
+
+        graphics.drawImage(aImage, 0, 0, null);
+        graphics.dispose();
+
+        return image;
+    }
+
+    private static int getBands(final int aType) {
+        switch (aType) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return 1;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+                return 3;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Gets an image's samples, interleaved a byte per band. Integer pixels are unpacked in the order of their bytes;
+     * the order doesn't matter as long as they're packed again the same way.
+     */
+    private static byte[] getSamples(final BufferedImage aImage, final int aBands, final RasterPool aPool) {
+        final int width = aImage.getWidth();
+        final int height = aImage.getHeight();
+        final int count = width * height;
+        final WritableRaster raster = aImage.getRaster();
+
+        if (raster.getTransferType() == DataBuffer.TYPE_BYTE) {
+            return (byte[]) raster.getDataElements(0, 0, width, height, aPool.getBytes(count * aBands));
+        }
+
+        final int[] pixels = (int[]) raster.getDataElements(0, 0, width, height, aPool.getInts(count));
+        final byte[] samples = aPool.getBytes(count * aBands);
+
+        for (int index = 0, offset = 0; index < count; index++) {
+            final int pixel = pixels[index];
+
+            for (int band = aBands - 1; band >= 0; band--) {
+                samples[offset++] = (byte) (pixel >>> (band << 3));
+            }
+        }
+
+        aPool.release(pixels);
+        return samples;
+    }
+
+    private static BufferedImage toImage(final byte[] aSamples, final int aWidth, final int aHeight,
+            final int aBands, final int aType, final RasterPool aPool) {
+        final BufferedImage image = aPool.createImage(aWidth, aHeight, aType);
+
+        if (aType == BufferedImage.TYPE_INT_RGB || aType == BufferedImage.TYPE_INT_BGR ||
+                aType == BufferedImage.TYPE_INT_ARGB) {
+            final int count = aWidth * aHeight;
+            final int[] pixels = aPool.getInts(count);
+
+            for (int index = 0, offset = 0; index < count; index++) {
+                int pixel = 0;
+
+                for (int band = 0; band < aBands; band++) {
+                    pixel = pixel << 8 | aSamples[offset++] & 0xff;
+                }
+
+                pixels[index] = pixel;
+            }
+
+            image.getRaster().setDataElements(0, 0, aWidth, aHeight, pixels);
+            aPool.release(pixels);
+        } else {
+            image.getRaster().setDataElements(0, 0, aWidth, aHeight, aSamples);
+        }
+
+        return image;
+    }
+
+    /**
+     * Filters a range of the rows of a pass.
+     */
+    private interface Band {
+
+        void filter(int aFirstRow, int aEndRow);
+    }
+
+    /**
+     * The source samples, and their weights, that go into each sample of a resized row or column.
+     */
+    private static final class Contributions {
+
+        private final int[] myFirsts;
+
+        private final int[] myCounts;
+
+        private final float[] myWeights;
+
+        private final int myStride;
+
+        private Contributions(final int aSize, final int aNewSize) {
+            final double scale = (double) aNewSize / aSize;
+            // When shrinking, the filter is stretched to cover every source sample
+            final double filterScale = Math.min(scale, 1d);
+            final double support = LOBES / filterScale;
+
+            myStride = (int) Math.ceil(support) * 2 + 1;
+            myFirsts = new int[aNewSize];
+            myCounts = new int[aNewSize];
+            myWeights = new float[aNewSize * myStride];
+
+            for (int index = 0; index < aNewSize; index++) {
+                final double center = (index + 0.5d) / scale - 0.5d;
+                final int first = Math.max(0, (int) Math.ceil(center - support));
+                final int last = Math.min(aSize - 1, (int) Math.floor(center + support));
+                final int count = Math.min(myStride, last - first + 1);
+                double total = 0d;
+
+                for (int offset = 0; offset < count; offset++) {
+                    final double weight = lanczos((first + offset - center) * filterScale);
+
+                    myWeights[index * myStride + offset] = (float) weight;
+                    total += weight;
+                }
+
+                // Samples past the edges are dropped, so the weights of the ones left are made to add up to one
+                if (total != 0d) {
+                    for (int offset = 0; offset < count; offset++) {
+                        myWeights[index * myStride + offset] /= total;
+                    }
+                }
+
+                myFirsts[index] = first;
+                myCounts[index] = count;
+            }
+        }
+    }
+}
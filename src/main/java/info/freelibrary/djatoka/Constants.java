@@ -21,6 +21,46 @@ public interface Constants {
 
     public static final String VIEW_CACHE_DIR = "djatoka.view.cache.dir";
 
+    /**
+     * key for the number of ready-to-send image information responses kept in memory; zero stops them being kept
+     */
+    public static final String INFO_CACHE_SIZE = "djatoka.info.cache.size";
+
+    /**
+     * key for whether gzipped copies of image information responses are kept too
+     */
+    public static final String INFO_CACHE_GZIP = "djatoka.info.cache.gzip";
+
+    /**
+     * key for whether the tile cache keeps each image's tiles in a single pack file instead of a file per tile
+     */
+    public static final String VIEW_CACHE_PACKED = "djatoka.view.cache.packed";
+
+    /**
+     * key for the class of the store the tile cache keeps rendered tiles in
+     */
+    public static final String VIEW_CACHE_STORE = "djatoka.view.cache.store";
+
+    /**
+     * key for the most bytes of tiles a tile store keeps before dropping the least recently used
+     */
+    public static final String VIEW_CACHE_SIZE = "djatoka.view.cache.size";
+
+    /**
+     * key for the names of a tiered tile store's tiers, fastest first
+     */
+    public static final String VIEW_CACHE_TIERS = "djatoka.view.cache.tiers";
+
+    /**
+     * prefix of the keys that configure a tier of a tiered tile store, as in djatoka.view.cache.tier.ram.size
+     */
+    public static final String VIEW_CACHE_TIER = "djatoka.view.cache.tier.";
+
+    /**
+     * key for whether IIIF image requests that aren't in canonical form are redirected to the canonical URL
+     */
+    public static final String VIEW_CANONICAL_REDIRECT = "djatoka.view.canonical.redirect";
+
     public static final String INTERNAL_SERVER = "djatoka.server.internal";
 
     /**
@@ -28,11 +68,179 @@ public interface Constants {
      */
     public static final String INGEST_VALIDATIONS = "djatoka.ingest.id.validations";
 
+    /**
+     * key for the number of raw request identifiers whose extracted (or rejected) IDs are remembered
+     */
+    public static final String ID_CACHE_SIZE = "djatoka.ingest.id.cache.size";
+
     /**
      * key for 1 or more (space separated) format patterns into which to inject a de-url-encoded identifier to fetch a JP2 image
      */
     public static final String INGEST_HOSTS = "djatoka.ingest.id.hosts";
 
+    /**
+     * key for the number of seconds a request will wait on another request's fetch of the same remote image
+     */
+    public static final String REMOTE_FETCH_TIMEOUT = "djatoka.ingest.remote.timeout";
+
+    /**
+     * key for the number of milliseconds an identifier that isn't in the JP2 cache is remembered as missing
+     */
+    public static final String JP2_INDEX_MISS_TTL = "djatoka.ingest.index.miss.ttl";
+
+    /**
+     * key for the maximum number of identifiers kept in the in-memory JP2 index
+     */
+    public static final String JP2_INDEX_SIZE = "djatoka.ingest.index.size";
+
+    /**
+     * key for the maximum number of Pairtree object directories the JP2 index watches at once
+     */
+    public static final String JP2_INDEX_WATCHES = "djatoka.ingest.index.watches";
+
+    /**
+     * key for the number of threads interactive renders (tiles and thumbnails) are run on when requests are handled
+     * asynchronously
+     */
+    public static final String RENDER_THREADS = "djatoka.render.threads";
+
+    /**
+     * key for the number of threads bulk renders (full images and big regions) are run on when requests are handled
+     * asynchronously
+     */
+    public static final String RENDER_BULK_THREADS = "djatoka.render.bulk.threads";
+
+    /**
+     * key for the number of interactive renders that can wait for a thread before more are answered with a 503
+     */
+    public static final String RENDER_QUEUE_SIZE = "djatoka.render.queue.size";
+
+    /**
+     * key for the number of bulk renders that can wait for a thread before more are answered with a 503
+     */
+    public static final String RENDER_BULK_QUEUE_SIZE = "djatoka.render.bulk.queue.size";
+
+    /**
+     * key for the largest number of pixels a render can produce and still be treated as interactive
+     */
+    public static final String RENDER_INTERACTIVE_MAX_PIXELS = "djatoka.render.interactive.max.pixels";
+
+    /**
+     * key for whether uncached renders are run on virtual threads, when the JVM has them, instead of a fixed pool
+     */
+    public static final String RENDER_VIRTUAL_THREADS = "djatoka.render.virtual.threads";
+
+    /**
+     * key for the number of milliseconds an asynchronous render can take before its request is answered with a 503
+     */
+    public static final String RENDER_TIMEOUT = "djatoka.render.timeout";
+
+    /**
+     * key for the most bytes of pixel arrays kept for reuse by later renders
+     */
+    public static final String RASTER_POOL_SIZE = "djatoka.raster.pool.size";
+
+    /**
+     * key for whether tiles a viewer is likely to ask for next are rendered into the tile cache while decoders are idle
+     */
+    public static final String PREFETCH_ENABLED = "djatoka.prefetch.enabled";
+
+    /**
+     * key for the maximum number of tiles prefetched for any one image
+     */
+    public static final String PREFETCH_IMAGE_BUDGET = "djatoka.prefetch.image.budget";
+
+    /**
+     * key for the number of levels, from the top, prefetched when an image's information is requested
+     */
+    public static final String PREFETCH_LEVELS = "djatoka.prefetch.levels";
+
+    /**
+     * key for the number of tile predictions that can wait to be prefetched
+     */
+    public static final String PREFETCH_QUEUE_SIZE = "djatoka.prefetch.queue.size";
+
+    /**
+     * key for the width and height, in tiles, of the aligned blocks that prefetching decodes at once
+     */
+    public static final String PREFETCH_BLOCK_SIZE = "djatoka.prefetch.block.size";
+
+    /**
+     * key for whether the tile cache is warmed at startup with the tiles that were asked for most before it
+     */
+    public static final String WARMUP_ENABLED = "djatoka.warmup.enabled";
+
+    /**
+     * key for the file the counts of the tiles asked for most are kept in
+     */
+    public static final String WARMUP_LOG = "djatoka.warmup.log";
+
+    /**
+     * key for the maximum number of tiles whose requests are counted
+     */
+    public static final String WARMUP_LOG_SIZE = "djatoka.warmup.log.size";
+
+    /**
+     * key for the milliseconds between saves of the counts of the tiles asked for most
+     */
+    public static final String WARMUP_LOG_INTERVAL = "djatoka.warmup.log.interval";
+
+    /**
+     * key for the maximum number of the most popular tiles the tile cache is warmed with
+     */
+    public static final String WARMUP_COUNT = "djatoka.warmup.count";
+
+    /**
+     * key for the milliseconds to wait after startup before warming the tile cache
+     */
+    public static final String WARMUP_DELAY = "djatoka.warmup.delay";
+
+    /**
+     * key for the maximum milliseconds spent warming the tile cache
+     */
+    public static final String WARMUP_TIME = "djatoka.warmup.time";
+
+    /**
+     * key for the share of its time, from 0 to 1, that warming the tile cache spends rendering
+     */
+    public static final String WARMUP_CPU = "djatoka.warmup.cpu";
+
+    /**
+     * key for the base URLs (space separated) of the cluster's nodes, which share out images between them
+     */
+    public static final String CLUSTER_PEERS = "djatoka.cluster.peers";
+
+    /**
+     * key for this node's own base URL, as it's given in the cluster's peers
+     */
+    public static final String CLUSTER_SELF = "djatoka.cluster.self";
+
+    /**
+     * key for whether requests for another node's images are passed to it by proxy or by redirect
+     */
+    public static final String CLUSTER_MODE = "djatoka.cluster.mode";
+
+    /**
+     * key for the number of points each node has on the cluster's hash ring
+     */
+    public static final String CLUSTER_POINTS = "djatoka.cluster.points";
+
+    /**
+     * key for the milliseconds to wait to connect to another node
+     */
+    public static final String CLUSTER_CONNECT_TIMEOUT = "djatoka.cluster.connect.timeout";
+
+    /**
+     * key for the milliseconds to wait for another node to answer a proxied request; it's never more than the render
+     * timeout
+     */
+    public static final String CLUSTER_READ_TIMEOUT = "djatoka.cluster.read.timeout";
+
+    /**
+     * key for the milliseconds a node that couldn't be reached is passed over before it's tried again
+     */
+    public static final String CLUSTER_RETRY = "djatoka.cluster.retry";
+
     /**
      * key for 1 or more (comma separated) file extensions that, if found by ingester, may be converted to JP2
      */
@@ -6,7 +6,10 @@ import gov.lanl.adore.djatoka.DjatokaEncodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.ICompress;
 import gov.lanl.adore.djatoka.kdu.KduCompressExe;
+import gov.lanl.adore.djatoka.openurl.IReferentResolver;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
 import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.view.IdentifierResolver;
 import info.freelibrary.util.*;
 import nu.xom.Builder;
 import nu.xom.Nodes;
@@ -318,7 +321,14 @@ public class IngestThread extends Thread implements Constants {
         File jp2PtFile = new File(ptDir, ptFileName);
 
         // Move the file into the Pairtree structure
-        aFile.renameTo(jp2PtFile);
+        if (aFile.renameTo(jp2PtFile)) {
+            final IReferentResolver resolver = ReferentManager.getResolver();
+
+            // Let the resolver's JP2 index know without waiting on the filesystem watcher
+            if (resolver instanceof IdentifierResolver) {
+                ((IdentifierResolver) resolver).imageIngested(aID, jp2PtFile);
+            }
+        }
 
         if (LOGGER.isDebugEnabled()) {
             LOGGER.info("INGEST_TO_CACHE", aID, jp2PtFile.getAbsolutePath());
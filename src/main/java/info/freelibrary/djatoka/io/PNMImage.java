@@ -27,8 +27,11 @@
 package info.freelibrary.djatoka.io;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
+import info.freelibrary.djatoka.util.RasterPool;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
@@ -62,7 +65,7 @@ public class PNMImage {
 
         try {
             /*
-             * Check for 'P5' or 'P6' magic number in file.
+             * Check for 'P4', 'P5' or 'P6' magic number in file.
              */
             int magic1 = stream.read();
             int magic2 = stream.read();
@@ -93,42 +96,33 @@ public class PNMImage {
 
             int nBytes = (maxValue < 256) ? 1 : 2;
 
+            /*
+             * Greyscale and bitmap images keep a single band, so they aren't scaled and encoded as three.
+             */
+            if (isGreyscale) {
+                m_image = readGreyscale(stream, width, height, maxValue, nBytes);
+                return;
+            } else if (isBitmap) {
+                m_image = readBitmap(stream, width, height);
+                return;
+            }
+
             /*
              * Read pixel values into image.
              */
-            m_image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            m_image = RasterPool.getInstance().createImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-            int nextByte = 0;
             for (int y = 0; y < height; y++) {
-                int bitMask = 0;
                 for (int x = 0; x < width; x++) {
                     int r, g, b, pixel;
                     if (nBytes == 1) {
-                        if (isBitmap) {
-                            /*
-                             * Extract pixel from next bit.
-                             */
-                            if (bitMask == 0) {
-                                nextByte = stream.read();
-                                bitMask = 128;
-                            }
-                            r = g = b = (((nextByte & bitMask) != 0) ? 0 : 255);
-                            bitMask >>= 1;
-                        } else if (isGreyscale) {
-                            r = g = b = stream.read();
-                        } else {
-                            r = stream.read();
-                            g = stream.read();
-                            b = stream.read();
-                        }
+                        r = stream.read();
+                        g = stream.read();
+                        b = stream.read();
                     } else {
-                        if (isGreyscale) {
-                            r = g = b = stream.readShort();
-                        } else {
-                            r = stream.readShort();
-                            g = stream.readShort();
-                            b = stream.readShort();
-                        }
+                        r = stream.readShort();
+                        g = stream.readShort();
+                        b = stream.readShort();
                     }
                     pixel = (r << 16) | (g << 8) | b;
                     m_image.setRGB(x, y, pixel);
@@ -142,6 +136,65 @@ public class PNMImage {
         }
     }
 
+    /**
+     * Read greyscale pixels into an 8-bit greyscale image, scaling samples with a larger maximum value down to it.
+     * 
+     * @param stream stream to read from.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param maxValue largest sample value.
+     * @param nBytes bytes in each sample.
+     * @return image.
+     */
+    private BufferedImage readGreyscale(DataInputStream stream, int width, int height, int maxValue, int nBytes)
+            throws IOException {
+        BufferedImage image = RasterPool.getInstance().createImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = image.getRaster();
+        byte[] row = new byte[width * nBytes];
+        byte[] samples = new byte[width];
+
+        for (int y = 0; y < height; y++) {
+            stream.readFully(row);
+
+            if (nBytes == 1 && maxValue == 255) {
+                raster.setDataElements(0, y, width, 1, row);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int value = nBytes == 1 ? row[x] & 0xff : (row[x * 2] & 0xff) << 8 | row[x * 2 + 1] & 0xff;
+                    samples[x] = (byte) ((value * 255 + maxValue / 2) / maxValue);
+                }
+
+                raster.setDataElements(0, y, width, 1, samples);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Read bitmap pixels into a 1-bit image. Netpbm uses 1 for black, which is 0 in the image's palette.
+     * 
+     * @param stream stream to read from.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return image.
+     */
+    private BufferedImage readBitmap(DataInputStream stream, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = image.getRaster();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = (width + 7) / 8;
+
+        // Rows are padded to whole bytes, just as the image's own rows are
+        stream.readFully(data, 0, stride * height);
+
+        for (int index = 0; index < data.length; index++) {
+            data[index] = (byte) ~data[index];
+        }
+
+        return image;
+    }
+
     /**
      * Read decimal number from stream.
      * 
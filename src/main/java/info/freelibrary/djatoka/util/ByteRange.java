@@ -0,0 +1,112 @@
+
+package info.freelibrary.djatoka.util;
+
+/**
+ * A single byte range from an HTTP <code>Range</code> header, resolved against the length of what's being sent.
+ * Only single ranges are supported; a request for several ranges is answered with the whole thing, which HTTP allows.
+ */
+public class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long myStart;
+
+    private final long myEnd;
+
+    private final long myLength;
+
+    private ByteRange(final long aStart, final long aEnd, final long aLength) {
+        myStart = aStart;
+        myEnd = aEnd;
+        myLength = aLength;
+    }
+
+    /**
+     * Parses a <code>Range</code> header.
+     *
+     * @param aHeader The value of the request's <code>Range</code> header, or null if it didn't have one
+     * @param aLength The length of what's being sent
+     * @return The requested range, or null if the whole thing should be sent
+     */
+    public static ByteRange parse(final String aHeader, final long aLength) {
+        if (aHeader == null || !aHeader.startsWith(BYTES_UNIT) || aHeader.indexOf(',') != -1) {
+            return null;
+        }
+
+        final String spec = aHeader.substring(BYTES_UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+
+        if (dash == -1) {
+            return null;
+        }
+
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+
+            // A suffix range: the last n bytes
+            if (first.isEmpty()) {
+                final long suffix = Long.parseLong(last);
+
+                return suffix <= 0 ? new ByteRange(0, -1, aLength) : new ByteRange(Math.max(0, aLength - suffix),
+                        aLength - 1, aLength);
+            }
+
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? aLength - 1 : Math.min(Long.parseLong(last), aLength - 1);
+
+            if (start < 0 || !last.isEmpty() && Long.parseLong(last) < start) {
+                return null;
+            }
+
+            return new ByteRange(start, end, aLength);
+        } catch (final NumberFormatException details) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether any of the range lies within what's being sent; if not, the response is a <code>416</code>.
+     *
+     * @return True if the range can be sent; else, false
+     */
+    public boolean isSatisfiable() {
+        return myStart < myLength && myStart <= myEnd;
+    }
+
+    /**
+     * Gets the offset of the first byte in the range.
+     *
+     * @return The offset of the first byte in the range
+     */
+    public long getStart() {
+        return myStart;
+    }
+
+    /**
+     * Gets the offset of the last byte in the range.
+     *
+     * @return The offset of the last byte in the range
+     */
+    public long getEnd() {
+        return myEnd;
+    }
+
+    /**
+     * Gets the number of bytes in the range.
+     *
+     * @return The number of bytes in the range
+     */
+    public long getLength() {
+        return isSatisfiable() ? myEnd - myStart + 1 : 0;
+    }
+
+    /**
+     * Gets the value of the <code>Content-Range</code> header of the response.
+     *
+     * @return The value of the <code>Content-Range</code> header
+     */
+    public String getContentRange() {
+        return isSatisfiable() ? "bytes " + myStart + "-" + myEnd + "/" + myLength : "bytes */" + myLength;
+    }
+}
@@ -22,6 +22,39 @@ public class CacheUtils {
      */
     public static final String getFileName(final String aLevel, final String aRegion, final String aScale,
             final float aRotation) {
+        return getFileName(aLevel, aRegion, aScale, aRotation, null);
+    }
+
+    /**
+     * Return a file name for the cached file based on its characteristics and the version of the transform (e.g., a
+     * watermark) applied to it, so files made with an older version of the transform aren't found.
+     * 
+     * @param aLevel A level to be cached
+     * @param aRegion A region to be cached
+     * @param aScale A scale to be cached
+     * @param aRotation A rotation to be cached
+     * @param aTransformVersion The version of the transform applied to the file, or null if there isn't one
+     * @return The file name for the cached file
+     */
+    public static final String getFileName(final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aTransformVersion) {
+        return getFileName(aLevel, aRegion, aScale, aRotation, null, aTransformVersion);
+    }
+
+    /**
+     * Return a file name for the cached file based on its characteristics, including the quality (e.g., grey) it was
+     * converted to, and the version of the transform applied to it.
+     * 
+     * @param aLevel A level to be cached
+     * @param aRegion A region to be cached
+     * @param aScale A scale to be cached
+     * @param aRotation A rotation to be cached
+     * @param aQuality The quality the file was converted to, or null if it keeps the image's own colors
+     * @param aTransformVersion The version of the transform applied to the file, or null if there isn't one
+     * @return The file name for the cached file
+     */
+    public static final String getFileName(final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aQuality, final String aTransformVersion) {
         final StringBuilder cfName = new StringBuilder("image_");
         final String region = isEmpty(aRegion) ? "full" : aRegion.replace(',', '-');
 
@@ -48,6 +81,14 @@ public class CacheUtils {
             cfName.append('_').append((int) aRotation); // djatoka expects int
         }
 
+        if (!isEmpty(aQuality)) {
+            cfName.append('_').append(aQuality);
+        }
+
+        if (!isEmpty(aTransformVersion)) {
+            cfName.append("_t").append(aTransformVersion);
+        }
+
         return cfName.append(".jpg").toString();
     }
 
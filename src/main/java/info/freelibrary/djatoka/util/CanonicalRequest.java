@@ -0,0 +1,341 @@
+
+package info.freelibrary.djatoka.util;
+
+import gov.lanl.adore.djatoka.util.JP2HeaderScanner;
+import info.freelibrary.djatoka.iiif.Region;
+import info.freelibrary.djatoka.iiif.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A request for part of an image, resolved against the image's real dimensions into the one form that every
+ * request for the same pixels shares. A region that covers the whole image becomes <code>full</code>, a region that
+ * runs off the image is clipped to it, and a size becomes the width of the output, or <code>full</code> when the
+ * region isn't scaled; so <code>full</code> and <code>0,0,w,h</code>, or <code>pct:100</code>, <code>full</code> and
+ * <code>w,h</code>, are looked up in the cache under the same name.
+ * <p>
+ * The renderer scales an image to fit the requested dimensions without distorting it, so a width and height that
+ * don't match the region's aspect ratio are resolved to the size that's actually rendered.
+ * </p>
+ */
+public final class CanonicalRequest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CanonicalRequest.class);
+
+    private static final String FULL = "full";
+
+    private static final int MAX_SIZES = 1024;
+
+    private static final Map<String, long[]> SIZES = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 3311460270549731284L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, long[]> aEldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    private final boolean myRegionIsFull;
+
+    private final int myX;
+
+    private final int myY;
+
+    private final int myWidth;
+
+    private final int myHeight;
+
+    private final int myOutputWidth;
+
+    private final int myOutputHeight;
+
+    private final int myRotation;
+
+    private CanonicalRequest(final int aImageWidth, final int aImageHeight, final int aX, final int aY,
+            final int aWidth, final int aHeight, final double aScale, final int aRotation) {
+        myX = aX;
+        myY = aY;
+        myWidth = Math.min(aWidth, aImageWidth - aX);
+        myHeight = Math.min(aHeight, aImageHeight - aY);
+        myRegionIsFull = myX == 0 && myY == 0 && myWidth == aImageWidth && myHeight == aImageHeight;
+
+        final int outputWidth = Math.max(1, (int) Math.round(myWidth * aScale));
+        final int outputHeight = Math.max(1, (int) Math.round(myHeight * aScale));
+
+        // An output the size of the region is the region unscaled
+        myOutputWidth = outputWidth == myWidth && outputHeight == myHeight ? -1 : outputWidth;
+        myOutputHeight = outputHeight;
+        myRotation = (aRotation % 360 + 360) % 360;
+    }
+
+    /**
+     * Resolves a IIIF image request against the dimensions of the image it's for.
+     *
+     * @param aRegion The requested region
+     * @param aSize The requested size
+     * @param aRotation The requested rotation
+     * @param aImageWidth The width of the image
+     * @param aImageHeight The height of the image
+     * @return The canonical form of the request, or null if it can't be resolved (and should be handled as it is)
+     */
+    public static CanonicalRequest fromIIIF(final Region aRegion, final Size aSize, final float aRotation,
+            final int aImageWidth, final int aImageHeight) {
+        final int x, y, width, height;
+        final double scale;
+
+        if (aImageWidth <= 0 || aImageHeight <= 0 || aRotation != (int) aRotation) {
+            return null;
+        }
+
+        if (aRegion.isFullSize()) {
+            x = 0;
+            y = 0;
+            width = aImageWidth;
+            height = aImageHeight;
+        } else if (aRegion.usesPercents()) {
+            x = (int) Math.round(aImageWidth * aRegion.getX() / 100d);
+            y = (int) Math.round(aImageHeight * aRegion.getY() / 100d);
+            width = (int) Math.round(aImageWidth * aRegion.getWidth() / 100d);
+            height = (int) Math.round(aImageHeight * aRegion.getHeight() / 100d);
+        } else {
+            x = aRegion.getX();
+            y = aRegion.getY();
+            width = aRegion.getWidth();
+            height = aRegion.getHeight();
+        }
+
+        if (x >= aImageWidth || y >= aImageHeight || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final int regionWidth = Math.min(width, aImageWidth - x);
+        final int regionHeight = Math.min(height, aImageHeight - y);
+
+        if (aSize.isFullSize()) {
+            scale = 1d;
+        } else if (aSize.isPercent()) {
+            scale = aSize.getPercent() / 100d;
+        } else if (aSize.hasWidth() && aSize.hasHeight()) {
+            scale = Math.min((double) aSize.getWidth() / regionWidth, (double) aSize.getHeight() / regionHeight);
+        } else if (aSize.hasWidth()) {
+            scale = (double) aSize.getWidth() / regionWidth;
+        } else {
+            scale = (double) aSize.getHeight() / regionHeight;
+        }
+
+        if (scale <= 0d) {
+            return null;
+        }
+
+        return new CanonicalRequest(aImageWidth, aImageHeight, x, y, width, height, scale, (int) aRotation);
+    }
+
+    /**
+     * Resolves an OpenURL region request against the dimensions of the image it's for. Requests for a particular
+     * level aren't resolved, since their regions are measured against the level rather than the image.
+     *
+     * @param aRegion The requested region, as <code>top,left,height,width</code> in pixels or fractions of the image,
+     *        or null for the whole image
+     * @param aScalingFactor The requested scaling factor
+     * @param aScalingDims The requested dimensions, or null if there aren't any
+     * @param aRotation The requested rotation
+     * @param aImageWidth The width of the image
+     * @param aImageHeight The height of the image
+     * @return The canonical form of the request, or null if it can't be resolved (and should be handled as it is)
+     */
+    public static CanonicalRequest fromDjatoka(final String aRegion, final double aScalingFactor,
+            final int[] aScalingDims, final int aRotation, final int aImageWidth, final int aImageHeight) {
+        final int x, y, width, height;
+        double scale = 1d;
+
+        if (aImageWidth <= 0 || aImageHeight <= 0) {
+            return null;
+        }
+
+        if (aRegion == null || aRegion.isEmpty()) {
+            x = 0;
+            y = 0;
+            width = aImageWidth;
+            height = aImageHeight;
+        } else {
+            final StringTokenizer tokenizer = new StringTokenizer(aRegion, "{},");
+
+            if (tokenizer.countTokens() != 4) {
+                return null;
+            }
+
+            try {
+                y = toPixels(tokenizer.nextToken(), aImageHeight);
+                x = toPixels(tokenizer.nextToken(), aImageWidth);
+                height = toPixels(tokenizer.nextToken(), aImageHeight);
+                width = toPixels(tokenizer.nextToken(), aImageWidth);
+            } catch (final NumberFormatException details) {
+                return null;
+            }
+        }
+
+        if (x < 0 || y < 0 || x >= aImageWidth || y >= aImageHeight || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final int regionWidth = Math.min(width, aImageWidth - x);
+        final int regionHeight = Math.min(height, aImageHeight - y);
+
+        // Mirrors how the extraction processor applies a scaling factor or dimensions
+        if (aScalingFactor != 1d && aScalingFactor > 0d && aScalingFactor < 3d) {
+            scale = aScalingFactor;
+        } else if (aScalingDims != null && aScalingDims.length == 2) {
+            int scaleWidth = aScalingDims[0];
+            int scaleHeight = aScalingDims[1];
+
+            // A -1 means the other value is for the long side
+            if (scaleWidth == -1 || scaleHeight == -1) {
+                final int longSide = Math.max(scaleWidth, scaleHeight);
+
+                scaleWidth = regionWidth > regionHeight ? longSide : 0;
+                scaleHeight = regionWidth > regionHeight ? 0 : longSide;
+            }
+
+            if (scaleWidth > 0 && scaleHeight > 0) {
+                scale = Math.min((double) scaleWidth / regionWidth, (double) scaleHeight / regionHeight);
+            } else if (scaleWidth > 0) {
+                scale = (double) scaleWidth / regionWidth;
+            } else if (scaleHeight > 0) {
+                scale = (double) scaleHeight / regionHeight;
+            }
+        }
+
+        return new CanonicalRequest(aImageWidth, aImageHeight, x, y, width, height, scale, aRotation);
+    }
+
+    /**
+     * Gets the width and height of a JP2 from its header. They're remembered, for as long as the JP2 doesn't change,
+     * so a request can be resolved without reading the header each time.
+     *
+     * @param aJP2 A JP2 file
+     * @return The width and height of the JP2, or null if its header can't be read
+     */
+    public static int[] getImageSize(final File aJP2) {
+        final String path = aJP2.getAbsolutePath();
+        final long lastModified = aJP2.lastModified();
+        final long length = aJP2.length();
+        long[] size;
+
+        synchronized (SIZES) {
+            size = SIZES.get(path);
+        }
+
+        if (size == null || size[0] != lastModified || size[1] != length) {
+            if (lastModified == 0L) {
+                return null;
+            }
+
+            try {
+                final JP2HeaderScanner scanner = new JP2HeaderScanner(aJP2, false);
+
+                size = new long[] { lastModified, length, scanner.getWidth(), scanner.getHeight() };
+            } catch (final IOException details) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Unable to read the dimensions of {}: {}", aJP2, details.getMessage());
+                }
+
+                return null;
+            }
+
+            synchronized (SIZES) {
+                SIZES.put(path, size);
+            }
+        }
+
+        return new int[] { (int) size[2], (int) size[3] };
+    }
+
+    /**
+     * Gets the region, in the <code>top,left,height,width</code> order the renderer takes.
+     *
+     * @return The region, or an empty string if it's the whole image
+     */
+    public String getRegion() {
+        return myRegionIsFull ? "" : myY + "," + myX + "," + myHeight + "," + myWidth;
+    }
+
+    /**
+     * Gets the scale, in the form the renderer takes.
+     *
+     * @return The width of the output, as <code>w,0</code>, or <code>full</code> if the region isn't scaled
+     */
+    public String getScale() {
+        return myOutputWidth == -1 ? FULL : myOutputWidth + ",0";
+    }
+
+    /**
+     * Gets the dimensions of the output, in the form the renderer takes.
+     *
+     * @return The width of the output, with a height of 0, or null if the region isn't scaled
+     */
+    public int[] getScalingDimensions() {
+        return myOutputWidth == -1 ? null : new int[] { myOutputWidth, 0 };
+    }
+
+    /**
+     * Gets the size of the region.
+     *
+     * @return The width and height of the region, clipped to the image
+     */
+    public int[] getRegionSize() {
+        return new int[] { myWidth, myHeight };
+    }
+
+    /**
+     * Gets the size of the output, before it's rotated.
+     *
+     * @return The width and height of the output
+     */
+    public int[] getOutputSize() {
+        return myOutputWidth == -1 ? getRegionSize() : new int[] { myOutputWidth, myOutputHeight };
+    }
+
+    /**
+     * Gets the rotation, between 0 and 359 degrees.
+     *
+     * @return The rotation
+     */
+    public int getRotation() {
+        return myRotation;
+    }
+
+    /**
+     * Gets the canonical IIIF region.
+     *
+     * @return The region, as <code>x,y,w,h</code>, or <code>full</code> if it's the whole image
+     */
+    public String getIIIFRegion() {
+        return myRegionIsFull ? FULL : myX + "," + myY + "," + myWidth + "," + myHeight;
+    }
+
+    /**
+     * Gets the canonical IIIF size.
+     *
+     * @return The size, as <code>w,</code>, or <code>full</code> if the region isn't scaled
+     */
+    public String getIIIFSize() {
+        return myOutputWidth == -1 ? FULL : myOutputWidth + ",";
+    }
+
+    private static int toPixels(final String aValue, final int aImageSize) {
+        // Values with a decimal point are fractions of the image
+        if (aValue.indexOf('.') != -1) {
+            return (int) Math.round(Double.parseDouble(aValue) * aImageSize);
+        }
+
+        return Integer.parseInt(aValue.trim());
+    }
+}
@@ -0,0 +1,120 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that maps keys, like image identifiers, onto a fixed set of nodes. Each node is placed on the
+ * ring at a number of points so keys are spread evenly, and a key belongs to the node at the first point at or after
+ * its own hash. Adding or removing a node only moves the keys that node gains or loses; the rest stay put.
+ */
+public class HashRing {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Long, String> myRing = new TreeMap<Long, String>();
+
+    private final List<String> myNodes;
+
+    /**
+     * Creates a hash ring for the supplied nodes.
+     *
+     * @param aNodes The nodes on the ring
+     * @param aPoints The number of points each node has on the ring
+     */
+    public HashRing(final Collection<String> aNodes, final int aPoints) {
+        if (aPoints < 1) {
+            throw new IllegalArgumentException("Each node needs at least one point on the ring: " + aPoints);
+        }
+
+        myNodes = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(aNodes)));
+
+        for (final String node : myNodes) {
+            for (int index = 0; index < aPoints; index++) {
+                myRing.put(hash(node + '#' + index), node);
+            }
+        }
+    }
+
+    /**
+     * Gets the nodes on the ring.
+     *
+     * @return The nodes on the ring
+     */
+    public List<String> getNodes() {
+        return myNodes;
+    }
+
+    /**
+     * Gets the node that owns the supplied key.
+     *
+     * @param aKey A key
+     * @return The node that owns the key, or null if the ring has no nodes
+     */
+    public String getNode(final String aKey) {
+        if (myRing.isEmpty()) {
+            return null;
+        }
+
+        final SortedMap<Long, String> tail = myRing.tailMap(hash(aKey));
+
+        return tail.isEmpty() ? myRing.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Gets all the nodes in the order they'd take over the supplied key: its owner first, then each node that would
+     * own it if those before it were gone.
+     *
+     * @param aKey A key
+     * @return The nodes, in ring order from the key's owner
+     */
+    public List<String> getNodes(final String aKey) {
+        final Set<String> nodes = new LinkedHashSet<String>();
+        final long hash = hash(aKey);
+
+        for (final Map.Entry<Long, String> entry : myRing.tailMap(hash).entrySet()) {
+            if (nodes.add(entry.getValue()) && nodes.size() == myNodes.size()) {
+                return new ArrayList<String>(nodes);
+            }
+        }
+
+        for (final Map.Entry<Long, String> entry : myRing.headMap(hash).entrySet()) {
+            if (nodes.add(entry.getValue()) && nodes.size() == myNodes.size()) {
+                break;
+            }
+        }
+
+        return new ArrayList<String>(nodes);
+    }
+
+    /**
+     * Gets a key's place on the ring from the first eight bytes of its MD5 digest.
+     */
+    private static long hash(final String aKey) {
+        final byte[] digest;
+        long hash = 0;
+
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(aKey.getBytes(UTF_8));
+        } catch (final NoSuchAlgorithmException details) {
+            throw new IllegalStateException(details);
+        }
+
+        for (int index = 0; index < 8; index++) {
+            hash = hash << 8 | digest[index] & 0xFF;
+        }
+
+        return hash;
+    }
+}
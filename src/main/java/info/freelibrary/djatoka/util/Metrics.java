@@ -0,0 +1,285 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small registry of timers, counters, and gauges for the stages of a tile request. Everything is lock-free on the
+ * recording side so it's cheap enough to leave on in production. The registry is published over JMX and is read by
+ * {@link MetricsServlet} for scraping.
+ */
+public final class Metrics {
+
+    /** The JMX name the metrics are published under */
+    public static final String OBJECT_NAME = "info.freelibrary.djatoka:type=Metrics";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<String, Timer>();
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<String, Counter>();
+
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+
+    static {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+
+            // A redeployed webapp leaves the old registration behind
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+
+            server.registerMBean(new MetricsMBean(), name);
+        } catch (final Exception details) {
+            LOGGER.warn("Unable to publish metrics over JMX: {}", details.getMessage());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets the timer with the supplied name, creating it if needed.
+     *
+     * @param aName A timer name, like "kdu_expand"
+     * @return The named timer
+     */
+    public static Timer timer(final String aName) {
+        Timer timer = TIMERS.get(aName);
+
+        if (timer == null) {
+            final Timer newTimer = new Timer();
+
+            timer = TIMERS.putIfAbsent(aName, newTimer);
+
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+
+        return timer;
+    }
+
+    /**
+     * Gets the counter with the supplied name, creating it if needed.
+     *
+     * @param aName A counter name, like "tile_cache_hits"
+     * @return The named counter
+     */
+    public static Counter counter(final String aName) {
+        Counter counter = COUNTERS.get(aName);
+
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+
+            counter = COUNTERS.putIfAbsent(aName, newCounter);
+
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Registers a gauge under the supplied name, replacing any gauge already registered with that name.
+     *
+     * @param aName A gauge name, like "kdu_expand_running"
+     * @param aGauge The gauge to read when metrics are reported
+     */
+    public static void gauge(final String aName, final Gauge aGauge) {
+        GAUGES.put(aName, aGauge);
+    }
+
+    /**
+     * Gets a sorted snapshot of the registered timers.
+     *
+     * @return The registered timers
+     */
+    public static SortedMap<String, Timer> getTimers() {
+        return new TreeMap<String, Timer>(TIMERS);
+    }
+
+    /**
+     * Gets a sorted snapshot of the registered counters.
+     *
+     * @return The registered counters
+     */
+    public static SortedMap<String, Counter> getCounters() {
+        return new TreeMap<String, Counter>(COUNTERS);
+    }
+
+    /**
+     * Gets a sorted snapshot of the current gauge values.
+     *
+     * @return The current gauge values
+     */
+    public static SortedMap<String, Long> getGauges() {
+        final SortedMap<String, Long> values = new TreeMap<String, Long>();
+
+        for (final Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().getValue());
+            } catch (final RuntimeException details) {
+                LOGGER.debug("Unable to read gauge {}: {}", entry.getKey(), details.getMessage());
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * A value that's read when metrics are reported, like a queue depth.
+     */
+    public interface Gauge {
+
+        /**
+         * Gets the current value of the gauge.
+         *
+         * @return The current value
+         */
+        long getValue();
+    }
+
+    /**
+     * A monotonically increasing count of events.
+     */
+    public static final class Counter {
+
+        private final AtomicLong myCount = new AtomicLong();
+
+        /**
+         * Adds one to the counter.
+         */
+        public void increment() {
+            myCount.incrementAndGet();
+        }
+
+        /**
+         * Adds the supplied amount to the counter.
+         *
+         * @param aAmount The amount to add
+         */
+        public void add(final long aAmount) {
+            myCount.addAndGet(aAmount);
+        }
+
+        /**
+         * Gets the current count.
+         *
+         * @return The current count
+         */
+        public long getCount() {
+            return myCount.get();
+        }
+    }
+
+    /**
+     * Records durations into a count, a sum, a maximum, and a histogram with power-of-two microsecond buckets.
+     */
+    public static final class Timer {
+
+        /** The number of histogram buckets; the last one catches everything over about eight seconds */
+        public static final int BUCKET_COUNT = 25;
+
+        private final AtomicLong myCount = new AtomicLong();
+
+        private final AtomicLong myTotalNanos = new AtomicLong();
+
+        private final AtomicLong myMaxNanos = new AtomicLong();
+
+        private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        /**
+         * Records the time since the supplied start, which should come from <code>System.nanoTime()</code>.
+         *
+         * @param aStartNanos The start time in nanoseconds
+         */
+        public void stop(final long aStartNanos) {
+            update(System.nanoTime() - aStartNanos);
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param aNanos A duration in nanoseconds
+         */
+        public void update(final long aNanos) {
+            final long nanos = Math.max(0, aNanos);
+            final long micros = nanos / 1000;
+            long max;
+
+            myCount.incrementAndGet();
+            myTotalNanos.addAndGet(nanos);
+            myBuckets.incrementAndGet(Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros)));
+
+            do {
+                max = myMaxNanos.get();
+            } while (nanos > max && !myMaxNanos.compareAndSet(max, nanos));
+        }
+
+        /**
+         * Gets the number of recorded durations.
+         *
+         * @return The number of recorded durations
+         */
+        public long getCount() {
+            return myCount.get();
+        }
+
+        /**
+         * Gets the sum of the recorded durations.
+         *
+         * @return The sum of the recorded durations in nanoseconds
+         */
+        public long getTotalNanos() {
+            return myTotalNanos.get();
+        }
+
+        /**
+         * Gets the longest recorded duration.
+         *
+         * @return The longest recorded duration in nanoseconds
+         */
+        public long getMaxNanos() {
+            return myMaxNanos.get();
+        }
+
+        /**
+         * Gets the number of durations in the supplied histogram bucket. Bucket <code>i</code> holds durations shorter
+         * than <code>2^i</code> microseconds that didn't fit in an earlier bucket.
+         *
+         * @param aBucket A bucket index
+         * @return The number of durations in that bucket
+         */
+        public long getBucketCount(final int aBucket) {
+            return myBuckets.get(aBucket);
+        }
+
+        /**
+         * Gets the upper bound of the supplied histogram bucket.
+         *
+         * @param aBucket A bucket index
+         * @return The bucket's upper bound in microseconds, or <code>Long.MAX_VALUE</code> for the last bucket
+         */
+        public static long getBucketBound(final int aBucket) {
+            return aBucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << aBucket;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the {@link Metrics} registry as read-only JMX attributes. Timers show up as <code>name.count</code>,
+ * <code>name.totalMillis</code>, <code>name.meanMillis</code>, and <code>name.maxMillis</code>; counters and gauges
+ * show up under their own names.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final String COUNT = ".count";
+
+    private static final String TOTAL = ".totalMillis";
+
+    private static final String MEAN = ".meanMillis";
+
+    private static final String MAX = ".maxMillis";
+
+    @Override
+    public Object getAttribute(final String aName) throws AttributeNotFoundException {
+        final Map<String, Long> gauges = Metrics.getGauges();
+
+        if (gauges.containsKey(aName)) {
+            return gauges.get(aName);
+        }
+
+        final Metrics.Counter counter = Metrics.getCounters().get(aName);
+
+        if (counter != null) {
+            return counter.getCount();
+        }
+
+        final int index = aName.lastIndexOf('.');
+
+        if (index != -1) {
+            final Metrics.Timer timer = Metrics.getTimers().get(aName.substring(0, index));
+            final String suffix = aName.substring(index);
+
+            if (timer != null) {
+                if (COUNT.equals(suffix)) {
+                    return timer.getCount();
+                } else if (TOTAL.equals(suffix)) {
+                    return timer.getTotalNanos() / 1000000d;
+                } else if (MAX.equals(suffix)) {
+                    return timer.getMaxNanos() / 1000000d;
+                } else if (MEAN.equals(suffix)) {
+                    final long count = timer.getCount();
+                    return count == 0 ? 0d : timer.getTotalNanos() / 1000000d / count;
+                }
+            }
+        }
+
+        throw new AttributeNotFoundException(aName);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] aNames) {
+        final AttributeList list = new AttributeList();
+
+        for (final String name : aNames) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (final AttributeNotFoundException details) {
+                // Missing attributes are just left out of the list
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+        for (final String name : Metrics.getTimers().keySet()) {
+            attributes.add(newAttribute(name + COUNT, "long", "Number of timed " + name + " calls"));
+            attributes.add(newAttribute(name + TOTAL, "double", "Total milliseconds spent in " + name));
+            attributes.add(newAttribute(name + MEAN, "double", "Mean milliseconds spent in " + name));
+            attributes.add(newAttribute(name + MAX, "double", "Longest milliseconds spent in " + name));
+        }
+
+        for (final String name : Metrics.getCounters().keySet()) {
+            attributes.add(newAttribute(name, "long", "Count of " + name));
+        }
+
+        for (final String name : Metrics.getGauges().keySet()) {
+            attributes.add(newAttribute(name, "long", "Current " + name));
+        }
+
+        return new MBeanInfo(getClass().getName(), "Djatoka request stage metrics", attributes
+                .toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object invoke(final String aAction, final Object[] aParams, final String[] aSignature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(aAction));
+    }
+
+    @Override
+    public void setAttribute(final Attribute aAttribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + aAttribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList aAttributes) {
+        return new AttributeList();
+    }
+
+    private static MBeanAttributeInfo newAttribute(final String aName, final String aType, final String aDescription) {
+        return new MBeanAttributeInfo(aName, aType, aDescription, true, false, false);
+    }
+}
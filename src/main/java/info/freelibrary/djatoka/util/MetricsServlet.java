@@ -0,0 +1,73 @@
+package info.freelibrary.djatoka.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the {@link Metrics} registry in the Prometheus text exposition format so it can be scraped. Timers are
+ * written as histograms in seconds, counters as counters, and gauges as gauges; every name gets a "djatoka_" prefix.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 6270911932712404178L;
+
+    private static final String PREFIX = "djatoka_";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+    @Override
+    protected void doGet(HttpServletRequest aRequest, HttpServletResponse aResponse) throws ServletException,
+            IOException {
+        aResponse.setContentType(CONTENT_TYPE);
+        aResponse.setHeader("Cache-Control", "no-cache");
+
+        final PrintWriter out = aResponse.getWriter();
+
+        for (final Map.Entry<String, Metrics.Timer> entry : Metrics.getTimers().entrySet()) {
+            writeTimer(out, PREFIX + entry.getKey() + "_seconds", entry.getValue());
+        }
+
+        for (final Map.Entry<String, Metrics.Counter> entry : Metrics.getCounters().entrySet()) {
+            final String name = PREFIX + entry.getKey() + "_total";
+
+            out.print("# TYPE " + name + " counter\n");
+            out.print(name + " " + entry.getValue().getCount() + "\n");
+        }
+
+        for (final Map.Entry<String, Long> entry : Metrics.getGauges().entrySet()) {
+            final String name = PREFIX + entry.getKey();
+
+            out.print("# TYPE " + name + " gauge\n");
+            out.print(name + " " + entry.getValue() + "\n");
+        }
+
+        out.close();
+    }
+
+    private void writeTimer(final PrintWriter aOut, final String aName, final Metrics.Timer aTimer) {
+        long cumulative = 0;
+
+        aOut.print("# TYPE " + aName + " histogram\n");
+
+        for (int index = 0; index < Metrics.Timer.BUCKET_COUNT; index++) {
+            final long bound = Metrics.Timer.getBucketBound(index);
+
+            cumulative += aTimer.getBucketCount(index);
+
+            if (bound == Long.MAX_VALUE) {
+                aOut.print(aName + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            } else {
+                aOut.print(aName + "_bucket{le=\"" + bound / 1000000d + "\"} " + cumulative + "\n");
+            }
+        }
+
+        aOut.print(aName + "_sum " + aTimer.getTotalNanos() / 1000000000d + "\n");
+        aOut.print(aName + "_count " + cumulative + "\n");
+    }
+}
@@ -0,0 +1,461 @@
+
+package info.freelibrary.djatoka.util;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.iiif.IIIFRequest;
+import info.freelibrary.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link javax.servlet.Filter} that sends each IIIF request to the node that owns its image, so that a cluster of
+ * nodes behind a plain load balancer renders and caches each image's tiles on just one of them. Owners are picked by
+ * consistently hashing image identifiers onto the static list of nodes in <code>djatoka.cluster.peers</code>; if an
+ * owner can't be reached, the next node in ring order takes over. A node that isn't the owner redirects the client to
+ * it or, with <code>djatoka.cluster.mode</code> set to <code>proxy</code>, passes the request on itself. Proxying
+ * holds one of the container's threads until the owner answers, for no longer than the render timeout, so it's best
+ * kept for clients that can't follow redirects.
+ * <p>
+ * It runs after the {@link info.freelibrary.djatoka.iiif.IIIFServletFilter}, whose parsed request it reads, and does
+ * nothing unless peers are configured. Every node needs the same peer list and its own base URL, which can be given
+ * as a <code>djatoka.cluster.self</code> system property so that several local instances can share one properties
+ * file. Base URLs are the scheme, host, and port; nodes are expected to share a context path.
+ * </p>
+ * <p>
+ * A proxied request keeps its <code>Referer</code>, and the node it's sent to takes the client's address from its
+ * <code>X-Forwarded-For</code> header when it comes from one of the peers, so transform plug-ins, like watermarks,
+ * see the same referrer and requester that they would if the client had asked the owner itself.
+ * </p>
+ */
+public class NodeAffinityFilter implements Filter, Constants {
+
+    /**
+     * The header a proxied request carries, so that the node it's sent to serves it instead of sending it on again.
+     */
+    public static final String FORWARDED_HEADER = "X-Djatoka-Forwarded";
+
+    /**
+     * The header that names the node that served a response.
+     */
+    public static final String NODE_HEADER = "X-Djatoka-Node";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeAffinityFilter.class);
+
+    private static final Metrics.Counter LOCAL = Metrics.counter("cluster_local");
+
+    private static final Metrics.Counter PROXIED = Metrics.counter("cluster_proxied");
+
+    private static final Metrics.Counter REDIRECTED = Metrics.counter("cluster_redirected");
+
+    private static final Metrics.Counter FAILOVERS = Metrics.counter("cluster_failovers");
+
+    private static final String DEFAULT_POINTS = "128";
+
+    private static final String DEFAULT_CONNECT_TIMEOUT = "2000";
+
+    private static final String DEFAULT_READ_TIMEOUT = "120000";
+
+    private static final String DEFAULT_RETRY = "30000";
+
+    // Headers that only mean something for one connection, so aren't passed on
+    private static final Set<String> HOP_HEADERS = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+            "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade"));
+
+    private static final String[] REQUEST_HEADERS = new String[] { "Accept", "Accept-Encoding", "If-None-Match",
+        "If-Modified-Since", "Referer", "User-Agent" };
+
+    private static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    private final Map<String, Peer> myPeers = new LinkedHashMap<String, Peer>();
+
+    /** The addresses the peers connect from, whose <code>X-Forwarded-For</code> headers are trusted */
+    private final Set<String> myPeerAddresses = new HashSet<String>();
+
+    private HashRing myRing;
+
+    private String mySelf;
+
+    private boolean isRedirecting;
+
+    private int myConnectTimeout;
+
+    private int myReadTimeout;
+
+    private long myRetry;
+
+    /**
+     * Initializes the filter from the cluster settings in <code>djatoka-properties.xml</code>.
+     *
+     * @param aFilterConfig The filter's configuration
+     */
+    @Override
+    public void init(final FilterConfig aFilterConfig) throws ServletException {
+        final Properties props = loadProperties();
+        final String peers = getSetting(props, CLUSTER_PEERS, "").trim();
+
+        if (peers.isEmpty()) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No cluster peers configured; serving every image locally");
+            }
+
+            return;
+        }
+
+        for (final String peer : peers.split("\\s+")) {
+            final String url = trimURL(peer);
+
+            myPeers.put(url, new Peer(url));
+            addPeerAddresses(url);
+        }
+
+        mySelf = trimURL(getSetting(props, CLUSTER_SELF, ""));
+        isRedirecting = !"proxy".equalsIgnoreCase(getSetting(props, CLUSTER_MODE, "redirect").trim());
+        myConnectTimeout = Integer.parseInt(getSetting(props, CLUSTER_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT));
+
+        // The owner answers a render it can't start in time with a 503 anyway, so there's no use waiting any longer
+        myReadTimeout = (int) Math.min(Long.parseLong(getSetting(props, CLUSTER_READ_TIMEOUT, DEFAULT_READ_TIMEOUT)),
+                RenderExecutor.getTimeout());
+        myRetry = Long.parseLong(getSetting(props, CLUSTER_RETRY, DEFAULT_RETRY));
+        myRing = new HashRing(myPeers.keySet(), Integer.parseInt(getSetting(props, CLUSTER_POINTS, DEFAULT_POINTS)));
+
+        if (!myPeers.containsKey(mySelf) && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("{} isn't one of the cluster's peers, so it will only serve images no peer can", mySelf);
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Sharing images with {} cluster peers by {} as {}", myPeers.size(), isRedirecting
+                    ? "redirect" : "proxy", mySelf);
+        }
+    }
+
+    /**
+     * Serves a request if this node owns its image; else, sends it on to the node that does.
+     *
+     * @param aRequest The servlet request
+     * @param aResponse The servlet response
+     * @param aFilterChain The filter chain
+     */
+    @Override
+    public void doFilter(final ServletRequest aRequest, final ServletResponse aResponse, final FilterChain aFilterChain)
+            throws IOException, ServletException {
+        if (myRing == null || !(aRequest instanceof HttpServletRequest)) {
+            aFilterChain.doFilter(aRequest, aResponse);
+            return;
+        }
+
+        final HttpServletResponse response = (HttpServletResponse) aResponse;
+        HttpServletRequest request = (HttpServletRequest) aRequest;
+        final Object iiif = request.getAttribute(IIIFRequest.KEY);
+        final String method = request.getMethod();
+
+        // A request a peer proxied is served for the client that sent it to the peer
+        if (request.getHeader(FORWARDED_HEADER) != null) {
+            request = getForwardedRequest(request);
+        }
+
+        // A request that's already been sent on once is served here, whoever owns it, so it can't go round in circles
+        if (iiif instanceof IIIFRequest && request.getHeader(FORWARDED_HEADER) == null && ("GET".equals(method) ||
+                "HEAD".equals(method))) {
+            final List<String> nodes = myRing.getNodes(((IIIFRequest) iiif).getIdentifier());
+
+            for (int index = 0; index < nodes.size(); index++) {
+                final String node = nodes.get(index);
+                final Peer peer = myPeers.get(node);
+
+                if (node.equals(mySelf)) {
+                    break;
+                }
+
+                if (peer.isAvailable() && (isRedirecting ? redirect(request, response, peer) : proxy(request,
+                        response, peer))) {
+                    return;
+                }
+
+                FAILOVERS.increment();
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Peer {} unavailable; trying the next in ring order", node);
+                }
+            }
+        }
+
+        LOCAL.increment();
+
+        if (mySelf != null && !mySelf.isEmpty()) {
+            response.setHeader(NODE_HEADER, mySelf);
+        }
+
+        aFilterChain.doFilter(request, aResponse);
+    }
+
+    /**
+     * Destroys the filter.
+     */
+    @Override
+    public void destroy() {
+        myRing = null;
+        myPeers.clear();
+        myPeerAddresses.clear();
+    }
+
+    /**
+     * Gets a request that a peer proxied with the address of the client that sent it to the peer, if it really did
+     * come from a peer; otherwise, the request's left as it is so clients can't pick their own addresses.
+     */
+    private HttpServletRequest getForwardedRequest(final HttpServletRequest aRequest) {
+        final String forwardedFor = aRequest.getHeader(FORWARDED_FOR_HEADER);
+
+        if (forwardedFor == null || !myPeerAddresses.contains(aRequest.getRemoteAddr())) {
+            return aRequest;
+        }
+
+        // The peer adds the address it was sent from last
+        final String[] addresses = forwardedFor.split(",");
+        final String address = addresses[addresses.length - 1].trim();
+
+        if (address.isEmpty()) {
+            return aRequest;
+        }
+
+        return new HttpServletRequestWrapper(aRequest) {
+
+            @Override
+            public String getRemoteAddr() {
+                return address;
+            }
+
+            @Override
+            public String getRemoteHost() {
+                return address;
+            }
+        };
+    }
+
+    private void addPeerAddresses(final String aURL) {
+        try {
+            for (final InetAddress address : InetAddress.getAllByName(new URL(aURL).getHost())) {
+                myPeerAddresses.add(address.getHostAddress());
+            }
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to look up the address of cluster peer {}: {}", aURL, details.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Redirects a client to the owner of the image it asked for, if the owner's up.
+     */
+    private boolean redirect(final HttpServletRequest aRequest, final HttpServletResponse aResponse, final Peer aPeer) {
+        if (!aPeer.isReachable()) {
+            return false;
+        }
+
+        REDIRECTED.increment();
+        aResponse.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+        aResponse.setHeader("Location", getURL(aRequest, aPeer));
+        return true;
+    }
+
+    /**
+     * Passes a request to the owner of its image and its response back to the client. It only fails over if the
+     * owner can't be reached, or doesn't answer in time; once the owner's answered, whatever it says is passed on.
+     */
+    private boolean proxy(final HttpServletRequest aRequest, final HttpServletResponse aResponse, final Peer aPeer)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(getURL(aRequest, aPeer)).openConnection();
+        final int status;
+
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(myConnectTimeout);
+        connection.setReadTimeout(myReadTimeout);
+        connection.setRequestMethod(aRequest.getMethod());
+        connection.setRequestProperty(FORWARDED_HEADER, mySelf == null || mySelf.isEmpty() ? "true" : mySelf);
+        connection.setRequestProperty(FORWARDED_FOR_HEADER, aRequest.getRemoteAddr());
+
+        for (final String name : REQUEST_HEADERS) {
+            final String value = aRequest.getHeader(name);
+
+            if (value != null) {
+                connection.setRequestProperty(name, value);
+            }
+        }
+
+        try {
+            status = connection.getResponseCode();
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to reach cluster peer {}: {}", aPeer.myURL, details.getMessage());
+            }
+
+            aPeer.markDown();
+            connection.disconnect();
+            return false;
+        }
+
+        PROXIED.increment();
+        aResponse.setStatus(status);
+
+        for (final Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            final String name = header.getKey();
+
+            // The status line comes back as a header without a name
+            if (name != null && !HOP_HEADERS.contains(name.toLowerCase())) {
+                for (final String value : header.getValue()) {
+                    if ("Content-Type".equalsIgnoreCase(name)) {
+                        aResponse.setContentType(value);
+                    } else {
+                        aResponse.addHeader(name, value);
+                    }
+                }
+            }
+        }
+
+        if (aResponse.getHeader(NODE_HEADER) == null) {
+            aResponse.setHeader(NODE_HEADER, aPeer.myURL);
+        }
+
+        final InputStream inStream = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+        if (inStream != null) {
+            final OutputStream outStream = aResponse.getOutputStream();
+            final byte[] buffer = new byte[8192];
+
+            try {
+                int count;
+
+                while ((count = inStream.read(buffer)) != -1) {
+                    outStream.write(buffer, 0, count);
+                }
+            } finally {
+                IOUtils.closeQuietly(inStream);
+            }
+
+            outStream.flush();
+        }
+
+        return true;
+    }
+
+    private static String getURL(final HttpServletRequest aRequest, final Peer aPeer) {
+        final String query = aRequest.getQueryString();
+
+        return aPeer.myURL + aRequest.getRequestURI() + (query == null ? "" : "?" + query);
+    }
+
+    private static String trimURL(final String aURL) {
+        final String url = aURL.trim();
+
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Gets a cluster setting, letting a system property stand in for the one in the properties file.
+     */
+    private static String getSetting(final Properties aProps, final String aKey, final String aDefault) {
+        return System.getProperty(aKey, aProps.getProperty(aKey, aDefault));
+    }
+
+    private static Properties loadProperties() {
+        final Properties props = new Properties();
+        final InputStream is = NodeAffinityFilter.class.getResourceAsStream("/" + PROPERTIES_FILE);
+
+        if (is != null) {
+            try {
+                props.loadFromXML(is);
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to load properties file: {}", details.getMessage());
+                }
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        return props;
+    }
+
+    /**
+     * A node in the cluster, which is skipped for a while after it's found to be down.
+     */
+    private class Peer {
+
+        private final String myURL;
+
+        private volatile long myDownUntil;
+
+        private volatile long myCheckedUntil;
+
+        private Peer(final String aURL) {
+            myURL = aURL;
+        }
+
+        private boolean isAvailable() {
+            return System.currentTimeMillis() >= myDownUntil;
+        }
+
+        private void markDown() {
+            myDownUntil = System.currentTimeMillis() + myRetry;
+        }
+
+        /**
+         * Checks, at most once a retry period, that the node takes connections; redirects can't tell otherwise.
+         */
+        private boolean isReachable() {
+            if (System.currentTimeMillis() < myCheckedUntil) {
+                return true;
+            }
+
+            final Socket socket = new Socket();
+
+            try {
+                final URL url = new URL(myURL);
+                final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+
+                socket.connect(new InetSocketAddress(url.getHost(), port), myConnectTimeout);
+                myCheckedUntil = System.currentTimeMillis() + myRetry;
+                return true;
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to reach cluster peer {}: {}", myURL, details.getMessage());
+                }
+
+                markDown();
+                return false;
+            } finally {
+                try {
+                    socket.close();
+                } catch (final IOException details) {
+                    // Nothing was sent, so there's nothing to lose
+                }
+            }
+        }
+    }
+}
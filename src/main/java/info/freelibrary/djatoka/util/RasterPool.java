@@ -0,0 +1,447 @@
+
+package info.freelibrary.djatoka.util;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.util.IOUtils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of the large arrays that images' pixels are kept in, so a render reuses the arrays of earlier ones instead
+ * of allocating new ones for each image it decodes, scales, rotates and encodes. Arrays are pooled in size classes,
+ * half a power of two apart, and the pool keeps no more than a configured number of bytes; arrays given back beyond
+ * that are left to the garbage collector.
+ * <p>
+ * Arrays are only pooled while a {@link Lease} is open on the thread asking for them; without one they're allocated
+ * as usual, so code that doesn't open a lease works as it always has. Images made by {@link #createImage} are given
+ * back when the lease closes, so they mustn't be used after it; scratch arrays are given back with
+ * <code>release</code>. A scratch array that isn't released by the time its lease closes is reported as a leak, and
+ * taken back then.
+ * </p>
+ */
+public final class RasterPool implements Constants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RasterPool.class);
+
+    private static final String DEFAULT_SIZE = "67108864";
+
+    /** Arrays shorter than this are cheap to allocate, and aren't pooled */
+    private static final int MIN_POOLED_LENGTH = 1 << 16;
+
+    /** Arrays longer than this are rare enough not to be pooled */
+    private static final int MAX_POOLED_LENGTH = 1 << 28;
+
+    private static final int[] SIZES = getSizes();
+
+    private static final Metrics.Counter HITS = Metrics.counter("raster_pool_hits");
+
+    private static final Metrics.Counter MISSES = Metrics.counter("raster_pool_misses");
+
+    private static final Metrics.Counter LEAKS = Metrics.counter("raster_pool_leaks");
+
+    private static final ColorModel[] COLOR_MODELS = new ColorModel[BufferedImage.TYPE_BYTE_INDEXED + 1];
+
+    private static RasterPool instance;
+
+    private final long myMaxBytes;
+
+    private final List<ArrayDeque<byte[]>> myBytes = new ArrayList<ArrayDeque<byte[]>>(SIZES.length);
+
+    private final List<ArrayDeque<int[]>> myInts = new ArrayList<ArrayDeque<int[]>>(SIZES.length);
+
+    private final ThreadLocal<Lease> myLease = new ThreadLocal<Lease>();
+
+    private long myPooledBytes;
+
+    /**
+     * Creates a pool that keeps up to the supplied number of bytes of arrays.
+     *
+     * @param aMaxBytes The most bytes of arrays the pool keeps
+     */
+    RasterPool(final long aMaxBytes) {
+        myMaxBytes = aMaxBytes;
+
+        for (int index = 0; index < SIZES.length; index++) {
+            myBytes.add(new ArrayDeque<byte[]>());
+            myInts.add(new ArrayDeque<int[]>());
+        }
+    }
+
+    /**
+     * Gets the pool that renders share, configured from the djatoka properties the first time it's asked for.
+     *
+     * @return The shared pool
+     */
+    public static synchronized RasterPool getInstance() {
+        if (instance == null) {
+            final RasterPool pool = new RasterPool(Long.parseLong(loadProperties().getProperty(RASTER_POOL_SIZE,
+                    DEFAULT_SIZE)));
+
+            Metrics.gauge("raster_pool_bytes", new Metrics.Gauge() {
+
+                @Override
+                public long getValue() {
+                    return pool.getPooledBytes();
+                }
+            });
+
+            instance = pool;
+        }
+
+        return instance;
+    }
+
+    /**
+     * Opens a lease on the calling thread, which the arrays it asks for are pooled under until it's closed. Leases can
+     * be nested; each must be closed, on the thread that opened it, before the one it's nested in.
+     *
+     * @return The open lease
+     */
+    public Lease open() {
+        final Lease lease = new Lease(myLease.get());
+
+        myLease.set(lease);
+        return lease;
+    }
+
+    /**
+     * Gets a byte array with at least the supplied length. A pooled array may be longer, and isn't cleared.
+     *
+     * @param aLength The length needed
+     * @return A byte array with at least the supplied length
+     */
+    public byte[] getBytes(final int aLength) {
+        final Lease lease = myLease.get();
+        final int sizeClass = getSizeClass(aLength);
+
+        if (lease == null || sizeClass < 0) {
+            return new byte[aLength];
+        }
+
+        byte[] array;
+
+        synchronized (this) {
+            array = myBytes.get(sizeClass).pollLast();
+
+            if (array != null) {
+                myPooledBytes -= array.length;
+            }
+        }
+
+        if (array == null) {
+            MISSES.increment();
+            array = new byte[SIZES[sizeClass]];
+        } else {
+            HITS.increment();
+        }
+
+        lease.myArrays.put(array, Boolean.FALSE);
+        return array;
+    }
+
+    /**
+     * Gets an integer array with at least the supplied length. A pooled array may be longer, and isn't cleared.
+     *
+     * @param aLength The length needed
+     * @return An integer array with at least the supplied length
+     */
+    public int[] getInts(final int aLength) {
+        final Lease lease = myLease.get();
+        final int sizeClass = getSizeClass(aLength);
+
+        if (lease == null || sizeClass < 0) {
+            return new int[aLength];
+        }
+
+        int[] array;
+
+        synchronized (this) {
+            array = myInts.get(sizeClass).pollLast();
+
+            if (array != null) {
+                myPooledBytes -= array.length * 4L;
+            }
+        }
+
+        if (array == null) {
+            MISSES.increment();
+            array = new int[SIZES[sizeClass]];
+        } else {
+            HITS.increment();
+        }
+
+        lease.myArrays.put(array, Boolean.FALSE);
+        return array;
+    }
+
+    /**
+     * Gives back a byte array from {@link #getBytes}. Arrays that weren't pooled are left to the garbage collector.
+     *
+     * @param aArray The array that's no longer used
+     */
+    public void release(final byte[] aArray) {
+        if (forget(aArray)) {
+            giveBack(aArray);
+        }
+    }
+
+    /**
+     * Gives back an integer array from {@link #getInts}. Arrays that weren't pooled are left to the garbage collector.
+     *
+     * @param aArray The array that's no longer used
+     */
+    public void release(final int[] aArray) {
+        if (forget(aArray)) {
+            giveBack(aArray);
+        }
+    }
+
+    /**
+     * Creates an image whose pixels are kept in a pooled array, which is given back when the calling thread's lease is
+     * closed. Its pixels aren't cleared, so it must be drawn over in full. Without a lease, or for types other than
+     * byte grayscale, byte BGR and ABGR, and integer RGB, BGR and ARGB, a new image is created as usual.
+     *
+     * @param aWidth The width of the image
+     * @param aHeight The height of the image
+     * @param aType The type of the image
+     * @return The image
+     */
+    public BufferedImage createImage(final int aWidth, final int aHeight, final int aType) {
+        final Lease lease = myLease.get();
+        final int pixels = aWidth * aHeight;
+        final int bands = getElements(aType);
+
+        if (lease == null || bands == 0 || getSizeClass(pixels * bands) < 0) {
+            return new BufferedImage(aWidth, aHeight, aType);
+        }
+
+        final ColorModel colorModel = getColorModel(aType);
+        final WritableRaster raster;
+
+        if (aType == BufferedImage.TYPE_INT_RGB || aType == BufferedImage.TYPE_INT_BGR ||
+                aType == BufferedImage.TYPE_INT_ARGB) {
+            final DirectColorModel direct = (DirectColorModel) colorModel;
+            final int[] masks = direct.hasAlpha() ? new int[] { direct.getRedMask(), direct.getGreenMask(),
+                direct.getBlueMask(), direct.getAlphaMask() } : new int[] { direct.getRedMask(),
+                direct.getGreenMask(), direct.getBlueMask() };
+
+            raster = Raster.createPackedRaster(new DataBufferInt(getInts(pixels), pixels), aWidth, aHeight, aWidth,
+                    masks, null);
+        } else {
+            final int[] offsets = new int[bands];
+
+            // Byte BGR and ABGR keep their bands in reverse order
+            for (int band = 0; band < bands; band++) {
+                offsets[band] = bands - band - 1;
+            }
+
+            raster = Raster.createInterleavedRaster(new DataBufferByte(getBytes(pixels * bands), pixels * bands),
+                    aWidth, aHeight, aWidth * bands, bands, offsets, null);
+        }
+
+        final Object array = raster.getDataBuffer() instanceof DataBufferInt ? ((DataBufferInt) raster
+                .getDataBuffer()).getData() : ((DataBufferByte) raster.getDataBuffer()).getData();
+
+        // The image's array goes back when the lease closes, rather than when it's released
+        lease.myArrays.put(array, Boolean.TRUE);
+
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Gets the number of bytes of arrays the pool is keeping.
+     *
+     * @return The number of bytes of arrays in the pool
+     */
+    public synchronized long getPooledBytes() {
+        return myPooledBytes;
+    }
+
+    /**
+     * Stops tracking an array in the calling thread's leases, returning true if one of them had it.
+     */
+    private boolean forget(final Object aArray) {
+        for (Lease lease = myLease.get(); lease != null; lease = lease.myParent) {
+            if (lease.myArrays.remove(aArray) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void giveBack(final Object aArray) {
+        final boolean bytes = aArray instanceof byte[];
+        final int length = bytes ? ((byte[]) aArray).length : ((int[]) aArray).length;
+        final long size = bytes ? length : length * 4L;
+        final int sizeClass = getSizeClass(length);
+
+        synchronized (this) {
+            if (myPooledBytes + size > myMaxBytes) {
+                return;
+            }
+
+            myPooledBytes += size;
+
+            if (bytes) {
+                myBytes.get(sizeClass).addLast((byte[]) aArray);
+            } else {
+                myInts.get(sizeClass).addLast((int[]) aArray);
+            }
+        }
+    }
+
+    /**
+     * Gets the index of the smallest size class that holds the supplied length, or -1 if it's not pooled.
+     */
+    private static int getSizeClass(final int aLength) {
+        if (aLength < MIN_POOLED_LENGTH || aLength > MAX_POOLED_LENGTH) {
+            return -1;
+        }
+
+        for (int index = 0; index < SIZES.length; index++) {
+            if (SIZES[index] >= aLength) {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int[] getSizes() {
+        final List<Integer> sizes = new ArrayList<Integer>();
+
+        for (int size = MIN_POOLED_LENGTH; size <= MAX_POOLED_LENGTH; size <<= 1) {
+            sizes.add(size);
+
+            if (size < MAX_POOLED_LENGTH) {
+                sizes.add(size + (size >> 1));
+            }
+        }
+
+        final int[] array = new int[sizes.size()];
+
+        for (int index = 0; index < array.length; index++) {
+            array[index] = sizes.get(index);
+        }
+
+        return array;
+    }
+
+    /**
+     * Gets the number of array elements each pixel of an image type takes, or 0 if the type isn't pooled.
+     */
+    private static int getElements(final int aType) {
+        switch (aType) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+                return 1;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return 3;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static synchronized ColorModel getColorModel(final int aType) {
+        if (COLOR_MODELS[aType] == null) {
+            COLOR_MODELS[aType] = new BufferedImage(1, 1, aType).getColorModel();
+        }
+
+        return COLOR_MODELS[aType];
+    }
+
+    private static Properties loadProperties() {
+        final Properties props = new Properties();
+        final InputStream is = RasterPool.class.getResourceAsStream("/" + PROPERTIES_FILE);
+
+        if (is != null) {
+            try {
+                props.loadFromXML(is);
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to load properties file: {}", details.getMessage());
+                }
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        return props;
+    }
+
+    /**
+     * The arrays a thread has taken from the pool since it opened the lease. Closing it gives them all back.
+     */
+    public final class Lease {
+
+        private final Lease myParent;
+
+        /** The arrays taken under the lease; true for those that back images, false for scratch arrays */
+        private final Map<Object, Boolean> myArrays = new IdentityHashMap<Object, Boolean>();
+
+        private boolean isClosed;
+
+        private Lease(final Lease aParent) {
+            myParent = aParent;
+        }
+
+        /**
+         * Closes the lease, giving back the arrays taken under it. Scratch arrays that weren't released are reported.
+         */
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+
+            int leaks = 0;
+
+            isClosed = true;
+
+            for (final Map.Entry<Object, Boolean> entry : myArrays.entrySet()) {
+                if (!entry.getValue()) {
+                    leaks++;
+                }
+
+                giveBack(entry.getKey());
+            }
+
+            myArrays.clear();
+
+            if (leaks > 0) {
+                LEAKS.add(leaks);
+
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("{} pooled raster array(s) weren't released before their lease closed", leaks);
+                }
+            }
+
+            if (myLease.get() == this) {
+                myLease.set(myParent);
+            } else if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Raster pool lease closed out of order, or on another thread");
+            }
+        }
+    }
+}
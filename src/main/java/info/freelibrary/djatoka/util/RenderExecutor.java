@@ -0,0 +1,607 @@
+
+package info.freelibrary.djatoka.util;
+
+import gov.lanl.adore.djatoka.util.Resampler;
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs uncached renders off the container's request threads so they stay free to serve cached tiles. Each
+ * {@link RenderLane} has its own fixed pool of daemon threads so big exports can't take the threads that viewer tiles
+ * need; when configured, and the JVM has them, renders run on virtual threads instead. Registered as a listener so
+ * the pools are shut down with the webapp.
+ * <p>
+ * Renders are timed out by a timer of our own rather than the container's asynchronous timeout: a container's
+ * timeout listener can't keep a request open for a render that's already writing its result without blocking one of
+ * the container's threads, so the container's timeout is turned off and every request is completed either by its
+ * render or by that timer.
+ */
+public class RenderExecutor implements ServletContextListener, Constants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderExecutor.class);
+
+    private static final String DEFAULT_THREADS = Integer.toString(Runtime.getRuntime().availableProcessors() * 4);
+
+    private static final String DEFAULT_BULK_THREADS = "2";
+
+    private static final String DEFAULT_INTERACTIVE_MAX_PIXELS = "1048576";
+
+    private static final String DEFAULT_TIMEOUT = "120000";
+
+    private static final String DEFAULT_QUEUE_SIZE = "64";
+
+    private static final String DEFAULT_BULK_QUEUE_SIZE = "4";
+
+    // Shared with the OpenURL service, so every 503 for a busy server asks for the same wait
+    private static final String RETRY_AFTER = "OpenURLJP2KService.retryAfter";
+
+    private static final String DEFAULT_RETRY_AFTER = "5";
+
+    /** A render that hasn't written anything to its response yet */
+    private static final int PENDING = 0;
+
+    /** A render that's writing its response; only the render can complete its request now */
+    private static final int CLAIMED = 1;
+
+    /** A request that's been answered, by its render or by the timeout */
+    private static final int DONE = 2;
+
+    private static final Map<RenderLane, AtomicInteger> RUNNING =
+            new EnumMap<RenderLane, AtomicInteger>(RenderLane.class);
+
+    private static Map<RenderLane, ExecutorService> executors;
+
+    private static ScheduledThreadPoolExecutor timer;
+
+    private static long timeout = Long.parseLong(DEFAULT_TIMEOUT);
+
+    private static String retryAfter = DEFAULT_RETRY_AFTER;
+
+    private static long maxInteractivePixels = Long.parseLong(DEFAULT_INTERACTIVE_MAX_PIXELS);
+
+    static {
+        for (final RenderLane lane : RenderLane.values()) {
+            final AtomicInteger running = new AtomicInteger();
+
+            RUNNING.put(lane, running);
+            Metrics.gauge("async_renders_" + lane.name().toLowerCase(Locale.US) + "_running", new Metrics.Gauge() {
+
+                @Override
+                public long getValue() {
+                    return running.get();
+                }
+            });
+        }
+    }
+
+    /**
+     * A render that's run on behalf of an asynchronous request.
+     */
+    public interface Task {
+
+        /**
+         * Runs the render, writing its result to the supplied response. Writing to it claims the request; if the
+         * request has already been answered because the render took too long, the write fails and the render's
+         * result is dropped.
+         *
+         * @param aResponse The response to write the render's result to
+         * @throws Exception If the render fails
+         */
+        void run(HttpServletResponse aResponse) throws Exception;
+    }
+
+    /**
+     * Runs the supplied render in its lane and completes the asynchronous request when it's done. If the render
+     * doesn't start writing its result within the configured timeout, or can't be started at all, the request is
+     * answered with a <code>503</code>; once it has started writing, it's left to finish. The task must not use the
+     * request: it may have been answered, and recycled by the container, before the task runs.
+     *
+     * @param aContext The asynchronous context of the request being rendered
+     * @param aLane The lane the render belongs in
+     * @param aTask The render to run
+     */
+    public static void execute(final AsyncContext aContext, final RenderLane aLane, final Task aTask) {
+        final AtomicInteger running = RUNNING.get(aLane);
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        final long timeout = getTimeout();
+        final ScheduledFuture<?> timeoutTask;
+
+        // Only the render, or the timer below, completes the request
+        aContext.setTimeout(0);
+        aContext.addListener(new AsyncListener() {
+
+            @Override
+            public void onTimeout(final AsyncEvent aEvent) {
+                state.set(DONE);
+            }
+
+            @Override
+            public void onError(final AsyncEvent aEvent) {
+                state.set(DONE);
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent aEvent) {
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent aEvent) {
+            }
+        });
+
+        timeoutTask = getTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (state.compareAndSet(PENDING, DONE)) {
+                    if (LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Asynchronous render timed out after {} ms", timeout);
+                    }
+
+                    unavailable(aContext);
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        try {
+            getExecutor(aLane).execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final RenderResponse response =
+                            new RenderResponse((HttpServletResponse) aContext.getResponse(), state);
+
+                    // It waited so long to start that its request has already been answered
+                    if (state.get() == DONE) {
+                        return;
+                    }
+
+                    running.incrementAndGet();
+
+                    try {
+                        aTask.run(response);
+                    } catch (final Exception details) {
+                        if (claim(response)) {
+                            LOGGER.error(details.getMessage(), details);
+
+                            if (!response.isCommitted()) {
+                                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            }
+                        } else if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Dropped a render that finished after its request timed out");
+                        }
+                    } finally {
+                        running.decrementAndGet();
+                        timeoutTask.cancel(false);
+
+                        if (state.compareAndSet(PENDING, DONE) || state.compareAndSet(CLAIMED, DONE)) {
+                            aContext.complete();
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException details) {
+            timeoutTask.cancel(false);
+
+            if (state.compareAndSet(PENDING, DONE)) {
+                unavailable(aContext);
+            }
+        }
+    }
+
+    /**
+     * Claims an asynchronous render's response so its result can be written until the render is done. Responses that
+     * aren't an asynchronous render's are always claimed.
+     *
+     * @param aResponse A response, or a wrapper around one
+     * @return False if the render's request has already been answered because it took too long; else, true
+     */
+    public static boolean claim(final ServletResponse aResponse) {
+        final RenderResponse response = getRenderResponse(aResponse);
+
+        return response == null || response.claim();
+    }
+
+    private static RenderResponse getRenderResponse(final ServletResponse aResponse) {
+        ServletResponse response = aResponse;
+
+        while (response instanceof ServletResponseWrapper) {
+            if (response instanceof RenderResponse) {
+                return (RenderResponse) response;
+            }
+
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the number of milliseconds an asynchronous render can take before its request is answered with a
+     * <code>503</code>.
+     *
+     * @return The asynchronous render timeout in milliseconds
+     */
+    public static synchronized long getTimeout() {
+        configure();
+        return timeout;
+    }
+
+    /**
+     * Gets the lane a render belongs in from the size of the image it will produce.
+     *
+     * @param aRegion The requested region in djatoka's <code>y,x,h,w</code> form, or null for the whole image
+     * @param aScale The requested scale in the form djatoka's OpenURL service accepts, or null
+     * @return The lane the render belongs in
+     */
+    public static RenderLane getLane(final String aRegion, final String aScale) {
+        final long maxPixels;
+
+        synchronized (RenderExecutor.class) {
+            configure();
+            maxPixels = maxInteractivePixels;
+        }
+
+        return RenderLane.classify(aRegion, aScale, maxPixels);
+    }
+
+    @Override
+    public void contextInitialized(final ServletContextEvent aEvent) {
+        synchronized (RenderExecutor.class) {
+            configure();
+        }
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent aEvent) {
+        synchronized (RenderExecutor.class) {
+            shutdown();
+        }
+
+        // Renders split large resizes across the resampler's threads, so they go when the renders' threads do
+        Resampler.shutdown();
+    }
+
+    private static void unavailable(final AsyncContext aContext) {
+        final HttpServletResponse response = (HttpServletResponse) aContext.getResponse();
+
+        if (!response.isCommitted()) {
+            response.reset();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", getRetryAfter());
+        }
+
+        aContext.complete();
+    }
+
+    private static synchronized String getRetryAfter() {
+        configure();
+        return retryAfter;
+    }
+
+    private static synchronized ExecutorService getExecutor(final RenderLane aLane) {
+        configure();
+        return executors.get(aLane);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        configure();
+        return timer;
+    }
+
+    private static void configure() {
+        if (executors == null) {
+            configure(loadProperties());
+        }
+    }
+
+    /**
+     * Sets up the render pools, and the timer that times renders out, from the supplied configuration. Pools that
+     * are already set up are shut down first.
+     *
+     * @param aProps A configuration
+     */
+    static synchronized void configure(final Properties aProps) {
+        final boolean virtual = Boolean.parseBoolean(aProps.getProperty(RENDER_VIRTUAL_THREADS));
+
+        shutdown();
+
+        timeout = Long.parseLong(aProps.getProperty(RENDER_TIMEOUT, DEFAULT_TIMEOUT));
+        retryAfter = aProps.getProperty(RETRY_AFTER, DEFAULT_RETRY_AFTER);
+        maxInteractivePixels =
+                Long.parseLong(aProps.getProperty(RENDER_INTERACTIVE_MAX_PIXELS, DEFAULT_INTERACTIVE_MAX_PIXELS));
+        executors = new EnumMap<RenderLane, ExecutorService>(RenderLane.class);
+        executors.put(RenderLane.INTERACTIVE, newExecutor(RenderLane.INTERACTIVE, virtual, Integer.parseInt(aProps
+                .getProperty(RENDER_THREADS, DEFAULT_THREADS)), Integer.parseInt(aProps.getProperty(
+                RENDER_QUEUE_SIZE, DEFAULT_QUEUE_SIZE))));
+        executors.put(RenderLane.BULK, newExecutor(RenderLane.BULK, virtual, Integer.parseInt(aProps.getProperty(
+                RENDER_BULK_THREADS, DEFAULT_BULK_THREADS)), Integer.parseInt(aProps.getProperty(
+                RENDER_BULK_QUEUE_SIZE, DEFAULT_BULK_QUEUE_SIZE))));
+
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                final Thread thread = new Thread(aRunnable, "djatoka-render-timeout");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Most renders finish in time, so their timeouts are cancelled and shouldn't pile up in the timer's queue
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static void shutdown() {
+        if (executors != null) {
+            for (final ExecutorService executor : executors.values()) {
+                executor.shutdownNow();
+            }
+
+            executors = null;
+        }
+
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    private static ExecutorService newExecutor(final RenderLane aLane, final boolean aVirtual, final int aThreads,
+            final int aQueueSize) {
+        final String name = "djatoka-render-" + aLane.name().toLowerCase(Locale.US) + "-";
+        ExecutorService executor = null;
+
+        // Virtual threads aren't pooled or queued; decoders are still limited by the OpenURL service's render gates,
+        // which only let a bounded number of renders wait
+        if (aVirtual) {
+            executor = newVirtualThreadExecutor();
+        }
+
+        if (executor == null) {
+            // A full queue rejects the render, which is answered with a 503 straight away instead of at the timeout
+            executor = new ThreadPoolExecutor(aThreads, aThreads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(Math.max(1, aQueueSize)), new ThreadFactory() {
+
+                private final AtomicInteger myCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable aRunnable) {
+                    final Thread thread = new Thread(aRunnable, name + myCount.incrementAndGet());
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Rendering {} images on {} threads, with {} waiting", new Object[] { aLane, aThreads,
+                    aQueueSize });
+            }
+        }
+
+        return executor;
+    }
+
+    /**
+     * Creates a virtual thread per task executor if the JVM we're running on has them; we're built for older JVMs so
+     * it has to be looked up reflectively.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Rendering on virtual threads");
+            }
+
+            return (ExecutorService) method.invoke(null);
+        } catch (final Exception details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Virtual threads aren't available on this JVM; using platform threads instead");
+            }
+
+            return null;
+        }
+    }
+
+    private static Properties loadProperties() {
+        final Properties props = new Properties();
+        final InputStream is = RenderExecutor.class.getResourceAsStream("/" + PROPERTIES_FILE);
+
+        if (is != null) {
+            try {
+                props.loadFromXML(is);
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to load properties file: {}", details.getMessage());
+                }
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        return props;
+    }
+
+    /**
+     * The response an asynchronous render writes to. The first change to it claims the request for the render; once
+     * the timeout has answered the request, changes to it fail, so nothing's written to a response that's been
+     * completed and recycled.
+     */
+    private static class RenderResponse extends HttpServletResponseWrapper {
+
+        private final AtomicInteger myState;
+
+        private RenderResponse(final HttpServletResponse aResponse, final AtomicInteger aState) {
+            super(aResponse);
+            myState = aState;
+        }
+
+        private boolean claim() {
+            return myState.compareAndSet(PENDING, CLAIMED) || myState.get() == CLAIMED;
+        }
+
+        private void check() {
+            if (!claim()) {
+                throw new IllegalStateException("The render's request has already been answered");
+            }
+        }
+
+        @Override
+        public void addCookie(final Cookie aCookie) {
+            check();
+            super.addCookie(aCookie);
+        }
+
+        @Override
+        public void sendError(final int aStatus, final String aMessage) throws IOException {
+            check();
+            super.sendError(aStatus, aMessage);
+        }
+
+        @Override
+        public void sendError(final int aStatus) throws IOException {
+            check();
+            super.sendError(aStatus);
+        }
+
+        @Override
+        public void sendRedirect(final String aLocation) throws IOException {
+            check();
+            super.sendRedirect(aLocation);
+        }
+
+        @Override
+        public void setDateHeader(final String aName, final long aDate) {
+            check();
+            super.setDateHeader(aName, aDate);
+        }
+
+        @Override
+        public void addDateHeader(final String aName, final long aDate) {
+            check();
+            super.addDateHeader(aName, aDate);
+        }
+
+        @Override
+        public void setHeader(final String aName, final String aValue) {
+            check();
+            super.setHeader(aName, aValue);
+        }
+
+        @Override
+        public void addHeader(final String aName, final String aValue) {
+            check();
+            super.addHeader(aName, aValue);
+        }
+
+        @Override
+        public void setIntHeader(final String aName, final int aValue) {
+            check();
+            super.setIntHeader(aName, aValue);
+        }
+
+        @Override
+        public void addIntHeader(final String aName, final int aValue) {
+            check();
+            super.addIntHeader(aName, aValue);
+        }
+
+        @Override
+        public void setStatus(final int aStatus) {
+            check();
+            super.setStatus(aStatus);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(final int aStatus, final String aMessage) {
+            check();
+            super.setStatus(aStatus, aMessage);
+        }
+
+        @Override
+        public void setCharacterEncoding(final String aCharset) {
+            check();
+            super.setCharacterEncoding(aCharset);
+        }
+
+        @Override
+        public void setContentLength(final int aLength) {
+            check();
+            super.setContentLength(aLength);
+        }
+
+        @Override
+        public void setContentType(final String aType) {
+            check();
+            super.setContentType(aType);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            check();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            check();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            check();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void reset() {
+            check();
+            super.reset();
+        }
+
+        @Override
+        public void resetBuffer() {
+            check();
+            super.resetBuffer();
+        }
+    }
+}
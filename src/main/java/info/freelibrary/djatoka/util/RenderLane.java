@@ -0,0 +1,66 @@
+
+package info.freelibrary.djatoka.util;
+
+/**
+ * The lanes renders are sorted into so that each gets its own share of render threads and decoders. Interactive
+ * renders are viewer tiles and thumbnails; bulk renders are full images and big regions, like exports, that shouldn't
+ * hold up someone zooming around an image.
+ */
+public enum RenderLane {
+
+    INTERACTIVE, BULK;
+
+    /**
+     * Sorts a render into a lane from the size of the image it will produce.
+     *
+     * @param aRegion The requested region in djatoka's <code>y,x,h,w</code> form, or null for the whole image
+     * @param aScale The requested scale: a factor, <code>w,h</code> dimensions (either of which may be 0 and the width
+     *        of which may be prefixed with <code>!</code>), a single width, or null
+     * @param aMaxInteractivePixels The largest number of pixels an interactive render can produce
+     * @return The lane the render belongs in
+     */
+    public static RenderLane classify(final String aRegion, final String aScale, final long aMaxInteractivePixels) {
+        final long pixels = getPixels(aRegion, aScale);
+
+        return pixels >= 0 && pixels <= aMaxInteractivePixels ? INTERACTIVE : BULK;
+    }
+
+    /**
+     * Estimates the number of pixels a render will produce; returns -1 if it can't be known without the image.
+     */
+    private static long getPixels(final String aRegion, final String aScale) {
+        double factor = 1;
+
+        try {
+            if (aScale != null && !aScale.isEmpty()) {
+                final String[] scale = aScale.replace("!", "").split(",");
+
+                if (scale.length == 1 && scale[0].contains(".")) {
+                    factor = Double.parseDouble(scale[0]);
+                } else {
+                    final long width = Long.parseLong(scale[0].trim());
+                    final long height = scale.length > 1 ? Long.parseLong(scale[1].trim()) : 0;
+
+                    // With only one dimension the other's unknown, but a square is a fair guess for tiles
+                    return width > 0 && height > 0 ? width * height : Math.max(width, height) *
+                            Math.max(width, height);
+                }
+            }
+
+            if (aRegion != null && !aRegion.isEmpty()) {
+                final String[] region = aRegion.split(",");
+
+                if (region.length == 4) {
+                    final long height = Long.parseLong(region[2].trim());
+                    final long width = Long.parseLong(region[3].trim());
+
+                    return (long) (height * width * factor * factor);
+                }
+            }
+        } catch (final NumberFormatException details) {
+            // We can't tell how big it will be so it's treated like it's big
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,180 @@
+
+package info.freelibrary.djatoka.view;
+
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import info.freelibrary.djatoka.util.Metrics;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms the tile cache, after a restart, with the tiles a {@link PopularityLog} says are asked for most, and then keeps
+ * the log saved. Warming happens on a single low priority thread, only while the decoders are idle, and stops when
+ * its time budget runs out. Its CPU budget is the share of that time it spends rendering: after each tile it rests
+ * long enough to keep to that share, so at 0.25 it renders for a second and then rests for three.
+ */
+public class CacheWarmer implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private static final Metrics.Counter WARMED = Metrics.counter("warmup_tiles");
+
+    private static final Metrics.Counter FAILED = Metrics.counter("warmup_failed");
+
+    /** How long to wait before trying again when the decoders are busy, or not set up yet */
+    private static final long BUSY_WAIT = 1000;
+
+    private final PopularityLog myLog;
+
+    private final TilePrefetcher myPrefetcher;
+
+    private final int myCount;
+
+    private final long myDelay;
+
+    private final long myTime;
+
+    private final double myCPU;
+
+    private final long mySaveInterval;
+
+    private Thread myThread;
+
+    /**
+     * Creates a cache warmer.
+     *
+     * @param aLog The log of popular tiles
+     * @param aPrefetcher The prefetcher that renders tiles into the tile cache
+     * @param aCount The maximum number of the most popular tiles to warm the cache with
+     * @param aDelay The milliseconds to wait, once started, before warming the cache
+     * @param aTime The maximum milliseconds to spend warming the cache
+     * @param aCPU The share of the warming time, from 0 to 1, to spend rendering
+     * @param aSaveInterval The milliseconds between saves of the log; if 0 or less, it's only saved on shutdown
+     */
+    public CacheWarmer(final PopularityLog aLog, final TilePrefetcher aPrefetcher, final int aCount,
+            final long aDelay, final long aTime, final double aCPU, final long aSaveInterval) {
+        myLog = aLog;
+        myPrefetcher = aPrefetcher;
+        myCount = aCount;
+        myDelay = Math.max(0, aDelay);
+        myTime = aTime;
+        myCPU = Math.min(1d, Math.max(0.01d, aCPU));
+        mySaveInterval = aSaveInterval;
+    }
+
+    /**
+     * Starts warming the cache in the background.
+     */
+    public synchronized void start() {
+        if (myThread == null) {
+            myThread = new Thread(this, "djatoka-warmup");
+            myThread.setDaemon(true);
+            myThread.setPriority(Thread.MIN_PRIORITY);
+            myThread.start();
+        }
+    }
+
+    /**
+     * Stops warming the cache and saves the log.
+     */
+    public synchronized void shutdown() {
+        if (myThread != null) {
+            myThread.interrupt();
+            myThread = null;
+        }
+
+        save();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(myDelay);
+            warm();
+
+            while (mySaveInterval > 0) {
+                Thread.sleep(mySaveInterval);
+                save();
+            }
+        } catch (final InterruptedException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cache warming stopped");
+            }
+        }
+    }
+
+    private void warm() throws InterruptedException {
+        final List<PopularityLog.Entry> entries = myLog.getTop(myCount);
+        final long start = System.currentTimeMillis();
+        final long deadline = start + myTime;
+        int warmed = 0;
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Warming the tile cache with up to {} popular tiles", entries.size());
+        }
+
+        for (final PopularityLog.Entry entry : entries) {
+            if (!warm(entry, deadline)) {
+                break;
+            }
+
+            warmed++;
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Warmed the tile cache with {} of {} popular tiles in {} ms", warmed, entries.size(), System
+                    .currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Warms the cache with a tile, waiting for the decoders if they're busy. Returns false if time ran out first.
+     */
+    private boolean warm(final PopularityLog.Entry aEntry, final long aDeadline) throws InterruptedException {
+        long now = System.currentTimeMillis();
+
+        while (now < aDeadline) {
+            if (OpenURLJP2KService.isReady()) {
+                try {
+                    if (myPrefetcher.warm(aEntry.getID(), aEntry.getFactor(), aEntry.getColumn(), aEntry.getRow())) {
+                        final long elapsed = System.currentTimeMillis() - now;
+
+                        WARMED.increment();
+
+                        // Rest long enough that rendering only takes its share of the time
+                        Thread.sleep(Math.max(0, Math.min((long) (elapsed * (1 - myCPU) / myCPU), aDeadline - System
+                                .currentTimeMillis())));
+                        return true;
+                    }
+                } catch (final IOException details) {
+                    FAILED.increment();
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Unable to warm the cache with a tile from {}: {}", aEntry.getID(), details
+                                .getMessage());
+                    }
+
+                    return true;
+                }
+            }
+
+            Thread.sleep(Math.min(BUSY_WAIT, aDeadline - now));
+            now = System.currentTimeMillis();
+        }
+
+        return false;
+    }
+
+    private void save() {
+        try {
+            myLog.save();
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to save the popularity log: {}", details.getMessage());
+            }
+        }
+    }
+}
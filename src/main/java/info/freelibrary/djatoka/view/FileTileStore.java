@@ -0,0 +1,367 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.util.PairtreeObject;
+import info.freelibrary.util.PairtreeRoot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tile store that keeps tiles as files in a Pairtree under <code>djatoka.view.cache.dir</code>, or in each image's
+ * tile pack when <code>djatoka.view.cache.packed</code> is set. By default it grows without limit. Given a
+ * <code>djatoka.view.cache.size</code>, it drops the least recently used tile files to stay within it; only tiles it
+ * has stored or served since it was set up are counted, and packed tiles are never dropped.
+ */
+public class FileTileStore implements TileStore, Constants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileTileStore.class);
+
+    private final Map<String, Entry> myFiles = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private PairtreeRoot myRoot;
+
+    private boolean isPacked;
+
+    private long myMaxBytes;
+
+    private long myBytes;
+
+    private volatile EvictionListener myListener;
+
+    @Override
+    public void setup(final Properties aProps) throws IOException {
+        final String cacheDir = aProps.getProperty(VIEW_CACHE_DIR, System.getProperty("java.io.tmpdir"));
+
+        myRoot = new PairtreeRoot(cacheDir);
+        isPacked = Boolean.parseBoolean(aProps.getProperty(VIEW_CACHE_PACKED));
+        myMaxBytes = Long.parseLong(aProps.getProperty(VIEW_CACHE_SIZE, "0"));
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Storing tiles in {}", cacheDir);
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final String aID, final String aName) throws IOException {
+        if (isPacked) {
+            final TilePack pack = TilePack.forImage(myRoot, aID, false);
+
+            if (pack != null) {
+                try {
+                    final ByteBuffer tile = pack.get(aName);
+
+                    if (tile != null) {
+                        return tile;
+                    }
+                } finally {
+                    pack.release();
+                }
+            }
+        }
+
+        final File file = getFile(aID, aName);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        final ByteBuffer tile;
+
+        try {
+            tile = read(file);
+        } catch (final IOException details) {
+            // It may have been dropped, or moved into its pack, since we looked
+            if (!file.exists()) {
+                return null;
+            }
+
+            throw details;
+        }
+
+        track(aID, aName, tile.capacity());
+        return tile.asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean contains(final String aID, final String aName) {
+        try {
+            if (isPacked) {
+                final TilePack pack = TilePack.forImage(myRoot, aID, false);
+
+                if (pack != null) {
+                    try {
+                        if (pack.contains(aName)) {
+                            return true;
+                        }
+                    } finally {
+                        pack.release();
+                    }
+                }
+            }
+
+            return getFile(aID, aName).exists();
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to look for {} for {}: {}", aName, aID, details.getMessage());
+            }
+
+            return false;
+        }
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final File aTile) throws IOException {
+        final File file = getFile(aID, aName);
+        final File dir = file.getParentFile();
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create tile cache directory: " + dir);
+        }
+
+        // Tiles rendered on another file system have to be copied
+        if (!aTile.renameTo(file)) {
+            final FileInputStream stream = new FileInputStream(aTile);
+
+            try {
+                write(file, read(stream));
+            } finally {
+                stream.close();
+            }
+
+            if (!aTile.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Stored tile file not deleted: {}", aTile);
+            }
+        }
+
+        stored(aID, aName, file);
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final ByteBuffer aTile) throws IOException {
+        if (isPacked) {
+            final TilePack pack = TilePack.forImage(myRoot, aID);
+
+            try {
+                if (pack.add(aName, aTile.duplicate())) {
+                    return;
+                }
+            } finally {
+                pack.release();
+            }
+        }
+
+        final File file = getFile(aID, aName);
+        final File dir = file.getParentFile();
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create tile cache directory: " + dir);
+        }
+
+        write(file, aTile.duplicate());
+        stored(aID, aName, file);
+    }
+
+    @Override
+    public boolean remove(final String aID, final String aName) {
+        forget(aID, aName);
+
+        try {
+            return getFile(aID, aName).delete();
+        } catch (final IOException details) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setEvictionListener(final EvictionListener aListener) {
+        myListener = aListener;
+    }
+
+    @Override
+    public void close() {
+        if (isPacked) {
+            TilePack.closeAll();
+        }
+    }
+
+    /**
+     * Packs a newly stored tile file, if tiles are packed, and counts it against the store's size if it isn't.
+     */
+    private void stored(final String aID, final String aName, final File aFile) {
+        if (isPacked) {
+            try {
+                final TilePack pack = TilePack.forImage(myRoot, aID);
+
+                try {
+                    if (pack.add(aFile)) {
+                        return;
+                    }
+                } finally {
+                    pack.release();
+                }
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("{}'s tile pack is full; leaving {} as a file", aID, aFile);
+                }
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to pack {} for {}: {}", aFile, aID, details.getMessage());
+                }
+            }
+        }
+
+        track(aID, aName, aFile.length());
+    }
+
+    /**
+     * Notes that a tile file was used, dropping the least recently used ones if the store's gone over its size.
+     */
+    private void track(final String aID, final String aName, final long aLength) {
+        if (myMaxBytes <= 0) {
+            return;
+        }
+
+        final List<Entry> evicted = new ArrayList<Entry>();
+
+        synchronized (myFiles) {
+            final Entry replaced = myFiles.put(getKey(aID, aName), new Entry(aID, aName, aLength));
+
+            myBytes += aLength - (replaced == null ? 0 : replaced.myLength);
+
+            final Iterator<Entry> iterator = myFiles.values().iterator();
+
+            while (myBytes > myMaxBytes && iterator.hasNext()) {
+                final Entry eldest = iterator.next();
+
+                iterator.remove();
+                myBytes -= eldest.myLength;
+                evicted.add(eldest);
+            }
+        }
+
+        for (final Entry eldest : evicted) {
+            evict(eldest);
+        }
+    }
+
+    private void forget(final String aID, final String aName) {
+        if (myMaxBytes > 0) {
+            synchronized (myFiles) {
+                final Entry entry = myFiles.remove(getKey(aID, aName));
+
+                if (entry != null) {
+                    myBytes -= entry.myLength;
+                }
+            }
+        }
+    }
+
+    private void evict(final Entry aEntry) {
+        final EvictionListener listener = myListener;
+
+        try {
+            final File file = getFile(aEntry.myID, aEntry.myName);
+
+            if (listener != null && file.exists()) {
+                listener.evicted(aEntry.myID, aEntry.myName, read(file).asReadOnlyBuffer());
+            }
+
+            if (file.exists() && !file.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Dropped tile file not deleted: {}", file);
+            }
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to drop {} for {}: {}", aEntry.myName, aEntry.myID, details.getMessage());
+            }
+        }
+    }
+
+    private File getFile(final String aID, final String aName) throws IOException {
+        final PairtreeObject object = myRoot.getObject(aID);
+
+        return new File(object, aName);
+    }
+
+    private static ByteBuffer read(final File aFile) throws IOException {
+        final FileInputStream stream = new FileInputStream(aFile);
+
+        try {
+            return read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static ByteBuffer read(final FileInputStream aStream) throws IOException {
+        final FileChannel channel = aStream.getChannel();
+        final ByteBuffer tile = ByteBuffer.allocate((int) channel.size());
+
+        while (tile.hasRemaining() && channel.read(tile) != -1) {
+            // Keep reading until the whole tile is in memory
+        }
+
+        tile.flip();
+        return tile;
+    }
+
+    /**
+     * Writes a tile to a temporary file beside where it goes and renames it there, so a request never sees a partly
+     * written tile.
+     */
+    private static void write(final File aFile, final ByteBuffer aTile) throws IOException {
+        final File tmpFile = File.createTempFile("tile-", ".tmp", aFile.getParentFile());
+        final FileOutputStream stream = new FileOutputStream(tmpFile);
+
+        try {
+            final FileChannel channel = stream.getChannel();
+
+            while (aTile.hasRemaining()) {
+                channel.write(aTile);
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (!tmpFile.renameTo(aFile)) {
+            if (!tmpFile.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", tmpFile);
+            }
+
+            throw new IOException("Unable to move tile to " + aFile);
+        }
+    }
+
+    private static String getKey(final String aID, final String aName) {
+        return aID + '\u0000' + aName;
+    }
+
+    private static class Entry {
+
+        private final String myID;
+
+        private final String myName;
+
+        private final long myLength;
+
+        private Entry(final String aID, final String aName, final long aLength) {
+            myID = aID;
+            myName = aName;
+            myLength = aLength;
+        }
+    }
+}
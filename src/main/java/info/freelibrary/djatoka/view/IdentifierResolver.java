@@ -7,10 +7,8 @@ import gov.lanl.adore.djatoka.openurl.IReferentResolver;
 import gov.lanl.adore.djatoka.openurl.ResolverException;
 import gov.lanl.adore.djatoka.util.ImageRecord;
 import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.util.Metrics;
 import info.freelibrary.djatoka.util.URLEncode;
-import info.freelibrary.util.PairtreeObject;
-import info.freelibrary.util.PairtreeRoot;
-import info.freelibrary.util.PairtreeUtils;
 import info.freelibrary.util.StringUtils;
 import info.openurl.oom.entities.Referent;
 import org.slf4j.Logger;
@@ -20,12 +18,14 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,15 +33,24 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IdentifierResolver.class);
 
-    private final IReferentMigrator myMigrator = new DjatokaImageMigrator();
+    /** Default number of raw request identifiers whose extracted IDs are remembered */
+    public static final int DEFAULT_ID_CACHE_SIZE = 10000;
 
-    private Map<String, ImageRecord> myRemoteImages;
+    // Marks a request that matched none of the validations
+    private static final Object REJECTED = new Object();
 
-    private final List<Pattern> myIngestIdValidations = new CopyOnWriteArrayList<Pattern>();
+    private static final Metrics.Timer RESOLVE_TIMER = Metrics.timer("resolve");
 
-    private final List<String> myIngestImageHosts = new CopyOnWriteArrayList<String>();
+    private final DjatokaImageMigrator myMigrator = new DjatokaImageMigrator();
 
-    private File myJP2Dir;
+    // Replaced, rather than changed, when the properties are reloaded
+    private volatile Validations myIngestIdValidations = new Validations(Collections.<Pattern> emptyList());
+
+    private volatile List<String> myIngestImageHosts = Collections.emptyList();
+
+    private volatile int myIDCacheSize = DEFAULT_ID_CACHE_SIZE;
+
+    private JP2Index myIndex;
 
     /**
      * Extracts and decodes the identifier from the request
@@ -51,14 +60,51 @@ public class IdentifierResolver implements IReferentResolver, Constants {
      *         djatoka.known.ingest.sources property in djatoka-properties.xml, or else
      *         null if there were no matches.
      */
-    public String extractID(String aRequest) {
+    public String extractID(final String aRequest) {
+        if (aRequest == null) {
+            return null;
+        }
+
+        // IDs are remembered with the validations they were extracted by, so a reload can't mix old and new
+        final Validations validations = myIngestIdValidations;
+        final ConcurrentMap<String, Object> extractedIDs = validations.myExtractedIDs;
+        final Object extracted = extractedIDs.get(aRequest);
+
+        if (extracted == null) {
+            final String id = matchID(validations.myPatterns, aRequest);
+
+            // Just a bound on its size; the IDs that are dropped are cheap to extract again
+            if (extractedIDs.size() >= myIDCacheSize) {
+                final Iterator<String> iterator = extractedIDs.keySet().iterator();
+
+                for (int count = myIDCacheSize / 4 + 1; count > 0 && iterator.hasNext(); count--) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+
+            extractedIDs.put(aRequest, id == null ? REJECTED : id);
+            return id;
+        }
+
+        return extracted == REJECTED ? null : (String) extracted;
+    }
+
+    /**
+     * Runs the configured validations against the supplied request to find its identifier.
+     *
+     * @param aPatterns the validations
+     * @param aRequest the request ID
+     * @return the matched, single-encoded identifier or null if there were no matches
+     */
+    private static String matchID(final List<Pattern> aPatterns, String aRequest) {
         // turn double-encoded slashes into single-encoded slashes
         aRequest = URLEncode.pathSafetyDecode(aRequest);
         // matching happens at decoded level
         aRequest = URLEncode.decode(aRequest);
 
         // make sure id matches an allowed pattern
-	    for (Pattern pattern : myIngestIdValidations) {
+	    for (Pattern pattern : aPatterns) {
 	        final Matcher matcher = pattern.matcher(aRequest);
 
 	        if (matcher.matches() && matcher.groupCount() > 0) {
@@ -118,12 +164,18 @@ public class IdentifierResolver implements IReferentResolver, Constants {
      */
     @Override
     public ImageRecord getImageRecord(final String aRequest) throws ResolverException {
-        final String id = extractID(aRequest);
-        if (id != null) {
-            return getImageRecordForId(id);
-        }
+        final long start = System.nanoTime();
 
-	    return null;
+        try {
+            final String id = extractID(aRequest);
+            if (id != null) {
+                return getImageRecordForId(id);
+            }
+
+            return null;
+        } finally {
+            RESOLVE_TIMER.stop(start);
+        }
     }
 
     /**
@@ -161,7 +213,9 @@ public class IdentifierResolver implements IReferentResolver, Constants {
     public int getStatus(final String aReferentID) {
         final String id = extractID(aReferentID);
 
-        if (getImageRecordForId(id) != null) {
+        if (id == null) {
+            return HttpServletResponse.SC_NOT_FOUND;
+        } else if (getImageRecordForId(id) != null) {
             return HttpServletResponse.SC_OK;
         } else if (myMigrator.getProcessingList().contains(id)) {
             return HttpServletResponse.SC_ACCEPTED;
@@ -170,6 +224,18 @@ public class IdentifierResolver implements IReferentResolver, Constants {
         }
     }
 
+    /**
+     * Tells the resolver that a JP2 for the supplied identifier has been put into the Pairtree.
+     *
+     * @param aID The identifier used to store the JP2
+     * @param aJP2 The JP2 file in the Pairtree
+     */
+    public void imageIngested(final String aID, final File aJP2) {
+        if (myIndex != null) {
+            myIndex.put(aID, aJP2);
+        }
+    }
+
     /**
      * Sets the properties for this identifier resolver.
      * 
@@ -180,14 +246,85 @@ public class IdentifierResolver implements IReferentResolver, Constants {
         final String idValidations = aProps.getProperty(INGEST_VALIDATIONS);
         final String imageHosts = aProps.getProperty(INGEST_HOSTS);
 
-        myJP2Dir = new File(aProps.getProperty(JP2_DATA_DIR));
-        myMigrator.setPairtreeRoot(myJP2Dir);
-        myRemoteImages = new ConcurrentHashMap<String, ImageRecord>();
+        final File jp2Dir = new File(aProps.getProperty(JP2_DATA_DIR));
+
+        myMigrator.setPairtreeRoot(jp2Dir);
+
+        try {
+            myIndex = new JP2Index(jp2Dir);
+        } catch (final IOException details) {
+            throw new ResolverException(details);
+        }
+
+        Metrics.gauge("jp2_index_size", new Metrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return myIndex.size();
+            }
+        });
+
+        Metrics.gauge("remote_fetches", new Metrics.Gauge() {
+
+            @Override
+            public long getValue() {
+                return myMigrator.getProcessingList().size();
+            }
+        });
+
+        if (aProps.containsKey(JP2_INDEX_MISS_TTL)) {
+            try {
+                myIndex.setMissTTL(Long.parseLong(aProps.getProperty(JP2_INDEX_MISS_TTL).trim()));
+            } catch (final NumberFormatException details) {
+                LOGGER.warn("Configured JP2 index miss TTL isn't a valid number: {}", aProps
+                        .getProperty(JP2_INDEX_MISS_TTL));
+            }
+        }
+
+        if (aProps.containsKey(JP2_INDEX_SIZE)) {
+            try {
+                myIndex.setMaxSize(Integer.parseInt(aProps.getProperty(JP2_INDEX_SIZE).trim()));
+            } catch (final NumberFormatException details) {
+                LOGGER.warn("Configured JP2 index size isn't a valid number: {}", aProps.getProperty(JP2_INDEX_SIZE));
+            }
+        }
+
+        if (aProps.containsKey(JP2_INDEX_WATCHES)) {
+            try {
+                myIndex.setMaxWatchedDirs(Integer.parseInt(aProps.getProperty(JP2_INDEX_WATCHES).trim()));
+            } catch (final NumberFormatException details) {
+                LOGGER.warn("Configured JP2 index watches isn't a valid number: {}", aProps
+                        .getProperty(JP2_INDEX_WATCHES));
+            }
+        }
+
+        if (aProps.containsKey(REMOTE_FETCH_TIMEOUT)) {
+            try {
+                myMigrator.setFetchTimeout(Long.parseLong(aProps.getProperty(REMOTE_FETCH_TIMEOUT).trim()));
+            } catch (final NumberFormatException details) {
+                LOGGER.warn("Configured remote fetch timeout isn't a valid number: {}", aProps
+                        .getProperty(REMOTE_FETCH_TIMEOUT));
+            }
+        }
+
+        if (aProps.containsKey(ID_CACHE_SIZE)) {
+            try {
+                myIDCacheSize = Integer.parseInt(aProps.getProperty(ID_CACHE_SIZE).trim());
+            } catch (final NumberFormatException details) {
+                LOGGER.warn("Configured ID cache size isn't a valid number: {}", aProps.getProperty(ID_CACHE_SIZE));
+            }
+        }
+
+        final List<Pattern> patterns = new ArrayList<Pattern>();
 
         for (String validation : idValidations.split("\\s+")) {
-            myIngestIdValidations.add(Pattern.compile(validation)); // pre-compile regular expressions
+            patterns.add(Pattern.compile(validation)); // pre-compile regular expressions
         }
-        myIngestImageHosts.addAll(Arrays.asList(imageHosts.split("\\s+")));
+
+        // Built first and then swapped in, so requests never see them half loaded; extracted IDs depend on the
+        // validations, so they start fresh with them
+        myIngestIdValidations = new Validations(Collections.unmodifiableList(patterns));
+        myIngestImageHosts = Collections.unmodifiableList(Arrays.asList(imageHosts.split("\\s+")));
     }
 
     /**
@@ -203,12 +340,9 @@ public class IdentifierResolver implements IReferentResolver, Constants {
         }
 
         try {
-            final PairtreeRoot pairtree = new PairtreeRoot(myJP2Dir);
-            final PairtreeObject dir = pairtree.getObject(id);
-            final String filename = PairtreeUtils.encodeID(id);
-            final File file = new File(dir, filename);
+            final File file = myIndex.get(id);
 
-            if (file.exists()) {
+            if (file != null) {
                 image = new ImageRecord();
                 image.setIdentifier(id);
                 image.setImageFile(file.getAbsolutePath());
@@ -217,7 +351,7 @@ public class IdentifierResolver implements IReferentResolver, Constants {
                     LOGGER.debug("JP2 found in Pairtree cache: {}", file.getAbsolutePath());
                 }
             } else if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Failed to find a JP2 in Pairtree cache: {}", pairtree.getAbsolutePath());
+                LOGGER.debug("Failed to find a JP2 in Pairtree cache for: {}", id);
             }
         } catch (final IOException details) {
             LOGGER.error("Failed to load file from cache", details);
@@ -235,32 +369,14 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
         try {
             final URI uri = new URI(aURL);
-            File imageFile;
-
-            // Check to see if it's already in the processing queue
-            if (myMigrator.getProcessingList().contains(id)) {
-                Thread.sleep(1000);
-                int index = 0;
-
-                while (myMigrator.getProcessingList().contains(id) && index < (5 * 60)) {
-                    Thread.sleep(1000);
-                    index++;
-                }
-
-                if (myRemoteImages.containsKey(id)) {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Retrieving {} from remote images cache", id);
-                    }
-
-                    return myRemoteImages.get(id);
-                }
-            }
 
-            imageFile = myMigrator.convert(id, uri);
-            image = new ImageRecord(id, imageFile.getAbsolutePath());
+            // If another request is already fetching this image, this waits on that fetch's result
+            final File imageFile = myMigrator.convert(id, uri);
 
             if (imageFile.length() > 0) {
-                myRemoteImages.put(id, image);
+                image = new ImageRecord(id, imageFile.getAbsolutePath());
+                myIndex.put(id, imageFile);
+
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("** Returning JP2 image from getRemoteImage() **");
                 }
@@ -275,4 +391,18 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
         return image;
     }
+
+    /**
+     * The ID validations and the IDs that have been extracted with them.
+     */
+    private static final class Validations {
+
+        private final List<Pattern> myPatterns;
+
+        private final ConcurrentMap<String, Object> myExtractedIDs = new ConcurrentHashMap<String, Object>();
+
+        private Validations(final List<Pattern> aPatterns) {
+            myPatterns = aPatterns;
+        }
+    }
 }
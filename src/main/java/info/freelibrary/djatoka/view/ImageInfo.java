@@ -19,6 +19,8 @@ import java.util.List;
 
 public class ImageInfo {
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     private final Document myInfoDoc;
 
     private final int myLevel;
@@ -134,8 +136,7 @@ public class ImageInfo {
      * @return The JSON representation of the image's metadata
      */
     public String toJSON(final String aService, final String aPrefix) throws JsonProcessingException {
-        final ObjectMapper mapper = new ObjectMapper();
-        final ObjectNode rootNode = mapper.createObjectNode();
+        final ObjectNode rootNode = MAPPER.createObjectNode();
         final ArrayNode formats, scaleFactors;
         final String id = URLEncode.pathSafetyEncode(getIdentifier());
 
@@ -167,7 +168,7 @@ public class ImageInfo {
         rootNode.put("qualities", rootNode.arrayNode().add("native"));
         rootNode.put("profile", Constants.IIIF_URL + "1.1/compliance.html#level1");
 
-        return mapper.writeValueAsString(rootNode);
+        return MAPPER.writeValueAsString(rootNode);
     }
 
     /**
@@ -4,14 +4,21 @@ package info.freelibrary.djatoka.view;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.OpenURLServlet;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
+import gov.lanl.adore.djatoka.util.ImageRecord;
 import info.freelibrary.djatoka.Constants;
 import info.freelibrary.djatoka.iiif.IIIFRequest;
 import info.freelibrary.djatoka.iiif.ImageRequest;
 import info.freelibrary.djatoka.iiif.InfoRequest;
+import info.freelibrary.djatoka.iiif.Quality;
 import info.freelibrary.djatoka.iiif.Region;
 import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.CanonicalRequest;
+import info.freelibrary.djatoka.util.Metrics;
 import info.freelibrary.djatoka.util.URLEncode;
 import info.freelibrary.util.*;
+import info.openurl.oom.OpenURLResponse;
 import nu.xom.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,10 +31,13 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.*;
 import java.net.URL;
-import java.util.Enumeration;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 
@@ -55,9 +65,36 @@ public class ImageServlet extends HttpServlet implements Constants {
 
     private static final String XML_TEMPLATE = "/WEB-INF/metadata.xml";
 
-    /** PairTree tile cache, where we move tiles generated by Djatoka from its temp cache dir */
+    /** PairTree cache of image metadata */
     private static PairtreeRoot tileCache = null;
 
+    /** Where we move tiles generated by Djatoka from its temp cache dir */
+    private static TileStore tileStore = null;
+
+    private static final Metrics.Timer CACHE_READ_TIMER = Metrics.timer("image_cache_read");
+
+    private static final Metrics.Timer CACHE_WRITE_TIMER = Metrics.timer("image_cache_write");
+
+    private static final Metrics.Timer RENDER_TIMER = Metrics.timer("render");
+
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("image_cache_hits");
+
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter("image_cache_misses");
+
+    private static boolean canonicalRedirect = false;
+
+    /** Ready-to-send image information responses; null if they aren't to be kept */
+    private static InfoCache infoCache = null;
+
+    /** Renders tiles a viewer is likely to ask for next; null unless prefetching is enabled */
+    private static TilePrefetcher prefetcher = null;
+
+    /** Counts the tiles asked for most; null unless the tile cache is warmed at startup */
+    private static PopularityLog popularity = null;
+
+    /** Warms the tile cache with the tiles asked for most before the last shutdown */
+    private static CacheWarmer warmer = null;
+
     /** a locally accessible URL to the root of the server this webapp is running on
      * optional: leave null to just use the same URL that externally connecting clients use.
      * Useful if e.g. externally visible on https://server.com, but internally also at http://localhost:8080 */
@@ -86,24 +123,49 @@ public class ImageServlet extends HttpServlet implements Constants {
 
 	    if (iiif instanceof InfoRequest) {
             try {
-                final int[] config = getHeightWidthAndLevels(aRequest, aResponse);
-                final ImageInfo info = new ImageInfo(id, config[0], config[1], config[2]);
-                final ServletOutputStream outStream = aResponse.getOutputStream();
+                final boolean xml = iiif.getExtension().equals("xml");
+                final String server = getServer(aRequest); // needs to be the externally-accessible address
 
-                if (iiif.getExtension().equals("xml")) {
-                    info.toStream(outStream);
-                } else {
-                    final String server = getServer(aRequest); // needs to be the externally-accessible address
+                // per IIIF spec, the prefix includes the contextPath already.
+                final String prefix = iiif.getServicePrefix();
+                final String variant = xml ? "xml" : "json " + server + prefix;
+                final String version = infoCache == null ? null : getImageVersion(id);
+                InfoCache.Info cached = version == null ? null : infoCache.get(id, variant, version);
+
+                if (cached == null) {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                    // A JP2 that's changed needs new metadata before its information is built again
+                    if (version != null) {
+                        infoCache.removeStale(id, version);
+                    }
 
-                    // per IIIF spec, the prefix includes the contextPath already.
-                    final String prefix = iiif.getServicePrefix();
+                    final int[] config = getHeightWidthAndLevels(aRequest, aResponse);
+                    final ImageInfo info = new ImageInfo(id, config[0], config[1], config[2]);
 
-                    info.addFormat("jpg"); // FIXME: Configurable options
+                    if (prefetcher != null) {
+                        prefetcher.infoRequested(id, config[1], config[0], config[2]);
+                    }
 
-                    outStream.print(info.toJSON(server, prefix));
+                    if (xml) {
+                        info.toStream(bytes);
+                    } else {
+                        info.addFormat("jpg"); // FIXME: Configurable options
+                        bytes.write(info.toJSON(server, prefix).getBytes("UTF-8"));
+                    }
+
+                    if (version != null) {
+                        cached = infoCache.put(id, variant, version, bytes.toByteArray());
+                    } else {
+                        sendInfo(aRequest, aResponse, bytes.toByteArray(), null, null);
+                    }
+                } else if (prefetcher != null) {
+                    prefetcher.infoRequested(id, 0, 0, 0);
                 }
 
-                outStream.close();
+                if (cached != null) {
+                    sendInfo(aRequest, aResponse, cached.getBytes(), cached.getGzipped(), cached.getETag());
+                }
             } catch (final FileNotFoundException details) {
                 aResponse.sendError(HttpServletResponse.SC_NOT_FOUND, id + " not found");
             }
@@ -112,15 +174,16 @@ public class ImageServlet extends HttpServlet implements Constants {
                 LOGGER.debug("Request is handled via the IIIFRequest shim");
             }
 
-            if (tileCache == null) { // shouldn't actually be possible unless java.io.tmpdir wasn't there
+            if (tileStore == null) { // shouldn't actually be possible unless java.io.tmpdir wasn't there
                 LOGGER.error("Cache isn't configured correctly");
                 aResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "tile cache not found");
+                return;
             }
 
             final ImageRequest imageRequest = (ImageRequest) iiif;
-            final String scale = imageRequest.getSize().toString();
             final Region iiifRegion = imageRequest.getRegion();
-            final float rotation = imageRequest.getRotation();
+            String scale = imageRequest.getSize().toString();
+            float rotation = imageRequest.getRotation();
             String region;
 
             // Djatoka expects a different order from what OpenSeadragon sends
@@ -138,8 +201,76 @@ public class ImageServlet extends HttpServlet implements Constants {
                 region = rsb.toString();
             }
 
+            final Quality quality = imageRequest.getQuality();
+
+            // Greyscale and bitonal images are converted, and cached, apart from the image's own colors
+            final String conversion = quality.isGrey() || quality.isBitonal() ? quality.toString() : null;
+
+            if (rotation == 0f && !iiifRegion.isFullSize() && !iiifRegion.usesPercents() &&
+                    imageRequest.getSize().hasWidth() && !imageRequest.getSize().hasHeight()) {
+                final int[] tile = TilePrefetcher.getTile(iiifRegion.getX(), iiifRegion.getY(), iiifRegion.getWidth(),
+                        iiifRegion.getHeight(), imageRequest.getSize().getWidth());
+
+                // Only tiles in the image's own colors are warmed, since that's how they're prefetched
+                if (popularity != null && tile != null && conversion == null) {
+                    popularity.record(id, tile[0], tile[1], tile[2]);
+                }
+
+                if (prefetcher != null) {
+                    prefetcher.tileRequested(id, iiifRegion.getX(), iiifRegion.getY(), iiifRegion.getWidth(),
+                            iiifRegion.getHeight(), imageRequest.getSize().getWidth());
+                }
+            }
+
+            // Tiles made with an older watermark configuration are left behind when it changes, and tiles that are
+            // watermarked for this request's referrer are kept apart from those that aren't
+            final String transformVersion = OpenURLJP2KService.getTransformVersion(aRequest.getHeader("referer"),
+                    aRequest.getRemoteAddr());
+            final String requestedName = CacheUtils.getFileName(level, region, scale, rotation, conversion,
+                    transformVersion);
+
+            // Most tiles are asked for in their canonical form already, so they're looked for under the name they're
+            // asked for before their image is resolved
+            if (!canonicalRedirect && serveCachedImage(id, requestedName, aResponse)) {
+                return;
+            }
+
+            final int[] imageSize = getImageSize(id);
+            final CanonicalRequest canonical = imageSize == null ? null : CanonicalRequest.fromIIIF(iiifRegion,
+                    imageRequest.getSize(), imageRequest.getRotation(), imageSize[0], imageSize[1]);
+
+            if (canonical != null && canonicalRedirect) {
+                final String location = getCanonicalLocation(aRequest, canonical);
+
+                if (location != null) {
+                    aResponse.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
+                    aResponse.setHeader("Location", location);
+                    return;
+                }
+            }
+
+            if (canonical != null) {
+                // The same pixels are cached under the same name, however they were asked for
+                region = canonical.getRegion();
+                scale = canonical.getScale();
+                rotation = canonical.getRotation();
+            }
+
+            final String fileName = CacheUtils.getFileName(level, region, scale, rotation, conversion,
+                    transformVersion);
+
             // serve the image tile, ideally from cache
-            checkImageCache(id, level, region, scale, rotation, aRequest, aResponse);
+            if ((canonicalRedirect || !fileName.equals(requestedName)) && serveCachedImage(id, fileName, aResponse)) {
+                return;
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{} for {} not found in cache", fileName, id);
+            }
+
+            // TODO: make property for allowNonCachedTiles
+            CACHE_MISSES.increment();
+            renderNewImage(id, level, region, scale, rotation, conversion, fileName, aRequest, aResponse);
         } else {
 		    aResponse.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "unrecognized IIIF message type");
 	    }
@@ -180,9 +311,61 @@ public class ImageServlet extends HttpServlet implements Constants {
                 LOGGER.debug("Cache directory set to {}", cacheDir);
             }
 
+            final String storeClass = props.getProperty(VIEW_CACHE_STORE, FileTileStore.class.getName());
+
+            try {
+                final TileStore store = (TileStore) Class.forName(storeClass).newInstance();
+
+                store.setup(props);
+                tileStore = store;
+            } catch (final Exception details) {
+                if (LOGGER.isErrorEnabled()) {
+                    LOGGER.error("Unable to set up tile store {}: {}", storeClass, details.getMessage());
+                }
+            }
+
+            canonicalRedirect = Boolean.parseBoolean(props.getProperty(VIEW_CANONICAL_REDIRECT));
+
+            final int infoCacheSize = Integer.parseInt(props.getProperty(INFO_CACHE_SIZE, "10000"));
+
+            if (tileCache != null && infoCacheSize > 0) {
+                infoCache = new InfoCache(tileCache, infoCacheSize, Boolean.parseBoolean(props.getProperty(
+                        INFO_CACHE_GZIP, "true")));
+            }
+
             if (props.containsKey(INTERNAL_SERVER)) {
                 internalServer = props.getProperty(INTERNAL_SERVER);
             }
+
+            if (tileStore != null && Boolean.parseBoolean(props.getProperty(PREFETCH_ENABLED))) {
+                prefetcher = new TilePrefetcher(tileStore, Integer.parseInt(props.getProperty(PREFETCH_IMAGE_BUDGET,
+                        "64")), Integer.parseInt(props.getProperty(PREFETCH_LEVELS, "3")), Integer.parseInt(props
+                        .getProperty(PREFETCH_QUEUE_SIZE, "256")), Integer.parseInt(props.getProperty(
+                        PREFETCH_BLOCK_SIZE, "4")));
+            }
+
+            if (tileStore != null && Boolean.parseBoolean(props.getProperty(WARMUP_ENABLED))) {
+                final String logFile = props.getProperty(WARMUP_LOG, new File(cacheDir, "popularity.txt").getPath());
+
+                popularity = new PopularityLog(new File(logFile), Integer.parseInt(props.getProperty(WARMUP_LOG_SIZE,
+                        "10000")));
+
+                try {
+                    popularity.load();
+                } catch (final IOException details) {
+                    if (LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Unable to load popularity log {}: {}", logFile, details.getMessage());
+                    }
+                }
+
+                // Warming renders tiles the same way prefetching does, whether or not prefetching is enabled
+                warmer = new CacheWarmer(popularity, prefetcher != null ? prefetcher : new TilePrefetcher(tileStore,
+                        0, 0, 1, 1), Integer.parseInt(props.getProperty(WARMUP_COUNT, "1000")), Long.parseLong(props
+                        .getProperty(WARMUP_DELAY, "10000")), Long.parseLong(props.getProperty(WARMUP_TIME,
+                        "600000")), Double.parseDouble(props.getProperty(WARMUP_CPU, "0.25")), Long.parseLong(props
+                        .getProperty(WARMUP_LOG_INTERVAL, "300000")));
+                warmer.start();
+            }
         }
 
         // get the base URL that this whole webapp is server at (relative to server root)
@@ -204,6 +387,27 @@ public class ImageServlet extends HttpServlet implements Constants {
         LOGGER.debug("IIIF servlet using resolver URL of {}", resolverPath);
     }
 
+    @Override
+    public void destroy() {
+        if (warmer != null) {
+            warmer.shutdown();
+            warmer = null;
+            popularity = null;
+        }
+
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+
+        if (tileStore != null) {
+            tileStore.close();
+            tileStore = null;
+        }
+
+        super.destroy();
+    }
+
     /* this is incorrect for 2 reasons:
      * 1) HEAD should return the exact same headers as GET, per HTTP spec.
      * 2) This returns dims of entire full res image, no matter what piece is requested.
@@ -389,39 +593,198 @@ public class ImageServlet extends HttpServlet implements Constants {
         return new int[] { height, width, levels };
     }
 
-    private void checkImageCache(final String aID, final String aLevel, final String aRegion, final String aScale,
-            final float aRotation, final HttpServletRequest aRequest, final HttpServletResponse aResponse)
-            throws IOException, ServletException {
-        final PairtreeObject cacheObject = tileCache.getObject(aID);
-        final String fileName = CacheUtils.getFileName(aLevel, aRegion, aScale, aRotation);
-        final File imageFile = new File(cacheObject, fileName);
+    /**
+     * Serves a tile from the tile store; returns false, without touching the response, if it isn't there.
+     */
+    private static boolean serveCachedImage(final String aID, final String aFileName,
+            final HttpServletResponse aResponse) throws IOException {
+        final long start = System.nanoTime();
+        ByteBuffer tile = null;
 
-        if (imageFile.exists()) {
+        try {
+            tile = tileStore.get(aID, aFileName);
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to read {} for {} from the tile store: {}", aFileName, aID, details.getMessage());
+            }
+        }
+
+        if (tile != null) {
             final ServletOutputStream outStream = aResponse.getOutputStream();
+            final WritableByteChannel channel = Channels.newChannel(outStream);
+
+            CACHE_HITS.increment();
 
-            aResponse.setHeader("Content-Length", "" + imageFile.length());
+            aResponse.setHeader("Content-Length", "" + tile.remaining());
             aResponse.setHeader("Cache-Control", "public, max-age=4838400");
             aResponse.setContentType("image/jpg");
 
-            IOUtils.copyStream(imageFile, outStream);
+            while (tile.hasRemaining()) {
+                channel.write(tile);
+            }
+
             IOUtils.closeQuietly(outStream);
+            CACHE_READ_TIMER.stop(start);
 
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{} served from Pairtree cache", imageFile);
+                LOGGER.debug("{} for {} served from the tile store", aFileName, aID);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Has the OpenURL resolver render a new image and then moves it into the tile store. The resolver renders it
+     * asynchronously, when it can, so the forward may return before the image is rendered; the image is cached by the
+     * listener the resolver hands its result to, which doesn't use the request.
+     */
+    private void renderNewImage(final String aID, final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aQuality, final String aFileName,
+            final HttpServletRequest aRequest, final HttpServletResponse aResponse) throws IOException,
+            ServletException {
+        final long start = System.nanoTime();
+
+        aRequest.setAttribute(OpenURLServlet.RENDER_LISTENER, new OpenURLServlet.RenderListener() {
+
+            @Override
+            public void rendered(final OpenURLResponse aResult) {
+                RENDER_TIMER.stop(start);
+
+                // The resolver was too busy to render it, or it was too big to, so there's nothing to cache
+                if (aResult == null || aResult.getStatus() != HttpServletResponse.SC_OK) {
+                    return;
+                }
+
+                final long writeStart = System.nanoTime();
+
+                cacheNewImage(aResult.getSessionMap(), aID, aFileName);
+
+                CACHE_WRITE_TIMER.stop(writeStart);
             }
-        } else if (true /* TODO: make property for allowNonCachedTiles */) {
+        });
+
+        serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aQuality, aRequest, aResponse);
+    }
+
+    /**
+     * Sends an image information response, gzipped if the client accepts that and there's a gzipped copy. When there's
+     * an entity tag, a client that already has the response is told it hasn't changed.
+     */
+    private static void sendInfo(final HttpServletRequest aRequest, final HttpServletResponse aResponse,
+            final byte[] aBytes, final byte[] aGzipped, final String aETag) throws IOException {
+        final String acceptEncoding = aRequest.getHeader("Accept-Encoding");
+        byte[] bytes = aBytes;
+
+        if (aETag != null) {
+            aResponse.setHeader("ETag", aETag);
+
+            if (aETag.equals(aRequest.getHeader("If-None-Match"))) {
+                aResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        if (aGzipped != null) {
+            aResponse.setHeader("Vary", "Accept-Encoding");
+
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                aResponse.setHeader("Content-Encoding", "gzip");
+                bytes = aGzipped;
+            }
+        }
+
+        final ServletOutputStream outStream = aResponse.getOutputStream();
+
+        aResponse.setContentLength(bytes.length);
+        outStream.write(bytes);
+        outStream.close();
+    }
+
+    /**
+     * Gets the version of an image's JP2, so information built from an older one isn't sent; returns null if it can't
+     * be found yet.
+     */
+    private static String getImageVersion(final String aID) {
+        final File jp2 = getImageFile(aID);
+
+        return jp2 == null ? null : InfoCache.getVersion(jp2);
+    }
+
+    /**
+     * Gets the width and height of an image, so a request for it can be put in canonical form; returns null if its
+     * JP2 can't be found yet.
+     */
+    private static int[] getImageSize(final String aID) {
+        final File jp2 = getImageFile(aID);
+
+        return jp2 == null ? null : CanonicalRequest.getImageSize(jp2);
+    }
+
+    private static File getImageFile(final String aID) {
+        if (!ReferentManager.isInit()) {
+            return null;
+        }
+
+        try {
+            final ImageRecord record = ReferentManager.getImageRecord(aID);
+
+            return record == null || record.getImageFile() == null ? null : new File(record.getImageFile());
+        } catch (final Exception details) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{} not found in cache", imageFile);
+                LOGGER.debug("Unable to find the JP2 for {}: {}", aID, details.getMessage());
             }
 
-            serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aRequest, aResponse);
-            cacheNewImage(aRequest, aID + "_" + fileName, imageFile);
+            return null;
         }
     }
 
+    /**
+     * Gets the URL of the canonical form of an image request; returns null if the request is already in it.
+     */
+    private static String getCanonicalLocation(final HttpServletRequest aRequest, final CanonicalRequest aCanonical)
+            throws UnsupportedEncodingException {
+        final String uri = aRequest.getRequestURI();
+        final String[] parts = uri.split("/");
+
+        if (parts.length < 5) {
+            return null;
+        }
+
+        final String region = URLDecoder.decode(parts[parts.length - 4], "UTF-8");
+        final String size = URLDecoder.decode(parts[parts.length - 3], "UTF-8");
+        final String rotation = URLDecoder.decode(parts[parts.length - 2], "UTF-8");
+        final String canonicalRotation = Integer.toString(aCanonical.getRotation());
+
+        if (region.equals(aCanonical.getIIIFRegion()) && size.equals(aCanonical.getIIIFSize()) && rotation.equals(
+                canonicalRotation)) {
+            return null;
+        }
+
+        final StringBuilder location = new StringBuilder(getServer(aRequest));
+        int start = uri.length();
+
+        // Keeps the identifier, and quality and format, as they were sent
+        for (int index = 0; index < 4; index++) {
+            start = uri.lastIndexOf('/', start - 1);
+        }
+
+        location.append(uri.substring(0, start)).append('/').append(aCanonical.getIIIFRegion()).append('/');
+        location.append(aCanonical.getIIIFSize()).append('/').append(canonicalRotation).append('/');
+        location.append(parts[parts.length - 1]);
+
+        if (aRequest.getQueryString() != null) {
+            location.append('?').append(aRequest.getQueryString());
+        }
+
+        return location.toString();
+    }
+
     private void serveNewImage(final String aID, final String aLevel, final String aRegion, final String aScale,
-            final float aRotation, final HttpServletRequest aRequest, final HttpServletResponse aResponse)
-            throws IOException, ServletException {
+            final float aRotation, final String aQuality, final HttpServletRequest aRequest,
+            final HttpServletResponse aResponse) throws IOException, ServletException {
         final String safeID = URLEncode.pathSafetyEncode(aID);
         RequestDispatcher dispatcher;
         String[] values;
@@ -439,6 +802,10 @@ public class ImageServlet extends HttpServlet implements Constants {
             url = resolverPath +StringUtils.format(RESOLVE_REGION_QUERY, values);
         }
 
+        if (aQuality != null) {
+            url += "&svc.quality=" + aQuality;
+        }
+
         // Right now we just let the OpenURL interface do the work
         dispatcher = aRequest.getRequestDispatcher(url);
 
@@ -451,51 +818,50 @@ public class ImageServlet extends HttpServlet implements Constants {
 
     /**
      * For an image that was just served by the OpenURL/Djatoka system, move its file from their cache to ours.
-     * @param aRequest the incoming image request that Djatoka just fulfilled
-     * @param aKey the image ID + underscore + and the combined display parameters, which match what Djatoka just served.
-     * @param aDestFile the destination file in the tile cache PairTree to which to move the served image tile.
+     * @param aSessionMap what the OpenURL service would have put in the session for the image it just served
+     * @param aID the image ID
+     * @param aFileName the combined display parameters, which match what Djatoka just served.
      */
-    private void cacheNewImage(final HttpServletRequest aRequest, final String aKey, final File aDestFile) {
-        final HttpSession session = aRequest.getSession();
+    private static void cacheNewImage(final Map<?, ?> aSessionMap, final String aID, final String aFileName) {
+        final String key = aID + "_" + aFileName;
         // path to temp file that the djatoka code saved in its temp cache (not the freelib tile cache!)
-        final String fileName = (String) session.getAttribute(aKey);
+        final String fileName = aSessionMap == null ? null : (String) aSessionMap.get(key);
 
         if (fileName != null) {
             // name by which to reference the cached file when talking to OpenURL code
-            final String cacheName = (String) session.getAttribute(fileName);
+            final String cacheName = (String) aSessionMap.get(fileName);
             final File cachedFile = new File(fileName);
 
             // This moves the newly created file from the adore-djatoka cache
-            // to the freelib-djatoka tile cache (which is pure-FS/Pairtree-based)
-            if (cachedFile.exists() && aDestFile != null) {
+            // to the freelib-djatoka tile store
+            if (cachedFile.exists()) {
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Renaming cache file from {} to {}", cachedFile, aDestFile);
+                    LOGGER.debug("Moving cache file {} to the tile store as {}", cachedFile, aFileName);
                 }
 
-                if (!cachedFile.renameTo(aDestFile) && LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Unable to move cache file: {}", cachedFile);
+                try {
+                    tileStore.put(aID, aFileName, cachedFile);
+                } catch (final IOException details) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Unable to move cache file {}: {}", cachedFile, details.getMessage());
+                    }
+                }
+
+                if (cachedFile.exists()) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Unable to move cache file: {}", cachedFile);
+                    }
                 } else {
                     // This is the temp file cache used by the OpenURL layer
                     if (!OpenURLJP2KService.removeFromTileCache(cacheName) && LOGGER.isDebugEnabled()) {
                         LOGGER.debug("Unable to remove OpenURL cache file link: {}", fileName);
-                    } else {
-                        session.removeAttribute(aKey);
-                        session.removeAttribute(fileName);
                     }
                 }
-            } else if (LOGGER.isWarnEnabled() && !cachedFile.exists()) {
-                LOGGER.warn("Session had a cache file ({}), but it didn't exist", cachedFile.getAbsoluteFile());
             } else if (LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Location for destination cache file was null");
+                LOGGER.warn("Session had a cache file ({}), but it didn't exist", cachedFile.getAbsoluteFile());
             }
         } else if (LOGGER.isWarnEnabled()) {
-            LOGGER.warn("Couldn't cache ({} = {}); session lacked new image information", aKey, aDestFile
-                    .getAbsolutePath());
-            Enumeration<String> fu = session.getAttributeNames();
-            /* while (fu.hasMoreElements()) {
-                String name = fu.nextElement();
-                LOGGER.warn("  --- session has attribute "+name+" = "+session.getAttribute(name));
-            }*/
+            LOGGER.warn("Couldn't cache {}; the resolver's result lacked new image information", key);
         }
     }
 
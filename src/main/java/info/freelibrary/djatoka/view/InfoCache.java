@@ -0,0 +1,314 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.util.Metrics;
+import info.freelibrary.util.IOUtils;
+import info.freelibrary.util.PairtreeObject;
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps each image's information responses as the bytes that are sent, and optionally gzipped, so an information
+ * request costs about what a static file does. Responses are kept in memory and in the image's tile cache directory,
+ * under names that include the version of the JP2 they describe; when the JP2 changes, the old responses, and the
+ * XML metadata file they were built from, are deleted and new ones are built.
+ */
+public class InfoCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfoCache.class);
+
+    private static final String INFO_PART = ".info-";
+
+    private static final String GZIP_EXT = ".gz";
+
+    private static final Metrics.Counter HITS = Metrics.counter("info_cache_hits");
+
+    private static final Metrics.Counter MISSES = Metrics.counter("info_cache_misses");
+
+    private final PairtreeRoot myCache;
+
+    private final boolean myGzip;
+
+    private final Map<String, Info> myInfos;
+
+    /**
+     * Creates an information response cache.
+     *
+     * @param aCache The tile cache that responses are stored in
+     * @param aMaxSize The maximum number of responses kept in memory
+     * @param aGzip Whether gzipped copies of the responses are kept too
+     */
+    public InfoCache(final PairtreeRoot aCache, final int aMaxSize, final boolean aGzip) {
+        myCache = aCache;
+        myGzip = aGzip;
+        myInfos = new LinkedHashMap<String, Info>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -1870622713546203335L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Info> aEldest) {
+                return size() > aMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets an image's information response, if it's been stored for the current version of its JP2.
+     *
+     * @param aID The image's identifier
+     * @param aVariant What, besides the image, the response depends on: its format and the URL it refers to
+     * @param aVersion The version of the image's JP2
+     * @return The stored response, or null if there isn't one for the current version of the JP2
+     */
+    public Info get(final String aID, final String aVariant, final String aVersion) {
+        final String key = aID + '\n' + aVariant;
+        Info info;
+
+        synchronized (myInfos) {
+            info = myInfos.get(key);
+        }
+
+        if (info != null && info.myVersion.equals(aVersion)) {
+            HITS.increment();
+            return info;
+        }
+
+        try {
+            final File file = getFile(aID, aVariant, aVersion);
+
+            if (file.exists()) {
+                final File gzipFile = new File(file.getPath() + GZIP_EXT);
+
+                info = new Info(aVersion, read(file), gzipFile.exists() ? read(gzipFile) : null);
+
+                synchronized (myInfos) {
+                    myInfos.put(key, info);
+                }
+
+                HITS.increment();
+                return info;
+            }
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to read stored information for {}: {}", aID, details.getMessage());
+            }
+        }
+
+        MISSES.increment();
+        return null;
+    }
+
+    /**
+     * Stores an image's information response.
+     *
+     * @param aID The image's identifier
+     * @param aVariant What, besides the image, the response depends on: its format and the URL it refers to
+     * @param aVersion The version of the image's JP2
+     * @param aBytes The response
+     * @return The stored response
+     */
+    public Info put(final String aID, final String aVariant, final String aVersion, final byte[] aBytes) {
+        final Info info = new Info(aVersion, aBytes, myGzip ? gzip(aBytes) : null);
+
+        synchronized (myInfos) {
+            myInfos.put(aID + '\n' + aVariant, info);
+        }
+
+        try {
+            final File file = getFile(aID, aVariant, aVersion);
+
+            write(file, info.myBytes);
+
+            if (info.myGzipped != null) {
+                write(new File(file.getPath() + GZIP_EXT), info.myGzipped);
+            }
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to store information for {}: {}", aID, details.getMessage());
+            }
+        }
+
+        return info;
+    }
+
+    /**
+     * Deletes the information responses, and XML metadata file, stored for versions of an image's JP2 other than the
+     * supplied one.
+     *
+     * @param aID The image's identifier
+     * @param aVersion The current version of the image's JP2
+     * @return True if anything was deleted; else, false
+     */
+    public boolean removeStale(final String aID, final String aVersion) {
+        final PairtreeObject object;
+
+        try {
+            object = myCache.getObject(aID);
+        } catch (final IOException details) {
+            return false;
+        }
+
+        final String prefix = PairtreeUtils.encodeID(aID) + INFO_PART;
+        final File[] files = object.listFiles();
+        boolean stale = false;
+
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+
+                if (name.startsWith(prefix) && !name.startsWith(prefix + aVersion + '-')) {
+                    stale = true;
+
+                    if (!file.delete() && LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("File not deleted: {}", file);
+                    }
+                }
+            }
+        }
+
+        if (stale) {
+            final File xmlFile = new File(object, PairtreeUtils.encodeID(aID) + ".xml");
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("JP2 for {} has changed; rebuilding its information", aID);
+            }
+
+            if (xmlFile.exists() && !xmlFile.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", xmlFile);
+            }
+        }
+
+        return stale;
+    }
+
+    /**
+     * Gets the version of a JP2: its last modified time and length.
+     *
+     * @param aJP2 A JP2 file
+     * @return The version of the JP2, or null if it doesn't exist
+     */
+    public static String getVersion(final File aJP2) {
+        if (aJP2 == null || !aJP2.exists()) {
+            return null;
+        }
+
+        return Long.toHexString(aJP2.lastModified()) + 'x' + Long.toHexString(aJP2.length());
+    }
+
+    private File getFile(final String aID, final String aVariant, final String aVersion) throws IOException {
+        final PairtreeObject object = myCache.getObject(aID);
+
+        if (!object.exists() && !object.mkdirs()) {
+            throw new IOException("Unable to create tile cache directory: " + object);
+        }
+
+        return new File(object, PairtreeUtils.encodeID(aID) + INFO_PART + aVersion + '-' +
+                Integer.toHexString(aVariant.hashCode()));
+    }
+
+    private static byte[] read(final File aFile) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(aFile, "r");
+
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a file next to where it's going and then moves it into place, so a reader never sees part of one.
+     */
+    private static void write(final File aFile, final byte[] aBytes) throws IOException {
+        final File tmpFile = File.createTempFile("info-", ".tmp", aFile.getParentFile());
+        final OutputStream outStream = new FileOutputStream(tmpFile);
+
+        try {
+            outStream.write(aBytes);
+        } finally {
+            IOUtils.closeQuietly(outStream);
+        }
+
+        if (!tmpFile.renameTo(aFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to move " + tmpFile + " to " + aFile);
+        }
+    }
+
+    private static byte[] gzip(final byte[] aBytes) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(aBytes.length);
+
+        try {
+            final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+
+            gzip.write(aBytes);
+            gzip.close();
+        } catch (final IOException details) {
+            return null;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * An image's information response, ready to send.
+     */
+    public static class Info {
+
+        private final String myVersion;
+
+        private final byte[] myBytes;
+
+        private final byte[] myGzipped;
+
+        private Info(final String aVersion, final byte[] aBytes, final byte[] aGzipped) {
+            myVersion = aVersion;
+            myBytes = aBytes;
+            myGzipped = aGzipped;
+        }
+
+        /**
+         * Gets the response.
+         *
+         * @return The response
+         */
+        public byte[] getBytes() {
+            return myBytes;
+        }
+
+        /**
+         * Gets the gzipped response.
+         *
+         * @return The gzipped response, or null if there isn't one
+         */
+        public byte[] getGzipped() {
+            return myGzipped;
+        }
+
+        /**
+         * Gets an entity tag for the response.
+         *
+         * @return An entity tag for the response
+         */
+        public String getETag() {
+            return "\"" + myVersion + '-' + Integer.toHexString(Arrays.hashCode(myBytes)) + "\"";
+        }
+    }
+}
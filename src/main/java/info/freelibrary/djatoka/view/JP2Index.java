@@ -0,0 +1,422 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory index from identifier to JP2 file in the Pairtree cache. Found images are remembered until the
+ * filesystem watcher or an ingest hook says otherwise; missing images are remembered for a short time so unknown IDs
+ * don't hit the disk on every request. If the platform can't watch a directory, entries from that directory are
+ * treated like misses and re-checked once their time-to-live runs out. Only the most recently used Pairtree object
+ * directories are watched, so the index can't use up the system's watches; when one is dropped, its watch is
+ * cancelled and its entries are checked on disk again the next time they're asked for. A directory is only watched
+ * once an image has been found in it, so looking up unknown IDs doesn't create or watch directories. When the index
+ * is full, the least recently used entries are dropped.
+ */
+public class JP2Index {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JP2Index.class);
+
+    /** Default number of milliseconds a missing identifier is remembered */
+    public static final long DEFAULT_MISS_TTL = 5000;
+
+    /** Default number of identifiers the index will hold before it drops the least recently used */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    /** Default number of Pairtree object directories the index will watch at once */
+    public static final int DEFAULT_MAX_WATCHED_DIRS = 4096;
+
+    private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+    /** The watched directories, least recently used first; guarded by itself */
+    private final Map<Path, WatchKey> myWatchedDirs = new LinkedHashMap<Path, WatchKey>(16, 0.75f, true);
+
+    private final PairtreeRoot myPairtree;
+
+    private final WatchService myWatcher;
+
+    private volatile long myMissTTL = DEFAULT_MISS_TTL;
+
+    private volatile int myMaxSize = DEFAULT_MAX_SIZE;
+
+    private volatile int myMaxWatchedDirs = DEFAULT_MAX_WATCHED_DIRS;
+
+    /**
+     * Creates a new index over the Pairtree in the supplied JP2 directory.
+     *
+     * @param aJP2Dir The directory containing the JP2 Pairtree
+     * @throws IOException If the Pairtree root can't be created
+     */
+    public JP2Index(final File aJP2Dir) throws IOException {
+        myPairtree = new PairtreeRoot(aJP2Dir);
+        myWatcher = startWatcher(aJP2Dir);
+    }
+
+    /**
+     * Sets the number of milliseconds an identifier that wasn't found is remembered as missing.
+     *
+     * @param aMissTTL A time-to-live in milliseconds
+     */
+    public void setMissTTL(final long aMissTTL) {
+        myMissTTL = aMissTTL;
+    }
+
+    /**
+     * Sets the number of identifiers the index holds before the least recently used are dropped.
+     *
+     * @param aMaxSize A maximum number of index entries
+     */
+    public void setMaxSize(final int aMaxSize) {
+        myMaxSize = aMaxSize;
+    }
+
+    /**
+     * Sets the number of Pairtree object directories the index watches at once.
+     *
+     * @param aMaxWatchedDirs A maximum number of watched directories
+     */
+    public void setMaxWatchedDirs(final int aMaxWatchedDirs) {
+        myMaxWatchedDirs = Math.max(1, aMaxWatchedDirs);
+    }
+
+    /**
+     * Gets the JP2 file for the supplied identifier, or null if there isn't one in the Pairtree.
+     *
+     * @param aID A single-encoded identifier
+     * @return The JP2 file or null if it's not in the Pairtree
+     * @throws IOException If the Pairtree can't be read
+     */
+    public File get(final String aID) throws IOException {
+        final Entry entry = myEntries.get(aID);
+        final long now = System.currentTimeMillis();
+
+        if (entry != null && entry.isLive(now)) {
+            entry.myLastUsed = now;
+            return entry.myFile;
+        }
+
+        // Just the path; getting the Pairtree object would create its directories for an image that isn't there
+        final File file = new File(PairtreeUtils.mapToPtPath(myPairtree.getAbsolutePath(), aID, PairtreeUtils
+                .encodeID(aID)));
+
+        if (file.exists()) {
+            final WatchKey key = watch(file.getParentFile());
+
+            // Checked again once it's watched, so a file that's removed in between isn't remembered
+            if (file.exists()) {
+                update(aID, newEntry(file, key));
+                return file;
+            }
+        }
+
+        update(aID, new Entry(null, System.currentTimeMillis() + myMissTTL, null));
+        return null;
+    }
+
+    /**
+     * Records that the JP2 for the supplied identifier has been written into the Pairtree.
+     *
+     * @param aID An identifier
+     * @param aJP2 The JP2 file in the Pairtree
+     */
+    public void put(final String aID, final File aJP2) {
+        update(aID, newEntry(aJP2, watch(aJP2.getParentFile())));
+    }
+
+    /**
+     * Forgets anything the index knows about the supplied identifier.
+     *
+     * @param aID An identifier
+     */
+    public void remove(final String aID) {
+        myEntries.remove(aID);
+    }
+
+    /**
+     * Forgets everything the index knows.
+     */
+    public void clear() {
+        myEntries.clear();
+    }
+
+    /**
+     * Gets the number of identifiers currently in the index.
+     *
+     * @return The number of identifiers in the index
+     */
+    public int size() {
+        return myEntries.size();
+    }
+
+    /**
+     * Stops watching the Pairtree for changes.
+     */
+    public void close() {
+        if (myWatcher != null) {
+            try {
+                myWatcher.close();
+            } catch (final IOException details) {
+                LOGGER.warn("Unable to close JP2 index watcher: {}", details.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A found file is remembered for as long as its directory is watched, or for the miss time-to-live if it isn't.
+     */
+    private Entry newEntry(final File aFile, final WatchKey aKey) {
+        if (aKey == null) {
+            return new Entry(aFile, System.currentTimeMillis() + myMissTTL, null);
+        }
+
+        return new Entry(aFile, Long.MAX_VALUE, aKey);
+    }
+
+    private void update(final String aID, final Entry aEntry) {
+        if (myEntries.size() >= myMaxSize) {
+            trim();
+        }
+
+        myEntries.put(aID, aEntry);
+    }
+
+    private synchronized void trim() {
+        // Another thread may have just trimmed the index
+        if (myEntries.size() < myMaxSize) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Iterator<Entry> iterator = myEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+
+            if (entry.myFile == null || !entry.isLive(now)) {
+                iterator.remove();
+            }
+        }
+
+        // If most of what's left are live hits, drop the least recently used, so it isn't trimmed again straight away
+        if (myEntries.size() >= myMaxSize * 3 / 4) {
+            final List<Usage> usages = new ArrayList<Usage>(myEntries.size());
+
+            for (final Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+                usages.add(new Usage(entry.getKey(), entry.getValue()));
+            }
+
+            Collections.sort(usages);
+
+            for (int index = 0; index < usages.size() - myMaxSize * 3 / 4; index++) {
+                final Usage usage = usages.get(index);
+
+                myEntries.remove(usage.myID, usage.myEntry);
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("JP2 index was full; dropped its least recently used entries");
+            }
+        }
+    }
+
+    private WatchKey watch(final File aDir) {
+        if (myWatcher == null || aDir == null) {
+            return null;
+        }
+
+        final Path path = aDir.toPath();
+
+        synchronized (myWatchedDirs) {
+            final WatchKey watched = myWatchedDirs.get(path);
+
+            if (watched != null && watched.isValid()) {
+                return watched;
+            }
+
+            try {
+                final WatchKey key = path.register(myWatcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+                myWatchedDirs.put(path, key);
+                evictWatchedDirs();
+                return key;
+            } catch (final ClosedWatchServiceException details) {
+                return null;
+            } catch (final IOException details) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Unable to watch {}: {}", path, details.getMessage());
+                }
+
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stops watching the least recently used directories until no more than the maximum are watched. Entries from
+     * those directories hold the cancelled key, so they're no longer trusted and get checked on disk again.
+     */
+    private void evictWatchedDirs() {
+        final Iterator<WatchKey> iterator = myWatchedDirs.values().iterator();
+
+        while (myWatchedDirs.size() > myMaxWatchedDirs && iterator.hasNext()) {
+            final WatchKey key = iterator.next();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("JP2 index stopped watching {}", key.watchable());
+            }
+
+            key.cancel();
+            iterator.remove();
+        }
+    }
+
+    private WatchService startWatcher(final File aJP2Dir) {
+        final WatchService watcher;
+
+        try {
+            watcher = aJP2Dir.toPath().getFileSystem().newWatchService();
+        } catch (final Exception details) {
+            LOGGER.warn("Filesystem watching isn't available; JP2 index entries will expire instead: {}", details
+                    .getMessage());
+            return null;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                processEvents(watcher);
+            }
+        }, "jp2-index-watcher");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return watcher;
+    }
+
+    private void processEvents(final WatchService aWatcher) {
+        while (true) {
+            final WatchKey key;
+
+            try {
+                key = aWatcher.take();
+            } catch (final InterruptedException details) {
+                return;
+            } catch (final ClosedWatchServiceException details) {
+                return;
+            }
+
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    LOGGER.debug("JP2 index watcher overflowed; clearing index");
+                    myEntries.clear();
+                } else {
+                    final String id = PairtreeUtils.decodeID(event.context().toString());
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("JP2 index saw {} for {}", event.kind().name(), id);
+                    }
+
+                    myEntries.remove(id);
+                }
+            }
+
+            // The directory went away; forget it and anything that might have been in it
+            if (!key.reset()) {
+                removeWatchedDir(key);
+            }
+        }
+    }
+
+    private void removeWatchedDir(final WatchKey aKey) {
+        synchronized (myWatchedDirs) {
+            final Iterator<Map.Entry<Path, WatchKey>> iterator = myWatchedDirs.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                final Map.Entry<Path, WatchKey> entry = iterator.next();
+
+                if (entry.getValue().equals(aKey)) {
+                    final File dir = entry.getKey().toFile();
+                    final Iterator<Entry> entries = myEntries.values().iterator();
+
+                    while (entries.hasNext()) {
+                        final File file = entries.next().myFile;
+
+                        if (file != null && dir.equals(file.getParentFile())) {
+                            entries.remove();
+                        }
+                    }
+
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final File myFile;
+
+        private final long myExpiration;
+
+        /** The watch on the file's directory, if any; once it's cancelled the entry can't be trusted */
+        private final WatchKey myKey;
+
+        private volatile long myLastUsed = System.currentTimeMillis();
+
+        private Entry(final File aFile, final long aExpiration, final WatchKey aKey) {
+            myFile = aFile;
+            myExpiration = aExpiration;
+            myKey = aKey;
+        }
+
+        private boolean isLive(final long aNow) {
+            return myExpiration > aNow && (myKey == null || myKey.isValid());
+        }
+    }
+
+    /**
+     * When an entry was last used, taken once so entries can be sorted while they're still being used.
+     */
+    private static final class Usage implements Comparable<Usage> {
+
+        private final String myID;
+
+        private final Entry myEntry;
+
+        private final long myLastUsed;
+
+        private Usage(final String aID, final Entry aEntry) {
+            myID = aID;
+            myEntry = aEntry;
+            myLastUsed = aEntry.myLastUsed;
+        }
+
+        @Override
+        public int compareTo(final Usage aUsage) {
+            return myLastUsed < aUsage.myLastUsed ? -1 : myLastUsed == aUsage.myLastUsed ? 0 : 1;
+        }
+    }
+}
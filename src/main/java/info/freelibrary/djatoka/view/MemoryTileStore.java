@@ -0,0 +1,190 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tile store that keeps tiles on the heap, up to <code>djatoka.view.cache.size</code> bytes of them. The least
+ * recently used tiles are dropped to make room for new ones. Nothing survives a restart, so it's mostly useful as the
+ * fastest tier of a {@link TieredTileStore}.
+ */
+public class MemoryTileStore implements TileStore, Constants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryTileStore.class);
+
+    private static final String DEFAULT_SIZE = "268435456";
+
+    private final Map<String, Entry> myTiles = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long myMaxBytes = Long.parseLong(DEFAULT_SIZE);
+
+    private long myBytes;
+
+    private volatile EvictionListener myListener;
+
+    @Override
+    public void setup(final Properties aProps) {
+        myMaxBytes = Long.parseLong(aProps.getProperty(VIEW_CACHE_SIZE, DEFAULT_SIZE));
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Keeping up to {} bytes of tiles in memory", myMaxBytes);
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final String aID, final String aName) {
+        final Entry entry;
+
+        synchronized (myTiles) {
+            entry = myTiles.get(getKey(aID, aName));
+        }
+
+        return entry == null ? null : entry.myTile.duplicate();
+    }
+
+    @Override
+    public boolean contains(final String aID, final String aName) {
+        synchronized (myTiles) {
+            return myTiles.containsKey(getKey(aID, aName));
+        }
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final File aTile) throws IOException {
+        final FileInputStream stream = new FileInputStream(aTile);
+        final ByteBuffer tile;
+
+        try {
+            final FileChannel channel = stream.getChannel();
+
+            tile = ByteBuffer.allocate((int) channel.size());
+
+            while (tile.hasRemaining() && channel.read(tile) != -1) {
+                // Keep reading until the whole tile is in memory
+            }
+        } finally {
+            stream.close();
+        }
+
+        tile.flip();
+        store(aID, aName, tile);
+
+        if (!aTile.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Stored tile file not deleted: {}", aTile);
+        }
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final ByteBuffer aTile) {
+        final ByteBuffer tile = ByteBuffer.allocate(aTile.remaining());
+
+        tile.put(aTile.duplicate()).flip();
+        store(aID, aName, tile);
+    }
+
+    @Override
+    public boolean remove(final String aID, final String aName) {
+        synchronized (myTiles) {
+            final Entry entry = myTiles.remove(getKey(aID, aName));
+
+            if (entry != null) {
+                myBytes -= entry.myTile.capacity();
+            }
+
+            return entry != null;
+        }
+    }
+
+    @Override
+    public void setEvictionListener(final EvictionListener aListener) {
+        myListener = aListener;
+    }
+
+    @Override
+    public void close() {
+        synchronized (myTiles) {
+            myTiles.clear();
+            myBytes = 0;
+        }
+    }
+
+    /**
+     * Gets the number of bytes of tiles in the store.
+     *
+     * @return The number of bytes of tiles in the store
+     */
+    public long getBytes() {
+        synchronized (myTiles) {
+            return myBytes;
+        }
+    }
+
+    private void store(final String aID, final String aName, final ByteBuffer aTile) {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        final Entry entry = new Entry(aID, aName, aTile.asReadOnlyBuffer());
+
+        // A tile bigger than the whole store is passed straight on
+        if (aTile.capacity() > myMaxBytes) {
+            evicted.add(entry);
+        } else {
+            synchronized (myTiles) {
+                final Entry replaced = myTiles.put(getKey(aID, aName), entry);
+
+                myBytes += aTile.capacity() - (replaced == null ? 0 : replaced.myTile.capacity());
+
+                final Iterator<Entry> iterator = myTiles.values().iterator();
+
+                while (myBytes > myMaxBytes && iterator.hasNext()) {
+                    final Entry eldest = iterator.next();
+
+                    iterator.remove();
+                    myBytes -= eldest.myTile.capacity();
+                    evicted.add(eldest);
+                }
+            }
+        }
+
+        // Listeners may be slow, like a store on disk, so they're told once we've let go of the tiles
+        final EvictionListener listener = myListener;
+
+        if (listener != null) {
+            for (final Entry eldest : evicted) {
+                listener.evicted(eldest.myID, eldest.myName, eldest.myTile.duplicate());
+            }
+        }
+    }
+
+    private static String getKey(final String aID, final String aName) {
+        return aID + '\u0000' + aName;
+    }
+
+    private static class Entry {
+
+        private final String myID;
+
+        private final String myName;
+
+        private final ByteBuffer myTile;
+
+        private Entry(final String aID, final String aName, final ByteBuffer aTile) {
+            myID = aID;
+            myName = aName;
+            myTile = aTile;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact count of the tiles that are asked for most, kept so that the tile cache can be warmed with them after a
+ * restart. Tiles are counted by their image's identifier and their place in the tile grid. When more tiles are
+ * counted than the log holds, every count is halved and the tiles whose counts reach zero are dropped, so the log
+ * also forgets what used to be popular. It's saved to, and loaded from, a plain text file with a tile on each line.
+ */
+public class PopularityLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PopularityLog.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    private final Map<String, Entry> myEntries = new HashMap<String, Entry>();
+
+    private final File myFile;
+
+    private final int myMaxEntries;
+
+    /**
+     * Creates a popularity log.
+     *
+     * @param aFile The file the log is saved to and loaded from
+     * @param aMaxEntries The maximum number of tiles the log counts
+     */
+    public PopularityLog(final File aFile, final int aMaxEntries) {
+        myFile = aFile;
+        myMaxEntries = Math.max(1, aMaxEntries);
+    }
+
+    /**
+     * Counts a request for a tile.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aFactor The scale factor of the tile's level
+     * @param aColumn The tile's column at that level
+     * @param aRow The tile's row at that level
+     */
+    public void record(final String aID, final int aFactor, final int aColumn, final int aRow) {
+        add(new Entry(aID, aFactor, aColumn, aRow, 1));
+    }
+
+    /**
+     * Gets the most requested tiles, most requested first.
+     *
+     * @param aCount The maximum number of tiles to get
+     * @return The most requested tiles
+     */
+    public List<Entry> getTop(final int aCount) {
+        final List<Entry> entries;
+
+        synchronized (myEntries) {
+            entries = new ArrayList<Entry>(myEntries.size());
+
+            for (final Entry entry : myEntries.values()) {
+                entries.add(new Entry(entry.myID, entry.myFactor, entry.myColumn, entry.myRow, entry.myCount));
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+
+            @Override
+            public int compare(final Entry aFirst, final Entry aSecond) {
+                return aFirst.myCount == aSecond.myCount ? 0 : aFirst.myCount > aSecond.myCount ? -1 : 1;
+            }
+        });
+
+        return entries.size() > aCount ? entries.subList(0, Math.max(0, aCount)) : entries;
+    }
+
+    /**
+     * Gets the number of tiles the log counts.
+     *
+     * @return The number of tiles the log counts
+     */
+    public int size() {
+        synchronized (myEntries) {
+            return myEntries.size();
+        }
+    }
+
+    /**
+     * Adds the counts in the log's file to the log. A log without a file yet is left as it is.
+     *
+     * @throws IOException If the file can't be read
+     */
+    public void load() throws IOException {
+        if (!myFile.exists()) {
+            return;
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(myFile),
+                ENCODING));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                // The identifier comes last, so it can hold anything but a line break
+                final String[] parts = line.split("\t", 5);
+
+                if (parts.length == 5) {
+                    try {
+                        add(new Entry(parts[4], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer
+                                .parseInt(parts[3]), Long.parseLong(parts[0])));
+                    } catch (final NumberFormatException details) {
+                        if (LOGGER.isWarnEnabled()) {
+                            LOGGER.warn("Skipping bad popularity log line: {}", line);
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the log to its file, replacing the file only once the whole log has been written.
+     *
+     * @throws IOException If the file can't be written
+     */
+    public void save() throws IOException {
+        final List<Entry> entries = getTop(Integer.MAX_VALUE);
+        final File dir = myFile.getAbsoluteFile().getParentFile();
+        final File tmpFile;
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create popularity log directory: " + dir);
+        }
+
+        tmpFile = File.createTempFile("popularity-", ".tmp", dir);
+
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                ENCODING));
+
+        try {
+            for (final Entry entry : entries) {
+                writer.write(entry.myCount + "\t" + entry.myFactor + "\t" + entry.myColumn + "\t" + entry.myRow +
+                        "\t" + entry.myID);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        // Renaming over an existing file doesn't work everywhere
+        if (!tmpFile.renameTo(myFile) && !(myFile.delete() && tmpFile.renameTo(myFile))) {
+            if (!tmpFile.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", tmpFile);
+            }
+
+            throw new IOException("Unable to save popularity log to " + myFile);
+        }
+    }
+
+    private void add(final Entry aEntry) {
+        final String key = aEntry.myFactor + "/" + aEntry.myColumn + "/" + aEntry.myRow + "/" + aEntry.myID;
+
+        synchronized (myEntries) {
+            final Entry entry = myEntries.get(key);
+
+            if (entry != null) {
+                entry.myCount += aEntry.myCount;
+                return;
+            }
+
+            myEntries.put(key, aEntry);
+
+            // Halving makes room for new tiles, and lets the old favourites fade
+            while (myEntries.size() > myMaxEntries) {
+                final Iterator<Entry> iterator = myEntries.values().iterator();
+
+                while (iterator.hasNext()) {
+                    final Entry next = iterator.next();
+
+                    next.myCount /= 2;
+
+                    if (next.myCount == 0) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A tile in the log and how often it's been asked for.
+     */
+    public static class Entry {
+
+        private final String myID;
+
+        private final int myFactor;
+
+        private final int myColumn;
+
+        private final int myRow;
+
+        private long myCount;
+
+        private Entry(final String aID, final int aFactor, final int aColumn, final int aRow, final long aCount) {
+            myID = aID;
+            myFactor = aFactor;
+            myColumn = aColumn;
+            myRow = aRow;
+            myCount = aCount;
+        }
+
+        /**
+         * Gets the identifier of the tile's image.
+         *
+         * @return The identifier of the tile's image
+         */
+        public String getID() {
+            return myID;
+        }
+
+        /**
+         * Gets the scale factor of the tile's level.
+         *
+         * @return The scale factor of the tile's level
+         */
+        public int getFactor() {
+            return myFactor;
+        }
+
+        /**
+         * Gets the tile's column.
+         *
+         * @return The tile's column
+         */
+        public int getColumn() {
+            return myColumn;
+        }
+
+        /**
+         * Gets the tile's row.
+         *
+         * @return The tile's row
+         */
+        public int getRow() {
+            return myRow;
+        }
+
+        /**
+         * Gets how often the tile's been asked for.
+         *
+         * @return How often the tile's been asked for
+         */
+        public long getCount() {
+            return myCount;
+        }
+    }
+}
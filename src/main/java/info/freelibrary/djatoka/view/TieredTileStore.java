@@ -0,0 +1,192 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.util.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tile store made of other tile stores, fastest first, like memory, then SSD, then bulk disk. New tiles go into the
+ * first tier; tiles a tier drops to stay within its size are moved down to the next one, and tiles found in a lower
+ * tier are moved back up to the first. A tile is only kept in one tier at a time.
+ * <p>
+ * The tiers are named, in order, by <code>djatoka.view.cache.tiers</code>. Each tier is set up from the same
+ * properties as the whole store, with its own <code>djatoka.view.cache.tier.[name].*</code> properties standing in
+ * for <code>djatoka.view.cache.*</code>, so <code>djatoka.view.cache.tier.ssd.dir</code> is the SSD tier's cache
+ * directory. A tier's <code>store</code> is the class of its store, which is a {@link FileTileStore} by default.
+ * </p>
+ */
+public class TieredTileStore implements TileStore, Constants {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredTileStore.class);
+
+    private static final String VIEW_CACHE = "djatoka.view.cache.";
+
+    private final List<TileStore> myTiers = new ArrayList<TileStore>();
+
+    private final List<Metrics.Counter> myHits = new ArrayList<Metrics.Counter>();
+
+    @Override
+    public void setup(final Properties aProps) throws IOException {
+        final String tiers = aProps.getProperty(VIEW_CACHE_TIERS, "").trim();
+
+        if (tiers.isEmpty()) {
+            throw new IOException("A tiered tile store needs at least one tier in " + VIEW_CACHE_TIERS);
+        }
+
+        for (final String name : tiers.split("\\s+")) {
+            final Properties props = getTierProperties(aProps, name);
+            final String className = props.getProperty(VIEW_CACHE_STORE, FileTileStore.class.getName());
+            final TileStore tier;
+
+            if (className.equals(TieredTileStore.class.getName())) {
+                throw new IOException("The " + name + " tier of a tiered tile store can't be tiered itself");
+            }
+
+            try {
+                tier = (TileStore) Class.forName(className).newInstance();
+            } catch (final Exception details) {
+                throw new IOException("Unable to create the " + name + " tile store tier: " + details.getMessage(),
+                        details);
+            }
+
+            tier.setup(props);
+            myTiers.add(tier);
+            myHits.add(Metrics.counter("tile_store_" + name + "_hits"));
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Added {} tile store tier: {}", name, className);
+            }
+        }
+
+        // What a tier drops is moved down to the next one; the last tier's are gone
+        for (int index = 0; index < myTiers.size() - 1; index++) {
+            final TileStore next = myTiers.get(index + 1);
+
+            myTiers.get(index).setEvictionListener(new EvictionListener() {
+
+                @Override
+                public void evicted(final String aID, final String aName, final ByteBuffer aTile) {
+                    try {
+                        next.put(aID, aName, aTile);
+                    } catch (final IOException details) {
+                        if (LOGGER.isWarnEnabled()) {
+                            LOGGER.warn("Unable to move {} for {} down a tier: {}", aName, aID, details
+                                    .getMessage());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final String aID, final String aName) throws IOException {
+        for (int index = 0; index < myTiers.size(); index++) {
+            final TileStore tier = myTiers.get(index);
+            final ByteBuffer tile = tier.get(aID, aName);
+
+            if (tile != null) {
+                myHits.get(index).increment();
+
+                // It's being asked for again, so it belongs in the fastest tier
+                if (index > 0) {
+                    try {
+                        myTiers.get(0).put(aID, aName, tile.duplicate());
+                        tier.remove(aID, aName);
+                    } catch (final IOException details) {
+                        if (LOGGER.isWarnEnabled()) {
+                            LOGGER.warn("Unable to move {} for {} up a tier: {}", aName, aID, details.getMessage());
+                        }
+                    }
+                }
+
+                return tile;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean contains(final String aID, final String aName) {
+        for (final TileStore tier : myTiers) {
+            if (tier.contains(aID, aName)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final File aTile) throws IOException {
+        myTiers.get(0).put(aID, aName, aTile);
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final ByteBuffer aTile) throws IOException {
+        myTiers.get(0).put(aID, aName, aTile);
+    }
+
+    @Override
+    public boolean remove(final String aID, final String aName) {
+        boolean removed = false;
+
+        for (final TileStore tier : myTiers) {
+            removed |= tier.remove(aID, aName);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Sets what's told about the tiles the last tier drops.
+     *
+     * @param aListener The listener for dropped tiles
+     */
+    @Override
+    public void setEvictionListener(final EvictionListener aListener) {
+        myTiers.get(myTiers.size() - 1).setEvictionListener(aListener);
+    }
+
+    @Override
+    public void close() {
+        for (final TileStore tier : myTiers) {
+            tier.close();
+        }
+    }
+
+    /**
+     * Gets the properties a tier is set up from.
+     */
+    static Properties getTierProperties(final Properties aProps, final String aName) {
+        final Properties props = new Properties();
+        final String prefix = VIEW_CACHE_TIER + aName + '.';
+
+        for (final Map.Entry<Object, Object> entry : aProps.entrySet()) {
+            props.put(entry.getKey(), entry.getValue());
+        }
+
+        // Without a store of its own, a tier mustn't pick up the tiered store it's in
+        props.remove(VIEW_CACHE_STORE);
+
+        for (final String key : aProps.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                props.setProperty(VIEW_CACHE + key.substring(prefix.length()), aProps.getProperty(key));
+            }
+        }
+
+        return props;
+    }
+}
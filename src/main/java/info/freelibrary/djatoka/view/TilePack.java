@@ -0,0 +1,458 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single file that holds all the cached tiles of one image, so a big tile cache needs one file per image instead of
+ * one per tile. The file starts with a short header and is followed by records that each hold a tile's cache name
+ * and its encoded bytes; tiles are only ever appended. The index of where each tile is kept is rebuilt from the
+ * record headers when a pack is opened, and tiles are read from memory mappings of the file, which is mapped a chunk
+ * at a time as it grows. A record that was only partly written, because the server stopped while appending it, is cut
+ * off the next time the pack is opened.
+ * <p/>
+ * Packs that are got with {@link #forImage(PairtreeRoot, String, boolean)} are shared, and have to be released when
+ * they're no longer being used; a pack that's dropped from the recently used packs is only closed once nothing's
+ * using it.
+ * <p/>
+ * Appends take a file lock so servers sharing a tile cache can add to the same pack; tiles another server has added
+ * are found the next time a tile can't be.
+ */
+public class TilePack {
+
+    /** The extension of the file, in an image's tile cache directory, that holds its packed tiles */
+    public static final String EXTENSION = ".tiles";
+
+    /** The largest a pack can grow; tiles that would make it bigger are left as files of their own */
+    public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TilePack.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x444a5450; // "DJTP"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int MAX_OPEN_PACKS = 256;
+
+    /** The size of the chunks a pack is mapped in, so reading a new tile never maps the whole pack again */
+    private static final int MAP_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** The recently used packs; guarded by itself, as are the packs' reference counts */
+    private static final Map<File, TilePack> OPEN_PACKS = new LinkedHashMap<File, TilePack>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 5183276645072930468L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<File, TilePack> aEldest) {
+            if (size() > MAX_OPEN_PACKS) {
+                aEldest.getValue().evict();
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    private final File myFile;
+
+    private final RandomAccessFile myRAF;
+
+    private final FileChannel myChannel;
+
+    private final Map<String, long[]> myIndex = new HashMap<String, long[]>();
+
+    /** The mapped chunks of the file, by their position in it; a chunk's null until a tile in it is read */
+    private final List<MappedByteBuffer> myMaps = new ArrayList<MappedByteBuffer>();
+
+    private long myLength;
+
+    /** How many callers of forImage are using the pack */
+    private int myReferences;
+
+    /** Whether the pack's no longer one of the recently used packs, so it's closed once nothing's using it */
+    private boolean isEvicted;
+
+    /**
+     * Opens a tile pack, creating it if it doesn't exist yet.
+     *
+     * @param aFile The pack's file
+     * @throws IOException If the pack can't be opened or isn't a tile pack
+     */
+    public TilePack(final File aFile) throws IOException {
+        myFile = aFile;
+        myRAF = new RandomAccessFile(aFile, "rw");
+        myChannel = myRAF.getChannel();
+
+        try {
+            final FileLock lock = myChannel.lock();
+
+            try {
+                if (myChannel.size() == 0) {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    write(header, 0);
+                }
+
+                myLength = HEADER_SIZE;
+                checkHeader();
+                scan(true);
+            } finally {
+                lock.release();
+            }
+        } catch (final IOException details) {
+            close();
+            throw details;
+        }
+    }
+
+    /**
+     * Gets the open tile pack of an image in the supplied tile cache, opening or creating it if needed. Recently used
+     * packs are kept open. The pack has to be released once it's no longer being used.
+     *
+     * @param aCache The tile cache
+     * @param aID The image's identifier
+     * @return The image's tile pack
+     * @throws IOException If the pack can't be opened
+     */
+    public static TilePack forImage(final PairtreeRoot aCache, final String aID) throws IOException {
+        return forImage(aCache, aID, true);
+    }
+
+    /**
+     * Gets the open tile pack of an image in the supplied tile cache, opening it if needed. Recently used packs are
+     * kept open. The pack has to be released once it's no longer being used.
+     *
+     * @param aCache The tile cache
+     * @param aID The image's identifier
+     * @param aCreate Whether the pack should be created if the image doesn't have one yet
+     * @return The image's tile pack, or null if it doesn't have one and one wasn't to be created
+     * @throws IOException If the pack can't be opened
+     */
+    public static TilePack forImage(final PairtreeRoot aCache, final String aID, final boolean aCreate)
+            throws IOException {
+        // Just the path; getting the Pairtree object would create its directories for a pack that isn't wanted
+        final File file = new File(PairtreeUtils.mapToPtPath(aCache.getAbsolutePath(), aID, PairtreeUtils.encodeID(
+                aID) + EXTENSION));
+        final File dir = file.getParentFile();
+
+        synchronized (OPEN_PACKS) {
+            TilePack pack = OPEN_PACKS.get(file);
+
+            if (pack == null) {
+                if (!aCreate && !file.exists()) {
+                    return null;
+                }
+
+                if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+                    throw new IOException("Unable to create tile cache directory: " + dir);
+                }
+
+                pack = new TilePack(file);
+                OPEN_PACKS.put(file, pack);
+            }
+
+            pack.myReferences++;
+            return pack;
+        }
+    }
+
+    /**
+     * Closes all the tile packs that are being kept open. Packs that are still being used are closed once they're
+     * released.
+     */
+    public static void closeAll() {
+        synchronized (OPEN_PACKS) {
+            for (final TilePack pack : OPEN_PACKS.values()) {
+                pack.evict();
+            }
+
+            OPEN_PACKS.clear();
+        }
+    }
+
+    /**
+     * Releases a pack that was got with {@link #forImage(PairtreeRoot, String, boolean)}, so it can be closed once
+     * it's no longer one of the recently used packs.
+     */
+    public void release() {
+        synchronized (OPEN_PACKS) {
+            myReferences--;
+
+            if (isEvicted && myReferences <= 0) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Gets a tile from the pack.
+     *
+     * @param aName The tile's cache name
+     * @return A read-only buffer of the tile's encoded bytes, or null if the pack doesn't have the tile
+     * @throws IOException If the pack can't be read
+     */
+    public synchronized ByteBuffer get(final String aName) throws IOException {
+        long[] entry = myIndex.get(aName);
+
+        // Another server sharing the cache may have added it
+        if (entry == null && myChannel.size() > myLength) {
+            scan(false);
+            entry = myIndex.get(aName);
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        final int chunk = (int) (entry[0] / MAP_CHUNK_SIZE);
+        final long start = (long) chunk * MAP_CHUNK_SIZE;
+        MappedByteBuffer map = chunk < myMaps.size() ? myMaps.get(chunk) : null;
+
+        // A chunk's mapped as far as the pack goes, and past its end if a tile runs over into the next
+        if (map == null || entry[0] + entry[1] > start + map.capacity()) {
+            map = myChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(entry[0] + entry[1], Math.min(
+                    myLength, start + MAP_CHUNK_SIZE)) - start);
+
+            while (myMaps.size() <= chunk) {
+                myMaps.add(null);
+            }
+
+            myMaps.set(chunk, map);
+        }
+
+        final ByteBuffer tile = map.duplicate();
+
+        tile.limit((int) (entry[0] + entry[1] - start)).position((int) (entry[0] - start));
+        return tile.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Checks whether the pack has a tile.
+     *
+     * @param aName The tile's cache name
+     * @return True if the pack has the tile; else, false
+     */
+    public synchronized boolean contains(final String aName) {
+        return myIndex.containsKey(aName);
+    }
+
+    /**
+     * Gets the number of tiles in the pack.
+     *
+     * @return The number of tiles in the pack
+     */
+    public synchronized int size() {
+        return myIndex.size();
+    }
+
+    /**
+     * Appends a tile to the pack.
+     *
+     * @param aName The tile's cache name
+     * @param aTile The tile's encoded bytes
+     * @return True if the tile was added, or the pack already had it; false if the pack is full
+     * @throws IOException If the tile can't be written
+     */
+    public synchronized boolean add(final String aName, final ByteBuffer aTile) throws IOException {
+        final byte[] name = aName.getBytes(UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(8 + name.length);
+        final FileLock lock = myChannel.lock();
+
+        try {
+            // Pick up anything another server appended before we got the lock
+            scan(true);
+
+            if (myIndex.containsKey(aName)) {
+                return true;
+            }
+
+            if (myLength + header.capacity() + aTile.remaining() > MAX_SIZE) {
+                return false;
+            }
+
+            final long offset = myLength + header.capacity();
+            final int length = aTile.remaining();
+
+            header.putInt(name.length).put(name).putInt(length).flip();
+            write(header, myLength);
+            write(aTile, offset);
+
+            myIndex.put(aName, new long[] { offset, length });
+            myLength = offset + length;
+        } finally {
+            lock.release();
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves a tile file into the pack, under the file's name. The file is deleted once it's been packed.
+     *
+     * @param aTile A tile file
+     * @return True if the tile is now in the pack; false if the pack is full and the file was left where it was
+     * @throws IOException If the tile can't be read or written
+     */
+    public boolean add(final File aTile) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(aTile, "r");
+        final boolean added;
+
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer tile = ByteBuffer.allocate((int) channel.size());
+
+            while (tile.hasRemaining() && channel.read(tile) != -1) {
+                // Keep reading until the whole tile is in memory
+            }
+
+            tile.flip();
+            added = add(aTile.getName(), tile);
+        } finally {
+            raf.close();
+        }
+
+        if (added && !aTile.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Packed tile file not deleted: {}", aTile);
+        }
+
+        return added;
+    }
+
+    /**
+     * Gets the pack's file.
+     *
+     * @return The pack's file
+     */
+    public File getFile() {
+        return myFile;
+    }
+
+    /**
+     * Closes the pack. Buffers already returned by {@link #get(String)} stay readable. A pack that's got with
+     * {@link #forImage(PairtreeRoot, String, boolean)} is released, rather than closed.
+     */
+    public synchronized void close() {
+        try {
+            myRAF.close();
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to close tile pack {}: {}", myFile, details.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the pack from the recently used packs, closing it if nothing's using it; called with the packs' lock held.
+     */
+    private void evict() {
+        isEvicted = true;
+
+        if (myReferences <= 0) {
+            close();
+        }
+    }
+
+    private void checkHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        read(header, 0);
+
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(myFile + " isn't a tile pack this version of djatoka can read");
+        }
+    }
+
+    /**
+     * Adds the records after the last one we know about to the index. If the file ends part way through a record,
+     * and we hold the pack's lock, the partial record is cut off.
+     */
+    private void scan(final boolean aLocked) throws IOException {
+        final long size = myChannel.size();
+        final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        long position = myLength;
+
+        while (position + 4 <= size) {
+            intBuffer.clear();
+            read(intBuffer, position);
+
+            final int nameLength = intBuffer.getInt();
+
+            if (nameLength <= 0 || position + 8 + nameLength > size) {
+                break;
+            }
+
+            final ByteBuffer name = ByteBuffer.allocate(nameLength);
+
+            read(name, position + 4);
+            intBuffer.clear();
+            read(intBuffer, position + 4 + nameLength);
+
+            final int length = intBuffer.getInt();
+            final long offset = position + 8 + nameLength;
+
+            if (length < 0 || offset + length > size) {
+                break;
+            }
+
+            myIndex.put(new String(name.array(), UTF_8), new long[] { offset, length });
+            position = offset + length;
+        }
+
+        if (position < size && aLocked) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Cutting {} bytes of partly written tile off of {}", size - position, myFile);
+            }
+
+            myChannel.truncate(position);
+        }
+
+        myLength = position;
+    }
+
+    private void read(final ByteBuffer aBuffer, final long aPosition) throws IOException {
+        long position = aPosition;
+
+        while (aBuffer.hasRemaining()) {
+            final int read = myChannel.read(aBuffer, position);
+
+            if (read == -1) {
+                throw new IOException("Unexpected end of tile pack: " + myFile);
+            }
+
+            position += read;
+        }
+
+        aBuffer.flip();
+    }
+
+    private void write(final ByteBuffer aBuffer, final long aPosition) throws IOException {
+        long position = aPosition;
+
+        while (aBuffer.hasRemaining()) {
+            position += myChannel.write(aBuffer, position);
+        }
+    }
+}
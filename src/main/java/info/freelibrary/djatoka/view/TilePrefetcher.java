@@ -0,0 +1,585 @@
+
+package info.freelibrary.djatoka.view;
+
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.JP2ImageInfo;
+import info.freelibrary.djatoka.iiif.IIIFException;
+import info.freelibrary.djatoka.iiif.Size;
+import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.CanonicalRequest;
+import info.freelibrary.djatoka.util.Metrics;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders the tiles a deep-zoom viewer is likely to ask for next into the tile cache. After an image's information is
+ * requested that's the tiles of its top few levels; after a tile is requested it's the tiles around it and the four
+ * tiles below it at the next level. Prefetching happens on a single low priority thread, only while the decoders are
+ * idle, and only up to a budget of tiles per image. As soon as a prefetch finds the decoders busy, everything that's
+ * queued is dropped. When more than one tile of an aligned block of tiles is predicted, the whole block is decoded at
+ * once and cut into tiles.
+ */
+public class TilePrefetcher {
+
+    /** The tile size advertised in the image information */
+    public static final int TILE_SIZE = 256;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TilePrefetcher.class);
+
+    private static final int MAX_IMAGES = 1000;
+
+    private static final Metrics.Counter RENDERED = Metrics.counter("prefetch_rendered");
+
+    private static final Metrics.Counter SKIPPED = Metrics.counter("prefetch_skipped");
+
+    private final TileStore myStore;
+
+    private final int myBudget;
+
+    private final int myLevels;
+
+    private final int myBlockSize;
+
+    private final ThreadPoolExecutor myExecutor;
+
+    private final Set<String> myPending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Map<String, Image> myImages = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = -2795632871408437236L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Image> aEldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    /**
+     * Creates a tile prefetcher.
+     *
+     * @param aStore The tile store prefetched tiles are put into
+     * @param aBudget The maximum number of tiles prefetched for any one image
+     * @param aLevels The number of levels, from the top, prefetched when an image's information is requested
+     * @param aQueueSize The number of predictions that can wait to be prefetched; the oldest are dropped first
+     * @param aBlockSize The width and height, in tiles, of the blocks that are decoded at once
+     */
+    public TilePrefetcher(final TileStore aStore, final int aBudget, final int aLevels, final int aQueueSize,
+            final int aBlockSize) {
+        myStore = aStore;
+        myBudget = aBudget;
+        myLevels = aLevels;
+        myBlockSize = Math.max(1, aBlockSize);
+        myExecutor =
+                new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1,
+                        aQueueSize)), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+                        final Thread thread = new Thread(aRunnable, "djatoka-prefetch");
+
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Predicts the tiles that will be requested after an image's information has been. Dimensions or levels that are
+     * zero are looked up from the image's JP2.
+     *
+     * @param aID The image's identifier
+     * @param aWidth The image's width
+     * @param aHeight The image's height
+     * @param aLevels The number of levels in the image's information
+     */
+    public void infoRequested(final String aID, final int aWidth, final int aHeight, final int aLevels) {
+        myExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Image image = getImage(aID, aWidth, aHeight);
+
+                if (image != null) {
+                    final List<Tile> tiles = new ArrayList<Tile>();
+                    final int levels;
+                    final int width;
+                    final int height;
+
+                    // An information request that was served from its cache doesn't pass the image's dimensions on,
+                    // so the ones we already know are used
+                    synchronized (myImages) {
+                        if (aLevels > 0) {
+                            image.myLevels = aLevels;
+                        } else if (image.myLevels == 0) {
+                            image.myLevels = ImageProcessingUtils.getLevelCount(image.myWidth, image.myHeight);
+                        }
+
+                        levels = image.myLevels;
+                        width = image.myWidth;
+                        height = image.myHeight;
+                    }
+
+                    // Matches the largest scale factor the image information advertises
+                    int factor = 1 << Math.max(0, Math.min(levels - 1, 9));
+
+                    for (int level = 0; level < myLevels && factor >= 1; level++, factor /= 2) {
+                        final int span = TILE_SIZE * factor;
+
+                        for (int row = 0; row * span < height; row++) {
+                            for (int column = 0; column * span < width; column++) {
+                                tiles.add(new Tile(factor, column, row));
+                            }
+                        }
+                    }
+
+                    prefetch(image, tiles);
+                }
+            }
+        });
+    }
+
+    /**
+     * Predicts the tiles that will be requested after a tile has been. Only requests that line up with the tile grid,
+     * with just a width for their size, look like tiles.
+     *
+     * @param aID The image's identifier
+     * @param aX The requested region's x
+     * @param aY The requested region's y
+     * @param aWidth The requested region's width
+     * @param aHeight The requested region's height
+     * @param aScaledWidth The requested width
+     */
+    public void tileRequested(final String aID, final int aX, final int aY, final int aWidth, final int aHeight,
+            final int aScaledWidth) {
+        final int[] requested = getTile(aX, aY, aWidth, aHeight, aScaledWidth);
+
+        if (requested == null) {
+            return;
+        }
+
+        myExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Image image = getImage(aID, 0, 0);
+
+                if (image != null) {
+                    final List<Tile> tiles = new ArrayList<Tile>();
+                    final int factor = requested[0];
+                    final int column = requested[1];
+                    final int row = requested[2];
+
+                    // Pans are more common than zooms, so neighbours come first
+                    tiles.add(new Tile(factor, column + 1, row));
+                    tiles.add(new Tile(factor, column - 1, row));
+                    tiles.add(new Tile(factor, column, row + 1));
+                    tiles.add(new Tile(factor, column, row - 1));
+
+                    if (factor > 1) {
+                        for (int y = 0; y < 2; y++) {
+                            for (int x = 0; x < 2; x++) {
+                                tiles.add(new Tile(factor / 2, column * 2 + x, row * 2 + y));
+                            }
+                        }
+                    }
+
+                    prefetch(image, tiles);
+                }
+            }
+        });
+    }
+
+    /**
+     * Renders a tile into the tile cache on the calling thread, if it isn't already there. Unlike a prediction, it
+     * doesn't count against the image's budget of prefetched tiles.
+     *
+     * @param aID The image's identifier
+     * @param aFactor The scale factor of the tile's level
+     * @param aColumn The tile's column at that level
+     * @param aRow The tile's row at that level
+     * @return False if the decoders were too busy to render the tile; else, true
+     * @throws IOException If the image can't be found or the tile can't be rendered
+     */
+    public boolean warm(final String aID, final int aFactor, final int aColumn, final int aRow) throws IOException {
+        final Image image = getImage(aID, 0, 0);
+        final Tile tile = new Tile(aFactor, aColumn, aRow);
+
+        if (image == null) {
+            throw new IOException("Image not found: " + aID);
+        }
+
+        if (!isWanted(image, tile)) {
+            return true;
+        }
+
+        try {
+            return render(image, Collections.singletonList(tile), false) != Result.BUSY;
+        } catch (final IOException details) {
+            throw details;
+        } catch (final Exception details) {
+            throw new IOException(details.getMessage(), details);
+        }
+    }
+
+    /**
+     * Gets the level's scale factor, column, and row of the tile a request is for. Only requests that line up with the
+     * tile grid, with just a width for their size, look like tiles.
+     *
+     * @param aX The requested region's x
+     * @param aY The requested region's y
+     * @param aWidth The requested region's width
+     * @param aHeight The requested region's height
+     * @param aScaledWidth The requested width
+     * @return The tile's scale factor, column, and row, or null if the request doesn't look like a tile
+     */
+    public static int[] getTile(final int aX, final int aY, final int aWidth, final int aHeight,
+            final int aScaledWidth) {
+        if (aScaledWidth <= 0 || aWidth <= 0 || aHeight <= 0) {
+            return null;
+        }
+
+        final int factor = Integer.highestOneBit(Math.max(1, Math.round((float) aWidth / aScaledWidth)));
+        final int span = TILE_SIZE * factor;
+
+        if (aX % span != 0 || aY % span != 0) {
+            return null;
+        }
+
+        return new int[] { factor, aX / span, aY / span };
+    }
+
+    /**
+     * Stops prefetching; anything that's queued is dropped.
+     */
+    public void shutdown() {
+        myExecutor.shutdownNow();
+    }
+
+    void prefetch(final Image aImage, final List<Tile> aTiles) {
+        final Map<String, List<Tile>> blocks = new LinkedHashMap<String, List<Tile>>();
+
+        // Group the predicted tiles that still need rendering by the aligned block they're in
+        for (final Tile tile : aTiles) {
+            if (isWanted(aImage, tile)) {
+                final String key = tile.myFactor + "/" + tile.myColumn / myBlockSize + "/" + tile.myRow / myBlockSize;
+                List<Tile> block = blocks.get(key);
+
+                if (block == null) {
+                    block = new ArrayList<Tile>();
+                    blocks.put(key, block);
+                }
+
+                block.add(tile);
+            }
+        }
+
+        for (final List<Tile> predicted : blocks.values()) {
+            List<Tile> tiles = predicted;
+
+            // When more than one tile in a block is wanted, decoding the whole block costs little more than decoding
+            // those tiles one at a time
+            if (predicted.size() > 1 && myBlockSize > 1) {
+                final Tile first = predicted.get(0);
+                final int column = first.myColumn - first.myColumn % myBlockSize;
+                final int row = first.myRow - first.myRow % myBlockSize;
+
+                tiles = new ArrayList<Tile>();
+
+                for (int y = row; y < row + myBlockSize; y++) {
+                    for (int x = column; x < column + myBlockSize; x++) {
+                        final Tile tile = new Tile(first.myFactor, x, y);
+
+                        if (isWanted(aImage, tile)) {
+                            tiles.add(tile);
+                        }
+                    }
+                }
+            }
+
+            final Result result;
+
+            try {
+                result = render(aImage, tiles, true);
+            } catch (final Exception details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to prefetch tiles for {}: {}", aImage.myID, details.getMessage());
+                }
+
+                return;
+            }
+
+            if (result == Result.BUSY) {
+                // The decoders are busy so forget about everything else we thought would be asked for
+                SKIPPED.increment();
+                myExecutor.getQueue().clear();
+                return;
+            }
+
+            if (result == Result.OVER_BUDGET) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Renders tiles at the same scale with one decode of the region that covers them.
+     */
+    private Result render(final Image aImage, final List<Tile> aTiles, final boolean aBudgeted) throws Exception {
+        final int factor = aTiles.get(0).myFactor;
+        final int span = TILE_SIZE * factor;
+        final Rectangle[] bounds = new Rectangle[aTiles.size()];
+        final File[] files = new File[aTiles.size()];
+        final String[] names = new String[aTiles.size()];
+        final List<String> keys = new ArrayList<String>();
+        int minColumn = Integer.MAX_VALUE;
+        int minRow = Integer.MAX_VALUE;
+        int maxColumn = 0;
+        int maxRow = 0;
+
+        for (final Tile tile : aTiles) {
+            minColumn = Math.min(minColumn, tile.myColumn);
+            minRow = Math.min(minRow, tile.myRow);
+            maxColumn = Math.max(maxColumn, tile.myColumn);
+            maxRow = Math.max(maxRow, tile.myRow);
+        }
+
+        final int left = minColumn * span;
+        final int top = minRow * span;
+        final int width = Math.min((maxColumn + 1) * span, aImage.myWidth) - left;
+        final int height = Math.min((maxRow + 1) * span, aImage.myHeight) - top;
+        final String region = top + "," + left + "," + height + "," + width;
+
+        try {
+            for (int index = 0; index < aTiles.size(); index++) {
+                final Tile tile = aTiles.get(index);
+                final int x = tile.myColumn * span;
+                final int y = tile.myRow * span;
+                final int tileWidth = Math.min(span, aImage.myWidth - x);
+                final int tileHeight = Math.min(span, aImage.myHeight - y);
+                final String key = getCacheName(tile, aImage);
+
+                if (myPending.add(aImage.myID + '/' + key)) {
+                    keys.add(aImage.myID + '/' + key);
+                    names[index] = key;
+                    files[index] = File.createTempFile("prefetch-", ".jpg");
+                    bounds[index] =
+                            new Rectangle((x - left) / factor, (y - top) / factor, ceil(tileWidth, factor), ceil(
+                                    tileHeight, factor));
+                } else {
+                    bounds[index] = new Rectangle();
+                }
+            }
+
+            if (keys.isEmpty()) {
+                return Result.RENDERED;
+            }
+
+            if (aBudgeted) {
+                synchronized (myImages) {
+                    if (aImage.myRemaining < keys.size()) {
+                        return Result.OVER_BUDGET;
+                    }
+
+                    aImage.myRemaining -= keys.size();
+                }
+            }
+
+            if (OpenURLJP2KService.prefetch(aImage.myRecord, region, getScale(width, factor), bounds, files)) {
+                RENDERED.add(keys.size());
+
+                for (int index = 0; index < files.length; index++) {
+                    if (files[index] != null && files[index].length() > 0) {
+                        myStore.put(aImage.myID, names[index], files[index]);
+                    }
+                }
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Prefetched {} tiles from {} for {}", keys.size(), region, aImage.myID);
+                }
+
+                return Result.RENDERED;
+            }
+
+            if (aBudgeted) {
+                synchronized (myImages) {
+                    aImage.myRemaining += keys.size();
+                }
+            }
+
+            return Result.BUSY;
+        } finally {
+            myPending.removeAll(keys);
+
+            // Tiles that weren't rendered, or couldn't be stored, leave their empty files behind
+            for (final File file : files) {
+                if (file != null && file.exists() && !file.delete() && LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("File not deleted: {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a tile is in the image and isn't already cached.
+     */
+    private boolean isWanted(final Image aImage, final Tile aTile) {
+        final int span = TILE_SIZE * aTile.myFactor;
+
+        if (aTile.myColumn < 0 || aTile.myRow < 0 || aTile.myColumn * span >= aImage.myWidth ||
+                aTile.myRow * span >= aImage.myHeight) {
+            return false;
+        }
+
+        try {
+            return !myStore.contains(aImage.myID, getCacheName(aTile, aImage));
+        } catch (final Exception details) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the name the tile cache will look for the tile under when it's requested, once the request is in canonical
+     * form.
+     */
+    private static String getCacheName(final Tile aTile, final Image aImage) throws IIIFException {
+        final int span = TILE_SIZE * aTile.myFactor;
+        final int x = aTile.myColumn * span;
+        final int y = aTile.myRow * span;
+        final int width = Math.min(span, aImage.myWidth - x);
+        final int height = Math.min(span, aImage.myHeight - y);
+        final String region = y + "," + x + "," + height + "," + width;
+        final CanonicalRequest canonical = CanonicalRequest.fromDjatoka(region, 1d, new int[] { ceil(width,
+                aTile.myFactor), 0 }, 0, aImage.myWidth, aImage.myHeight);
+
+        if (canonical != null) {
+            return CacheUtils.getFileName(null, canonical.getRegion(), canonical.getScale(), 0f);
+        }
+
+        return CacheUtils.getFileName(null, region, getScale(width, aTile.myFactor), 0f);
+    }
+
+    /**
+     * Gets the scale a viewer asks for a region of the supplied width to be rendered at, the way a request has it.
+     */
+    private static String getScale(final int aWidth, final int aFactor) throws IIIFException {
+        return new Size(ceil(aWidth, aFactor) + ",").toString();
+    }
+
+    private static int ceil(final int aSize, final int aFactor) {
+        return (aSize + aFactor - 1) / aFactor;
+    }
+
+    /**
+     * Gets what we know about an image, looking up its JP2 (and, if they weren't supplied, its dimensions) the first
+     * time it's seen. Returns null if the image can't be found.
+     */
+    private Image getImage(final String aID, final int aWidth, final int aHeight) {
+        synchronized (myImages) {
+            final Image image = myImages.get(aID);
+
+            if (image != null) {
+                return image;
+            }
+        }
+
+        try {
+            final ImageRecord record = getImageRecord(aID);
+
+            if (record == null) {
+                return null;
+            }
+
+            final Image image = new Image(aID, record, myBudget);
+
+            if (aWidth > 0 && aHeight > 0) {
+                image.myWidth = aWidth;
+                image.myHeight = aHeight;
+            } else {
+                final ImageRecord info = new JP2ImageInfo(new File(record.getImageFile())).getImageRecord();
+
+                image.myWidth = info.getWidth();
+                image.myHeight = info.getHeight();
+                image.myLevels = info.getLevels();
+            }
+
+            synchronized (myImages) {
+                myImages.put(aID, image);
+            }
+
+            return image;
+        } catch (final Exception details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Not prefetching for {}: {}", aID, details.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    private enum Result {
+        RENDERED, BUSY, OVER_BUDGET
+    }
+
+    /**
+     * Looks up the record of an image's JP2.
+     */
+    ImageRecord getImageRecord(final String aID) throws Exception {
+        return ReferentManager.getImageRecord(aID);
+    }
+
+    static class Image {
+
+        private final String myID;
+
+        private final ImageRecord myRecord;
+
+        private int myWidth;
+
+        private int myHeight;
+
+        private int myLevels;
+
+        private int myRemaining;
+
+        private Image(final String aID, final ImageRecord aRecord, final int aBudget) {
+            myID = aID;
+            myRecord = aRecord;
+            myRemaining = aBudget;
+        }
+    }
+
+    static class Tile {
+
+        private final int myFactor;
+
+        private final int myColumn;
+
+        private final int myRow;
+
+        private Tile(final int aFactor, final int aColumn, final int aRow) {
+            myFactor = aFactor;
+            myColumn = aColumn;
+            myRow = aRow;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Where the IIIF image service keeps the tiles, and other derivatives, it has rendered. Tiles are stored by their
+ * image's identifier and their cache name. The implementation is picked with the <code>djatoka.view.cache.store</code>
+ * property and is set up from the rest of <code>djatoka-properties.xml</code>.
+ */
+public interface TileStore {
+
+    /**
+     * Sets up the store.
+     *
+     * @param aProps The properties the store is configured from
+     * @throws IOException If the store can't be opened
+     */
+    public void setup(Properties aProps) throws IOException;
+
+    /**
+     * Gets a tile.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aName The tile's cache name
+     * @return A read-only buffer of the tile's encoded bytes, or null if the store doesn't have the tile
+     * @throws IOException If the tile can't be read
+     */
+    public ByteBuffer get(String aID, String aName) throws IOException;
+
+    /**
+     * Checks whether the store has a tile.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aName The tile's cache name
+     * @return True if the store has the tile; else, false
+     */
+    public boolean contains(String aID, String aName);
+
+    /**
+     * Moves a newly rendered tile file into the store. Once it's stored the file is gone from where it was.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aName The tile's cache name
+     * @param aTile The tile file
+     * @throws IOException If the tile can't be stored
+     */
+    public void put(String aID, String aName, File aTile) throws IOException;
+
+    /**
+     * Stores a copy of a tile's encoded bytes.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aName The tile's cache name
+     * @param aTile The tile's encoded bytes
+     * @throws IOException If the tile can't be stored
+     */
+    public void put(String aID, String aName, ByteBuffer aTile) throws IOException;
+
+    /**
+     * Removes a tile from the store.
+     *
+     * @param aID The identifier of the tile's image
+     * @param aName The tile's cache name
+     * @return True if the tile was removed; false if the store didn't have it, or can't remove it
+     */
+    public boolean remove(String aID, String aName);
+
+    /**
+     * Sets what's told about tiles the store drops to stay within its size. Without a listener they're just dropped.
+     *
+     * @param aListener The listener for dropped tiles
+     */
+    public void setEvictionListener(EvictionListener aListener);
+
+    /**
+     * Closes the store.
+     */
+    public void close();
+
+    /**
+     * Told about the tiles a store drops to stay within its size, so they can be kept somewhere else.
+     */
+    public interface EvictionListener {
+
+        /**
+         * Receives a tile that's been dropped from a store.
+         *
+         * @param aID The identifier of the tile's image
+         * @param aName The tile's cache name
+         * @param aTile The tile's encoded bytes
+         */
+        public void evicted(String aID, String aName, ByteBuffer aTile);
+    }
+}
@@ -6,13 +6,13 @@ import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.reader.DjatokaReader;
 import gov.lanl.adore.djatoka.io.writer.TIFWriter;
 import gov.lanl.adore.djatoka.kdu.KduCompressExe;
+import gov.lanl.adore.djatoka.util.Resampler;
 import info.freelibrary.djatoka.Constants;
 import org.apache.commons.exec.*;
 import org.apache.commons.exec.environment.EnvironmentUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -111,7 +111,10 @@ public class DjatokaResampleMojo extends DjatokaIngestMojo {
 
     private String resampleImage(final BufferedImage aImage, final File aOutputFile) throws IOException {
         final int max = Math.max(aImage.getWidth(), aImage.getHeight());
-        final BufferedImage image = Scalr.resize(aImage, Scalr.Method.ULTRA_QUALITY, max - myPixelCount);
+        final double scale = (double) (max - myPixelCount) / max;
+        final int width = Math.max(1, (int) Math.round(aImage.getWidth() * scale));
+        final int height = Math.max(1, (int) Math.round(aImage.getHeight() * scale));
+        final BufferedImage image = Resampler.resize(aImage, width, height);
         final FileOutputStream fOutStream = new FileOutputStream(aOutputFile);
         final BufferedOutputStream outStream = new BufferedOutputStream(fOutStream);
 
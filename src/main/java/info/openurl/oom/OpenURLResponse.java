@@ -5,6 +5,9 @@
 package info.openurl.oom;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.net.URL;
@@ -37,6 +40,8 @@ public class OpenURLResponse {
 
     private Map headerMap;
 
+    private File file;
+
     /**
      * Construct an HTTP response proxy.
      * 
@@ -159,6 +164,22 @@ public class OpenURLResponse {
         this.headerMap = headerMap;
     }
 
+    /**
+     * Constructs a proxy for an HTTP response whose message is a file; it's streamed from disk, rather than read into
+     * memory, and byte ranges of it can be requested.
+     * 
+     * @param status HTTP status code
+     * @param contentType HTTP contentType
+     * @param file HTTP response message
+     * @param headerMap
+     */
+    public OpenURLResponse(int status, String contentType, File file, Map headerMap) {
+        this.status = status;
+        this.contentType = contentType;
+        this.file = file;
+        this.headerMap = headerMap;
+    }
+
     /**
      * Constructs a proxy for an HTTP OutputStream response
      * 
@@ -265,6 +286,23 @@ public class OpenURLResponse {
      * @return the InputStream to write()
      */
     public InputStream getInputStream() {
+        if (is == null && file != null) {
+            try {
+                is = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+
         return is;
     }
+
+    /**
+     * Gets the file that's the response message, if the message is a file.
+     * 
+     * @return The response message's file, or null if the message isn't a file
+     */
+    public File getFile() {
+        return file;
+    }
 }
\ No newline at end of file
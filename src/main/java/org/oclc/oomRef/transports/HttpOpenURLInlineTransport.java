@@ -103,7 +103,8 @@ public class HttpOpenURLInlineTransport implements Transport {
                 return null;
             }
 
-            Set entrySet = req.getParameterMap().entrySet();
+            // Copied since the metadata keeps it, and the container may reuse its own map once the request's answered
+            Set entrySet = new HashMap(req.getParameterMap()).entrySet();
             Iterator iter = entrySet.iterator();
 
             ArrayList referentDescriptors = new ArrayList();
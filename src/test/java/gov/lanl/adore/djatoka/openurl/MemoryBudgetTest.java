@@ -0,0 +1,75 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Tests that renders are estimated from their pixels, components and copies.
+     */
+    @Test
+    public void testEstimate() {
+        final MemoryBudget budget = new MemoryBudget(MEGABYTE, 3, 0L);
+
+        assertEquals(1000 * 3, budget.estimate(1000, 1));
+        assertEquals(1000 * 4 * 3, budget.estimate(1000, 3));
+        assertEquals(1000 * 4 * 3, budget.estimate(1000, 0));
+    }
+
+    /**
+     * Tests that a render waits out its time when the budget's used up, and fits once memory is given back.
+     */
+    @Test
+    public void testReserve() throws RenderRejectedException {
+        final MemoryBudget budget = new MemoryBudget(10 * MEGABYTE, 1, 10L);
+
+        budget.reserve(6 * MEGABYTE);
+        assertEquals(6 * MEGABYTE, budget.getReserved());
+        assertFalse(budget.tryReserve(6 * MEGABYTE));
+
+        try {
+            budget.reserve(6 * MEGABYTE);
+            fail("Reserved more memory than the budget has");
+        } catch (final RenderTooLargeException details) {
+            fail("A render that fits the budget was turned away as too large");
+        } catch (final RenderRejectedException details) {
+            // expected
+        }
+
+        budget.release(6 * MEGABYTE);
+        assertTrue(budget.tryReserve(6 * MEGABYTE));
+        budget.release(6 * MEGABYTE);
+        assertEquals(0, budget.getReserved());
+    }
+
+    /**
+     * Tests that a render bigger than the whole budget is turned away without waiting, and that there's no limit
+     * without a budget.
+     */
+    @Test
+    public void testTooLarge() throws RenderRejectedException {
+        final MemoryBudget budget = new MemoryBudget(10 * MEGABYTE, 1, 60000L);
+
+        try {
+            budget.reserve(11 * MEGABYTE);
+            fail("Reserved more memory than the whole budget");
+        } catch (final RenderTooLargeException details) {
+            assertEquals(0, budget.getReserved());
+        }
+
+        assertFalse(budget.tryReserve(11 * MEGABYTE));
+
+        final MemoryBudget unlimited = new MemoryBudget(0L, 1, 0L);
+
+        unlimited.reserve(Long.MAX_VALUE);
+        assertEquals(0, unlimited.getReserved());
+    }
+}
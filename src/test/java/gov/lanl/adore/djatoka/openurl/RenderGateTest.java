@@ -0,0 +1,135 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RenderGateTest {
+
+    private static final long WAIT = 5000;
+
+    /**
+     * Tests that a render waiting for a full gate gets in once a running render exits.
+     */
+    @Test
+    public void testWaitsForExit() throws Exception {
+        final RenderGate gate = new RenderGate(1, 1, WAIT);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    gate.enter();
+                    entered.countDown();
+                } catch (final RenderRejectedException details) {
+                    // The latch is never counted down, so the test fails
+                }
+            }
+        });
+
+        gate.enter();
+        waiter.start();
+
+        assertTrue(awaitWaiting(gate, 1));
+        assertEquals(1, gate.getActive());
+
+        gate.exit();
+
+        assertTrue(entered.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(0, gate.getWaiting());
+        assertEquals(1, gate.getActive());
+    }
+
+    /**
+     * Tests that a render is turned away when the queue's full, and when its wait runs out.
+     */
+    @Test
+    public void testRejected() throws Exception {
+        final RenderGate gate = new RenderGate(1, 1, WAIT);
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    gate.enter();
+                    gate.exit();
+                } catch (final RenderRejectedException details) {
+                    rejected.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        gate.enter();
+        waiter.start();
+        assertTrue(awaitWaiting(gate, 1));
+
+        try {
+            gate.enter();
+            fail("A render got past a full queue");
+        } catch (final RenderRejectedException details) {
+            assertEquals(1, gate.getWaiting());
+        }
+
+        gate.exit();
+        assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(0, rejected.get());
+
+        final RenderGate impatient = new RenderGate(1, 1, 50);
+
+        impatient.enter();
+
+        try {
+            impatient.enter();
+            fail("A render waited past its time");
+        } catch (final RenderRejectedException details) {
+            assertEquals(0, impatient.getWaiting());
+        }
+    }
+
+    /**
+     * Tests that prefetches only get in when the gate has room to spare.
+     */
+    @Test
+    public void testTryEnterIfIdle() throws Exception {
+        final RenderGate gate = new RenderGate(4, 1, WAIT);
+
+        // Half of the four renders have to be free for a prefetch to start
+        assertTrue(gate.tryEnterIfIdle());
+        assertTrue(gate.tryEnterIfIdle());
+        assertTrue(gate.tryEnterIfIdle());
+        assertFalse(gate.tryEnterIfIdle());
+
+        gate.exit();
+        assertTrue(gate.tryEnterIfIdle());
+        assertEquals(3, gate.getActive());
+
+        assertTrue(new RenderGate(0, 0, 0).tryEnterIfIdle());
+    }
+
+    private static boolean awaitWaiting(final RenderGate aGate, final int aCount) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT;
+
+        while (aGate.getWaiting() < aCount) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import gov.lanl.adore.djatoka.plugin.TextWatermark;
+import info.freelibrary.djatoka.util.CacheUtils;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TransformVersionTest {
+
+    private static final String REGION = "0,0,256,256";
+
+    private static final String SCALE = "256,";
+
+    /**
+     * Tests that a tile watermarked for an outside referrer isn't cached under the same name as the same tile
+     * rendered, without the watermark, for the allowed domain.
+     */
+    @Test
+    public void testWatermarkedNamesDiffer() {
+        final TextWatermark watermark = new TextWatermark();
+        final Properties props = new Properties();
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_COPYRIGHT, "(c) Example");
+        props.setProperty(TextWatermark.PROP_WATERMARK_ALLOWED, "example.org");
+        watermark.setup(props);
+
+        final String allowed = OpenURLJP2KService.getTransformVersion(watermark, "http://example.org/viewer",
+                "127.0.0.1");
+        final String outside = OpenURLJP2KService.getTransformVersion(watermark, "http://elsewhere.net/page",
+                "127.0.0.1");
+        final String none = OpenURLJP2KService.getTransformVersion(watermark, null, "127.0.0.1");
+
+        assertNull(allowed);
+        assertNotNull(outside);
+        assertNotNull(none);
+
+        // Working out a version leaves the shared plug-in's own instance properties alone
+        assertFalse(watermark.isTransformable());
+        assertFalse(CacheUtils.getFileName(null, REGION, SCALE, 0f, null, allowed).equals(CacheUtils.getFileName(
+                null, REGION, SCALE, 0f, null, outside)));
+    }
+}
@@ -0,0 +1,87 @@
+
+package gov.lanl.adore.djatoka.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+public class OverlayTest {
+
+    /**
+     * Tests that blending an overlay gives what Java2D draws, to within rounding, and that it's clipped to the image.
+     */
+    @Test
+    public void testStamp() {
+        final BufferedImage mark = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D markGraphics = mark.createGraphics();
+
+        markGraphics.setColor(new Color(200, 40, 90, 180));
+        markGraphics.fillOval(0, 0, 20, 10);
+        markGraphics.dispose();
+
+        final Overlay overlay = Overlay.fromImage(mark, 0.5f);
+
+        for (final int type : new int[] { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB }) {
+            // Stamped in a subimage, so it must respect the raster's offset and stride
+            final BufferedImage stamped = new BufferedImage(40, 40, type).getSubimage(10, 5, 30, 30);
+            final BufferedImage drawn = new BufferedImage(30, 30, type);
+
+            for (int y = 0; y < 30; y++) {
+                for (int x = 0; x < 30; x++) {
+                    stamped.setRGB(x, y, x * 8 << 16 | y * 8 << 8 | 100);
+                    drawn.setRGB(x, y, x * 8 << 16 | y * 8 << 8 | 100);
+                }
+            }
+
+            final Graphics2D graphics = drawn.createGraphics();
+
+            graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+            graphics.drawImage(mark, 15, 25, null);
+            graphics.dispose();
+
+            overlay.stamp(stamped, 15, 25);
+
+            for (int y = 0; y < 30; y++) {
+                for (int x = 0; x < 30; x++) {
+                    final int expected = drawn.getRGB(x, y);
+                    final int actual = stamped.getRGB(x, y);
+
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        assertTrue(x + "," + y, Math.abs((expected >> shift & 0xff) - (actual >> shift & 0xff)) <= 2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that text is placed with its baseline where it's stamped.
+     */
+    @Test
+    public void testText() {
+        final Overlay overlay = Overlay.fromText("Wy", new Font("Dialog", Font.PLAIN, 12), Color.WHITE, 1f);
+        final BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_3BYTE_BGR);
+        int lowest = -1;
+
+        overlay.stamp(image, 5, 20);
+
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                if ((image.getRGB(x, y) & 0xffffff) != 0) {
+                    lowest = y;
+                }
+            }
+        }
+
+        // The y descends below the baseline; nothing is drawn far from the text
+        assertTrue(lowest > 20 && lowest < 26);
+        assertEquals(null, Overlay.fromText("", new Font("Dialog", Font.PLAIN, 12), Color.WHITE, 1f));
+    }
+}
@@ -0,0 +1,64 @@
+
+package gov.lanl.adore.djatoka.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TextWatermarkTest {
+
+    /**
+     * Tests that the cache key changes with the watermark's configuration, but not with who it's allowed for.
+     */
+    @Test
+    public void testCacheKey() {
+        final Properties props = new Properties();
+        final TextWatermark watermark = new TextWatermark();
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_COPYRIGHT, "(c) Example");
+        watermark.setup(props);
+
+        final String key = watermark.getCacheKey();
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_ALLOWED, "example.org");
+        watermark.setup(props);
+        assertEquals(key, watermark.getCacheKey());
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_FONTSIZE, "14");
+        watermark.setup(props);
+        assertNotEquals(key, watermark.getCacheKey());
+    }
+
+    /**
+     * Tests that whether the watermark applies depends on the instance properties it's passed, not on the ones set on
+     * the shared plug-in.
+     */
+    @Test
+    public void testInstanceProps() {
+        final Properties props = new Properties();
+        final TextWatermark watermark = new TextWatermark();
+        final HashMap<String, String> allowed = new HashMap<String, String>();
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_COPYRIGHT, "(c) Example");
+        props.setProperty(TextWatermark.PROP_WATERMARK_ALLOWED, "example.org");
+        watermark.setup(props);
+
+        allowed.put(TextWatermark.PROPS_REFERRING_ENTITY, "http://example.org/viewer");
+        watermark.setInstanceProps(new HashMap<String, String>());
+
+        assertFalse(watermark.isTransformable(allowed));
+        assertTrue(watermark.isTransformable());
+        assertFalse(watermark.isTransformable(null));
+
+        watermark.setInstanceProps(allowed);
+
+        assertTrue(watermark.isTransformable(new HashMap<String, String>()));
+        assertFalse(watermark.isTransformable());
+    }
+}
@@ -0,0 +1,70 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import org.junit.Test;
+
+public class ImageProcessingUtilsTest {
+
+    /**
+     * Tests that a greyscale image keeps its type, and its exact samples, through each rotation.
+     */
+    @Test
+    public void testRotate() {
+        final BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = image.getRaster();
+
+        // 10 20 30
+        // 40 50 60
+        raster.setPixels(0, 0, 3, 2, new int[] { 10, 20, 30, 40, 50, 60 });
+
+        final BufferedImage ninety = ImageProcessingUtils.rotate(image, 90);
+        final BufferedImage oneEighty = ImageProcessingUtils.rotate(image, 180);
+        final BufferedImage twoSeventy = ImageProcessingUtils.rotate(image, 270);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, ninety.getType());
+        assertEquals(2, ninety.getWidth());
+        assertEquals(3, ninety.getHeight());
+        assertEquals("40 10 50 20 60 30", toString(ninety));
+        assertEquals("60 50 40 30 20 10", toString(oneEighty));
+        assertEquals("30 60 20 50 10 40", toString(twoSeventy));
+    }
+
+    /**
+     * Tests that color is converted to greyscale by brightness, and greyscale to black and white at its midpoint.
+     */
+    @Test
+    public void testQuality() {
+        final BufferedImage image = new BufferedImage(4, 1, BufferedImage.TYPE_INT_RGB);
+
+        image.setRGB(0, 0, 0xff0000);
+        image.setRGB(1, 0, 0x00ff00);
+        image.setRGB(2, 0, 0x7f7f7f);
+        image.setRGB(3, 0, 0x808080);
+
+        final BufferedImage grey = ImageProcessingUtils.toGrey(image);
+        final BufferedImage bitonal = ImageProcessingUtils.toBitonal(image);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, grey.getType());
+        assertEquals("77 149 127 128", toString(grey));
+        assertEquals(BufferedImage.TYPE_BYTE_BINARY, bitonal.getType());
+        assertEquals("0 1 0 1", toString(bitonal));
+        assertEquals(grey, ImageProcessingUtils.toGrey(grey));
+        assertEquals(bitonal, ImageProcessingUtils.toBitonal(bitonal));
+    }
+
+    private static String toString(final BufferedImage aImage) {
+        final int[] samples = aImage.getRaster().getPixels(0, 0, aImage.getWidth(), aImage.getHeight(), (int[]) null);
+        final StringBuilder builder = new StringBuilder();
+
+        for (final int sample : samples) {
+            builder.append(builder.length() == 0 ? "" : " ").append(sample);
+        }
+
+        return builder.toString();
+    }
+}
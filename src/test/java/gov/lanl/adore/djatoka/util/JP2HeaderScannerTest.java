@@ -0,0 +1,111 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class JP2HeaderScannerTest {
+
+    private static final File JP2 = new File("src/test/resources/images/iiif-test/"
+            + "67352ccc-d1b0-11e1-89ae-279075081939.jp2");
+
+    /**
+     * Tests scanning the header of a JP2 written by Kakadu, from a file and from a stream.
+     */
+    @Test
+    public void testScanJP2() throws IOException {
+        final InputStream stream = new FileInputStream(JP2);
+
+        try {
+            for (final JP2HeaderScanner scanner : new JP2HeaderScanner[] { new JP2HeaderScanner(JP2, true),
+                new JP2HeaderScanner(stream, true) }) {
+                assertEquals(1000, scanner.getWidth());
+                assertEquals(1000, scanner.getHeight());
+                assertEquals(3, scanner.getComponents());
+                assertEquals(8, scanner.getBitDepth());
+                assertEquals(6, scanner.getQualityLayers());
+                assertEquals(4, scanner.getDWTLevels());
+                assertEquals(1, scanner.getTileColumns());
+                assertEquals(32, scanner.getCodeBlockWidth());
+                assertEquals(128, scanner.getPrecinctWidth(0));
+                assertEquals(256, scanner.getPrecinctWidth(4));
+                assertTrue(scanner.hasPLT());
+                assertFalse(scanner.hasTLM());
+                assertEquals(1, scanner.getCompositingLayerCount());
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Tests that XML boxes are found and that a codestream's tile geometry and pointer markers are read.
+     */
+    @Test
+    public void testXmlAndTiles() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final byte[] xml = "<xml/>".getBytes("UTF-8");
+
+        out.writeInt(12);
+        out.writeInt(JP2Markers.MARKER_JP);
+        out.writeInt(JP2Markers.MARKER_JP_SIG);
+        out.writeInt(8 + xml.length);
+        out.writeInt(JP2Markers.MARKER_XML_BOX);
+        out.write(xml);
+        out.writeInt(0); // The codestream runs to the end of the file
+        out.writeInt(JP2Markers.MARKER_JP2C);
+        out.writeShort(JP2Markers.MARKER_SOC);
+        out.writeShort(JP2Markers.MARKER_SIZ);
+        out.writeShort(41);
+        out.writeShort(0);
+        out.writeInt(5000);
+        out.writeInt(3000);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(1024);
+        out.writeInt(1024);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeShort(1);
+        out.write(new byte[] { 7, 1, 1 });
+        out.writeShort(JP2Markers.MARKER_COD);
+        out.writeShort(12);
+        out.write(new byte[] { 0, 2, 0, 1, 0, 5, 4, 4, 0, 0 });
+        out.writeShort(JP2Markers.MARKER_TLM);
+        out.writeShort(4);
+        out.writeShort(0);
+        out.writeShort(JP2Markers.MARKER_SOT);
+        out.writeShort(10);
+        out.write(new byte[8]);
+        out.writeShort(JP2Markers.MARKER_SOD);
+        out.write(new byte[1024]);
+
+        final JP2HeaderScanner scanner = new JP2HeaderScanner(new ByteArrayInputStream(bytes.toByteArray()), true);
+
+        assertEquals(1, scanner.getXmlBoxes().size());
+        assertEquals(20, scanner.getXmlBoxes().get(0)[0]);
+        assertEquals("<xml/>", scanner.getXmlDocs().get(0));
+        assertEquals(5000, scanner.getWidth());
+        assertEquals(3000, scanner.getHeight());
+        assertEquals(5, scanner.getTileColumns());
+        assertEquals(3, scanner.getTileRows());
+        assertEquals(2, scanner.getProgressionOrder());
+        assertEquals(5, scanner.getDWTLevels());
+        assertEquals(64, scanner.getCodeBlockWidth());
+        assertTrue(scanner.hasTLM());
+        assertFalse(scanner.hasPLT());
+        assertEquals(-1, scanner.getCodestreamLength());
+    }
+}
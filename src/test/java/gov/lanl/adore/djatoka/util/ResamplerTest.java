@@ -0,0 +1,83 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+import org.junit.Test;
+
+public class ResamplerTest {
+
+    /**
+     * Tests that an image keeps its type and that a flat color stays flat, edges included.
+     */
+    @Test
+    public void testResize() {
+        for (final int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY }) {
+            final BufferedImage image = new BufferedImage(100, 60, type);
+
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, 0x808080);
+                }
+            }
+
+            final BufferedImage resized = Resampler.resize(image, 37, 23);
+
+            assertEquals(37, resized.getWidth());
+            assertEquals(23, resized.getHeight());
+            assertEquals(type, resized.getType());
+
+            for (int y = 0; y < resized.getHeight(); y++) {
+                for (int x = 0; x < resized.getWidth(); x++) {
+                    assertEquals(image.getRGB(0, 0), resized.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that splitting a resize across threads gives the same pixels as doing it on one.
+     */
+    @Test
+    public void testThreads() {
+        final BufferedImage image = new BufferedImage(1500, 1100, BufferedImage.TYPE_3BYTE_BGR);
+        final byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+        for (int index = 0; index < samples.length; index++) {
+            samples[index] = (byte) (index * 31 % 251);
+        }
+
+        final BufferedImage shrunk = Resampler.resize(image, 1024, 751, 4);
+
+        assertArrayEquals(((DataBufferByte) Resampler.resize(image, 1024, 751, 1).getRaster().getDataBuffer())
+                .getData(), ((DataBufferByte) shrunk.getRaster().getDataBuffer()).getData());
+
+        final BufferedImage rgb = new BufferedImage(700, 500, BufferedImage.TYPE_INT_RGB);
+
+        rgb.getGraphics().drawImage(image, 0, 0, null);
+        assertArrayEquals(((DataBufferInt) Resampler.resize(rgb, 900, 650, 1).getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) Resampler.resize(rgb, 900, 650, 3).getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * Tests that a resize split across threads still works once the threads have been shut down.
+     */
+    @Test
+    public void testShutdown() {
+        final BufferedImage image = new BufferedImage(1500, 1100, BufferedImage.TYPE_3BYTE_BGR);
+        final byte[] before = ((DataBufferByte) Resampler.resize(image, 1024, 751, 4).getRaster().getDataBuffer())
+                .getData();
+
+        Resampler.shutdown();
+        Resampler.shutdown();
+
+        assertArrayEquals(before, ((DataBufferByte) Resampler.resize(image, 1024, 751, 4).getRaster()
+                .getDataBuffer()).getData());
+    }
+}
@@ -0,0 +1,46 @@
+
+package info.freelibrary.djatoka.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+
+import org.junit.Test;
+
+public class PNMImageTest {
+
+    /**
+     * Tests that greyscale and bitmap images are read as single band images, with their samples as they were.
+     */
+    @Test
+    public void testSingleBand() throws FormatIOException, IOException {
+        final BufferedImage grey = read("P5\n# comment\n3 1\n255\n", new byte[] { 0, (byte) 128, (byte) 255 });
+        final BufferedImage deepGrey = read("P5 2 1 65535\n", new byte[] { 0, 0, (byte) 0xff, (byte) 0xff });
+        final BufferedImage bitmap = read("P4\n10 1\n", new byte[] { (byte) 0xa0, (byte) 0x40 });
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, grey.getType());
+        assertArrayEquals(new int[] { 0, 128, 255 }, grey.getRaster().getPixels(0, 0, 3, 1, (int[]) null));
+        assertArrayEquals(new int[] { 0, 255 }, deepGrey.getRaster().getPixels(0, 0, 2, 1, (int[]) null));
+
+        // Netpbm's 1 is black, so it's 0 in the image
+        assertEquals(BufferedImage.TYPE_BYTE_BINARY, bitmap.getType());
+        assertArrayEquals(new int[] { 0, 1, 0, 1, 1, 1, 1, 1, 1, 0 }, bitmap.getRaster().getPixels(0, 0, 10, 1,
+                (int[]) null));
+    }
+
+    private static BufferedImage read(final String aHeader, final byte[] aPixels) throws FormatIOException,
+            IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        bytes.write(aHeader.getBytes("US-ASCII"));
+        bytes.write(aPixels);
+
+        return new PNMImage(new ByteArrayInputStream(bytes.toByteArray())).getBufferedImage();
+    }
+}
@@ -0,0 +1,51 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    /**
+     * Tests the forms of single byte range a client can ask for.
+     */
+    @Test
+    public void testParse() {
+        ByteRange range = ByteRange.parse("bytes=0-99", 1000);
+
+        assertEquals(0, range.getStart());
+        assertEquals(99, range.getEnd());
+        assertEquals(100, range.getLength());
+        assertEquals("bytes 0-99/1000", range.getContentRange());
+
+        range = ByteRange.parse("bytes=900-", 1000);
+        assertEquals("bytes 900-999/1000", range.getContentRange());
+
+        range = ByteRange.parse("bytes=-100", 1000);
+        assertEquals("bytes 900-999/1000", range.getContentRange());
+
+        range = ByteRange.parse("bytes=990-2000", 1000);
+        assertEquals("bytes 990-999/1000", range.getContentRange());
+        assertTrue(range.isSatisfiable());
+    }
+
+    /**
+     * Tests that ranges past the end can't be satisfied and that ones we don't support mean the whole thing is sent.
+     */
+    @Test
+    public void testUnsupported() {
+        final ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */1000", range.getContentRange());
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+        assertNull(ByteRange.parse("bytes=10-5", 1000));
+        assertNull(ByteRange.parse("items=0-5", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+    }
+}
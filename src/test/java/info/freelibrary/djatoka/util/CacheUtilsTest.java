@@ -21,6 +21,9 @@ public class CacheUtilsTest {
     public void testGetFileName() {
         String scale = Integer.toString(CacheUtils.getScale(10));
         assertEquals("image_1024_0-0-1023-1023_1.jpg", CacheUtils.getFileName(null, "0,0,1023,1023", scale, 1.0f));
+        assertEquals("image_1024_full_t1a2b.jpg", CacheUtils.getFileName(null, "", scale, 0f, "1a2b"));
+        assertEquals("image_1024_full_90_grey_t1a2b.jpg", CacheUtils.getFileName(null, "", scale, 90f, "grey",
+                "1a2b"));
 
         // TODO: should this class throw an exception if level AND scale/region
         // are passed to it?
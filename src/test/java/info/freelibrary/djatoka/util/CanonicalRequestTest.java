@@ -0,0 +1,88 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import info.freelibrary.djatoka.iiif.IIIFException;
+import info.freelibrary.djatoka.iiif.Region;
+import info.freelibrary.djatoka.iiif.Size;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class CanonicalRequestTest {
+
+    /**
+     * Tests that IIIF requests for the same pixels are put in the same form.
+     */
+    @Test
+    public void testFromIIIF() throws IIIFException {
+        final String[][] sames = new String[][] { { "full", "full" }, { "0,0,1000,800", "pct:100" },
+            { "pct:0,0,100,100", "1000," }, { "0,0,2000,2000", ",800" }, { "full", "1000,900" } };
+
+        for (final String[] same : sames) {
+            final CanonicalRequest request = iiif(same[0], same[1], 0f);
+
+            assertEquals("", request.getRegion());
+            assertEquals("full", request.getScale());
+            assertEquals("full", request.getIIIFSize());
+        }
+
+        CanonicalRequest request = iiif("512,512,1024,1024", "244,", 360f);
+
+        assertEquals("512,512,288,488", request.getRegion());
+        assertEquals("512,512,488,288", request.getIIIFRegion());
+        assertEquals("244,0", request.getScale());
+        assertEquals("244,", request.getIIIFSize());
+        assertEquals(0, request.getRotation());
+        assertEquals(request.getScale(), iiif("512,512,488,288", "!244,1000", 0f).getScale());
+
+        request = iiif("full", "pct:50", 90f);
+        assertEquals("500,0", request.getScale());
+        assertEquals(request.getScale(), iiif("full", ",400", 0f).getScale());
+        assertEquals(90, request.getRotation());
+
+        assertNull(iiif("1000,0,10,10", "full", 0f));
+    }
+
+    /**
+     * Tests that OpenURL requests are put in the same form as the IIIF requests for the same pixels.
+     */
+    @Test
+    public void testFromDjatoka() throws IIIFException {
+        CanonicalRequest request = CanonicalRequest.fromDjatoka("0,0,800,1000", 1.0, null, 0, 1000, 800);
+
+        assertEquals("", request.getRegion());
+        assertNull(request.getScalingDimensions());
+
+        request = CanonicalRequest.fromDjatoka(null, 0.5, null, 0, 1000, 800);
+        assertEquals(iiif("full", "500,", 0f).getScale(), request.getScale());
+        assertArrayEquals(new int[] { 500, 0 }, request.getScalingDimensions());
+
+        request = CanonicalRequest.fromDjatoka("0.5,0.5,0.5,0.5", 1.0, new int[] { -1, 250 }, 0, 1000, 800);
+        assertEquals("400,500,400,500", request.getRegion());
+        assertEquals("250,0", request.getScale());
+
+        assertNull(CanonicalRequest.fromDjatoka("900,0,10,10", 1.0, null, 0, 1000, 800));
+        assertNull(CanonicalRequest.fromDjatoka("0,0,10", 1.0, null, 0, 1000, 800));
+    }
+
+    /**
+     * Tests reading an image's dimensions from its JP2.
+     */
+    @Test
+    public void testGetImageSize() {
+        final File jp2 = new File("src/test/resources/images/iiif-test/67352ccc-d1b0-11e1-89ae-279075081939.jp2");
+
+        assertArrayEquals(new int[] { 1000, 1000 }, CanonicalRequest.getImageSize(jp2));
+        assertNull(CanonicalRequest.getImageSize(new File("src/test/resources/images/missing.jp2")));
+    }
+
+    private static CanonicalRequest iiif(final String aRegion, final String aSize, final float aRotation)
+            throws IIIFException {
+        return CanonicalRequest.fromIIIF(new Region(aRegion), new Size(aSize), aRotation, 1000, 800);
+    }
+}
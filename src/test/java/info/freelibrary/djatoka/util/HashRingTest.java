@@ -0,0 +1,81 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final List<String> NODES = Arrays.asList("http://localhost:8081", "http://localhost:8082",
+            "http://localhost:8083", "http://localhost:8084");
+
+    private static final int KEYS = 10000;
+
+    /**
+     * Tests that keys are shared out roughly evenly, and each key's nodes are all the nodes, owner first.
+     */
+    @Test
+    public void testSpread() {
+        final HashRing ring = new HashRing(NODES, 128);
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (int index = 0; index < KEYS; index++) {
+            final String key = "ark:/13030/" + index;
+            final List<String> nodes = ring.getNodes(key);
+            final Integer count = counts.get(nodes.get(0));
+
+            assertEquals(ring.getNode(key), nodes.get(0));
+            assertEquals(new HashSet<String>(NODES), new HashSet<String>(nodes));
+            assertEquals(NODES.size(), nodes.size());
+            counts.put(nodes.get(0), count == null ? 1 : count + 1);
+        }
+
+        for (final String node : NODES) {
+            final int count = counts.get(node);
+
+            assertTrue(node + " owns " + count, count > KEYS / NODES.size() / 2 && count < KEYS / NODES.size() * 2);
+        }
+    }
+
+    /**
+     * Tests that losing a node only moves that node's keys, each to the next node in its ring order.
+     */
+    @Test
+    public void testFailover() {
+        final HashRing ring = new HashRing(NODES, 128);
+        final HashRing smaller = new HashRing(NODES.subList(0, NODES.size() - 1), 128);
+        final String lost = NODES.get(NODES.size() - 1);
+
+        for (int index = 0; index < KEYS; index++) {
+            final String key = "ark:/13030/" + index;
+            final List<String> nodes = ring.getNodes(key);
+
+            if (nodes.get(0).equals(lost)) {
+                assertEquals(nodes.get(1), smaller.getNode(key));
+            } else {
+                assertEquals(nodes.get(0), smaller.getNode(key));
+            }
+        }
+    }
+
+    /**
+     * Tests that an empty ring has no owners.
+     */
+    @Test
+    public void testEmpty() {
+        final HashRing ring = new HashRing(Collections.<String>emptyList(), 16);
+
+        assertNull(ring.getNode("ark:/13030/0"));
+        assertTrue(ring.getNodes("ark:/13030/0").isEmpty());
+    }
+}
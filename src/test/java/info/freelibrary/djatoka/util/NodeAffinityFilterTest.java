@@ -0,0 +1,335 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.iiif.IIIFRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class NodeAffinityFilterTest {
+
+    private static final String SELF = "http://127.0.0.1:1";
+
+    private static final String CLIENT = "203.0.113.9";
+
+    private static final String REFERER = "http://example.org/viewer";
+
+    private static final String URI = "/djatoka/iiif/{}/0,0,256,256/256,/0/native.jpg";
+
+    private final Map<String, String> myPeerHeaders = new HashMap<String, String>();
+
+    private HttpServer myPeer;
+
+    private String myPeerURL;
+
+    private String mySelfID;
+
+    private String myPeerID;
+
+    @Before
+    public void setUp() throws IOException {
+        myPeer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        myPeer.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(final HttpExchange aExchange) throws IOException {
+                final byte[] bytes = "tile".getBytes("UTF-8");
+
+                synchronized (myPeerHeaders) {
+                    myPeerHeaders.put("Referer", aExchange.getRequestHeaders().getFirst("Referer"));
+                    myPeerHeaders.put("X-Forwarded-For", aExchange.getRequestHeaders().getFirst("X-Forwarded-For"));
+                }
+
+                aExchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                aExchange.sendResponseHeaders(HttpServletResponse.SC_OK, bytes.length);
+                aExchange.getResponseBody().write(bytes);
+                aExchange.close();
+            }
+        });
+        myPeer.start();
+        myPeerURL = "http://127.0.0.1:" + myPeer.getAddress().getPort();
+
+        final List<String> peers = Arrays.asList(SELF, myPeerURL);
+        final HashRing ring = new HashRing(peers, 128);
+
+        for (int index = 0; mySelfID == null || myPeerID == null; index++) {
+            final String id = "ark:/13030/" + index;
+
+            if (SELF.equals(ring.getNode(id))) {
+                mySelfID = mySelfID == null ? id : mySelfID;
+            } else {
+                myPeerID = myPeerID == null ? id : myPeerID;
+            }
+        }
+
+        System.setProperty(Constants.CLUSTER_PEERS, SELF + " " + myPeerURL);
+        System.setProperty(Constants.CLUSTER_SELF, SELF);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(Constants.CLUSTER_PEERS);
+        System.clearProperty(Constants.CLUSTER_SELF);
+        System.clearProperty(Constants.CLUSTER_MODE);
+        new RenderExecutor().contextDestroyed(null);
+        myPeer.stop(0);
+    }
+
+    /**
+     * Tests that a request for an image this node owns is served here.
+     */
+    @Test
+    public void testLocal() throws Exception {
+        final FakeResponse response = new FakeResponse();
+        final Chain chain = new Chain();
+
+        newFilter().doFilter(newRequest(mySelfID, null), response.newProxy(), chain);
+
+        assertEquals(1, chain.myCalls);
+        assertEquals(SELF, response.myHeaders.get(NodeAffinityFilter.NODE_HEADER));
+    }
+
+    /**
+     * Tests that, by default, a client asking for another node's image is redirected there.
+     */
+    @Test
+    public void testRedirect() throws Exception {
+        final FakeResponse response = new FakeResponse();
+        final Chain chain = new Chain();
+        final HttpServletRequest request = newRequest(myPeerID, null);
+
+        newFilter().doFilter(request, response.newProxy(), chain);
+
+        assertEquals(0, chain.myCalls);
+        assertEquals(HttpServletResponse.SC_TEMPORARY_REDIRECT, response.myStatus);
+        assertEquals(myPeerURL + request.getRequestURI(), response.myHeaders.get("Location"));
+    }
+
+    /**
+     * Tests that a proxied request keeps its referrer and the client's address.
+     */
+    @Test
+    public void testProxy() throws Exception {
+        final FakeResponse response = new FakeResponse();
+        final Chain chain = new Chain();
+
+        System.setProperty(Constants.CLUSTER_MODE, "proxy");
+        newFilter().doFilter(newRequest(myPeerID, null), response.newProxy(), chain);
+
+        assertEquals(0, chain.myCalls);
+        assertEquals(HttpServletResponse.SC_OK, response.myStatus);
+        assertEquals("tile", response.myBody.toString("UTF-8"));
+
+        synchronized (myPeerHeaders) {
+            assertEquals(REFERER, myPeerHeaders.get("Referer"));
+            assertEquals(CLIENT, myPeerHeaders.get("X-Forwarded-For"));
+        }
+    }
+
+    /**
+     * Tests that a request a peer proxied is served here for the client it came from, but only if it came from a peer.
+     */
+    @Test
+    public void testForwardedFor() throws Exception {
+        final NodeAffinityFilter filter = newFilter();
+        final HttpServletRequest fromPeer = newRequest(myPeerID, "127.0.0.1");
+        final HttpServletRequest fromOther = newRequest(myPeerID, "198.51.100.1");
+        final Chain peerChain = new Chain();
+        final Chain otherChain = new Chain();
+
+        filter.doFilter(fromPeer, new FakeResponse().newProxy(), peerChain);
+        filter.doFilter(fromOther, new FakeResponse().newProxy(), otherChain);
+
+        assertEquals(1, peerChain.myCalls);
+        assertEquals(CLIENT, peerChain.myRemoteAddr);
+        assertEquals(1, otherChain.myCalls);
+        assertEquals("198.51.100.1", otherChain.myRemoteAddr);
+    }
+
+    /**
+     * Tests that a node without peers serves everything itself.
+     */
+    @Test
+    public void testUnclustered() throws Exception {
+        final FakeResponse response = new FakeResponse();
+        final Chain chain = new Chain();
+
+        System.clearProperty(Constants.CLUSTER_PEERS);
+        newFilter().doFilter(newRequest(myPeerID, null), response.newProxy(), chain);
+
+        assertEquals(1, chain.myCalls);
+        assertNull(response.myHeaders.get(NodeAffinityFilter.NODE_HEADER));
+    }
+
+    private static NodeAffinityFilter newFilter() throws Exception {
+        final NodeAffinityFilter filter = new NodeAffinityFilter();
+
+        filter.init(null);
+        return filter;
+    }
+
+    /**
+     * Creates a request for a tile of the supplied image; if it's given the address of the node it came through,
+     * it's a request that node proxied.
+     */
+    private static HttpServletRequest newRequest(final String aID, final String aForwarder) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final Map<String, String> headers = new HashMap<String, String>();
+        final String remoteAddr = aForwarder == null ? CLIENT : aForwarder;
+
+        attributes.put(IIIFRequest.KEY, new FakeIIIFRequest(aID));
+        headers.put("referer", REFERER);
+
+        if (aForwarder != null) {
+            headers.put(NodeAffinityFilter.FORWARDED_HEADER.toLowerCase(Locale.US), aForwarder);
+            headers.put("x-forwarded-for", CLIENT);
+        }
+
+        return (HttpServletRequest) Proxy.newProxyInstance(NodeAffinityFilterTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object aProxy, final Method aMethod, final Object[] aArgs) {
+                        final String name = aMethod.getName();
+
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(aArgs[0]);
+                        } else if ("getHeader".equals(name)) {
+                            return headers.get(((String) aArgs[0]).toLowerCase(Locale.US));
+                        } else if ("getMethod".equals(name)) {
+                            return "GET";
+                        } else if ("getRequestURI".equals(name)) {
+                            return URI.replace("{}", aID.replace("/", "%2F").replace(":", "%3A"));
+                        } else if ("getRemoteAddr".equals(name) || "getRemoteHost".equals(name)) {
+                            return remoteAddr;
+                        }
+
+                        return null;
+                    }
+                });
+    }
+
+    private static final class Chain implements FilterChain {
+
+        private int myCalls;
+
+        private String myRemoteAddr;
+
+        @Override
+        public void doFilter(final ServletRequest aRequest, final ServletResponse aResponse) {
+            myCalls++;
+            myRemoteAddr = aRequest.getRemoteAddr();
+        }
+    }
+
+    /**
+     * A response that remembers its status, headers, and body.
+     */
+    private static final class FakeResponse implements InvocationHandler {
+
+        private final Map<String, String> myHeaders = new HashMap<String, String>();
+
+        private final ByteArrayOutputStream myBody = new ByteArrayOutputStream();
+
+        private int myStatus = HttpServletResponse.SC_OK;
+
+        private HttpServletResponse newProxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(final Object aProxy, final Method aMethod, final Object[] aArgs) {
+            final String name = aMethod.getName();
+
+            if ("setStatus".equals(name)) {
+                myStatus = (Integer) aArgs[0];
+            } else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                myHeaders.put((String) aArgs[0], (String) aArgs[1]);
+            } else if ("getHeader".equals(name)) {
+                return myHeaders.get(aArgs[0]);
+            } else if ("getOutputStream".equals(name)) {
+                return new BodyStream(myBody);
+            }
+
+            return null;
+        }
+    }
+
+    private static final class BodyStream extends ServletOutputStream {
+
+        private final OutputStream myOutput;
+
+        private BodyStream(final OutputStream aOutput) {
+            myOutput = aOutput;
+        }
+
+        @Override
+        public void write(final int aByte) throws IOException {
+            myOutput.write(aByte);
+        }
+    }
+
+    private static final class FakeIIIFRequest implements IIIFRequest {
+
+        private final String myID;
+
+        private FakeIIIFRequest(final String aID) {
+            myID = aID;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return myID;
+        }
+
+        @Override
+        public String getExtension() {
+            return "jpg";
+        }
+
+        @Override
+        public boolean hasExtension() {
+            return true;
+        }
+
+        @Override
+        public String getServicePrefix() {
+            return "iiif";
+        }
+
+        @Override
+        public boolean hasServicePrefix() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.junit.Test;
+
+public class RasterPoolTest {
+
+    private static final int LENGTH = 100000;
+
+    /**
+     * Tests that arrays aren't pooled when there's no lease open.
+     */
+    @Test
+    public void testWithoutLease() {
+        final RasterPool pool = new RasterPool(1 << 24);
+        final byte[] bytes = pool.getBytes(LENGTH);
+
+        assertEquals(LENGTH, bytes.length);
+
+        pool.release(bytes);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * Tests that an array released under a lease is reused by the next one, and that images keep their type.
+     */
+    @Test
+    public void testReuse() {
+        final RasterPool pool = new RasterPool(1 << 24);
+        RasterPool.Lease lease = pool.open();
+        final int[] ints;
+        final byte[] bytes;
+
+        try {
+            ints = pool.getInts(LENGTH);
+            assertTrue(ints.length >= LENGTH);
+            pool.release(ints);
+
+            final BufferedImage image = pool.createImage(300, 300, BufferedImage.TYPE_3BYTE_BGR);
+
+            assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+            image.setRGB(10, 20, 0x123456);
+            assertEquals(0x123456, image.getRGB(10, 20) & 0xffffff);
+            bytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        } finally {
+            lease.close();
+        }
+
+        lease = pool.open();
+
+        try {
+            assertSame(ints, pool.getInts(LENGTH));
+            assertSame(bytes, pool.getBytes(300 * 300 * 3));
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Tests that the pool drops arrays that would take it over its bound.
+     */
+    @Test
+    public void testBound() {
+        final RasterPool pool = new RasterPool(LENGTH * 2);
+        final RasterPool.Lease lease = pool.open();
+        final byte[] first = pool.getBytes(LENGTH);
+        final byte[] second = pool.getBytes(LENGTH);
+
+        pool.release(first);
+        pool.release(second);
+        lease.close();
+
+        assertEquals(first.length, pool.getPooledBytes());
+
+        final RasterPool.Lease next = pool.open();
+
+        try {
+            assertSame(first, pool.getBytes(LENGTH));
+            assertNotSame(second, pool.getBytes(LENGTH));
+        } finally {
+            next.close();
+        }
+    }
+
+    /**
+     * Tests that scratch arrays that weren't released are reclaimed when their lease closes.
+     */
+    @Test
+    public void testUnreleased() {
+        final RasterPool pool = new RasterPool(1 << 24);
+        final RasterPool.Lease outer = pool.open();
+        final RasterPool.Lease inner = pool.open();
+        final int[] ints = pool.getInts(LENGTH);
+
+        inner.close();
+        assertEquals(ints.length * 4L, pool.getPooledBytes());
+
+        try {
+            assertSame(ints, pool.getInts(LENGTH));
+        } finally {
+            outer.close();
+        }
+    }
+}
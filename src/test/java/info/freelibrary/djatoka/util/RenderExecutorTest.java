@@ -0,0 +1,304 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import info.freelibrary.djatoka.Constants;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderExecutorTest {
+
+    private static final long TIMEOUT = 200;
+
+    private static final long WAIT = 5000;
+
+    @Before
+    public void setUp() {
+        final Properties props = new Properties();
+
+        props.setProperty(Constants.RENDER_TIMEOUT, Long.toString(TIMEOUT));
+        props.setProperty(Constants.RENDER_THREADS, "1");
+        props.setProperty(Constants.RENDER_QUEUE_SIZE, "1");
+        props.setProperty("OpenURLJP2KService.retryAfter", "7");
+
+        RenderExecutor.configure(props);
+    }
+
+    @After
+    public void tearDown() {
+        new RenderExecutor().contextDestroyed(null);
+    }
+
+    /**
+     * Tests that a render that finishes in time writes its response and completes its request once.
+     */
+    @Test
+    public void testRendered() throws InterruptedException {
+        final FakeContext context = new FakeContext();
+
+        RenderExecutor.execute(context, RenderLane.INTERACTIVE, new RenderExecutor.Task() {
+
+            @Override
+            public void run(final HttpServletResponse aResponse) {
+                aResponse.setStatus(HttpServletResponse.SC_OK);
+            }
+        });
+
+        assertTrue(context.awaitComplete());
+        assertEquals(0, context.myTimeout);
+        assertEquals(HttpServletResponse.SC_OK, context.myResponse.myStatus);
+
+        // The render's timeout was cancelled, so nothing answers the request again
+        Thread.sleep(TIMEOUT * 2);
+        assertEquals(1, context.myCompletions.get());
+        assertEquals(HttpServletResponse.SC_OK, context.myResponse.myStatus);
+    }
+
+    /**
+     * Tests that a render that hasn't written anything by its timeout has its request answered with a 503, and that
+     * what it writes afterwards is dropped.
+     */
+    @Test
+    public void testTimedOut() throws InterruptedException {
+        final FakeContext context = new FakeContext();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger claims = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        RenderExecutor.execute(context, RenderLane.INTERACTIVE, new RenderExecutor.Task() {
+
+            @Override
+            public void run(final HttpServletResponse aResponse) throws InterruptedException {
+                try {
+                    release.await(WAIT, TimeUnit.MILLISECONDS);
+
+                    if (RenderExecutor.claim(aResponse)) {
+                        claims.incrementAndGet();
+                    }
+
+                    aResponse.setStatus(HttpServletResponse.SC_OK);
+                } catch (final IllegalStateException details) {
+                    failures.incrementAndGet();
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+
+        assertTrue(context.awaitComplete());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, context.myResponse.myStatus);
+        assertEquals("7", context.myResponse.myHeaders.get("Retry-After"));
+
+        release.countDown();
+        assertTrue(finished.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(0, claims.get());
+        assertEquals(1, failures.get());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, context.myResponse.myStatus);
+        assertEquals(1, context.myCompletions.get());
+    }
+
+    /**
+     * Tests that a render that's started writing its response isn't cut off by its timeout.
+     */
+    @Test
+    public void testClaimedOutlastsTimeout() throws InterruptedException {
+        final FakeContext context = new FakeContext();
+
+        RenderExecutor.execute(context, RenderLane.INTERACTIVE, new RenderExecutor.Task() {
+
+            @Override
+            public void run(final HttpServletResponse aResponse) throws InterruptedException {
+                aResponse.setStatus(HttpServletResponse.SC_OK);
+                Thread.sleep(TIMEOUT * 3);
+                aResponse.setHeader("X-Rendered", "true");
+            }
+        });
+
+        Thread.sleep(TIMEOUT * 2);
+        assertEquals(0, context.myCompletions.get());
+
+        assertTrue(context.awaitComplete());
+        assertEquals(HttpServletResponse.SC_OK, context.myResponse.myStatus);
+        assertEquals("true", context.myResponse.myHeaders.get("X-Rendered"));
+        assertNull(context.myResponse.myHeaders.get("Retry-After"));
+        assertEquals(1, context.myCompletions.get());
+    }
+
+    /**
+     * Tests that a render that can't be queued is answered with a 503 straight away.
+     */
+    @Test
+    public void testRejected() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RenderExecutor.Task blocked = new RenderExecutor.Task() {
+
+            @Override
+            public void run(final HttpServletResponse aResponse) throws InterruptedException {
+                aResponse.setStatus(HttpServletResponse.SC_OK);
+                release.await(WAIT, TimeUnit.MILLISECONDS);
+            }
+        };
+        final FakeContext running = new FakeContext();
+        final FakeContext queued = new FakeContext();
+        final FakeContext rejected = new FakeContext();
+
+        try {
+            // One running on the only thread and one in the only queue slot leave no room for a third
+            RenderExecutor.execute(running, RenderLane.INTERACTIVE, blocked);
+            RenderExecutor.execute(queued, RenderLane.INTERACTIVE, blocked);
+            RenderExecutor.execute(rejected, RenderLane.INTERACTIVE, blocked);
+
+            assertEquals(1, rejected.myCompletions.get());
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.myResponse.myStatus);
+            assertEquals("7", rejected.myResponse.myHeaders.get("Retry-After"));
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(running.awaitComplete());
+        assertEquals(HttpServletResponse.SC_OK, running.myResponse.myStatus);
+    }
+
+    /**
+     * A response that remembers its status and headers.
+     */
+    private static final class FakeResponse implements InvocationHandler {
+
+        private final Map<String, String> myHeaders = new HashMap<String, String>();
+
+        private volatile int myStatus = HttpServletResponse.SC_OK;
+
+        private HttpServletResponse newProxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public synchronized Object invoke(final Object aProxy, final Method aMethod, final Object[] aArgs) {
+            final String name = aMethod.getName();
+
+            if ("setStatus".equals(name)) {
+                myStatus = (Integer) aArgs[0];
+            } else if ("setHeader".equals(name)) {
+                myHeaders.put((String) aArgs[0], (String) aArgs[1]);
+            } else if ("reset".equals(name)) {
+                myHeaders.clear();
+                myStatus = HttpServletResponse.SC_OK;
+            } else if ("getStatus".equals(name)) {
+                return myStatus;
+            } else if ("isCommitted".equals(name)) {
+                return false;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * An asynchronous context that counts how often it's completed.
+     */
+    private static final class FakeContext implements AsyncContext {
+
+        private final FakeResponse myResponse = new FakeResponse();
+
+        private final HttpServletResponse myProxy = myResponse.newProxy();
+
+        private final AtomicInteger myCompletions = new AtomicInteger();
+
+        private final CountDownLatch myCompleted = new CountDownLatch(1);
+
+        private volatile long myTimeout = -1;
+
+        private boolean awaitComplete() throws InterruptedException {
+            return myCompleted.await(WAIT, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void complete() {
+            myCompletions.incrementAndGet();
+            myCompleted.countDown();
+        }
+
+        @Override
+        public ServletResponse getResponse() {
+            return myProxy;
+        }
+
+        @Override
+        public void setTimeout(final long aTimeout) {
+            myTimeout = aTimeout;
+        }
+
+        @Override
+        public long getTimeout() {
+            return myTimeout;
+        }
+
+        @Override
+        public void addListener(final AsyncListener aListener) {
+        }
+
+        @Override
+        public void addListener(final AsyncListener aListener, final ServletRequest aRequest,
+                final ServletResponse aResponse) {
+        }
+
+        @Override
+        public <T extends AsyncListener> T createListener(final Class<T> aClass) {
+            return null;
+        }
+
+        @Override
+        public ServletRequest getRequest() {
+            throw new IllegalStateException("Renders mustn't use the request");
+        }
+
+        @Override
+        public boolean hasOriginalRequestAndResponse() {
+            return true;
+        }
+
+        @Override
+        public void dispatch() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void dispatch(final String aPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void dispatch(final ServletContext aContext, final String aPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void start(final Runnable aRunnable) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RenderLaneTest {
+
+    private static final long MAX_PIXELS = 1024 * 1024;
+
+    /**
+     * Tests that viewer tiles and thumbnails are treated as interactive.
+     */
+    @Test
+    public void testInteractive() {
+        assertEquals(RenderLane.INTERACTIVE, RenderLane.classify("0,0,256,256", null, MAX_PIXELS));
+        assertEquals(RenderLane.INTERACTIVE, RenderLane.classify("4096,2048,2048,2048", "256,0", MAX_PIXELS));
+        assertEquals(RenderLane.INTERACTIVE, RenderLane.classify(null, "150,0", MAX_PIXELS));
+        assertEquals(RenderLane.INTERACTIVE, RenderLane.classify("", "!200,200", MAX_PIXELS));
+        assertEquals(RenderLane.INTERACTIVE, RenderLane.classify("0,0,2048,2048", "0.25", MAX_PIXELS));
+    }
+
+    /**
+     * Tests that full images, big regions, and requests we can't size are treated as bulk.
+     */
+    @Test
+    public void testBulk() {
+        assertEquals(RenderLane.BULK, RenderLane.classify(null, null, MAX_PIXELS));
+        assertEquals(RenderLane.BULK, RenderLane.classify("", "1.0", MAX_PIXELS));
+        assertEquals(RenderLane.BULK, RenderLane.classify("0,0,10000,10000", "1.0", MAX_PIXELS));
+        assertEquals(RenderLane.BULK, RenderLane.classify(null, "4000,3000", MAX_PIXELS));
+        assertEquals(RenderLane.BULK, RenderLane.classify(null, "pct:50", MAX_PIXELS));
+    }
+}
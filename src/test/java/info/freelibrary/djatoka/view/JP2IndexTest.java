@@ -0,0 +1,146 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class JP2IndexTest {
+
+    private static final String FIRST_ID = "ark:/13030/first";
+
+    private static final String SECOND_ID = "ark:/13030/second";
+
+    /**
+     * Tests that once an image's directory stops being watched, its entry is checked on disk again instead of being
+     * trusted forever.
+     */
+    @Test
+    public void testEvictedDirIsRechecked() throws IOException {
+        final File jp2Dir = File.createTempFile("jp2index-", "");
+        final JP2Index index;
+
+        assertTrue(jp2Dir.delete() && jp2Dir.mkdirs());
+        index = new JP2Index(jp2Dir);
+
+        try {
+            final File first = createJP2(jp2Dir, FIRST_ID);
+            final File second = createJP2(jp2Dir, SECOND_ID);
+
+            index.setMaxWatchedDirs(1);
+
+            assertEquals(first, index.get(FIRST_ID));
+            assertEquals(second, index.get(SECOND_ID));
+
+            // The first directory's watch is gone, so its deletion has to be noticed on the next lookup
+            assertTrue(first.delete());
+            assertNull(index.get(FIRST_ID));
+        } finally {
+            index.close();
+            delete(jp2Dir);
+        }
+    }
+
+    /**
+     * Tests that looking up an image that isn't there doesn't create a directory for it.
+     */
+    @Test
+    public void testMissLeavesPairtreeAlone() throws IOException {
+        final File jp2Dir = File.createTempFile("jp2index-", "");
+        final JP2Index index;
+
+        assertTrue(jp2Dir.delete() && jp2Dir.mkdirs());
+        index = new JP2Index(jp2Dir);
+
+        try {
+            final File pairtree = new PairtreeRoot(jp2Dir);
+
+            assertNull(index.get(FIRST_ID));
+            assertEquals(0, pairtree.list().length);
+        } finally {
+            index.close();
+            delete(jp2Dir);
+        }
+    }
+
+    /**
+     * Tests that a full index drops the images that were used least recently, rather than everything it knows.
+     */
+    @Test
+    public void testFullIndexDropsLeastRecentlyUsed() throws IOException {
+        final File jp2Dir = File.createTempFile("jp2index-", "");
+        final JP2Index index;
+
+        assertTrue(jp2Dir.delete() && jp2Dir.mkdirs());
+        index = new JP2Index(jp2Dir);
+
+        try {
+            final String[] ids = new String[9];
+
+            for (int count = 0; count < ids.length; count++) {
+                ids[count] = "ark:/13030/image" + count;
+                createJP2(jp2Dir, ids[count]);
+            }
+
+            index.setMaxSize(8);
+
+            for (int count = 0; count < ids.length - 1; count++) {
+                assertFalse(index.get(ids[count]) == null);
+                sleep();
+            }
+
+            // The first image is used again, so it's no longer the least recently used
+            assertFalse(index.get(ids[0]) == null);
+            sleep();
+            assertFalse(index.get(ids[8]) == null);
+
+            // A quarter of the eight are dropped to make room for the ninth
+            assertEquals(7, index.size());
+
+            // The first image was kept, and the second was dropped, so only the second is added again
+            assertFalse(index.get(ids[0]) == null);
+            assertEquals(7, index.size());
+            assertFalse(index.get(ids[1]) == null);
+            assertEquals(8, index.size());
+        } finally {
+            index.close();
+            delete(jp2Dir);
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(2);
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static File createJP2(final File aJP2Dir, final String aID) throws IOException {
+        final File file = new File(new PairtreeRoot(aJP2Dir).getObject(aID), PairtreeUtils.encodeID(aID));
+
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private static void delete(final File aFile) {
+        final File[] files = aFile.listFiles();
+
+        if (files != null) {
+            for (final File file : files) {
+                delete(file);
+            }
+        }
+
+        aFile.delete();
+    }
+}
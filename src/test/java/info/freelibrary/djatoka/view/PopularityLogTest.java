@@ -0,0 +1,73 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PopularityLogTest {
+
+    private static final String ID = "ark:/13030/popular";
+
+    /**
+     * Tests that the most requested tiles come first and that they survive a save and load.
+     */
+    @Test
+    public void testTopAndReload() throws IOException {
+        final File file = File.createTempFile("popularity-", ".txt");
+        final PopularityLog log = new PopularityLog(file, 100);
+
+        try {
+            for (int count = 0; count < 3; count++) {
+                log.record(ID, 4, 1, 2);
+            }
+
+            log.record(ID, 1, 0, 0);
+            log.record("ark:/13030/with\ttab", 2, 3, 4);
+            log.record("ark:/13030/with\ttab", 2, 3, 4);
+            log.save();
+
+            final PopularityLog reloaded = new PopularityLog(file, 100);
+
+            reloaded.load();
+
+            final List<PopularityLog.Entry> top = reloaded.getTop(2);
+
+            assertEquals(3, reloaded.size());
+            assertEquals(2, top.size());
+            assertEquals(ID, top.get(0).getID());
+            assertEquals(4, top.get(0).getFactor());
+            assertEquals(1, top.get(0).getColumn());
+            assertEquals(2, top.get(0).getRow());
+            assertEquals(3, top.get(0).getCount());
+            assertEquals("ark:/13030/with\ttab", top.get(1).getID());
+            assertEquals(2, top.get(1).getCount());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * Tests that a full log halves its counts, dropping the tiles that were only asked for once.
+     */
+    @Test
+    public void testCompaction() {
+        final PopularityLog log = new PopularityLog(new File("unused"), 3);
+
+        for (int count = 0; count < 4; count++) {
+            log.record(ID, 1, 0, 0);
+        }
+
+        log.record(ID, 1, 1, 0);
+        log.record(ID, 1, 2, 0);
+        log.record(ID, 1, 3, 0);
+
+        assertEquals(1, log.size());
+        assertEquals(2, log.getTop(10).get(0).getCount());
+    }
+}
@@ -0,0 +1,126 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import info.freelibrary.djatoka.Constants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TieredTileStoreTest {
+
+    private static final String ID = "ark:/13030/tiered";
+
+    /**
+     * Tests that tiles a full memory tier drops are moved down to disk, and moved back up when they're asked for.
+     */
+    @Test
+    public void testDemoteAndPromote() throws IOException {
+        final File dir = createDir();
+        final Properties props = new Properties();
+        final TieredTileStore store = new TieredTileStore();
+
+        props.setProperty(Constants.VIEW_CACHE_STORE, TieredTileStore.class.getName());
+        props.setProperty(Constants.VIEW_CACHE_TIERS, "ram disk");
+        props.setProperty(Constants.VIEW_CACHE_TIER + "ram.store", MemoryTileStore.class.getName());
+        props.setProperty(Constants.VIEW_CACHE_TIER + "ram.size", "10");
+        props.setProperty(Constants.VIEW_CACHE_TIER + "disk.dir", dir.getAbsolutePath());
+
+        try {
+            store.setup(props);
+
+            final File tile = File.createTempFile("tile-", ".jpg");
+            final FileOutputStream stream = new FileOutputStream(tile);
+
+            stream.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+            stream.close();
+
+            store.put(ID, "a.jpg", tile);
+            store.put(ID, "b.jpg", ByteBuffer.wrap(new byte[] { 7, 8, 9, 10, 11, 12 }));
+
+            assertFalse(tile.exists());
+            assertTrue(store.contains(ID, "a.jpg"));
+            assertTrue(store.contains(ID, "b.jpg"));
+            assertFalse(store.contains(ID, "c.jpg"));
+            assertNull(store.get(ID, "c.jpg"));
+
+            // The first tile no longer fits in memory, so it's on disk, and comes back up when it's read
+            assertEquals(1, countFiles(dir, "a.jpg"));
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, getBytes(store.get(ID, "a.jpg")));
+            assertEquals(0, countFiles(dir, "a.jpg"));
+            assertEquals(1, countFiles(dir, "b.jpg"));
+            assertArrayEquals(new byte[] { 7, 8, 9, 10, 11, 12 }, getBytes(store.get(ID, "b.jpg")));
+
+            assertTrue(store.remove(ID, "a.jpg"));
+            assertFalse(store.contains(ID, "a.jpg"));
+        } finally {
+            store.close();
+            delete(dir);
+        }
+    }
+
+    /**
+     * Tests that a tier's own properties stand in for the store's, and that it doesn't inherit the tiered store.
+     */
+    @Test
+    public void testTierProperties() {
+        final Properties props = new Properties();
+
+        props.setProperty(Constants.VIEW_CACHE_STORE, TieredTileStore.class.getName());
+        props.setProperty(Constants.VIEW_CACHE_DIR, "/bulk");
+        props.setProperty(Constants.VIEW_CACHE_TIER + "ssd.dir", "/ssd");
+
+        assertEquals("/ssd", TieredTileStore.getTierProperties(props, "ssd").getProperty(Constants.VIEW_CACHE_DIR));
+        assertEquals("/bulk", TieredTileStore.getTierProperties(props, "disk").getProperty(
+                Constants.VIEW_CACHE_DIR));
+        assertNull(TieredTileStore.getTierProperties(props, "ssd").getProperty(Constants.VIEW_CACHE_STORE));
+    }
+
+    private static byte[] getBytes(final ByteBuffer aBuffer) {
+        final byte[] bytes = new byte[aBuffer.remaining()];
+
+        aBuffer.get(bytes);
+        return bytes;
+    }
+
+    private static File createDir() throws IOException {
+        final File dir = File.createTempFile("tilestore-", "");
+
+        assertTrue(dir.delete() && dir.mkdir());
+        return dir;
+    }
+
+    private static int countFiles(final File aDir, final String aName) {
+        int count = 0;
+
+        for (final File file : aDir.listFiles()) {
+            if (file.isDirectory()) {
+                count += countFiles(file, aName);
+            } else if (file.getName().equals(aName)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static void delete(final File aFile) {
+        if (aFile.isDirectory()) {
+            for (final File file : aFile.listFiles()) {
+                delete(file);
+            }
+        }
+
+        aFile.delete();
+    }
+}
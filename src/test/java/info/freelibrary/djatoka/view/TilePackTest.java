@@ -0,0 +1,202 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import info.freelibrary.util.PairtreeRoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TilePackTest {
+
+    /**
+     * Tests that tiles added to a pack can be read back, including after the pack is reopened.
+     */
+    @Test
+    public void testAddAndGet() throws IOException {
+        final File file = File.createTempFile("tilepack-", TilePack.EXTENSION);
+
+        try {
+            TilePack pack = new TilePack(file);
+
+            assertTrue(pack.add("0,0,256,256_256,_0.jpg", ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+            assertTrue(pack.add("0,256,256,256_256,_0.jpg", ByteBuffer.wrap(new byte[] { 4, 5 })));
+            assertTrue(pack.add("0,0,256,256_256,_0.jpg", ByteBuffer.wrap(new byte[] { 9 })));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, getBytes(pack.get("0,0,256,256_256,_0.jpg")));
+            assertNull(pack.get("256,0,256,256_256,_0.jpg"));
+            pack.close();
+
+            pack = new TilePack(file);
+
+            assertEquals(2, pack.size());
+            assertArrayEquals(new byte[] { 4, 5 }, getBytes(pack.get("0,256,256,256_256,_0.jpg")));
+            pack.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that a tile that was only partly written is dropped when the pack is reopened.
+     */
+    @Test
+    public void testPartialTile() throws IOException {
+        final File file = File.createTempFile("tilepack-", TilePack.EXTENSION);
+
+        try {
+            TilePack pack = new TilePack(file);
+
+            pack.add("a.jpg", ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+            pack.add("b.jpg", ByteBuffer.wrap(new byte[] { 4, 5, 6 }));
+            pack.close();
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            final long length = raf.length();
+
+            raf.setLength(length - 2);
+            raf.close();
+
+            pack = new TilePack(file);
+
+            assertEquals(1, pack.size());
+            assertNull(pack.get("b.jpg"));
+            assertTrue(pack.add("c.jpg", ByteBuffer.wrap(new byte[] { 7 })));
+            assertArrayEquals(new byte[] { 7 }, getBytes(pack.get("c.jpg")));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, getBytes(pack.get("a.jpg")));
+            pack.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that a pack that's dropped from the recently used packs while it's being used stays open until it's
+     * released, including when other threads are opening packs at the same time.
+     */
+    @Test
+    public void testConcurrentEviction() throws Exception {
+        final File dir = File.createTempFile("tilepacks-", "");
+
+        assertTrue(dir.delete() && dir.mkdirs());
+
+        try {
+            final PairtreeRoot cache = new PairtreeRoot(dir);
+            final TilePack held = TilePack.forImage(cache, "held");
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            final Thread[] threads = new Thread[4];
+
+            assertTrue(held.add("a.jpg", ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+
+            for (int index = 0; index < threads.length; index++) {
+                final int offset = index;
+
+                threads[index] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            // Enough packs between them to push each other, and the held pack, out
+                            for (int count = 0; count < 300; count++) {
+                                final String id = "image" + (count + offset * 75) % 300;
+                                final TilePack pack = TilePack.forImage(cache, id);
+
+                                try {
+                                    pack.add(id + ".jpg", ByteBuffer.wrap(new byte[] { (byte) count }));
+                                    assertEquals(1, pack.get(id + ".jpg").remaining());
+                                } finally {
+                                    pack.release();
+                                }
+                            }
+                        } catch (final Throwable details) {
+                            failures.add(details);
+                        }
+                    }
+                };
+                threads[index].start();
+            }
+
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(Collections.emptyList(), failures);
+
+            // The held pack was dropped, but it's still open for its holder
+            assertTrue(held.add("b.jpg", ByteBuffer.wrap(new byte[] { 4, 5 })));
+            assertArrayEquals(new byte[] { 4, 5 }, getBytes(held.get("b.jpg")));
+            held.release();
+
+            final TilePack reopened = TilePack.forImage(cache, "held", false);
+
+            try {
+                assertNotSame(held, reopened);
+                assertArrayEquals(new byte[] { 1, 2, 3 }, getBytes(reopened.get("a.jpg")));
+            } finally {
+                reopened.release();
+            }
+        } finally {
+            TilePack.closeAll();
+            delete(dir);
+        }
+    }
+
+    /**
+     * Tests that tiles are read correctly on either side of, and across, the boundary between two mapped chunks.
+     */
+    @Test
+    public void testTileAcrossChunks() throws IOException {
+        final File file = File.createTempFile("tilepack-", TilePack.EXTENSION);
+        final byte[] big = new byte[9 * 1024 * 1024];
+
+        big[0] = 1;
+        big[big.length - 1] = 2;
+
+        try {
+            final TilePack pack = new TilePack(file);
+
+            assertTrue(pack.add("a.jpg", ByteBuffer.wrap(big)));
+            assertArrayEquals(big, getBytes(pack.get("a.jpg")));
+
+            // The second runs over into the next chunk, and the third starts in it
+            assertTrue(pack.add("b.jpg", ByteBuffer.wrap(big)));
+            assertTrue(pack.add("c.jpg", ByteBuffer.wrap(new byte[] { 7 })));
+            assertArrayEquals(big, getBytes(pack.get("b.jpg")));
+            assertArrayEquals(new byte[] { 7 }, getBytes(pack.get("c.jpg")));
+            assertArrayEquals(big, getBytes(pack.get("a.jpg")));
+            pack.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void delete(final File aFile) {
+        final File[] files = aFile.listFiles();
+
+        if (files != null) {
+            for (final File file : files) {
+                delete(file);
+            }
+        }
+
+        aFile.delete();
+    }
+
+    private static byte[] getBytes(final ByteBuffer aBuffer) {
+        final byte[] bytes = new byte[aBuffer.remaining()];
+
+        aBuffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,55 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TilePrefetcherTest {
+
+    private static final String ID = "ark:/13030/prefetched";
+
+    /**
+     * Tests that an information request served from the cache, which doesn't know the image's dimensions, still
+     * queues the image's top-level tiles.
+     */
+    @Test
+    public void testCachedInfoRequest() throws InterruptedException {
+        final BlockingQueue<Integer> queued = new LinkedBlockingQueue<Integer>();
+        final TilePrefetcher prefetcher = new TilePrefetcher(new MemoryTileStore(), 64, 2, 16, 4) {
+
+            @Override
+            ImageRecord getImageRecord(final String aID) {
+                return new ImageRecord(aID, "/unused.jp2");
+            }
+
+            @Override
+            void prefetch(final Image aImage, final List<Tile> aTiles) {
+                queued.add(aTiles.size());
+            }
+        };
+
+        try {
+            // 2000 x 1500 with 4 levels: one tile at a scale factor of 8, then 2 x 2 at a factor of 4
+            prefetcher.infoRequested(ID, 2000, 1500, 4);
+            prefetcher.infoRequested(ID, 0, 0, 0);
+
+            final Integer first = queued.poll(5, TimeUnit.SECONDS);
+            final Integer second = queued.poll(5, TimeUnit.SECONDS);
+
+            assertEquals(Integer.valueOf(5), first);
+            assertTrue(second != null);
+            assertEquals(first, second);
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+}